@@ -0,0 +1,29 @@
+package org.littleshoot.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * <p>
+ * A {@link HostResolver} that can resolve host and port without blocking the calling thread.
+ * </p>
+ *
+ * <p>
+ * When the proxy's server resolver implements this interface, server addresses are resolved as a step of the
+ * connection flow, and the connection proceeds once the returned {@link CompletionStage} completes. A slow lookup then
+ * no longer holds up the event loop that received the request. Resolvers that only implement {@link HostResolver} are
+ * still called synchronously.
+ * </p>
+ */
+public interface AsyncHostResolver extends HostResolver
+{
+    /**
+     * Resolves host and port into an InetSocketAddress.
+     *
+     * @param host the host name or IP address literal to resolve
+     * @param port the port
+     * @return a stage that completes with the resolved address, or completes exceptionally with an
+     * {@link java.net.UnknownHostException} if the host could not be resolved
+     */
+    CompletionStage <InetSocketAddress> resolveAsync (String host, int port);
+}
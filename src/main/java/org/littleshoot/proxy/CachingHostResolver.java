@@ -0,0 +1,223 @@
+package org.littleshoot.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.net.InetAddresses;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * {@link AsyncHostResolver} that performs lookups with a delegate {@link HostResolver} on a small pool of dedicated
+ * threads and caches the results.
+ * </p>
+ *
+ * <p>
+ * Successful lookups are cached for a fixed time to live, and failed lookups for a (usually shorter) negative time to
+ * live. The JDK resolver does not expose the TTLs of the underlying DNS records, so both are configured here; the
+ * defaults match the JVM's own address cache. The cache is bounded, and concurrent lookups of the same host are
+ * coalesced into a single call to the delegate. IP address literals are never looked up.
+ * </p>
+ */
+public class CachingHostResolver implements AsyncHostResolver
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CachingHostResolver.class);
+
+    /**
+     * The default maximum number of hosts whose lookup results are cached.
+     */
+    public static final int DEFAULT_MAXIMUM_CACHE_SIZE = 10000;
+
+    /**
+     * The default time, in seconds, for which a successful lookup is cached.
+     */
+    public static final int DEFAULT_TTL_SECONDS = 30;
+
+    /**
+     * The default time, in seconds, for which a failed lookup is cached.
+     */
+    public static final int DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+
+    /**
+     * The default number of threads used for lookups.
+     */
+    public static final int DEFAULT_RESOLVER_THREADS = 4;
+
+    private static final AtomicInteger resolverCount = new AtomicInteger (0);
+
+    private final HostResolver delegate;
+    private final Cache <String, InetAddress> addresses;
+    private final Cache <String, UnknownHostException> failures;
+    private final ConcurrentMap <String, CompletableFuture <InetAddress>> lookupsInFlight = new ConcurrentHashMap <> ();
+    private final Executor executor;
+
+    /**
+     * Creates a resolver that uses {@link DefaultHostResolver} for lookups, with the default cache settings.
+     */
+    public CachingHostResolver ()
+    {
+        this (new DefaultHostResolver ());
+    }
+
+    /**
+     * Creates a resolver that uses the given delegate for lookups, with the default cache settings.
+     */
+    public CachingHostResolver (HostResolver delegate)
+    {
+        this (delegate, DEFAULT_MAXIMUM_CACHE_SIZE, DEFAULT_TTL_SECONDS, DEFAULT_NEGATIVE_TTL_SECONDS, DEFAULT_RESOLVER_THREADS);
+    }
+
+    /**
+     * @param delegate            the resolver that performs the actual (blocking) lookups
+     * @param maximumCacheSize    maximum number of hosts to cache successful and failed lookups for, each
+     * @param ttlSeconds          time for which a successful lookup is cached, or 0 to not cache successful lookups
+     * @param negativeTtlSeconds  time for which a failed lookup is cached, or 0 to not cache failed lookups
+     * @param resolverThreads     number of threads used for lookups
+     */
+    public CachingHostResolver (HostResolver delegate, int maximumCacheSize, int ttlSeconds, int negativeTtlSeconds, int resolverThreads)
+    {
+        this.delegate = delegate;
+        this.addresses = CacheBuilder.newBuilder ().maximumSize (maximumCacheSize).expireAfterWrite (ttlSeconds, TimeUnit.SECONDS).build ();
+        this.failures = CacheBuilder.newBuilder ().maximumSize (maximumCacheSize).expireAfterWrite (negativeTtlSeconds, TimeUnit.SECONDS).build ();
+
+        final String threadNamePrefix = "LittleProxy-HostResolver-" + resolverCount.getAndIncrement () + "-";
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor (resolverThreads, resolverThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue <Runnable> (), new ThreadFactory ()
+        {
+            private final AtomicInteger threadCount = new AtomicInteger (0);
+
+            @Override
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread (r, threadNamePrefix + threadCount.getAndIncrement ());
+                t.setDaemon (true);
+                return t;
+            }
+        });
+        threadPoolExecutor.allowCoreThreadTimeOut (true);
+        this.executor = threadPoolExecutor;
+    }
+
+    @Override
+    public CompletionStage <InetSocketAddress> resolveAsync (String host, final int port)
+    {
+        return lookup (host).thenApply (new Function <InetAddress, InetSocketAddress> ()
+        {
+            @Override
+            public InetSocketAddress apply (InetAddress address)
+            {
+                return new InetSocketAddress (address, port);
+            }
+        });
+    }
+
+    @Override
+    public InetSocketAddress resolve (String host, int port) throws UnknownHostException
+    {
+        try
+        {
+            return new InetSocketAddress (lookup (host).get (), port);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread ().interrupt ();
+            throw new UnknownHostException ("Interrupted while resolving " + host);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause () instanceof UnknownHostException)
+            {
+                throw (UnknownHostException) e.getCause ();
+            }
+            throw new RuntimeException (e.getCause ());
+        }
+    }
+
+    /**
+     * Discards all cached lookup results.
+     */
+    public void clearCache ()
+    {
+        addresses.invalidateAll ();
+        failures.invalidateAll ();
+    }
+
+    private CompletableFuture <InetAddress> lookup (final String host)
+    {
+        if (InetAddresses.isInetAddress (host))
+        {
+            return CompletableFuture.completedFuture (InetAddresses.forString (host));
+        }
+
+        InetAddress address = addresses.getIfPresent (host);
+        if (address != null)
+        {
+            return CompletableFuture.completedFuture (address);
+        }
+
+        UnknownHostException failure = failures.getIfPresent (host);
+        if (failure != null)
+        {
+            CompletableFuture <InetAddress> failed = new CompletableFuture <> ();
+            failed.completeExceptionally (failure);
+            return failed;
+        }
+
+        final CompletableFuture <InetAddress> lookup = new CompletableFuture <> ();
+        CompletableFuture <InetAddress> lookupInFlight = lookupsInFlight.putIfAbsent (host, lookup);
+        if (lookupInFlight != null)
+        {
+            LOG.debug ("Joining lookup of {} that is already in flight", host);
+            return lookupInFlight;
+        }
+
+        executor.execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    InetAddress resolved = delegate.resolve (host, 0).getAddress ();
+                    if (resolved == null)
+                    {
+                        throw new UnknownHostException (host);
+                    }
+                    addresses.put (host, resolved);
+                    lookupsInFlight.remove (host, lookup);
+                    lookup.complete (resolved);
+                }
+                catch (UnknownHostException e)
+                {
+                    LOG.debug ("Unable to resolve {}", host, e);
+                    failures.put (host, e);
+                    lookupsInFlight.remove (host, lookup);
+                    lookup.completeExceptionally (e);
+                }
+                catch (RuntimeException e)
+                {
+                    LOG.warn ("Unexpected error while resolving {}", host, e);
+                    lookupsInFlight.remove (host, lookup);
+                    lookup.completeExceptionally (e);
+                }
+            }
+        });
+
+        return lookup;
+    }
+}
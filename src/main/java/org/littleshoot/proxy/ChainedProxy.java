@@ -40,8 +40,9 @@ public interface ChainedProxy extends SslEngineSource
     /**
      * Implement this method to tell LittleProxy whether or not to encrypt
      * connections to the chained proxy for the given request. If true,
-     * LittleProxy will call {@link SslEngineSource#newSslEngine()} to obtain an
-     * SSLContext used by the downstream proxy.
+     * LittleProxy will call {@link SslEngineSource#newSslEngine(String, int)}
+     * with the chained proxy's address, or {@link SslEngineSource#newSslEngine()}
+     * if that returns null, to obtain an SSLEngine used by the downstream proxy.
  true of the connection to the chained proxy should be encrypted
      */
     boolean requiresEncryption ();
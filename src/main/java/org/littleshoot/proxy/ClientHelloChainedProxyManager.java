@@ -0,0 +1,33 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Queue;
+
+/**
+ * <p>
+ * {@link ChainedProxyManager} that can also choose chained proxies for CONNECT tunnels by the TLS ClientHello the
+ * client sent through them. See {@link HttpProxyServerBootstrap#withClientHelloPeek(boolean)}.
+ * </p>
+ */
+public interface ClientHelloChainedProxyManager extends ChainedProxyManager
+{
+    /**
+     * <p>
+     * Based on the given CONNECT request and the ClientHello the client sent through the tunnel, add any
+     * {@link ChainedProxy}s to the list that should be used for the tunnel, as in
+     * {@link #lookupChainedProxies(HttpRequest, Queue)}. This method is called instead of that one for tunnels whose
+     * ClientHello was read.
+     * </p>
+     *
+     * <p>
+     * To keep the proxy from attempting any connection, leave the list blank. Since the proxy has already responded to
+     * the CONNECT, this closes the tunnel.
+     * </p>
+     *
+     * @param httpRequest    the CONNECT request
+     * @param clientHello    the server name and application protocols the client asked for
+     * @param chainedProxies the chained proxies to try, in order
+     */
+    void lookupChainedProxies (HttpRequest httpRequest, TlsClientHello clientHello, Queue <ChainedProxy> chainedProxies);
+}
@@ -0,0 +1,25 @@
+package org.littleshoot.proxy;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * <p>
+ * {@link MitmManager} whose server connections can negotiate HTTP/2. When the proxy is configured to use HTTP/2
+ * upstream, it encrypts the connections that it shares between the requests of MITM'd HTTP/2 streams with engines from
+ * {@link #http2ServerSslEngine(String, int)}, and sends the requests as concurrent streams if the server selects h2.
+ * </p>
+ *
+ * <p>
+ * The requests of a {@link MitmManager} that does not implement this interface are always sent with HTTP/1.1.
+ * </p>
+ */
+public interface Http2MitmManager extends MitmManager
+{
+    /**
+     * Like {@link #serverSslEngine(String, int)}, but the engine offers h2 as well as http/1.1 with ALPN.
+     *
+     * @param peerHost the host of the server
+     * @param peerPort the port of the server
+     */
+    SSLEngine http2ServerSslEngine (String peerHost, int peerPort);
+}
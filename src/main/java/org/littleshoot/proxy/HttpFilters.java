@@ -56,6 +56,7 @@ import java.net.InetSocketAddress;
  * the following order:
  * <ol>
  * <li>clientToProxyRequest</li>
+ * <li>clientToProxyClientHello (only for CONNECT tunnels, if enabled)</li>
  * <li>proxyToServerConnectionQueued</li>
  * <li>proxyToServerResolutionStarted</li>
  * <li>proxyToServerResolutionSucceeded</li>
@@ -92,6 +93,19 @@ public interface HttpFilters
      */
     HttpResponse clientToProxyRequest (HttpObject httpObject);
 
+    /**
+     * Filters CONNECT tunnels by the TLS ClientHello the client sent through them, before the proxy connects to the
+     * server. Only called if {@link HttpProxyServerBootstrap#withClientHelloPeek(boolean)} is enabled and the tunnel is
+     * not MITM'd. The proxy has already responded to the CONNECT, so a tunnel can only be denied by closing it.
+     *
+     * @param clientHello the server name and application protocols the client asked for
+     * @return true to connect to the server, or false to close the tunnel; tunnels are connected by default
+     */
+    default boolean clientToProxyClientHello (TlsClientHello clientHello)
+    {
+        return true;
+    }
+
     /**
      * Filters requests on their way from the proxy to the server. To interrupt processing of this request and return a
      * response to the client immediately, return an HttpResponse here. Otherwise, return null to continue processing as
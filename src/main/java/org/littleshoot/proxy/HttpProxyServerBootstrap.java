@@ -1,6 +1,12 @@
 package org.littleshoot.proxy;
 
+import org.littleshoot.proxy.impl.ConnectionPoolConfiguration;
+import org.littleshoot.proxy.impl.Http2UpstreamConfiguration;
+import org.littleshoot.proxy.impl.PipeliningConfiguration;
+import org.littleshoot.proxy.impl.ChannelTransport;
+import org.littleshoot.proxy.impl.ServerSslSessionCache;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.littleshoot.proxy.impl.UpstreamSslSessionCache;
 
 import java.net.InetSocketAddress;
 
@@ -131,7 +137,8 @@ public interface HttpProxyServerBootstrap
     /**
      * <p>
      * Specify an {@link MitmManager} to use for making this proxy act as an SSL
-     * man in the middle
+     * man in the middle. A {@link SelectiveMitmManager} chooses for each
+     * CONNECT whether it is intercepted or tunneled.
      * </p>
      *
      * <p>
@@ -205,7 +212,15 @@ public interface HttpProxyServerBootstrap
     HttpProxyServerBootstrap withConnectTimeout (int connectTimeout);
 
     /**
-     * Specify a custom {@link HostResolver} for resolving server addresses.
+     * <p>
+     * Specify a custom {@link HostResolver} for resolving server addresses. If
+     * the resolver is an {@link AsyncHostResolver}, addresses are resolved
+     * without blocking the proxy's event loops.
+     * </p>
+     *
+     * <p>
+     * Default = {@link CachingHostResolver} backed by {@link DefaultHostResolver}
+     * </p>
      */
     HttpProxyServerBootstrap withServerResolver (HostResolver serverResolver);
 
@@ -253,4 +268,240 @@ public interface HttpProxyServerBootstrap
      * @return proxy server bootstrap for chaining
      */
     HttpProxyServerBootstrap withThreadPoolConfiguration (ThreadPoolConfiguration configuration);
-}
\ No newline at end of file
+
+    /**
+     * <p>
+     * Specify the Netty transport to use for TCP event loops and channels,
+     * e.g. {@link ChannelTransport#EPOLL} for Linux native epoll. Falls back
+     * to {@link ChannelTransport#NIO} if the transport is not available on
+     * this platform. Cloned servers share the event loops, and therefore the
+     * transport, of the server they were cloned from.
+     * </p>
+     *
+     * <p>
+     * Default = {@link ChannelTransport#NIO}
+     * </p>
+     *
+     * @param channelTransport transport to use for TCP
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withChannelTransport (ChannelTransport channelTransport);
+
+    /**
+     * <p>
+     * Pool idle connections to upstream servers and share them between all
+     * clients of this proxy, using the given limits. Without a pool, server
+     * connections are closed as soon as the client that opened them
+     * disconnects.
+     * </p>
+     *
+     * <p>
+     * Default = null (no pooling)
+     * </p>
+     *
+     * @param configuration connection pool configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withConnectionPoolConfiguration (ConnectionPoolConfiguration configuration);
+
+    /**
+     * <p>
+     * Bind one TCP listener per client-to-proxy worker thread to the same
+     * port using SO_REUSEPORT, so that the kernel spreads incoming
+     * connections across the listeners. Each listener accepts on, and hands
+     * its connections to, its own worker event loop, bypassing the acceptor
+     * threads. Requires {@link ChannelTransport#EPOLL}; with any other
+     * transport, or with UDT, a single listener is bound as usual.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param reusePort true to bind one listener per worker thread
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withReusePort (boolean reusePort);
+
+    /**
+     * <p>
+     * Register each TCP connection to a server on the same event loop as
+     * the client connection it serves, instead of on a separate
+     * proxy-to-server worker thread. Data relayed between the two then never
+     * crosses threads, and backpressure between them needs no locking. The
+     * proxy-to-server worker threads are still used for UDT and when the
+     * proxy itself listens with UDT. Pooled connections are preferably
+     * handed to clients on the same event loop.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param colocateEventLoops true to share event loops between client and
+     *                           server connections
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withColocatedEventLoops (boolean colocateEventLoops);
+
+    /**
+     * <p>
+     * Relay the data of CONNECT tunnels directly between the client and
+     * server sockets in kernel space, using splice, instead of reading it
+     * into buffers and writing it back out. Only tunnels that are not
+     * MITM'd, not encrypted between client and proxy or proxy and chained
+     * proxy, and not throttled are spliced. Requires
+     * {@link ChannelTransport#EPOLL} and
+     * {@link #withColocatedEventLoops(boolean)}; otherwise tunnels are
+     * relayed as usual. All TCP channels then use level-triggered epoll.
+     * </p>
+     *
+     * <p>
+     * Since spliced data never passes through the proxy, it is not reported
+     * to {@link ActivityTracker}s, and spliced tunnels are not closed by the
+     * idle connection timeout.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param spliceTunnels true to splice CONNECT tunnels where possible
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withSplicedTunnels (boolean spliceTunnels);
+
+    /**
+     * <p>
+     * Configure the size and timeout of the caches of TLS sessions that
+     * handshakes with servers (when MITM'ing) and chained proxies resume,
+     * and count how many of those handshakes are resumed. Sessions are
+     * cached per {@link MitmManager} or {@link ChainedProxy} SSLContext and
+     * keyed by host and port.
+     * </p>
+     *
+     * <p>
+     * Default = null (the JDK's default cache size and timeout, and no
+     * counters)
+     * </p>
+     *
+     * @param upstreamSslSessionCache the session cache configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withUpstreamSslSessionCache (UpstreamSslSessionCache upstreamSslSessionCache);
+
+    /**
+     * <p>
+     * Configure the size and timeout of the TLS session caches used when
+     * encrypting inbound connections with an {@link SslEngineSource}, rotate
+     * the keys that encrypt session tickets, and count how many handshakes
+     * with clients are resumed. Servers that are given the same instance,
+     * such as those created with {@link HttpProxyServer#clone()}, resume each
+     * other's sessions. Ticket keys only apply to OpenSSL-based engines.
+     * </p>
+     *
+     * <p>
+     * Default = null (the default cache size, timeout and ticket keys of the
+     * SslEngineSource, and no counters)
+     * </p>
+     *
+     * @param serverSslSessionCache the session cache configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withServerSslSessionCache (ServerSslSessionCache serverSslSessionCache);
+
+    /**
+     * <p>
+     * Read the TLS ClientHello that a client sends through a CONNECT tunnel
+     * before connecting to the server, so that the server name (SNI) and
+     * application protocols (ALPN) it contains can be used to allow, deny or
+     * route the tunnel without MITM'ing it. The proxy responds to the CONNECT
+     * immediately, buffers the start of the tunnel until it has the whole
+     * ClientHello, and passes it to
+     * {@link HttpFilters#clientToProxyClientHello(TlsClientHello)} and to a
+     * {@link ClientHelloChainedProxyManager}. Nothing is decrypted. Tunnels
+     * that are MITM'd, including those a {@link SelectiveMitmManager} chooses
+     * to intercept, are not affected.
+     * </p>
+     *
+     * <p>
+     * Since the CONNECT has already been answered, clients whose tunnel is
+     * denied or whose server is unreachable are disconnected rather than sent
+     * an error response. Protocols in which the server speaks first are
+     * delayed until the proxy gives up waiting for a ClientHello.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param clientHelloPeek true to read the ClientHello of CONNECT tunnels
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withClientHelloPeek (boolean clientHelloPeek);
+
+    /**
+     * <p>
+     * Send requests to servers that speak HTTP/2 as concurrent streams on
+     * shared connections, rather than on one HTTP/1.1 connection each. This
+     * applies to the requests of MITM'd HTTP/2 streams, if the
+     * {@link MitmManager} is an {@link Http2MitmManager} and the server
+     * selects h2 with ALPN, and to requests to the unencrypted servers that
+     * the configuration lists as speaking h2c. Requests through chained
+     * proxies are always sent with HTTP/1.1.
+     * </p>
+     *
+     * <p>
+     * Default = null (HTTP/1.1 only)
+     * </p>
+     *
+     * @param configuration upstream HTTP/2 configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withHttp2Upstream (Http2UpstreamConfiguration configuration);
+
+    /**
+     * <p>
+     * Pipeline requests that clients pipeline on their connections to the
+     * proxy to the servers that the configuration lists as supporting it,
+     * instead of holding each request until the previous response is
+     * complete. Only idempotent requests without a body are pipelined, up to
+     * the configured depth. If a server closes its connection with pipelined
+     * requests unanswered, they are sent again one at a time on a new
+     * connection, and requests to that server are no longer pipelined.
+     * </p>
+     *
+     * <p>
+     * Default = null (one request at a time)
+     * </p>
+     *
+     * @param configuration pipelining configuration
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withPipelining (PipeliningConfiguration configuration);
+
+    /**
+     * <p>
+     * Coalesce concurrent identical GET requests into one request to the
+     * server. The first request is sent, and the ones that arrive while it
+     * waits for its response are held. If the response may be shared, it is
+     * relayed to all of them as it arrives, without copying its body.
+     * Otherwise, and if the first request fails, the held requests are sent
+     * on their own.
+     * </p>
+     *
+     * <p>
+     * Requests with credentials, preconditions or ranges are never
+     * coalesced, and responses are not shared if they are private, set
+     * cookies, or vary on request headers that differ.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     *
+     * @param collapsedForwarding true to coalesce identical GET requests
+     * @return proxy server bootstrap for chaining
+     */
+    HttpProxyServerBootstrap withCollapsedForwarding (boolean collapsedForwarding);
+}
@@ -9,7 +9,13 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.UnrecognizedOptionException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.xml.DOMConfigurator;
+import org.littleshoot.proxy.extras.CachingHttpFiltersSource;
+import org.littleshoot.proxy.extras.MemoryResponseCacheStore;
+import org.littleshoot.proxy.extras.OffHeapResponseCacheStore;
+import org.littleshoot.proxy.extras.ResponseCache;
+import org.littleshoot.proxy.extras.ResponseCacheStore;
 import org.littleshoot.proxy.extras.SelfSignedMitmManager;
+import org.littleshoot.proxy.impl.ChannelTransport;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
@@ -36,12 +42,31 @@ public class Launcher
 
     private static final String OPTION_NIC = "nic";
 
+    private static final String OPTION_CACHE = "cache";
+
+    private static final String OPTION_CACHE_DIRECTORY = "cachedir";
+
+    private static final String OPTION_COLLAPSE = "collapse";
+
+    private static final String OPTION_REUSE_PORT = "reuseport";
+
     /**
      * Starts the proxy from the command line.
      *
      * @param args Any command line arguments.
      */
     public static void main (final String... args)
+    {
+        start (args);
+    }
+
+    /**
+     * Starts the proxy as {@link #main(String...)} does.
+     *
+     * @param args Any command line arguments.
+     * @return the started proxy, or null if help was requested or the command line was not valid
+     */
+    static HttpProxyServer start (final String... args)
     {
         pollLog4JConfigurationFileIfAvailable ();
         LOG.info ("Running LittleProxy with args: {}", Arrays.asList (args));
@@ -51,6 +76,10 @@ public class Launcher
         options.addOption (null, OPTION_NIC, true, "Run on a specified Nic");
         options.addOption (null, OPTION_HELP, false, "Display command line help.");
         options.addOption (null, OPTION_MITM, false, "Run as man in the middle.");
+        options.addOption (null, OPTION_CACHE, true, "Cache responses in memory, up to the specified number of megabytes.");
+        options.addOption (null, OPTION_CACHE_DIRECTORY, true, "Keep cached responses off the heap, spilling them to files in the specified directory.");
+        options.addOption (null, OPTION_COLLAPSE, false, "Send concurrent identical GET requests to the server as one.");
+        options.addOption (null, OPTION_REUSE_PORT, false, "Accept connections with one SO_REUSEPORT listener per worker thread, on the epoll transport where it is available.");
 
         final CommandLineParser parser = new DefaultParser ();
         final CommandLine cmd;
@@ -65,12 +94,12 @@ public class Launcher
         catch (final ParseException e)
         {
             printHelp (options, "Could not parse command line: " + Arrays.asList (args));
-            return;
+            return null;
         }
         if (cmd.hasOption (OPTION_HELP))
         {
             printHelp (options, null);
-            return;
+            return null;
         }
         final int defaultPort = 8080;
         int port;
@@ -84,7 +113,7 @@ public class Launcher
             catch (final NumberFormatException e)
             {
                 printHelp (options, "Unexpected port " + val);
-                return;
+                return null;
             }
         }
         else
@@ -107,6 +136,46 @@ public class Launcher
             bootstrap.withManInTheMiddle (new SelfSignedMitmManager ());
         }
 
+        if (cmd.hasOption (OPTION_CACHE))
+        {
+            final String val = cmd.getOptionValue (OPTION_CACHE);
+            final long megabytes;
+            try
+            {
+                megabytes = Long.parseLong (val);
+            }
+            catch (final NumberFormatException e)
+            {
+                printHelp (options, "Unexpected cache size " + val);
+                return null;
+            }
+            LOG.info ("Caching up to {} MB of responses in memory", megabytes);
+            final ResponseCacheStore store;
+            if (cmd.hasOption (OPTION_CACHE_DIRECTORY))
+            {
+                final File directory = new File (cmd.getOptionValue (OPTION_CACHE_DIRECTORY));
+                LOG.info ("Spilling cached responses to {}", directory);
+                store = new OffHeapResponseCacheStore (megabytes * 1024 * 1024, directory, OffHeapResponseCacheStore.DEFAULT_MAXIMUM_DISK_SIZE_IN_BYTES, OffHeapResponseCacheStore.DEFAULT_SEGMENT_SIZE_IN_BYTES);
+            }
+            else
+            {
+                store = new MemoryResponseCacheStore (megabytes * 1024 * 1024);
+            }
+            bootstrap.withFiltersSource (new CachingHttpFiltersSource (new ResponseCache (store, ResponseCache.DEFAULT_MAXIMUM_ENTRY_SIZE_IN_BYTES)));
+        }
+
+        if (cmd.hasOption (OPTION_COLLAPSE))
+        {
+            LOG.info ("Collapsing concurrent identical requests");
+            bootstrap.withCollapsedForwarding (true);
+        }
+
+        if (cmd.hasOption (OPTION_REUSE_PORT))
+        {
+            LOG.info ("Binding one listener per worker thread");
+            bootstrap.withChannelTransport (ChannelTransport.EPOLL).withReusePort (true);
+        }
+
         if (cmd.hasOption (OPTION_DNSSEC))
         {
             final String val = cmd.getOptionValue (OPTION_DNSSEC);
@@ -123,12 +192,12 @@ public class Launcher
             else
             {
                 printHelp (options, "Unexpected value for " + OPTION_DNSSEC + "=:" + val);
-                return;
+                return null;
             }
         }
 
         System.out.println ("About to start...");
-        bootstrap.start ();
+        return bootstrap.start ();
     }
 
     private static void printHelp (final Options options, final String errorMessage)
@@ -0,0 +1,28 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * <p>
+ * {@link MitmManager} that decides for each CONNECT whether the proxy intercepts it as a man in the middle, or relays
+ * it as an opaque tunnel. Tunnels cost the proxy no TLS handshakes or encryption at all, so intercepting only the
+ * hosts that need it saves most of the cost of MITM'ing.
+ * </p>
+ *
+ * <p>
+ * A {@link MitmManager} that does not implement this interface intercepts every CONNECT.
+ * </p>
+ */
+public interface SelectiveMitmManager extends MitmManager
+{
+    /**
+     * Decides whether to intercept a CONNECT. This may be called more than once for the same CONNECT, so it should give
+     * the same answer each time.
+     *
+     * @param peerHost    the host the client asked to connect to, as given in the CONNECT request
+     * @param peerPort    the port the client asked to connect to
+     * @param httpRequest the CONNECT request
+     * @return true to intercept the connection, or false to tunnel it
+     */
+    boolean shouldMitm (String peerHost, int peerPort, HttpRequest httpRequest);
+}
@@ -0,0 +1,70 @@
+package org.littleshoot.proxy;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * The routing information in the TLS ClientHello that a client sent through a CONNECT tunnel, read by the proxy
+ * without decrypting anything. See {@link HttpProxyServerBootstrap#withClientHelloPeek(boolean)}.
+ * </p>
+ *
+ * <p>
+ * If the client did not start the tunnel with a ClientHello (because it speaks another protocol, or because it sent
+ * nothing before the proxy gave up waiting), {@link #isTls()} is false and the other properties are empty.
+ * </p>
+ */
+public class TlsClientHello
+{
+    /**
+     * Describes a tunnel that did not start with a TLS ClientHello.
+     */
+    public static final TlsClientHello NOT_TLS = new TlsClientHello (false, null, Collections.<String>emptyList ());
+
+    private final boolean tls;
+    private final String serverName;
+    private final List <String> applicationProtocols;
+
+    public TlsClientHello (String serverName, List <String> applicationProtocols)
+    {
+        this (true, serverName, applicationProtocols);
+    }
+
+    private TlsClientHello (boolean tls, String serverName, List <String> applicationProtocols)
+    {
+        this.tls = tls;
+        this.serverName = serverName;
+        this.applicationProtocols = Collections.unmodifiableList (applicationProtocols);
+    }
+
+    /**
+     * @return true if the tunnel started with a TLS ClientHello
+     */
+    public boolean isTls ()
+    {
+        return tls;
+    }
+
+    /**
+     * @return the host name from the server_name (SNI) extension, or null if the client didn't send one
+     */
+    public String getServerName ()
+    {
+        return serverName;
+    }
+
+    /**
+     * @return the protocols the client offered in the application_layer_protocol_negotiation (ALPN) extension, in the
+     *         client's order of preference, e.g. "h2" and "http/1.1"
+     */
+    public List <String> getApplicationProtocols ()
+    {
+        return applicationProtocols;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return tls ? "TlsClientHello [serverName=" + serverName + ", applicationProtocols=" + applicationProtocols + "]" : "TlsClientHello [not TLS]";
+    }
+}
@@ -0,0 +1,131 @@
+package org.littleshoot.proxy.extras;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A range of bytes of a representation, as requested with a Range header or sent with a Content-Range header (RFC
+ * 7233). Only requests for a single range are served by range, since the parts of a multipart/byteranges response
+ * cannot be put together from what is cached without parsing it.
+ */
+final class ByteRange
+{
+    private static final Pattern RANGE = Pattern.compile ("bytes\\s*=\\s*(\\d{0,18})\\s*-\\s*(\\d{0,18})\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTENT_RANGE = Pattern.compile ("bytes\\s+(\\d{1,18})\\s*-\\s*(\\d{1,18})\\s*/\\s*(\\d{1,18})", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The first and last bytes of the range, both inclusive. The range is not satisfiable if the first is after the
+     * last.
+     */
+    final long first;
+    final long last;
+
+    /**
+     * The length of the whole representation.
+     */
+    final long completeLength;
+
+    ByteRange (long first, long last, long completeLength)
+    {
+        this.first = first;
+        this.last = last;
+        this.completeLength = completeLength;
+    }
+
+    /**
+     * Resolves the range that a request asks for against the length of the representation.
+     *
+     * @param range          the value of the Range header
+     * @param completeLength the length of the representation
+     * @return the range, which may not be satisfiable, or null if the header does not ask for a single range of bytes
+     * and is ignored
+     */
+    static ByteRange requested (String range, long completeLength)
+    {
+        Matcher matcher = RANGE.matcher (range);
+        if (!matcher.matches () || matcher.group (1).isEmpty () && matcher.group (2).isEmpty ())
+        {
+            return null;
+        }
+        if (matcher.group (1).isEmpty ())
+        {
+            // the last bytes of the representation, as many as there are
+            long suffixLength = Long.parseLong (matcher.group (2));
+            return new ByteRange (suffixLength == 0 ? completeLength : Math.max (0, completeLength - suffixLength), completeLength - 1, completeLength);
+        }
+        long first = Long.parseLong (matcher.group (1));
+        long last = matcher.group (2).isEmpty () ? Long.MAX_VALUE : Long.parseLong (matcher.group (2));
+        if (last < first)
+        {
+            // not a valid range, rather than one past the end of the representation
+            return null;
+        }
+        return new ByteRange (first, Math.min (last, completeLength - 1), completeLength);
+    }
+
+    /**
+     * @param contentRange the value of the Content-Range header of a 206 Partial Content
+     * @return the range that the response holds, or null if it does not hold a single range of a representation of
+     * known length
+     */
+    static ByteRange sent (String contentRange)
+    {
+        Matcher matcher = contentRange != null ? CONTENT_RANGE.matcher (contentRange.trim ()) : null;
+        if (matcher == null || !matcher.matches ())
+        {
+            return null;
+        }
+        ByteRange range = new ByteRange (Long.parseLong (matcher.group (1)), Long.parseLong (matcher.group (2)), Long.parseLong (matcher.group (3)));
+        return range.isSatisfiable () && range.last < range.completeLength ? range : null;
+    }
+
+    boolean isSatisfiable ()
+    {
+        return first <= last;
+    }
+
+    long length ()
+    {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the range as a Content-Range header value, which for a range that is not satisfiable gives only the
+     * length of the representation
+     */
+    String toContentRange ()
+    {
+        return isSatisfiable () ? "bytes " + first + "-" + last + "/" + completeLength : "bytes */" + completeLength;
+    }
+
+    /**
+     * @return the range as a Range header value
+     */
+    String toRange ()
+    {
+        return "bytes=" + first + "-" + last;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof ByteRange))
+        {
+            return false;
+        }
+        ByteRange range = (ByteRange) other;
+        return first == range.first && last == range.last && completeLength == range.completeLength;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return (int) (31 * (31 * first + last) + completeLength);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return toContentRange ();
+    }
+}
@@ -0,0 +1,152 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of the Cache-Control headers of a request or response, as defined by RFC 7234, section 5.2, and the
+ * extensions of RFC 5861.
+ */
+class CacheControl
+{
+    static final String MAX_AGE = "max-age";
+    static final String S_MAXAGE = "s-maxage";
+    static final String MAX_STALE = "max-stale";
+    static final String MIN_FRESH = "min-fresh";
+    static final String NO_CACHE = "no-cache";
+    static final String NO_STORE = "no-store";
+    static final String ONLY_IF_CACHED = "only-if-cached";
+    static final String PRIVATE = "private";
+    static final String PUBLIC = "public";
+    static final String MUST_REVALIDATE = "must-revalidate";
+    static final String PROXY_REVALIDATE = "proxy-revalidate";
+    static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    static final String STALE_IF_ERROR = "stale-if-error";
+
+    private static final CacheControl NONE = new CacheControl (new HashMap <String, String> ());
+
+    /**
+     * Directive names, in lower case, and their unquoted arguments, or null for directives without one.
+     */
+    private final Map <String, String> directives;
+
+    private CacheControl (Map <String, String> directives)
+    {
+        this.directives = directives;
+    }
+
+    /**
+     * Parses all Cache-Control headers of a message. Directives that appear more than once keep their first argument.
+     *
+     * @param headers the headers of the request or response
+     * @return the directives
+     */
+    static CacheControl parse (HttpHeaders headers)
+    {
+        if (!headers.contains (HttpHeaderNames.CACHE_CONTROL))
+        {
+            return NONE;
+        }
+        Map <String, String> directives = new HashMap <> ();
+        for (String value : headers.getAll (HttpHeaderNames.CACHE_CONTROL))
+        {
+            parse (value, directives);
+        }
+        return new CacheControl (directives);
+    }
+
+    private static void parse (String value, Map <String, String> directives)
+    {
+        int i = 0;
+        int length = value.length ();
+        while (i < length)
+        {
+            // directive name, up to '=' or ','
+            int nameStart = i;
+            while (i < length && value.charAt (i) != '=' && value.charAt (i) != ',')
+            {
+                i++;
+            }
+            String name = value.substring (nameStart, i).trim ().toLowerCase (Locale.US);
+            String argument = null;
+            if (i < length && value.charAt (i) == '=')
+            {
+                i++;
+                while (i < length && value.charAt (i) == ' ')
+                {
+                    i++;
+                }
+                if (i < length && value.charAt (i) == '"')
+                {
+                    // quoted-string, which may contain commas and backslash-escaped characters
+                    StringBuilder quoted = new StringBuilder ();
+                    i++;
+                    while (i < length && value.charAt (i) != '"')
+                    {
+                        if (value.charAt (i) == '\\' && i + 1 < length)
+                        {
+                            i++;
+                        }
+                        quoted.append (value.charAt (i++));
+                    }
+                    argument = quoted.toString ();
+                    while (i < length && value.charAt (i) != ',')
+                    {
+                        i++;
+                    }
+                }
+                else
+                {
+                    int argumentStart = i;
+                    while (i < length && value.charAt (i) != ',')
+                    {
+                        i++;
+                    }
+                    argument = value.substring (argumentStart, i).trim ();
+                }
+            }
+            if (!name.isEmpty () && !directives.containsKey (name))
+            {
+                directives.put (name, argument);
+            }
+            // skip the ','
+            i++;
+        }
+    }
+
+    /**
+     * @param directive the directive name, in lower case
+     * @return true if the directive is present
+     */
+    boolean has (String directive)
+    {
+        return directives.containsKey (directive);
+    }
+
+    /**
+     * @param directive the directive name, in lower case
+     * @return the delta-seconds argument of the directive, capped at {@link Integer#MAX_VALUE}, or -1 if the directive
+     * is not present or its argument is missing or invalid
+     */
+    long getSeconds (String directive)
+    {
+        String argument = directives.get (directive);
+        if (argument == null || argument.isEmpty ())
+        {
+            return -1;
+        }
+        for (int i = 0; i < argument.length (); i++)
+        {
+            if (argument.charAt (i) < '0' || argument.charAt (i) > '9')
+            {
+                return -1;
+            }
+        }
+        // RFC 7234, section 1.2.1: a delta-seconds too large to represent is taken as the largest one we can represent
+        return argument.length () > 10 ? Integer.MAX_VALUE : Math.min (Long.parseLong (argument), Integer.MAX_VALUE);
+    }
+}
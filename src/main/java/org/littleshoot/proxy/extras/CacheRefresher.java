@@ -0,0 +1,175 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.littleshoot.proxy.SslEngineSource;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Refreshes stale responses in the background, for stale-while-revalidate. The refresh is an ordinary request for the
+ * response's URI with Cache-Control: no-cache, sent back to the proxy on the address that the client connected to. The
+ * proxy then revalidates the stored response with the server over its own, pooled, server connections, and stores the
+ * result, while this client only waits for the response to end. If the proxy encrypts the connections of its clients,
+ * the refresh is encrypted with a client engine from the same {@link SslEngineSource}.
+ * </p>
+ *
+ * <p>
+ * Only http URIs are refreshed this way, since requests for https URIs would have to be sent through a CONNECT tunnel.
+ * </p>
+ */
+class CacheRefresher
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CacheRefresher.class);
+
+    /**
+     * How long a refresh may take before it is given up.
+     */
+    private static final int REFRESH_TIMEOUT_SECONDS = 60;
+
+    /**
+     * Request headers that only applied to the client's connection or to its own conditional request, and are not
+     * copied to the refresh.
+     */
+    private static final List <CharSequence> UNCOPIED_HEADERS = Arrays.<CharSequence> asList (HttpHeaderNames.CONNECTION, "Keep-Alive", "Proxy-Connection", HttpHeaderNames.TE, HttpHeaderNames.TRAILER, HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.UPGRADE, HttpHeaderNames.CONTENT_LENGTH, HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.PRAGMA, HttpHeaderNames.IF_MATCH, HttpHeaderNames.IF_NONE_MATCH, HttpHeaderNames.IF_MODIFIED_SINCE, HttpHeaderNames.IF_UNMODIFIED_SINCE, HttpHeaderNames.IF_RANGE, HttpHeaderNames.RANGE);
+
+    private CacheRefresher ()
+    {
+    }
+
+    /**
+     * @param clientChannel the channel that a request arrived on
+     * @param uri           the effective URI of the request
+     * @return the connection whose local address the proxy listens on, to send the refresh to, or null if the
+     * response cannot be refreshed in the background
+     */
+    static Channel connectionFor (Channel clientChannel, String uri)
+    {
+        if (clientChannel == null || !uri.startsWith ("http:"))
+        {
+            return null;
+        }
+        // HTTP/2 streams are children of their connection
+        Channel connection = clientChannel;
+        while (!(connection instanceof SocketChannel) && connection.parent () != null)
+        {
+            connection = connection.parent ();
+        }
+        return connection instanceof SocketChannel ? connection : null;
+    }
+
+    /**
+     * Starts refreshing the response to a request.
+     *
+     * @param connection the connection returned by {@link #connectionFor(Channel, String)}
+     * @param uri        the effective URI of the request
+     * @param request    the request, with the headers the client sent, which select the same variant of the response
+     * @param done       run once the refresh has ended, whether it succeeded or not
+     */
+    static void refresh (Channel connection, String uri, HttpRequest request, final Runnable done)
+    {
+        final HttpRequest refresh = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        refresh.headers ().set (request.headers ());
+        for (CharSequence headerName : UNCOPIED_HEADERS)
+        {
+            refresh.headers ().remove (headerName);
+        }
+        refresh.headers ().set (HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        refresh.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        LOG.debug ("Refreshing {} in the background", uri);
+
+        final SslEngineSource sslEngineSource = connection.attr (ProxyUtils.SSL_ENGINE_SOURCE).get ();
+        final InetSocketAddress proxyAddress = (InetSocketAddress) connection.localAddress ();
+        Bootstrap bootstrap = new Bootstrap ().group (connection.eventLoop ()).channel (connection.getClass ()).handler (new ChannelInitializer <Channel> ()
+        {
+            @Override
+            protected void initChannel (Channel channel)
+            {
+                channel.pipeline ().addLast ("readTimeout", new ReadTimeoutHandler (REFRESH_TIMEOUT_SECONDS));
+                if (sslEngineSource != null)
+                {
+                    SSLEngine sslEngine = sslEngineSource.newSslEngine (proxyAddress.getHostString (), proxyAddress.getPort ());
+                    sslEngine.setUseClientMode (true);
+                    channel.pipeline ().addLast ("ssl", new SslHandler (sslEngine));
+                }
+                channel.pipeline ().addLast ("codec", new HttpClientCodec ());
+                channel.pipeline ().addLast ("handler", new RefreshHandler ());
+            }
+        });
+        bootstrap.connect (proxyAddress).addListener (new ChannelFutureListener ()
+        {
+            @Override
+            public void operationComplete (ChannelFuture future)
+            {
+                if (!future.isSuccess ())
+                {
+                    LOG.debug ("Unable to connect to the proxy to refresh a response", future.cause ());
+                    done.run ();
+                    return;
+                }
+                future.channel ().closeFuture ().addListener (new ChannelFutureListener ()
+                {
+                    @Override
+                    public void operationComplete (ChannelFuture closeFuture)
+                    {
+                        done.run ();
+                    }
+                });
+                future.channel ().writeAndFlush (refresh);
+            }
+        });
+    }
+
+    /**
+     * Discards the response to a refresh, which the proxy has already stored, and closes the connection at its end.
+     */
+    private static class RefreshHandler extends ChannelInboundHandlerAdapter
+    {
+        @Override
+        public void channelRead (ChannelHandlerContext ctx, Object msg)
+        {
+            try
+            {
+                if (msg instanceof LastHttpContent)
+                {
+                    ctx.close ();
+                }
+            }
+            finally
+            {
+                ReferenceCountUtil.release (msg);
+            }
+        }
+
+        @Override
+        public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause)
+        {
+            LOG.debug ("Unable to refresh a response", cause);
+            ctx.close ();
+        }
+    }
+}
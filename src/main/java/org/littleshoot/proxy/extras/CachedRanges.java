@@ -0,0 +1,198 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * The parts of a representation that a {@link ResponseCache} has received in 206 Partial Content responses, kept in a
+ * sparse map of segments by the offset of their first byte. Segments that overlap or touch are merged, so that a
+ * range can be served if a single segment holds all of it.
+ * </p>
+ *
+ * <p>
+ * The headers, freshness and validator of the representation are those of the last response received for it, held
+ * as a {@link CachedResponse} for the whole representation without a body. Instances are not thread safe; the cache
+ * synchronizes access to them.
+ * </p>
+ */
+class CachedRanges
+{
+    private CachedResponse representation;
+    private final long completeLength;
+    private final TreeMap <Long, ByteBuf> segments = new TreeMap <> ();
+    private long sizeInBytes;
+
+    /**
+     * @param representation the headers and times of the response for the whole representation, without a body
+     * @param completeLength the length of the representation
+     */
+    CachedRanges (CachedResponse representation, long completeLength)
+    {
+        this.representation = representation;
+        this.completeLength = completeLength;
+    }
+
+    CachedResponse getRepresentation ()
+    {
+        return representation;
+    }
+
+    /**
+     * Replaces the headers and times of the representation with those of a later response for it.
+     */
+    void setRepresentation (CachedResponse representation)
+    {
+        this.representation = representation;
+    }
+
+    long getCompleteLength ()
+    {
+        return completeLength;
+    }
+
+    /**
+     * @return the number of bytes held in segments
+     */
+    long getSizeInBytes ()
+    {
+        return sizeInBytes;
+    }
+
+    /**
+     * @param headers the headers of a response for the same URI
+     * @return true if the response is for the same representation, going by its strong validator
+     */
+    boolean isSameRepresentation (HttpHeaders headers)
+    {
+        String etag = representation.getHeaders ().get (HttpHeaderNames.ETAG);
+        if (etag != null)
+        {
+            return etag.equals (headers.get (HttpHeaderNames.ETAG));
+        }
+        String lastModified = representation.getHeaders ().get (HttpHeaderNames.LAST_MODIFIED);
+        return lastModified != null && lastModified.equals (headers.get (HttpHeaderNames.LAST_MODIFIED)) && !headers.contains (HttpHeaderNames.ETAG);
+    }
+
+    /**
+     * @return the strong validator of the representation, to send in an If-Range header
+     */
+    String getValidator ()
+    {
+        String etag = representation.getHeaders ().get (HttpHeaderNames.ETAG);
+        return etag != null ? etag : representation.getHeaders ().get (HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    /**
+     * Adds the bytes of a range, merging them with the segments they overlap or touch.
+     *
+     * @param first the offset of the first byte
+     * @param bytes the bytes, which this takes ownership of
+     */
+    void add (long first, ByteBuf bytes)
+    {
+        long start = first;
+        long end = first + bytes.readableBytes ();
+        Map.Entry <Long, ByteBuf> before = segments.floorEntry (first);
+        if (before != null && before.getKey () + before.getValue ().readableBytes () >= first)
+        {
+            start = before.getKey ();
+        }
+        Map <Long, ByteBuf> merged = segments.subMap (start, true, end, true);
+        if (merged.isEmpty ())
+        {
+            segments.put (first, bytes);
+            sizeInBytes += bytes.readableBytes ();
+            return;
+        }
+        for (Map.Entry <Long, ByteBuf> segment : merged.entrySet ())
+        {
+            end = Math.max (end, segment.getKey () + segment.getValue ().readableBytes ());
+        }
+
+        ByteBuf segmentBytes = Unpooled.buffer ((int) (end - start));
+        segmentBytes.writerIndex ((int) (end - start));
+        Iterator <Map.Entry <Long, ByteBuf>> iterator = merged.entrySet ().iterator ();
+        while (iterator.hasNext ())
+        {
+            Map.Entry <Long, ByteBuf> segment = iterator.next ();
+            ByteBuf segmentBuf = segment.getValue ();
+            segmentBytes.setBytes ((int) (segment.getKey () - start), segmentBuf, segmentBuf.readerIndex (), segmentBuf.readableBytes ());
+            sizeInBytes -= segmentBuf.readableBytes ();
+            segmentBuf.release ();
+            iterator.remove ();
+        }
+        segmentBytes.setBytes ((int) (first - start), bytes, bytes.readerIndex (), bytes.readableBytes ());
+        bytes.release ();
+        segments.put (start, segmentBytes);
+        sizeInBytes += segmentBytes.readableBytes ();
+    }
+
+    /**
+     * @return the bytes of a range, retained for the caller, or null if they are not all held
+     */
+    ByteBuf slice (long first, long last)
+    {
+        Map.Entry <Long, ByteBuf> segment = segments.floorEntry (first);
+        if (segment == null || segment.getKey () + segment.getValue ().readableBytes () <= last)
+        {
+            return null;
+        }
+        ByteBuf segmentBytes = segment.getValue ();
+        return segmentBytes.retainedSlice (segmentBytes.readerIndex () + (int) (first - segment.getKey ()), (int) (last - first + 1));
+    }
+
+    /**
+     * @return the smallest range that holds every byte of a range that is not held, or null if all of them are
+     */
+    ByteRange missing (ByteRange range)
+    {
+        long first = firstMissing (range.first, range.last);
+        if (first > range.last)
+        {
+            return null;
+        }
+        long last = range.last;
+        Map.Entry <Long, ByteBuf> segment = segments.floorEntry (last);
+        if (segment != null && segment.getKey () > first && segment.getKey () + segment.getValue ().readableBytes () > last)
+        {
+            last = segment.getKey () - 1;
+        }
+        return new ByteRange (first, last, completeLength);
+    }
+
+    private long firstMissing (long first, long last)
+    {
+        Map.Entry <Long, ByteBuf> segment = segments.floorEntry (first);
+        if (segment != null && segment.getKey () + segment.getValue ().readableBytes () > first)
+        {
+            return segment.getKey () + segment.getValue ().readableBytes ();
+        }
+        return first;
+    }
+
+    /**
+     * @return true if a single segment holds the whole representation
+     */
+    boolean isComplete ()
+    {
+        ByteBuf segment = segments.get (0L);
+        return segment != null && segment.readableBytes () == completeLength;
+    }
+
+    void release ()
+    {
+        for (ByteBuf segment : segments.values ())
+        {
+            segment.release ();
+        }
+        segments.clear ();
+        sizeInBytes = 0;
+    }
+}
@@ -0,0 +1,246 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A response stored by a {@link ResponseCache}: its status, headers and body, and the times at which its request was
+ * sent and it was received, from which its age and freshness are calculated as defined by RFC 7234, section 4.2.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable. The headers and body returned by the getters must not be modified, since they are shared
+ * by every response served from this one. The body is reference counted: a {@link ResponseCacheStore} owns the bodies
+ * of the responses it stores, and returns responses whose bodies were retained for the caller, who must release them.
+ * </p>
+ */
+public class CachedResponse
+{
+    /**
+     * Status codes that are cacheable by default, for which a freshness lifetime may be estimated from Last-Modified
+     * if the response has no explicit one (RFC 7231, section 6.1).
+     */
+    private static final Set <Integer> HEURISTICALLY_CACHEABLE_STATUS_CODES = new HashSet <> (Arrays.asList (200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501));
+
+    /**
+     * The fraction of the time since a response was last modified that it is considered fresh for, if it has no
+     * explicit freshness lifetime (RFC 7234, section 4.2.2).
+     */
+    private static final int HEURISTIC_FRESHNESS_DIVISOR = 10;
+
+    /**
+     * The longest heuristic freshness lifetime. Longer ones would require a warning to be added to responses.
+     */
+    private static final long MAXIMUM_HEURISTIC_FRESHNESS_MILLIS = TimeUnit.DAYS.toMillis (1);
+
+    /**
+     * Rough size of the objects that make up a cached response, other than its headers and body.
+     */
+    private static final int OVERHEAD_IN_BYTES = 256;
+
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuf body;
+    private final long requestTime;
+    private final long responseTime;
+    private final long sequence;
+    private final CacheControl cacheControl;
+    private final long correctedInitialAgeMillis;
+    private final long freshnessLifetimeMillis;
+    private final int sizeInBytes;
+
+    /**
+     * @param status       the status of the response
+     * @param headers      the end-to-end headers of the response, which are not copied
+     * @param body         the body of the response, which is not copied
+     * @param requestTime  the time at which the request was sent, in milliseconds since the epoch
+     * @param responseTime the time at which the response was received, in milliseconds since the epoch
+     * @param sequence     the order in which the response was stored, relative to others in the same cache
+     */
+    public CachedResponse (HttpResponseStatus status, HttpHeaders headers, ByteBuf body, long requestTime, long responseTime, long sequence)
+    {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.sequence = sequence;
+        this.cacheControl = CacheControl.parse (headers);
+
+        // RFC 7234, section 4.2.3
+        long ageValueMillis = TimeUnit.SECONDS.toMillis (Math.max (0, parseDeltaSeconds (headers.get (HttpHeaderNames.AGE))));
+        long dateValue = dateOf (headers, responseTime);
+        long apparentAgeMillis = Math.max (0, responseTime - dateValue);
+        long responseDelayMillis = Math.max (0, responseTime - requestTime);
+        this.correctedInitialAgeMillis = Math.max (apparentAgeMillis, ageValueMillis + responseDelayMillis);
+        this.freshnessLifetimeMillis = freshnessLifetimeMillis (status, headers, cacheControl, responseTime);
+
+        int headersSize = 0;
+        for (Map.Entry <String, String> header : headers)
+        {
+            headersSize += header.getKey ().length () + header.getValue ().length ();
+        }
+        this.sizeInBytes = OVERHEAD_IN_BYTES + headersSize + body.readableBytes ();
+    }
+
+    private CachedResponse (CachedResponse response, ByteBuf body)
+    {
+        this.status = response.status;
+        this.headers = response.headers;
+        this.body = body;
+        this.requestTime = response.requestTime;
+        this.responseTime = response.responseTime;
+        this.sequence = response.sequence;
+        this.cacheControl = response.cacheControl;
+        this.correctedInitialAgeMillis = response.correctedInitialAgeMillis;
+        this.freshnessLifetimeMillis = response.freshnessLifetimeMillis;
+        this.sizeInBytes = response.sizeInBytes - response.body.readableBytes () + body.readableBytes ();
+    }
+
+    /**
+     * @param body a body with the same content as this response's, such as a copy held elsewhere or a retained
+     *             duplicate
+     * @return a response that differs from this one only in the buffer holding its body
+     */
+    public CachedResponse withBody (ByteBuf body)
+    {
+        return new CachedResponse (this, body);
+    }
+
+    /**
+     * Calculates how long a response stays fresh after it was generated, as defined by RFC 7234, section 4.2.1, for a
+     * shared cache.
+     *
+     * @param status       the status of the response
+     * @param headers      the headers of the response
+     * @param cacheControl the Cache-Control directives of the response
+     * @param responseTime the time at which the response was received, used if it has no Date header
+     * @return the freshness lifetime in milliseconds, which is 0 if the response is stale at once
+     */
+    static long freshnessLifetimeMillis (HttpResponseStatus status, HttpHeaders headers, CacheControl cacheControl, long responseTime)
+    {
+        long sharedMaxAge = cacheControl.getSeconds (CacheControl.S_MAXAGE);
+        if (sharedMaxAge >= 0)
+        {
+            return TimeUnit.SECONDS.toMillis (sharedMaxAge);
+        }
+        long maxAge = cacheControl.getSeconds (CacheControl.MAX_AGE);
+        if (maxAge >= 0)
+        {
+            return TimeUnit.SECONDS.toMillis (maxAge);
+        }
+        long dateValue = dateOf (headers, responseTime);
+        if (headers.contains (HttpHeaderNames.EXPIRES))
+        {
+            // an invalid Expires, such as "0", means that the response has already expired
+            Date expires = DateFormatter.parseHttpDate (headers.get (HttpHeaderNames.EXPIRES));
+            return expires != null ? Math.max (0, expires.getTime () - dateValue) : 0;
+        }
+        if (HEURISTICALLY_CACHEABLE_STATUS_CODES.contains (status.code ()) || cacheControl.has (CacheControl.PUBLIC))
+        {
+            Date lastModified = headers.contains (HttpHeaderNames.LAST_MODIFIED) ? DateFormatter.parseHttpDate (headers.get (HttpHeaderNames.LAST_MODIFIED)) : null;
+            if (lastModified != null)
+            {
+                return Math.min (MAXIMUM_HEURISTIC_FRESHNESS_MILLIS, Math.max (0, dateValue - lastModified.getTime ()) / HEURISTIC_FRESHNESS_DIVISOR);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value of the Date header of the response, or the given time if it has none or it is invalid
+     */
+    static long dateOf (HttpHeaders headers, long defaultTime)
+    {
+        String date = headers.get (HttpHeaderNames.DATE);
+        Date parsed = date != null ? DateFormatter.parseHttpDate (date) : null;
+        return parsed != null ? parsed.getTime () : defaultTime;
+    }
+
+    private static long parseDeltaSeconds (String value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return Long.parseLong (value.trim ());
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    public HttpResponseStatus getStatus ()
+    {
+        return status;
+    }
+
+    public HttpHeaders getHeaders ()
+    {
+        return headers;
+    }
+
+    public ByteBuf getBody ()
+    {
+        return body;
+    }
+
+    public long getRequestTime ()
+    {
+        return requestTime;
+    }
+
+    public long getResponseTime ()
+    {
+        return responseTime;
+    }
+
+    public long getSequence ()
+    {
+        return sequence;
+    }
+
+    CacheControl getCacheControl ()
+    {
+        return cacheControl;
+    }
+
+    /**
+     * @return how long the response stays fresh after it was generated, in milliseconds
+     */
+    public long getFreshnessLifetimeMillis ()
+    {
+        return freshnessLifetimeMillis;
+    }
+
+    /**
+     * @param now the current time, in milliseconds since the epoch
+     * @return the time since the response was generated or validated by the origin server, in milliseconds
+     */
+    public long getCurrentAgeMillis (long now)
+    {
+        return correctedInitialAgeMillis + Math.max (0, now - responseTime);
+    }
+
+    /**
+     * @return the approximate amount of memory the response takes up
+     */
+    public int getSizeInBytes ()
+    {
+        return sizeInBytes;
+    }
+}
@@ -0,0 +1,556 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link org.littleshoot.proxy.HttpFilters} that answer GET and HEAD requests from a {@link ResponseCache}, store the
+ * responses to GET requests that it allows, and invalidate stored responses after unsafe requests. Stale responses are
+ * revalidated with a conditional request, refreshed in the background while they are served, or served when the
+ * server fails, as their Cache-Control headers allow. For a range that the cache holds only part of, only the missing
+ * bytes are requested from the server, and the held bytes are sent around them.
+ */
+class CachingHttpFilters extends HttpFiltersAdapter
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CachingHttpFilters.class);
+
+    /**
+     * Methods that cannot change the state of the server, and so do not invalidate stored responses.
+     */
+    private static final Set <HttpMethod> SAFE_METHODS = new HashSet <> (Arrays.asList (HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.TRACE));
+
+    private final ResponseCache cache;
+
+    /**
+     * The effective URI of the request, or null if it has none, or it neither uses nor affects the cache.
+     */
+    private String uri;
+
+    /**
+     * The request as the client sent it, before its headers were changed for proxying, if its response may be stored.
+     */
+    private HttpRequest request;
+
+    private boolean invalidating;
+    private long requestTime;
+    private long responseTime;
+    private HttpResponse response;
+    private ByteBuf body;
+
+    /**
+     * The stored response that the request is revalidated against, held until it is either used or the response from
+     * the server arrives, or null.
+     */
+    private final AtomicReference <CachedResponse> stale = new AtomicReference <> ();
+
+    /**
+     * For a request for a range that the cache holds part of, the held bytes to send with the missing ones from the
+     * server, held until the response from the server arrives, or null.
+     */
+    private final AtomicReference <ResponseCache.RangeFill> fill = new AtomicReference <> ();
+    private ChannelFutureListener releaseHeldOnClose;
+
+    /**
+     * The fill whose held bytes are sent with the response from the server, once it turned out to hold the missing
+     * bytes, or null.
+     */
+    private ResponseCache.RangeFill filling;
+
+    /**
+     * Whether the validators of the stale response were added to the request, so that a 304 Not Modified from the
+     * server is answered with the stored response, rather than passed on to the client.
+     */
+    private boolean revalidating;
+
+    /**
+     * The response sent to the client in place of the one from the server, whose body is sent with the last chunk
+     * from the server, or null.
+     */
+    private FullHttpResponse replacement;
+
+    /**
+     * Responses written from another thread than the client's event loop, to release once the server's response has
+     * been received.
+     */
+    private final List <ByteBufHolder> writtenResponses = new ArrayList <> ();
+
+    CachingHttpFilters (HttpRequest originalRequest, ChannelHandlerContext ctx, ResponseCache cache)
+    {
+        super (originalRequest, ctx);
+        this.cache = cache;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest (HttpObject httpObject)
+    {
+        if (!(httpObject instanceof HttpRequest))
+        {
+            return null;
+        }
+        HttpRequest httpRequest = (HttpRequest) httpObject;
+        HttpMethod method = httpRequest.method ();
+        if (HttpMethod.GET.equals (method) || HttpMethod.HEAD.equals (method))
+        {
+            if (HttpUtil.isTransferEncodingChunked (httpRequest) || HttpUtil.getContentLength (httpRequest, 0L) != 0)
+            {
+                return null;
+            }
+            uri = ResponseCache.effectiveUri (httpRequest, isSecure ());
+            if (uri == null)
+            {
+                return null;
+            }
+            Channel refreshConnection = CacheRefresher.connectionFor (ctx != null ? ctx.channel () : null, uri);
+            ResponseCache.Lookup lookup = cache.find (uri, httpRequest, refreshConnection != null);
+            if (lookup.response != null)
+            {
+                if (lookup.refreshKey != null)
+                {
+                    final String refreshKey = lookup.refreshKey;
+                    CacheRefresher.refresh (refreshConnection, uri, httpRequest, new Runnable ()
+                    {
+                        @Override
+                        public void run ()
+                        {
+                            cache.finishRefresh (refreshKey);
+                        }
+                    });
+                }
+                releaseAfterWrite (lookup.response);
+                return lookup.response;
+            }
+            if (HttpMethod.GET.equals (method))
+            {
+                // the headers of the request are changed for proxying before the response arrives
+                request = new DefaultHttpRequest (httpRequest.protocolVersion (), method, httpRequest.uri ());
+                request.headers ().set (httpRequest.headers ());
+                if (lookup.stale != null)
+                {
+                    holdStale (lookup.stale);
+                    // a request with preconditions of its own is sent as it is, and its response is the client's
+                    revalidating = !ResponseCache.isConditional (httpRequest) && ResponseCache.addValidators (lookup.stale, httpRequest);
+                }
+                else if (lookup.fill != null)
+                {
+                    holdFill (lookup.fill);
+                    // a representation that changed since is sent as a whole instead
+                    httpRequest.headers ().set (HttpHeaderNames.RANGE, lookup.fill.missing.toRange ());
+                    httpRequest.headers ().set (HttpHeaderNames.IF_RANGE, lookup.fill.validator);
+                }
+            }
+            else if (lookup.stale != null)
+            {
+                lookup.stale.getBody ().release ();
+            }
+        }
+        else if (!SAFE_METHODS.contains (method) && !HttpMethod.CONNECT.equals (method))
+        {
+            uri = ResponseCache.effectiveUri (httpRequest, isSecure ());
+            invalidating = uri != null;
+        }
+        return null;
+    }
+
+    @Override
+    public void proxyToServerRequestSending ()
+    {
+        requestTime = System.currentTimeMillis ();
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse (HttpObject httpObject)
+    {
+        if (httpObject instanceof HttpResponse)
+        {
+            responseTime = System.currentTimeMillis ();
+            response = (HttpResponse) httpObject;
+            HttpStatusClass statusClass = response.status ().codeClass ();
+            if (invalidating && (statusClass == HttpStatusClass.SUCCESS || statusClass == HttpStatusClass.REDIRECTION))
+            {
+                cache.invalidate (uri, response);
+            }
+            CachedResponse cached = takeStale ();
+            if (cached != null)
+            {
+                replacement = revalidated (cached);
+                if (replacement != null)
+                {
+                    return replace (httpObject);
+                }
+            }
+            if (request != null && response.decoderResult ().isSuccess () && (cache.isStorable (request, response) || cache.isStorableRange (request, response)))
+            {
+                // the headers of the response are changed for proxying before its body arrives
+                response = ProxyUtils.duplicateHttpResponse (response);
+                body = Unpooled.buffer ((int) Math.min (HttpUtil.getContentLength (response, 0L), cache.getMaximumEntrySizeInBytes ()));
+            }
+            ResponseCache.RangeFill rangeFill = takeFill ();
+            if (rangeFill != null && rangeFill.isFilledBy (response))
+            {
+                filling = rangeFill;
+            }
+            else if (rangeFill != null)
+            {
+                LOG.debug ("Server did not send {} of {}, passing on its response", rangeFill.missing, uri);
+                rangeFill.release ();
+            }
+        }
+        else if (replacement != null)
+        {
+            return replace (httpObject);
+        }
+        if (body != null && httpObject instanceof HttpContent)
+        {
+            HttpContent content = (HttpContent) httpObject;
+            int readableBytes = content.content ().readableBytes ();
+            if (body.readableBytes () + readableBytes > cache.getMaximumEntrySizeInBytes ())
+            {
+                body.release ();
+                body = null;
+            }
+            else
+            {
+                body.writeBytes (content.content (), content.content ().readerIndex (), readableBytes);
+            }
+        }
+        if (body != null && httpObject instanceof LastHttpContent)
+        {
+            // a response that was cut short must not be stored
+            if (!httpObject.decoderResult ().isSuccess () || HttpUtil.isContentLengthSet (response) && HttpUtil.getContentLength (response, 0L) != body.readableBytes ())
+            {
+                body.release ();
+            }
+            else if (HttpResponseStatus.PARTIAL_CONTENT.equals (response.status ()))
+            {
+                cache.storeRange (uri, request, response, body, requestTime, responseTime);
+            }
+            else
+            {
+                cache.store (uri, request, response, body, requestTime, responseTime);
+            }
+            body = null;
+        }
+        if (filling != null)
+        {
+            return fill (httpObject);
+        }
+        return httpObject;
+    }
+
+    @Override
+    public void serverToProxyResponseReceived ()
+    {
+        if (filling != null)
+        {
+            // the response from the server was cut short
+            filling.release ();
+            filling = null;
+        }
+        synchronized (writtenResponses)
+        {
+            for (ByteBufHolder writtenResponse : writtenResponses)
+            {
+                writtenResponse.release ();
+            }
+            writtenResponses.clear ();
+        }
+    }
+
+    @Override
+    public HttpObject proxyToClientResponse (HttpObject httpObject)
+    {
+        // a response that is still revalidating a stored one when it reaches the client was made up by the proxy,
+        // because the server could not be reached or did not answer in time
+        CachedResponse cached = httpObject instanceof HttpResponse ? takeStale () : null;
+        if (cached != null)
+        {
+            int statusCode = ((HttpResponse) httpObject).status ().code ();
+            if ((statusCode == HttpResponseStatus.BAD_GATEWAY.code () || statusCode == HttpResponseStatus.GATEWAY_TIMEOUT.code ()) && cache.isServableOnError (cached, request))
+            {
+                LOG.debug ("Unable to revalidate response for {}, serving the stored one", uri);
+                FullHttpResponse storedResponse = (FullHttpResponse) cache.responseOnError (cached, request);
+                if (ctx == null || ctx.channel ().eventLoop ().inEventLoop ())
+                {
+                    releaseAfterWrite (storedResponse);
+                    return storedResponse;
+                }
+                // nothing is called once this response has been written, so it is given a body of its own
+                FullHttpResponse copiedResponse = storedResponse.replace (Unpooled.copiedBuffer (storedResponse.content ()));
+                storedResponse.release ();
+                return copiedResponse;
+            }
+            cached.getBody ().release ();
+        }
+        ResponseCache.RangeFill unusedFill = httpObject instanceof HttpResponse ? takeFill () : null;
+        if (unusedFill != null)
+        {
+            unusedFill.release ();
+        }
+        return httpObject;
+    }
+
+    /**
+     * Decides how the response from the server to a request for a stale response is answered.
+     *
+     * @param cached the stale response, whose body is either handed over to the returned response or released
+     * @return the response to send to the client in place of the one from the server, or null to send the one from
+     * the server
+     */
+    private FullHttpResponse revalidated (CachedResponse cached)
+    {
+        if (HttpResponseStatus.NOT_MODIFIED.equals (response.status ()) && (revalidating || ResponseCache.isSelectedBy (cached, response)))
+        {
+            CachedResponse refreshed = cache.freshen (uri, request, cached, response, requestTime, responseTime);
+            if (revalidating)
+            {
+                LOG.debug ("Revalidated response for {}", uri);
+                return (FullHttpResponse) cache.responseFor (refreshed, request);
+            }
+            // the client revalidates its own copy, which was found to be the stored one
+            refreshed.getBody ().release ();
+            return null;
+        }
+        if (response.status ().codeClass () == HttpStatusClass.SERVER_ERROR && cache.isServableOnError (cached, request))
+        {
+            LOG.debug ("Server failed to revalidate response for {}, serving the stored one", uri);
+            return (FullHttpResponse) cache.responseOnError (cached, request);
+        }
+        cached.getBody ().release ();
+        return null;
+    }
+
+    /**
+     * Sends the replacement response in place of part of the one from the server: its headers in place of the
+     * server's headers, its body in place of the server's last chunk, and nothing in place of the chunks in between.
+     */
+    private HttpObject replace (HttpObject httpObject)
+    {
+        if (httpObject instanceof LastHttpContent)
+        {
+            HttpObject replacementObject = httpObject instanceof HttpResponse ? replacement : new DefaultLastHttpContent (replacement.content ());
+            releaseAfterWrite (replacementObject);
+            replacement = null;
+            return replacementObject;
+        }
+        if (httpObject instanceof HttpResponse)
+        {
+            return new DefaultHttpResponse (replacement.protocolVersion (), replacement.status (), replacement.headers ());
+        }
+        return new DefaultHttpContent (Unpooled.EMPTY_BUFFER);
+    }
+
+    /**
+     * Sends the bytes of the requested range that the cache holds around the missing ones from the server: the
+     * headers of the whole range in place of the server's, the bytes before the missing ones with its first chunk, and
+     * the bytes after them with its last.
+     */
+    private HttpObject fill (HttpObject httpObject)
+    {
+        HttpResponse rangeResponse = null;
+        if (httpObject instanceof HttpResponse)
+        {
+            HttpResponse serverResponse = (HttpResponse) httpObject;
+            rangeResponse = new DefaultHttpResponse (serverResponse.protocolVersion (), serverResponse.status ());
+            rangeResponse.headers ().set (serverResponse.headers ());
+            rangeResponse.headers ().remove (HttpHeaderNames.TRANSFER_ENCODING);
+            rangeResponse.headers ().set (HttpHeaderNames.CONTENT_RANGE, filling.range.toContentRange ());
+            HttpUtil.setContentLength (rangeResponse, filling.range.length ());
+            if (!(httpObject instanceof HttpContent))
+            {
+                return rangeResponse;
+            }
+        }
+        HttpContent content = (HttpContent) httpObject;
+        boolean last = httpObject instanceof LastHttpContent;
+        ByteBuf before = filling.takeBefore ();
+        ByteBuf after = last ? filling.takeAfter () : null;
+        if (last)
+        {
+            filling = null;
+        }
+        if (rangeResponse == null && before == null && after == null)
+        {
+            return httpObject;
+        }
+
+        List <ByteBuf> parts = new ArrayList <> (3);
+        if (before != null)
+        {
+            parts.add (before);
+        }
+        parts.add (content.content ().retainedDuplicate ());
+        if (after != null)
+        {
+            parts.add (after);
+        }
+        ByteBuf bytes = Unpooled.wrappedBuffer (parts.toArray (new ByteBuf[0]));
+        HttpObject filledObject;
+        if (rangeResponse != null)
+        {
+            filledObject = new DefaultFullHttpResponse (rangeResponse.protocolVersion (), rangeResponse.status (), bytes, rangeResponse.headers (), EmptyHttpHeaders.INSTANCE);
+        }
+        else if (last)
+        {
+            filledObject = new DefaultLastHttpContent (bytes);
+        }
+        else
+        {
+            filledObject = new DefaultHttpContent (bytes);
+        }
+        releaseAfterWrite (filledObject);
+        return filledObject;
+    }
+
+    /**
+     * Keeps a stale response until the response from the server arrives, or the client goes away before it does.
+     */
+    private void holdStale (CachedResponse cached)
+    {
+        stale.set (cached);
+        releaseHeldOnClose ();
+    }
+
+    /**
+     * Keeps the held bytes of a range until the response from the server arrives, or the client goes away before it
+     * does.
+     */
+    private void holdFill (ResponseCache.RangeFill rangeFill)
+    {
+        fill.set (rangeFill);
+        releaseHeldOnClose ();
+    }
+
+    private void releaseHeldOnClose ()
+    {
+        if (ctx != null && releaseHeldOnClose == null)
+        {
+            releaseHeldOnClose = new ChannelFutureListener ()
+            {
+                @Override
+                public void operationComplete (ChannelFuture future)
+                {
+                    CachedResponse unused = stale.getAndSet (null);
+                    if (unused != null)
+                    {
+                        unused.getBody ().release ();
+                    }
+                    ResponseCache.RangeFill unusedFill = fill.getAndSet (null);
+                    if (unusedFill != null)
+                    {
+                        unusedFill.release ();
+                    }
+                }
+            };
+            ctx.channel ().closeFuture ().addListener (releaseHeldOnClose);
+        }
+    }
+
+    /**
+     * @return the stale response, whose body is now owned by the caller, or null if there is none
+     */
+    private CachedResponse takeStale ()
+    {
+        CachedResponse cached = stale.getAndSet (null);
+        stopReleasingHeldOnClose ();
+        return cached;
+    }
+
+    /**
+     * @return the fill of a range, whose held bytes are now owned by the caller, or null if there is none
+     */
+    private ResponseCache.RangeFill takeFill ()
+    {
+        ResponseCache.RangeFill rangeFill = fill.getAndSet (null);
+        stopReleasingHeldOnClose ();
+        return rangeFill;
+    }
+
+    private void stopReleasingHeldOnClose ()
+    {
+        if (releaseHeldOnClose != null && stale.get () == null && fill.get () == null)
+        {
+            ctx.channel ().closeFuture ().removeListener (releaseHeldOnClose);
+            releaseHeldOnClose = null;
+        }
+    }
+
+    /**
+     * The proxy retains the responses it writes, so the reference to the body that the cache handed out is released
+     * once the response has been written. On the client's event loop, that happens before the event loop runs its next
+     * task. Responses written from the server's event loop are released once the server's response has been received.
+     */
+    private void releaseAfterWrite (HttpObject response)
+    {
+        if (!(response instanceof ByteBufHolder) || ctx == null)
+        {
+            return;
+        }
+        final ByteBufHolder holder = (ByteBufHolder) response;
+        if (!ctx.channel ().eventLoop ().inEventLoop ())
+        {
+            synchronized (writtenResponses)
+            {
+                writtenResponses.add (holder);
+            }
+            return;
+        }
+        ctx.channel ().eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                holder.release ();
+            }
+        });
+    }
+
+    /**
+     * @return true if the request was received over TLS, which may have been terminated on the connection that the
+     * request arrived on, or, for HTTP/2 streams, on its parent
+     */
+    private boolean isSecure ()
+    {
+        for (Channel channel = ctx != null ? ctx.channel () : null; channel != null; channel = channel.parent ())
+        {
+            if (channel.pipeline ().get (SslHandler.class) != null)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,50 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+
+/**
+ * <p>
+ * {@link org.littleshoot.proxy.HttpFiltersSource} that makes the proxy a shared HTTP cache, as defined by RFC 7234.
+ * GET and HEAD requests are answered from a {@link ResponseCache} when it holds a response that may be used for them,
+ * and the responses to other GET requests are stored in it as they are passed on to the client.
+ * </p>
+ *
+ * <p>
+ * Responses are not aggregated, so their bodies are copied into the cache chunk by chunk, and are not held back from
+ * the client while they are received.
+ * </p>
+ */
+public class CachingHttpFiltersSource extends HttpFiltersSourceAdapter
+{
+    private final ResponseCache cache;
+
+    /**
+     * Creates a source that caches responses in memory, with the default settings.
+     */
+    public CachingHttpFiltersSource ()
+    {
+        this (new ResponseCache ());
+    }
+
+    /**
+     * @param cache the cache to answer requests from and store responses in
+     */
+    public CachingHttpFiltersSource (ResponseCache cache)
+    {
+        this.cache = cache;
+    }
+
+    public ResponseCache getCache ()
+    {
+        return cache;
+    }
+
+    @Override
+    public HttpFilters filterRequest (HttpRequest originalRequest, ChannelHandlerContext ctx)
+    {
+        return new CachingHttpFilters (originalRequest, ctx, cache);
+    }
+}
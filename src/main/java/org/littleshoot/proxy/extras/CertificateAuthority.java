@@ -0,0 +1,214 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.net.InetAddresses;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A root certificate and its private key, used to issue the certificates with which a
+ * {@link org.littleshoot.proxy.MitmManager} impersonates servers. Clients of a MITM'ing proxy must trust the root
+ * certificate.
+ */
+public class CertificateAuthority
+{
+    /**
+     * Validity of certificates issued by {@link #issueCertificate(String, Collection, PublicKey)}. Kept below the 398
+     * days that browsers accept for server certificates.
+     */
+    static final long CERTIFICATE_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis (365);
+
+    private static final long ROOT_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis (3650);
+
+    /**
+     * Issued certificates become valid a little in the past, to tolerate clients whose clocks are behind.
+     */
+    private static final long BACKDATE_MILLIS = TimeUnit.DAYS.toMillis (1);
+
+    private static final SecureRandom RANDOM = new SecureRandom ();
+
+    private final PrivateKey privateKey;
+    private final X509Certificate certificate;
+
+    public CertificateAuthority (PrivateKey privateKey, X509Certificate certificate)
+    {
+        this.privateKey = privateKey;
+        this.certificate = certificate;
+    }
+
+    /**
+     * Loads a certificate authority from a key store.
+     *
+     * @param keyStoreFile the key store file
+     * @param keyStoreType the type of the key store, e.g. "PKCS12" or "JKS"
+     * @param alias        alias of the root certificate and its private key
+     * @param password     password of the key store and the private key
+     */
+    public static CertificateAuthority load (File keyStoreFile, String keyStoreType, String alias, String password) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = KeyStore.getInstance (keyStoreType);
+        try (InputStream in = new FileInputStream (keyStoreFile))
+        {
+            keyStore.load (in, password.toCharArray ());
+        }
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey (alias, password.toCharArray ());
+        Certificate certificate = keyStore.getCertificate (alias);
+        if (privateKey == null || !(certificate instanceof X509Certificate))
+        {
+            throw new GeneralSecurityException ("No private key and X.509 certificate for alias " + alias + " in " + keyStoreFile);
+        }
+        return new CertificateAuthority (privateKey, (X509Certificate) certificate);
+    }
+
+    /**
+     * Creates a new certificate authority with a self-signed, 2048 bit RSA root certificate that is valid for ten
+     * years.
+     *
+     * @param commonName the common name of the root certificate
+     */
+    public static CertificateAuthority create (String commonName) throws GeneralSecurityException
+    {
+        KeyPair keyPair = KeyAlgorithm.RSA_2048.generateKeyPair ();
+
+        X500Name name = new X500NameBuilder (BCStyle.INSTANCE).addRDN (BCStyle.CN, commonName).build ();
+        long now = System.currentTimeMillis ();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder (name, newSerialNumber (), new Date (now - BACKDATE_MILLIS), new Date (now + ROOT_VALIDITY_MILLIS), name, keyPair.getPublic ());
+        try
+        {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils ();
+            builder.addExtension (Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier (keyPair.getPublic ()));
+            builder.addExtension (Extension.basicConstraints, true, new BasicConstraints (true));
+            builder.addExtension (Extension.keyUsage, true, new KeyUsage (KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        }
+        catch (IOException e)
+        {
+            throw new GeneralSecurityException ("Unable to add extensions to root certificate", e);
+        }
+        return new CertificateAuthority (keyPair.getPrivate (), sign (builder, keyPair.getPrivate ()));
+    }
+
+    /**
+     * Saves this certificate authority to a PKCS12 key store, from which it can be loaded with
+     * {@link #load(File, String, String, String)}.
+     *
+     * @param keyStoreFile the key store file, which is overwritten if it exists
+     * @param alias        alias under which to store the root certificate and its private key
+     * @param password     password of the key store and the private key
+     */
+    public void save (File keyStoreFile, String alias, String password) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = KeyStore.getInstance ("PKCS12");
+        keyStore.load (null, null);
+        keyStore.setKeyEntry (alias, privateKey, password.toCharArray (), new Certificate[] {certificate});
+        try (OutputStream out = new FileOutputStream (keyStoreFile))
+        {
+            keyStore.store (out, password.toCharArray ());
+        }
+    }
+
+    /**
+     * Issues a server certificate signed by this certificate authority.
+     *
+     * @param commonName              the common name of the certificate's subject, usually the server's host name
+     * @param subjectAlternativeNames the host names and IP addresses for which the certificate is valid
+     * @param publicKey               the public key to certify
+     * @return the certificate
+     */
+    public X509Certificate issueCertificate (String commonName, Collection <String> subjectAlternativeNames, PublicKey publicKey) throws GeneralSecurityException
+    {
+        X500Name subject = new X500NameBuilder (BCStyle.INSTANCE).addRDN (BCStyle.CN, commonName).build ();
+        long now = System.currentTimeMillis ();
+        Date notAfter = new Date (Math.min (now + CERTIFICATE_VALIDITY_MILLIS, certificate.getNotAfter ().getTime ()));
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder (certificate, newSerialNumber (), new Date (now - BACKDATE_MILLIS), notAfter, subject, publicKey);
+
+        List <GeneralName> names = new ArrayList <> ();
+        for (String name : subjectAlternativeNames)
+        {
+            names.add (new GeneralName (InetAddresses.isInetAddress (name) ? GeneralName.iPAddress : GeneralName.dNSName, name));
+        }
+
+        try
+        {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils ();
+            builder.addExtension (Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier (publicKey));
+            builder.addExtension (Extension.authorityKeyIdentifier, false, extensionUtils.createAuthorityKeyIdentifier (certificate));
+            builder.addExtension (Extension.basicConstraints, true, new BasicConstraints (false));
+            builder.addExtension (Extension.keyUsage, true, new KeyUsage (KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+            builder.addExtension (Extension.extendedKeyUsage, false, new ExtendedKeyUsage (KeyPurposeId.id_kp_serverAuth));
+            if (!names.isEmpty ())
+            {
+                builder.addExtension (Extension.subjectAlternativeName, false, new GeneralNames (names.toArray (new GeneralName[0])));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new GeneralSecurityException ("Unable to add extensions to certificate for " + commonName, e);
+        }
+        return sign (builder, privateKey);
+    }
+
+    public X509Certificate getCertificate ()
+    {
+        return certificate;
+    }
+
+    public PrivateKey getPrivateKey ()
+    {
+        return privateKey;
+    }
+
+    static X509Certificate sign (X509v3CertificateBuilder builder, PrivateKey signingKey) throws GeneralSecurityException
+    {
+        String signatureAlgorithm = "EC".equals (signingKey.getAlgorithm ()) ? "SHA256withECDSA" : "SHA256withRSA";
+        try
+        {
+            ContentSigner signer = new JcaContentSignerBuilder (signatureAlgorithm).build (signingKey);
+            return new JcaX509CertificateConverter ().getCertificate (builder.build (signer));
+        }
+        catch (OperatorCreationException e)
+        {
+            throw new GeneralSecurityException ("Unable to sign certificate", e);
+        }
+    }
+
+    static BigInteger newSerialNumber ()
+    {
+        // positive and at most 20 octets, as required by RFC 5280
+        return new BigInteger (159, RANDOM).add (BigInteger.ONE);
+    }
+}
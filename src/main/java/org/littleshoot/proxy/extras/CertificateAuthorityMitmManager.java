@@ -0,0 +1,337 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.littleshoot.proxy.Http2MitmManager;
+import org.littleshoot.proxy.MitmManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * {@link MitmManager} that impersonates each server with a certificate issued on the fly by a
+ * {@link CertificateAuthority}. The certificate's subject is the host the client asked to connect to, and it is valid
+ * for that host plus the host names and IP addresses of the real server's certificate.
+ * </p>
+ *
+ * <p>
+ * Generating a key and certificate is expensive, so the resulting {@link SslContext}s are kept in a bounded cache per
+ * host and set of names, and concurrent requests for the same host wait for a single certificate to be issued. Keys
+ * can also be taken from a {@link KeyPairPool} that generates them ahead of time, and certificates can be kept in a
+ * {@link CertificateStore} so that they are reused after a restart.
+ * </p>
+ *
+ * <p>
+ * Clients can optionally be offered HTTP/2 with ALPN, so that browsers send all their requests to a host over a
+ * single connection instead of opening several HTTP/1.1 connections, each with a handshake of its own. Server
+ * connections can likewise offer HTTP/2 when the proxy is configured to use it upstream.
+ * </p>
+ */
+public class CertificateAuthorityMitmManager implements Http2MitmManager
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CertificateAuthorityMitmManager.class);
+
+    /**
+     * The default maximum number of hosts for which an {@link SslContext} is cached.
+     */
+    public static final int DEFAULT_MAXIMUM_CACHE_SIZE = 10000;
+
+    private static final int GENERAL_NAME_DNS = 2;
+    private static final int GENERAL_NAME_IP_ADDRESS = 7;
+
+    private final CertificateAuthority certificateAuthority;
+    private final KeyPairPool keyPairPool;
+    private final CertificateStore certificateStore;
+    private final SslProvider sslProvider;
+    private final boolean http2;
+    private final SslContext serverSslContext;
+    private final SslContext http2ServerSslContext;
+    private final Cache <String, Impersonation> clientSslContexts;
+
+    /**
+     * Creates a MitmManager that validates servers' certificates against the JVM's default trust store.
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority)
+    {
+        this (certificateAuthority, false, DEFAULT_MAXIMUM_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a MitmManager that generates a 2048 bit RSA key for each impersonated host while the client waits.
+     *
+     * @param certificateAuthority issues the certificates that impersonate servers
+     * @param trustAllServers      if true, servers' certificates are not validated
+     * @param maximumCacheSize     maximum number of hosts for which an {@link SslContext} is cached
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority, boolean trustAllServers, int maximumCacheSize)
+    {
+        this (certificateAuthority, trustAllServers, maximumCacheSize, null);
+    }
+
+    /**
+     * @param certificateAuthority issues the certificates that impersonate servers
+     * @param trustAllServers      if true, servers' certificates are not validated
+     * @param maximumCacheSize     maximum number of hosts for which an {@link SslContext} is cached
+     * @param keyPairPool          (optional) pool of pre-generated keys for impersonation certificates. If null, a
+     *                             2048 bit RSA key is generated for each impersonated host while the client waits.
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority, boolean trustAllServers, int maximumCacheSize, KeyPairPool keyPairPool)
+    {
+        this (certificateAuthority, trustAllServers, maximumCacheSize, keyPairPool, null);
+    }
+
+    /**
+     * @param certificateAuthority issues the certificates that impersonate servers
+     * @param trustAllServers      if true, servers' certificates are not validated
+     * @param maximumCacheSize     maximum number of hosts for which an {@link SslContext} is cached
+     * @param keyPairPool          (optional) pool of pre-generated keys for impersonation certificates. If null, a
+     *                             2048 bit RSA key is generated for each impersonated host while the client waits.
+     * @param certificateStore     (optional) on-disk store from which certificates are reused after a restart, and to
+     *                             which newly issued certificates are written
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority, boolean trustAllServers, int maximumCacheSize, KeyPairPool keyPairPool, CertificateStore certificateStore)
+    {
+        this (certificateAuthority, trustAllServers, maximumCacheSize, keyPairPool, certificateStore, SslProvider.JDK);
+    }
+
+    /**
+     * @param certificateAuthority issues the certificates that impersonate servers
+     * @param trustAllServers      if true, servers' certificates are not validated
+     * @param maximumCacheSize     maximum number of hosts for which an {@link SslContext} is cached
+     * @param keyPairPool          (optional) pool of pre-generated keys for impersonation certificates. If null, a
+     *                             2048 bit RSA key is generated for each impersonated host while the client waits.
+     * @param certificateStore     (optional) on-disk store from which certificates are reused after a restart, and to
+     *                             which newly issued certificates are written
+     * @param sslProvider          the TLS implementation to use, e.g. {@link OpenSslEngineSource#preferredSslProvider()}.
+     *                             Only {@link SslProvider#JDK} resumes sessions with servers.
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority, boolean trustAllServers, int maximumCacheSize, KeyPairPool keyPairPool, CertificateStore certificateStore, SslProvider sslProvider)
+    {
+        this (certificateAuthority, trustAllServers, maximumCacheSize, keyPairPool, certificateStore, sslProvider, false);
+    }
+
+    /**
+     * @param certificateAuthority issues the certificates that impersonate servers
+     * @param trustAllServers      if true, servers' certificates are not validated
+     * @param maximumCacheSize     maximum number of hosts for which an {@link SslContext} is cached
+     * @param keyPairPool          (optional) pool of pre-generated keys for impersonation certificates. If null, a
+     *                             2048 bit RSA key is generated for each impersonated host while the client waits.
+     * @param certificateStore     (optional) on-disk store from which certificates are reused after a restart, and to
+     *                             which newly issued certificates are written
+     * @param sslProvider          the TLS implementation to use, e.g. {@link OpenSslEngineSource#preferredSslProvider()}.
+     *                             Only {@link SslProvider#JDK} resumes sessions with servers.
+     * @param http2                if true, clients are offered HTTP/2 as well as HTTP/1.1 with ALPN
+     */
+    public CertificateAuthorityMitmManager (CertificateAuthority certificateAuthority, boolean trustAllServers, int maximumCacheSize, KeyPairPool keyPairPool, CertificateStore certificateStore, SslProvider sslProvider, boolean http2)
+    {
+        this.certificateAuthority = certificateAuthority;
+        this.keyPairPool = keyPairPool;
+        this.certificateStore = certificateStore;
+        this.sslProvider = sslProvider;
+        this.http2 = http2;
+        // each cached context is replaced shortly before its certificate expires, see sslContextFor
+        this.clientSslContexts = CacheBuilder.newBuilder ().maximumSize (maximumCacheSize).build ();
+        try
+        {
+            this.serverSslContext = SslContextBuilder.forClient ().sslProvider (sslProvider).trustManager (trustAllServers ? InsecureTrustManagerFactory.INSTANCE : null).build ();
+            this.http2ServerSslContext = SslContextBuilder.forClient ().sslProvider (sslProvider).trustManager (trustAllServers ? InsecureTrustManagerFactory.INSTANCE : null).applicationProtocolConfig (new ApplicationProtocolConfig (ApplicationProtocolConfig.Protocol.ALPN, ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE, ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1)).build ();
+        }
+        catch (SSLException e)
+        {
+            throw new Error ("Failed to initialize the server-side SslContext", e);
+        }
+    }
+
+    @Override
+    public SSLEngine serverSslEngine (String peerHost, int peerPort)
+    {
+        return serverSslContext.newEngine (ByteBufAllocator.DEFAULT, peerHost, peerPort);
+    }
+
+    @Override
+    public SSLEngine http2ServerSslEngine (String peerHost, int peerPort)
+    {
+        return http2ServerSslContext.newEngine (ByteBufAllocator.DEFAULT, peerHost, peerPort);
+    }
+
+    @Override
+    public SSLEngine clientSslEngineFor (SSLSession serverSslSession)
+    {
+        String host = serverSslSession.getPeerHost ();
+        return sslContextFor (host, subjectAlternativeNamesFor (host, serverSslSession)).newEngine (ByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Returns the cached {@link SslContext} that impersonates the given host, issuing a certificate for it if
+     * necessary.
+     *
+     * @param host                    the host the client asked to connect to
+     * @param subjectAlternativeNames the names for which the certificate is valid
+     */
+    SslContext sslContextFor (final String host, final SortedSet <String> subjectAlternativeNames)
+    {
+        final String key = host + " " + subjectAlternativeNames;
+        Callable <Impersonation> loader = new Callable <Impersonation> ()
+        {
+            @Override
+            public Impersonation call () throws Exception
+            {
+                return newImpersonation (key, host, subjectAlternativeNames);
+            }
+        };
+        try
+        {
+            Impersonation impersonation = clientSslContexts.get (key, loader);
+            if (impersonation.isExpiring ())
+            {
+                // removed only if no other caller replaced it already, and callers then wait for a single replacement
+                LOG.debug ("Replacing expiring certificate for {} with names {}", host, subjectAlternativeNames);
+                clientSslContexts.asMap ().remove (key, impersonation);
+                impersonation = clientSslContexts.get (key, loader);
+            }
+            return impersonation.sslContext;
+        }
+        catch (ExecutionException | UncheckedExecutionException e)
+        {
+            throw new RuntimeException ("Unable to impersonate " + host, e.getCause ());
+        }
+    }
+
+    /**
+     * Gets a key pair for an impersonation certificate, from the key pair pool if there is one.
+     */
+    KeyPair generateKeyPair () throws GeneralSecurityException
+    {
+        if (keyPairPool != null)
+        {
+            return keyPairPool.take ();
+        }
+        return KeyAlgorithm.RSA_2048.generateKeyPair ();
+    }
+
+    private Impersonation newImpersonation (String key, String host, SortedSet <String> subjectAlternativeNames) throws GeneralSecurityException, SSLException
+    {
+        if (certificateStore != null)
+        {
+            KeyStore.PrivateKeyEntry entry = certificateStore.load (key, certificateAuthority.getCertificate ().getPublicKey ());
+            if (entry != null)
+            {
+                LOG.debug ("Reusing stored certificate for {} with names {}", host, subjectAlternativeNames);
+                X509Certificate certificate = (X509Certificate) entry.getCertificate ();
+                return new Impersonation (newSslContext (entry.getPrivateKey (), certificate), certificate);
+            }
+        }
+
+        long start = System.nanoTime ();
+        KeyPair keyPair = generateKeyPair ();
+        X509Certificate certificate = certificateAuthority.issueCertificate (host, subjectAlternativeNames, keyPair.getPublic ());
+        if (certificateStore != null)
+        {
+            certificateStore.saveAsync (key, keyPair.getPrivate (), certificate);
+        }
+
+        SslContext sslContext = newSslContext (keyPair.getPrivate (), certificate);
+        LOG.debug ("Issued certificate for {} with names {} in {} ms", host, subjectAlternativeNames, TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start));
+        return new Impersonation (sslContext, certificate);
+    }
+
+    private SslContext newSslContext (PrivateKey privateKey, X509Certificate certificate) throws SSLException
+    {
+        // clients must already trust the root, so it need not be sent along with the certificate
+        SslContextBuilder builder = SslContextBuilder.forServer (privateKey, certificate).sslProvider (sslProvider);
+        if (http2)
+        {
+            // HTTP/2 forbids the weaker cipher suites that HTTP/1.1 clients may still use
+            builder.ciphers (Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE).applicationProtocolConfig (new ApplicationProtocolConfig (ApplicationProtocolConfig.Protocol.ALPN, ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE, ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        return builder.build ();
+    }
+
+    /**
+     * Collects the names the impersonation certificate must be valid for: the host the client asked for, and the DNS
+     * names and IP addresses of the server's own certificate.
+     */
+    private static SortedSet <String> subjectAlternativeNamesFor (String host, SSLSession serverSslSession)
+    {
+        SortedSet <String> names = new TreeSet <> ();
+        if (host != null)
+        {
+            names.add (host);
+        }
+        try
+        {
+            Certificate[] peerCertificates = serverSslSession.getPeerCertificates ();
+            if (peerCertificates.length > 0 && peerCertificates[0] instanceof X509Certificate)
+            {
+                Collection <List <?>> alternativeNames = ((X509Certificate) peerCertificates[0]).getSubjectAlternativeNames ();
+                if (alternativeNames != null)
+                {
+                    for (List <?> alternativeName : alternativeNames)
+                    {
+                        Object type = alternativeName.get (0);
+                        if (type.equals (GENERAL_NAME_DNS) || type.equals (GENERAL_NAME_IP_ADDRESS))
+                        {
+                            names.add ((String) alternativeName.get (1));
+                        }
+                    }
+                }
+            }
+        }
+        catch (SSLPeerUnverifiedException | CertificateParsingException e)
+        {
+            LOG.debug ("Unable to read names from the certificate of {}", host, e);
+        }
+        return names;
+    }
+
+    /**
+     * An impersonation {@link SslContext}, and when it must be replaced so that clients are never sent an expired
+     * certificate. That is as soon as a {@link CertificateStore} would no longer load its certificate, since
+     * certificates loaded from a store may already be close to expiring.
+     */
+    private static class Impersonation
+    {
+        private final SslContext sslContext;
+        private final long replaceAfterMillis;
+
+        private Impersonation (SslContext sslContext, X509Certificate certificate)
+        {
+            this.sslContext = sslContext;
+            this.replaceAfterMillis = certificate.getNotAfter ().getTime () - CertificateStore.MINIMUM_REMAINING_VALIDITY_MILLIS;
+        }
+
+        private boolean isExpiring ()
+        {
+            return System.currentTimeMillis () >= replaceAfterMillis;
+        }
+    }
+}
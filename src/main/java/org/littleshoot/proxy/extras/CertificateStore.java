@@ -0,0 +1,250 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps the impersonation certificates and keys issued by a {@link CertificateAuthorityMitmManager} in a directory, so
+ * that they survive restarts of the proxy. Each entry is a small PKCS12 file named after a hash of its cache key.
+ * </p>
+ *
+ * <p>
+ * Entries are read when a host is first impersonated after a restart, and written by a background thread so that
+ * clients never wait for the disk. Entries that have expired, expire soon, or were not issued by the current
+ * certificate authority are ignored and replaced.
+ * </p>
+ */
+public class CertificateStore
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CertificateStore.class);
+
+    private static final String KEY_STORE_TYPE = "PKCS12";
+    private static final String ALIAS = "impersonation";
+    private static final String FILE_SUFFIX = ".p12";
+
+    /**
+     * Stored certificates with less than this left until they expire are not used.
+     */
+    static final long MINIMUM_REMAINING_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis (30);
+
+    private static final AtomicInteger storeCount = new AtomicInteger (0);
+
+    private final File directory;
+    private final char[] password;
+    private final ExecutorService writer;
+    private final AtomicLong hits = new AtomicLong (0);
+    private final AtomicLong misses = new AtomicLong (0);
+
+    /**
+     * @param directory the directory in which to keep certificates, which is created if it does not exist
+     * @param password  password protecting the stored private keys
+     */
+    public CertificateStore (File directory, String password)
+    {
+        if (!directory.isDirectory () && !directory.mkdirs ())
+        {
+            throw new IllegalArgumentException ("Unable to create certificate store directory " + directory);
+        }
+        this.directory = directory;
+        this.password = password.toCharArray ();
+        final String threadName = "LittleProxy-CertificateStore-" + storeCount.getAndIncrement ();
+        this.writer = Executors.newSingleThreadExecutor (new ThreadFactory ()
+        {
+            @Override
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread (r, threadName);
+                t.setDaemon (true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Loads the stored entry for the given cache key.
+     *
+     * @param key                     the cache key
+     * @param certificateAuthorityKey public key of the current certificate authority, which must have signed the
+     *                                stored certificate
+     * @return the private key and certificate, or null if there is no usable entry for the key
+     */
+    public KeyStore.PrivateKeyEntry load (String key, PublicKey certificateAuthorityKey)
+    {
+        File file = fileFor (key);
+        if (!file.isFile ())
+        {
+            misses.incrementAndGet ();
+            return null;
+        }
+        try
+        {
+            KeyStore keyStore = KeyStore.getInstance (KEY_STORE_TYPE);
+            try (InputStream in = new FileInputStream (file))
+            {
+                keyStore.load (in, password);
+            }
+            PrivateKey privateKey = (PrivateKey) keyStore.getKey (ALIAS, password);
+            Certificate certificate = keyStore.getCertificate (ALIAS);
+            if (privateKey != null && certificate instanceof X509Certificate && isUsable ((X509Certificate) certificate, certificateAuthorityKey))
+            {
+                hits.incrementAndGet ();
+                return new KeyStore.PrivateKeyEntry (privateKey, new Certificate[] {certificate});
+            }
+            LOG.debug ("Ignoring stale certificate for {} in {}", key, file);
+        }
+        catch (GeneralSecurityException | IOException | RuntimeException e)
+        {
+            LOG.warn ("Unable to read certificate for {} from {}", key, file, e);
+        }
+        misses.incrementAndGet ();
+        return null;
+    }
+
+    /**
+     * Stores an entry for the given cache key in the background, replacing any existing entry.
+     *
+     * @param key         the cache key
+     * @param privateKey  the private key of the certificate
+     * @param certificate the certificate
+     */
+    public void saveAsync (final String key, final PrivateKey privateKey, final X509Certificate certificate)
+    {
+        writer.execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                save (key, privateKey, certificate);
+            }
+        });
+    }
+
+    /**
+     * Stops writing entries once those already queued have been written.
+     */
+    public void stop ()
+    {
+        writer.shutdown ();
+    }
+
+    /**
+     * Waits for queued entries to be written.
+     *
+     * @return true if all entries were written before the timeout
+     */
+    boolean awaitWrites (long timeout, TimeUnit unit) throws InterruptedException
+    {
+        try
+        {
+            // the writer is a single thread, so this runs after everything queued before it
+            writer.submit (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                }
+            }).get (timeout, unit);
+            return true;
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            return false;
+        }
+    }
+
+    public File getDirectory ()
+    {
+        return directory;
+    }
+
+    /**
+     * @return the number of times {@link #load(String, PublicKey)} returned a stored entry
+     */
+    public long getHitCount ()
+    {
+        return hits.get ();
+    }
+
+    /**
+     * @return the number of times {@link #load(String, PublicKey)} found no usable entry
+     */
+    public long getMissCount ()
+    {
+        return misses.get ();
+    }
+
+    private void save (String key, PrivateKey privateKey, X509Certificate certificate)
+    {
+        File file = fileFor (key);
+        File temporaryFile = new File (directory, file.getName () + ".tmp");
+        try
+        {
+            KeyStore keyStore = KeyStore.getInstance (KEY_STORE_TYPE);
+            keyStore.load (null, null);
+            keyStore.setKeyEntry (ALIAS, privateKey, password, new Certificate[] {certificate});
+            try (OutputStream out = new FileOutputStream (temporaryFile))
+            {
+                keyStore.store (out, password);
+            }
+            // readers either see the previous entry or the complete new one
+            Files.move (temporaryFile.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug ("Stored certificate for {} in {}", key, file);
+        }
+        catch (GeneralSecurityException | IOException | RuntimeException e)
+        {
+            LOG.warn ("Unable to store certificate for {} in {}", key, file, e);
+            if (temporaryFile.exists () && !temporaryFile.delete ())
+            {
+                LOG.debug ("Unable to delete {}", temporaryFile);
+            }
+        }
+    }
+
+    private File fileFor (String key)
+    {
+        return new File (directory, Hashing.sha256 ().hashString (key, StandardCharsets.UTF_8) + FILE_SUFFIX);
+    }
+
+    private static boolean isUsable (X509Certificate certificate, PublicKey certificateAuthorityKey)
+    {
+        if (certificate.getNotAfter ().getTime () - System.currentTimeMillis () < MINIMUM_REMAINING_VALIDITY_MILLIS)
+        {
+            return false;
+        }
+        try
+        {
+            certificate.verify (certificateAuthorityKey);
+            return true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.littleshoot.proxy.extras;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Matches host names against a fixed set of patterns, compiled once so that matching a host costs a few hash lookups
+ * however many patterns there are. Matching ignores case and a trailing dot. Patterns may be:
+ * </p>
+ *
+ * <ul>
+ * <li>a host name or IP address, e.g. {@code www.example.com}, which matches only that host</li>
+ * <li>{@code *.example.com}, which matches every subdomain of example.com, but not example.com itself</li>
+ * <li>{@code .example.com}, which matches example.com and every subdomain of it</li>
+ * <li>any other pattern containing {@code *}, e.g. {@code api-*.example.com}, in which each {@code *} matches any
+ * characters within one label of the host name. These are matched with a single regular expression.</li>
+ * <li>{@code *}, which matches every host</li>
+ * </ul>
+ */
+public class HostPatternMatcher
+{
+    private final boolean matchesAll;
+    private final Set <String> hosts = new HashSet <> ();
+    private final Set <String> parentDomains = new HashSet <> ();
+    private final Pattern wildcards;
+
+    public HostPatternMatcher (String... patterns)
+    {
+        this (Arrays.asList (patterns));
+    }
+
+    /**
+     * @param patterns the host patterns to match
+     */
+    public HostPatternMatcher (Collection <String> patterns)
+    {
+        boolean all = false;
+        List <String> wildcardRegexes = new ArrayList <> ();
+        for (String pattern : patterns)
+        {
+            String normalized = normalize (pattern);
+            if (normalized.equals ("*"))
+            {
+                all = true;
+            }
+            else if (normalized.startsWith ("*.") && normalized.indexOf ('*', 1) < 0)
+            {
+                parentDomains.add (normalized.substring (2));
+            }
+            else if (normalized.startsWith ("."))
+            {
+                hosts.add (normalized.substring (1));
+                parentDomains.add (normalized.substring (1));
+            }
+            else if (normalized.indexOf ('*') >= 0)
+            {
+                StringBuilder regex = new StringBuilder ();
+                for (String literal : normalized.split ("\\*", -1))
+                {
+                    if (regex.length () > 0)
+                    {
+                        regex.append ("[^.]*");
+                    }
+                    regex.append (Pattern.quote (literal));
+                }
+                wildcardRegexes.add (regex.toString ());
+            }
+            else if (!normalized.isEmpty ())
+            {
+                hosts.add (normalized);
+            }
+        }
+        this.matchesAll = all;
+        this.wildcards = wildcardRegexes.isEmpty () ? null : Pattern.compile (String.join ("|", wildcardRegexes));
+    }
+
+    /**
+     * @param host a host name or IP address
+     * @return true if the host matches any of the patterns
+     */
+    public boolean matches (String host)
+    {
+        if (matchesAll)
+        {
+            return true;
+        }
+        if (host == null)
+        {
+            return false;
+        }
+        String normalized = normalize (host);
+        if (hosts.contains (normalized))
+        {
+            return true;
+        }
+        if (!parentDomains.isEmpty ())
+        {
+            for (int dot = normalized.indexOf ('.'); dot >= 0; dot = normalized.indexOf ('.', dot + 1))
+            {
+                if (parentDomains.contains (normalized.substring (dot + 1)))
+                {
+                    return true;
+                }
+            }
+        }
+        return wildcards != null && wildcards.matcher (normalized).matches ();
+    }
+
+    private static String normalize (String host)
+    {
+        String normalized = host.trim ().toLowerCase (Locale.US);
+        if (normalized.startsWith ("[") && normalized.endsWith ("]"))
+        {
+            normalized = normalized.substring (1, normalized.length () - 1);
+        }
+        if (normalized.endsWith (".") && normalized.length () > 1)
+        {
+            normalized = normalized.substring (0, normalized.length () - 1);
+        }
+        return normalized;
+    }
+}
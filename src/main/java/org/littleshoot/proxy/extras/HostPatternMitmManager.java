@@ -0,0 +1,80 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.Http2MitmManager;
+import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.SelectiveMitmManager;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * {@link SelectiveMitmManager} that intercepts the hosts matching one set of patterns, except those matching another,
+ * using another {@link MitmManager} to do so. Connections to all other hosts are tunneled. The server connections of
+ * intercepted hosts negotiate HTTP/2 if the other MitmManager is an {@link Http2MitmManager}.
+ */
+public class HostPatternMitmManager implements SelectiveMitmManager, Http2MitmManager
+{
+    private final MitmManager mitmManager;
+    private final HostPatternMatcher interceptedHosts;
+    private final HostPatternMatcher tunneledHosts;
+
+    /**
+     * Creates a MitmManager that intercepts only the hosts matching the given patterns.
+     *
+     * @param mitmManager      intercepts the connections
+     * @param interceptedHosts hosts to intercept
+     */
+    public HostPatternMitmManager (MitmManager mitmManager, HostPatternMatcher interceptedHosts)
+    {
+        this (mitmManager, interceptedHosts, null);
+    }
+
+    /**
+     * @param mitmManager      intercepts the connections
+     * @param interceptedHosts hosts to intercept, or null to intercept all hosts that are not tunneled
+     * @param tunneledHosts    (optional) hosts to tunnel even if they match interceptedHosts
+     */
+    public HostPatternMitmManager (MitmManager mitmManager, HostPatternMatcher interceptedHosts, HostPatternMatcher tunneledHosts)
+    {
+        this.mitmManager = mitmManager;
+        this.interceptedHosts = interceptedHosts;
+        this.tunneledHosts = tunneledHosts;
+    }
+
+    @Override
+    public boolean shouldMitm (String peerHost, int peerPort, HttpRequest httpRequest)
+    {
+        if (tunneledHosts != null && tunneledHosts.matches (peerHost))
+        {
+            return false;
+        }
+        return interceptedHosts == null || interceptedHosts.matches (peerHost);
+    }
+
+    @Override
+    public SSLEngine serverSslEngine (String peerHost, int peerPort)
+    {
+        return mitmManager.serverSslEngine (peerHost, peerPort);
+    }
+
+    /**
+     * Delegates to the other MitmManager if it is an {@link Http2MitmManager}, and otherwise returns an engine from
+     * {@link MitmManager#serverSslEngine(String, int)}, with which the server's requests fall back to HTTP/1.1.
+     */
+    @Override
+    public SSLEngine http2ServerSslEngine (String peerHost, int peerPort)
+    {
+        if (mitmManager instanceof Http2MitmManager)
+        {
+            return ((Http2MitmManager) mitmManager).http2ServerSslEngine (peerHost, peerPort);
+        }
+        return mitmManager.serverSslEngine (peerHost, peerPort);
+    }
+
+    @Override
+    public SSLEngine clientSslEngineFor (SSLSession serverSslSession)
+    {
+        return mitmManager.clientSslEngineFor (serverSslSession);
+    }
+}
@@ -0,0 +1,62 @@
+package org.littleshoot.proxy.extras;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Key types for the keys that LittleProxy generates for its own certificates.
+ */
+public enum KeyAlgorithm
+{
+    /**
+     * 2048 bit RSA.
+     */
+    RSA_2048
+        {
+            @Override
+            public KeyPair generateKeyPair () throws GeneralSecurityException
+            {
+                return generateRsaKeyPair (2048);
+            }
+        },
+
+    /**
+     * 4096 bit RSA. Considerably slower to generate than {@link #RSA_2048}.
+     */
+    RSA_4096
+        {
+            @Override
+            public KeyPair generateKeyPair () throws GeneralSecurityException
+            {
+                return generateRsaKeyPair (4096);
+            }
+        },
+
+    /**
+     * Elliptic curve keys on the NIST P-256 curve. Much faster to generate than RSA keys.
+     */
+    EC_P256
+        {
+            @Override
+            public KeyPair generateKeyPair () throws GeneralSecurityException
+            {
+                KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance ("EC");
+                keyPairGenerator.initialize (new ECGenParameterSpec ("secp256r1"));
+                return keyPairGenerator.generateKeyPair ();
+            }
+        };
+
+    /**
+     * Generates a new key pair of this type.
+     */
+    public abstract KeyPair generateKeyPair () throws GeneralSecurityException;
+
+    private static KeyPair generateRsaKeyPair (int keySize) throws GeneralSecurityException
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance ("RSA");
+        keyPairGenerator.initialize (keySize);
+        return keyPairGenerator.generateKeyPair ();
+    }
+}
@@ -0,0 +1,144 @@
+package org.littleshoot.proxy.extras;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A pool of pre-generated key pairs that a background thread keeps topped up to a fixed depth, so that callers such
+ * as {@link CertificateAuthorityMitmManager} don't have to wait for key generation.
+ * </p>
+ *
+ * <p>
+ * When the pool runs dry, for example during a burst of new hosts, {@link #take()} generates a key pair on the calling
+ * thread instead and counts a miss. A steadily rising miss count means the pool is too shallow.
+ * </p>
+ */
+public class KeyPairPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger (KeyPairPool.class);
+
+    /**
+     * The default number of key pairs kept ready.
+     */
+    public static final int DEFAULT_DEPTH = 16;
+
+    private static final AtomicInteger poolCount = new AtomicInteger (0);
+
+    private final KeyAlgorithm keyAlgorithm;
+    private final BlockingQueue <KeyPair> keyPairs;
+    private final AtomicLong misses = new AtomicLong (0);
+    private final Thread generatorThread;
+
+    /**
+     * Creates a pool of {@link #DEFAULT_DEPTH} key pairs of the given type.
+     */
+    public KeyPairPool (KeyAlgorithm keyAlgorithm)
+    {
+        this (keyAlgorithm, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a pool and starts filling it in the background.
+     *
+     * @param keyAlgorithm type of the key pairs to generate
+     * @param depth        number of key pairs to keep ready
+     */
+    public KeyPairPool (KeyAlgorithm keyAlgorithm, int depth)
+    {
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyPairs = new LinkedBlockingQueue <> (depth);
+        this.generatorThread = new Thread (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                fill ();
+            }
+        }, "LittleProxy-KeyPairPool-" + poolCount.getAndIncrement ());
+        this.generatorThread.setDaemon (true);
+        this.generatorThread.setPriority (Thread.MIN_PRIORITY);
+        this.generatorThread.start ();
+    }
+
+    /**
+     * Takes a key pair from the pool, or generates one if the pool is empty.
+     */
+    public KeyPair take () throws GeneralSecurityException
+    {
+        KeyPair keyPair = keyPairs.poll ();
+        if (keyPair != null)
+        {
+            return keyPair;
+        }
+        misses.incrementAndGet ();
+        LOG.debug ("Key pair pool is empty, generating {} key pair inline", keyAlgorithm);
+        return keyAlgorithm.generateKeyPair ();
+    }
+
+    /**
+     * Stops generating key pairs in the background. Key pairs still in the pool can be taken, after which
+     * {@link #take()} generates them inline.
+     */
+    public void stop ()
+    {
+        generatorThread.interrupt ();
+    }
+
+    public KeyAlgorithm getKeyAlgorithm ()
+    {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return the number of key pairs currently ready
+     */
+    public int getAvailable ()
+    {
+        return keyPairs.size ();
+    }
+
+    /**
+     * @return the number of times {@link #take()} found the pool empty and generated a key pair inline
+     */
+    public long getMissCount ()
+    {
+        return misses.get ();
+    }
+
+    private void fill ()
+    {
+        while (!Thread.currentThread ().isInterrupted ())
+        {
+            try
+            {
+                keyPairs.put (keyAlgorithm.generateKeyPair ());
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (GeneralSecurityException | RuntimeException e)
+            {
+                LOG.error ("Unable to generate {} key pair, retrying shortly", keyAlgorithm, e);
+                try
+                {
+                    TimeUnit.SECONDS.sleep (1);
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+            }
+        }
+        LOG.debug ("Stopped generating {} key pairs", keyAlgorithm);
+    }
+}
@@ -0,0 +1,70 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * {@link ResponseCacheStore} that keeps responses on the heap, up to a maximum total size, evicting the least recently
+ * used responses first. Bodies are expected to be unpooled heap buffers, which are left to the garbage collector once
+ * evicted, so that they stay valid for responses that are still being written.
+ */
+public class MemoryResponseCacheStore implements ResponseCacheStore
+{
+    /**
+     * The default maximum total size of the stored responses.
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE_IN_BYTES = 256L * 1024 * 1024;
+
+    private final Cache <String, CachedResponse> responses;
+
+    /**
+     * Creates a store with the default maximum size.
+     */
+    public MemoryResponseCacheStore ()
+    {
+        this (DEFAULT_MAXIMUM_SIZE_IN_BYTES);
+    }
+
+    /**
+     * @param maximumSizeInBytes maximum total size of the stored responses
+     */
+    public MemoryResponseCacheStore (long maximumSizeInBytes)
+    {
+        this.responses = CacheBuilder.newBuilder ().maximumWeight (maximumSizeInBytes).weigher (new Weigher <String, CachedResponse> ()
+        {
+            @Override
+            public int weigh (String key, CachedResponse response)
+            {
+                return key.length () + response.getSizeInBytes ();
+            }
+        }).build ();
+    }
+
+    @Override
+    public CachedResponse get (String key)
+    {
+        CachedResponse response = responses.getIfPresent (key);
+        return response != null ? response.withBody (response.getBody ().retainedDuplicate ()) : null;
+    }
+
+    @Override
+    public void put (String key, CachedResponse response)
+    {
+        responses.put (key, response);
+    }
+
+    @Override
+    public void remove (String key)
+    {
+        responses.invalidate (key);
+    }
+
+    /**
+     * @return the number of stored responses
+     */
+    public long size ()
+    {
+        return responses.size ();
+    }
+}
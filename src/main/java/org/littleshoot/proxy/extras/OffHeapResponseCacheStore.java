@@ -0,0 +1,494 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * {@link ResponseCacheStore} that keeps response bodies off the heap, so that a large cache does not burden the garbage
+ * collector. Bodies are first held in pooled direct memory. When that is full, the least recently used ones are
+ * written to memory-mapped segment files in a directory, and the oldest segment is dropped, with the responses in it,
+ * when the disk space is used up. Only the status, headers and location of each response are kept on the heap.
+ * </p>
+ *
+ * <p>
+ * Responses are served straight from the direct memory or mapped file region that holds their bodies, without
+ * copying them. Segments are only ever appended to, so the space taken by responses that were replaced or removed is
+ * reclaimed when their segment is dropped. A dropped segment is unmapped as soon as the last body served from it has
+ * been written to its client. The index is not persisted, so segment files left in the directory from a previous run
+ * are deleted.
+ * </p>
+ *
+ * <p>
+ * The lock on the store only guards its index. Bodies are copied into direct memory and into segments outside it, so
+ * that a large body being written does not hold up the event loops that read from the cache.
+ * </p>
+ */
+public class OffHeapResponseCacheStore implements ResponseCacheStore
+{
+    private static final Logger LOG = LoggerFactory.getLogger (OffHeapResponseCacheStore.class);
+
+    /**
+     * The default maximum total size of the bodies held in direct memory.
+     */
+    public static final long DEFAULT_MAXIMUM_MEMORY_SIZE_IN_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The default maximum total size of the segment files.
+     */
+    public static final long DEFAULT_MAXIMUM_DISK_SIZE_IN_BYTES = 50L * 1024 * 1024 * 1024;
+
+    /**
+     * The default size of each segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE_IN_BYTES = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+
+    private final long maximumMemorySizeInBytes;
+    private final File directory;
+    private final int maximumSegments;
+    private final int segmentSizeInBytes;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    /**
+     * Responses with bodies in direct memory, from the least to the most recently used.
+     */
+    private final LinkedHashMap <String, Entry> inMemory = new LinkedHashMap <> (16, 0.75f, true);
+
+    /**
+     * Responses with bodies in segment files.
+     */
+    private final Map <String, Entry> onDisk = new HashMap <> ();
+
+    /**
+     * Responses with bodies in direct memory that are being copied to segment files, and are still served from memory
+     * until they have been.
+     */
+    private final Map <String, Entry> spilling = new HashMap <> ();
+
+    /**
+     * Segment files, from the oldest to the one being written.
+     */
+    private final Deque <Segment> segments = new ArrayDeque <> ();
+
+    private long memorySizeInBytes;
+    private int nextSegmentNumber;
+
+    /**
+     * Creates a store with the default sizes.
+     *
+     * @param directory the directory to write segment files to
+     */
+    public OffHeapResponseCacheStore (File directory)
+    {
+        this (DEFAULT_MAXIMUM_MEMORY_SIZE_IN_BYTES, directory, DEFAULT_MAXIMUM_DISK_SIZE_IN_BYTES, DEFAULT_SEGMENT_SIZE_IN_BYTES);
+    }
+
+    /**
+     * @param maximumMemorySizeInBytes maximum total size of the bodies held in direct memory
+     * @param directory                the directory to write segment files to
+     * @param maximumDiskSizeInBytes   maximum total size of the segment files
+     * @param segmentSizeInBytes       size of each segment file, which is also the size of the largest body that is
+     *                                 written to disk
+     */
+    public OffHeapResponseCacheStore (long maximumMemorySizeInBytes, File directory, long maximumDiskSizeInBytes, int segmentSizeInBytes)
+    {
+        this.maximumMemorySizeInBytes = maximumMemorySizeInBytes;
+        this.directory = directory;
+        this.maximumSegments = (int) Math.min (Integer.MAX_VALUE, maximumDiskSizeInBytes / segmentSizeInBytes);
+        this.segmentSizeInBytes = segmentSizeInBytes;
+
+        if (!directory.isDirectory () && !directory.mkdirs ())
+        {
+            throw new IllegalArgumentException ("Unable to create cache directory " + directory);
+        }
+        File[] staleSegmentFiles = directory.listFiles (new FileFilter ()
+        {
+            @Override
+            public boolean accept (File file)
+            {
+                return file.getName ().endsWith (SEGMENT_FILE_SUFFIX);
+            }
+        });
+        if (staleSegmentFiles != null)
+        {
+            for (File staleSegmentFile : staleSegmentFiles)
+            {
+                delete (staleSegmentFile);
+            }
+        }
+    }
+
+    @Override
+    public synchronized CachedResponse get (String key)
+    {
+        Entry entry = inMemory.get (key);
+        if (entry != null)
+        {
+            return entry.response.withBody (entry.response.getBody ().retainedDuplicate ());
+        }
+        entry = spilling.get (key);
+        if (entry != null)
+        {
+            return entry.response.withBody (entry.response.getBody ().retainedDuplicate ());
+        }
+        entry = onDisk.get (key);
+        if (entry != null)
+        {
+            return entry.response.withBody (entry.segment.buffer.retainedSlice (entry.offset, entry.length));
+        }
+        return null;
+    }
+
+    @Override
+    public void put (String key, CachedResponse response)
+    {
+        // copied outside the lock, which only guards the index
+        ByteBuf body = response.getBody ();
+        ByteBuf directBody = allocator.directBuffer (body.readableBytes (), body.readableBytes ());
+        directBody.writeBytes (body, body.readerIndex (), body.readableBytes ());
+        body.release ();
+
+        List <Spill> spills;
+        synchronized (this)
+        {
+            removeEntry (key);
+            inMemory.put (key, new Entry (response.withBody (directBody)));
+            memorySizeInBytes += directBody.readableBytes ();
+            spills = reserveSpills ();
+        }
+        if (spills.isEmpty ())
+        {
+            return;
+        }
+
+        try
+        {
+            for (Spill spill : spills)
+            {
+                ByteBuf spilledBody = spill.entry.response.getBody ();
+                try
+                {
+                    // through a view of its own, since the segment buffer's internal NIO buffer is shared by all
+                    // threads that copy to it
+                    spilledBody.getBytes (spilledBody.readerIndex (), spill.segment.buffer.nioBuffer (spill.offset, spilledBody.readableBytes ()));
+                    spill.copied = true;
+                }
+                catch (RuntimeException e)
+                {
+                    LOG.warn ("Unable to write cached response to disk, dropping it", e);
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                for (Spill spill : spills)
+                {
+                    publish (spill);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove (String key)
+    {
+        removeEntry (key);
+    }
+
+    /**
+     * @return the number of stored responses
+     */
+    public synchronized long size ()
+    {
+        return inMemory.size () + spilling.size () + onDisk.size ();
+    }
+
+    /**
+     * @return the total size of the bodies held in direct memory
+     */
+    public synchronized long getMemorySizeInBytes ()
+    {
+        return memorySizeInBytes;
+    }
+
+    /**
+     * @return the number of responses with bodies in segment files
+     */
+    public synchronized int getDiskEntries ()
+    {
+        return onDisk.size ();
+    }
+
+    /**
+     * Removes all responses, releasing the direct memory they use and deleting the segment files.
+     */
+    public synchronized void close ()
+    {
+        for (Entry entry : inMemory.values ())
+        {
+            entry.response.getBody ().release ();
+        }
+        inMemory.clear ();
+        memorySizeInBytes = 0;
+        // the bodies being spilled are released by the threads that copy them
+        spilling.clear ();
+        onDisk.clear ();
+        while (!segments.isEmpty ())
+        {
+            Segment segment = segments.removeFirst ();
+            segment.dropped = true;
+            segment.buffer.release ();
+            delete (segment.file);
+        }
+    }
+
+    private void removeEntry (String key)
+    {
+        Entry entry = inMemory.remove (key);
+        if (entry != null)
+        {
+            memorySizeInBytes -= entry.response.getBody ().readableBytes ();
+            entry.response.getBody ().release ();
+        }
+        spilling.remove (key);
+        entry = onDisk.remove (key);
+        if (entry != null)
+        {
+            entry.segment.keys.remove (key);
+        }
+    }
+
+    /**
+     * Takes the least recently used bodies out of direct memory until the rest fit, and reserves room for them in the
+     * segment files. The segments are retained until the bodies have been copied to them, so that they are not
+     * unmapped meanwhile if they are dropped. Must be called while synchronized on the store.
+     *
+     * @return the bodies to copy to their segments
+     */
+    private List <Spill> reserveSpills ()
+    {
+        List <Spill> spills = new ArrayList <> ();
+        Iterator <Map.Entry <String, Entry>> leastRecentlyUsed = inMemory.entrySet ().iterator ();
+        while (memorySizeInBytes > maximumMemorySizeInBytes && leastRecentlyUsed.hasNext ())
+        {
+            Map.Entry <String, Entry> spilled = leastRecentlyUsed.next ();
+            leastRecentlyUsed.remove ();
+            ByteBuf body = spilled.getValue ().response.getBody ();
+            memorySizeInBytes -= body.readableBytes ();
+            Segment segment = null;
+            try
+            {
+                segment = segmentFor (body.readableBytes ());
+            }
+            catch (IOException e)
+            {
+                LOG.warn ("Unable to write cached response to disk, dropping it", e);
+            }
+            if (segment == null)
+            {
+                body.release ();
+                continue;
+            }
+            spills.add (new Spill (spilled.getKey (), spilled.getValue (), segment, segment.writerIndex));
+            segment.writerIndex += body.readableBytes ();
+            segment.buffer.retain ();
+            spilling.put (spilled.getKey (), spilled.getValue ());
+        }
+        return spills;
+    }
+
+    /**
+     * Serves a body from its segment once it has been copied there, unless it was replaced or removed, or its segment
+     * dropped, in the meantime. A body that could not be copied is dropped. Must be called while synchronized on the
+     * store.
+     */
+    private void publish (Spill spill)
+    {
+        ByteBuf body = spill.entry.response.getBody ();
+        if (spilling.remove (spill.key, spill.entry) && spill.copied && !spill.segment.dropped)
+        {
+            spill.segment.keys.add (spill.key);
+            onDisk.put (spill.key, new Entry (spill.entry.response.withBody (Unpooled.EMPTY_BUFFER), spill.segment, spill.offset, body.readableBytes ()));
+        }
+        body.release ();
+        spill.segment.buffer.release ();
+    }
+
+    /**
+     * @return the segment to append a body of the given length to, or null if it is too large to write to disk
+     */
+    private Segment segmentFor (int length) throws IOException
+    {
+        if (length > segmentSizeInBytes || maximumSegments == 0)
+        {
+            return null;
+        }
+        Segment current = segments.peekLast ();
+        if (current != null && current.writerIndex + length <= segmentSizeInBytes)
+        {
+            return current;
+        }
+        while (segments.size () >= maximumSegments)
+        {
+            dropOldestSegment ();
+        }
+        File file = new File (directory, "responses-" + nextSegmentNumber++ + SEGMENT_FILE_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile (file, "rw");
+        MappedByteBuffer mapped;
+        try
+        {
+            // the mapping stays valid once the channel is closed
+            mapped = randomAccessFile.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, segmentSizeInBytes);
+        }
+        finally
+        {
+            randomAccessFile.close ();
+        }
+        Segment segment = new Segment (file, new MappedSegmentBuf (mapped));
+        segments.addLast (segment);
+        LOG.debug ("Created cache segment {}", file);
+        return segment;
+    }
+
+    private void dropOldestSegment ()
+    {
+        Segment oldest = segments.removeFirst ();
+        oldest.dropped = true;
+        for (String key : oldest.keys)
+        {
+            onDisk.remove (key);
+        }
+        // bodies that are still being written to clients hold references to the buffer, which unmaps the file once they are released
+        oldest.buffer.release ();
+        delete (oldest.file);
+        LOG.debug ("Dropped cache segment {} with {} responses", oldest.file, oldest.keys.size ());
+    }
+
+    private static void delete (File file)
+    {
+        if (!file.delete ())
+        {
+            LOG.warn ("Unable to delete cache segment {}", file);
+        }
+    }
+
+    /**
+     * A stored response, with its body in direct memory, or the location of its body in a segment.
+     */
+    private static class Entry
+    {
+        private final CachedResponse response;
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Entry (CachedResponse response)
+        {
+            this (response, null, 0, 0);
+        }
+
+        private Entry (CachedResponse response, Segment segment, int offset, int length)
+        {
+            this.response = response;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file, and the keys of the responses with bodies in it.
+     */
+    private static class Segment
+    {
+        private final File file;
+        private final ByteBuf buffer;
+        private final Set <String> keys = new HashSet <> ();
+        private int writerIndex;
+
+        /**
+         * True once the segment is no longer in the store, and its buffer only referenced by bodies being written.
+         */
+        private boolean dropped;
+
+        private Segment (File file, ByteBuf buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A body of the store being copied to a segment.
+     */
+    private static class Spill
+    {
+        private final String key;
+        private final Entry entry;
+        private final Segment segment;
+        private final int offset;
+
+        /**
+         * True once the body has been copied to the segment.
+         */
+        private boolean copied;
+
+        private Spill (String key, Entry entry, Segment segment, int offset)
+        {
+            this.key = key;
+            this.entry = entry;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The buffer of a segment, which unmaps the segment file when it is released for the last time rather than
+     * leaving that to the garbage collector, so that the mappings of dropped segments do not pile up.
+     */
+    private static class MappedSegmentBuf extends UnpooledDirectByteBuf
+    {
+        private final MappedByteBuffer mapped;
+
+        private MappedSegmentBuf (MappedByteBuffer mapped)
+        {
+            super (UnpooledByteBufAllocator.DEFAULT, mapped, mapped.capacity ());
+            this.mapped = mapped;
+        }
+
+        @Override
+        protected void deallocate ()
+        {
+            super.deallocate ();
+            PlatformDependent.freeDirectBuffer (mapped);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.littleshoot.proxy.SslEngineSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * {@link SslEngineSource} whose engines use OpenSSL (BoringSSL) through netty-tcnative, which handshakes and encrypts
+ * considerably faster than the JDK. If netty-tcnative is not on the classpath or its native library cannot be
+ * loaded, the JDK's engines are used instead.
+ * </p>
+ *
+ * <p>
+ * Engines for connections from clients present the given certificate, and engines for connections to servers or
+ * chained proxies are created from one shared client context.
+ * </p>
+ */
+public class OpenSslEngineSource implements SslEngineSource
+{
+    private static final Logger LOG = LoggerFactory.getLogger (OpenSslEngineSource.class);
+
+    private final SslProvider sslProvider;
+    private final SslContext serverSslContext;
+    private final SslContext clientSslContext;
+
+    /**
+     * @param privateKey       private key of the certificate
+     * @param certificateChain the certificate to present to clients, followed by its issuers
+     * @param trustAllServers  if true, the certificates of servers and authenticated clients are not validated;
+     *                         otherwise they are validated against the JVM's default trust store
+     */
+    public OpenSslEngineSource (PrivateKey privateKey, X509Certificate[] certificateChain, boolean trustAllServers)
+    {
+        this.sslProvider = preferredSslProvider ();
+        try
+        {
+            SslContextBuilder serverBuilder = SslContextBuilder.forServer (privateKey, certificateChain).sslProvider (sslProvider);
+            SslContextBuilder clientBuilder = SslContextBuilder.forClient ().sslProvider (sslProvider);
+            if (trustAllServers)
+            {
+                serverBuilder.trustManager (InsecureTrustManagerFactory.INSTANCE);
+                clientBuilder.trustManager (InsecureTrustManagerFactory.INSTANCE);
+            }
+            this.serverSslContext = serverBuilder.build ();
+            this.clientSslContext = clientBuilder.build ();
+        }
+        catch (SSLException e)
+        {
+            throw new Error ("Failed to initialize the " + sslProvider + " SslContexts", e);
+        }
+    }
+
+    /**
+     * Creates an OpenSslEngineSource with the private key and certificate chain of a key store entry.
+     *
+     * @param keyStoreFile    the key store file
+     * @param keyStoreType    the type of the key store, e.g. "PKCS12" or "JKS"
+     * @param alias           alias of the private key and certificate chain
+     * @param password        password of the key store and the private key
+     * @param trustAllServers if true, the certificates of servers and authenticated clients are not validated
+     */
+    public static OpenSslEngineSource load (File keyStoreFile, String keyStoreType, String alias, String password, boolean trustAllServers) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = KeyStore.getInstance (keyStoreType);
+        try (InputStream in = new FileInputStream (keyStoreFile))
+        {
+            keyStore.load (in, password.toCharArray ());
+        }
+        PrivateKey privateKey = (PrivateKey) keyStore.getKey (alias, password.toCharArray ());
+        Certificate[] chain = keyStore.getCertificateChain (alias);
+        if (privateKey == null || chain == null)
+        {
+            throw new GeneralSecurityException ("No private key and certificate chain for alias " + alias + " in " + keyStoreFile);
+        }
+        return new OpenSslEngineSource (privateKey, Arrays.copyOf (chain, chain.length, X509Certificate[].class), trustAllServers);
+    }
+
+    /**
+     * @return {@link SslProvider#OPENSSL} if netty-tcnative is available, otherwise {@link SslProvider#JDK}
+     */
+    public static SslProvider preferredSslProvider ()
+    {
+        if (OpenSsl.isAvailable ())
+        {
+            return SslProvider.OPENSSL;
+        }
+        LOG.debug ("OpenSSL is not available, using the JDK's TLS implementation", OpenSsl.unavailabilityCause ());
+        return SslProvider.JDK;
+    }
+
+    @Override
+    public SSLEngine newSslEngine ()
+    {
+        return serverSslContext.newEngine (ByteBufAllocator.DEFAULT);
+    }
+
+    @Override
+    public SSLEngine newSslEngine (String peerHost, int peerPort)
+    {
+        return clientSslContext.newEngine (ByteBufAllocator.DEFAULT, peerHost, peerPort);
+    }
+
+    /**
+     * @return the TLS implementation of this source's engines
+     */
+    public SslProvider getSslProvider ()
+    {
+        return sslProvider;
+    }
+}
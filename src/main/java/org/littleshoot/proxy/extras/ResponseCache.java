@@ -0,0 +1,1258 @@
+package org.littleshoot.proxy.extras;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * A shared HTTP cache, as defined by RFC 7234. It decides which responses may be stored, and which stored responses
+ * may be used to answer a request, from their Cache-Control, Expires, Pragma, Date, Age and Last-Modified headers. It
+ * selects among the variants of a response by its Vary header, and answers conditional requests for fresh responses
+ * with 304 Not Modified by their ETag and Last-Modified validators. Storage is left to a {@link ResponseCacheStore}.
+ * </p>
+ *
+ * <p>
+ * Responses are identified by the effective URI of their request, normalized so that the scheme and host are in lower
+ * case and default ports are left out. Stale responses are served to requests that accept them with max-stale, and
+ * otherwise revalidated with the server by their validators, so that a 304 Not Modified refreshes them. The
+ * stale-while-revalidate and stale-if-error extensions of RFC 5861 let stale responses be served while they are
+ * refreshed in the background, or when the server cannot be reached or fails. Responses to unsafe requests, such as POST, invalidate the responses stored for their URI and for the URIs in their
+ * Location and Content-Location headers, as long as those are on the same host.
+ * </p>
+ *
+ * <p>
+ * Requests for a single range of bytes (RFC 7233) are answered with 206 Partial Content from stored responses. The
+ * ranges received in 206 Partial Content responses are kept as well, in a sparse map of segments for each
+ * representation, so that a range is served from them once it has been received. For a range that is only partly
+ * held, the server is asked for the bytes that are missing, and the others are taken from the cache. Once all the
+ * bytes of a representation have been received, it is stored as a whole.
+ * </p>
+ */
+public class ResponseCache
+{
+    private static final Logger LOG = LoggerFactory.getLogger (ResponseCache.class);
+
+    /**
+     * The default size of the largest response body that is cached.
+     */
+    public static final long DEFAULT_MAXIMUM_ENTRY_SIZE_IN_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * The default number of bytes of partially received representations that are kept.
+     */
+    public static final long DEFAULT_MAXIMUM_PARTIAL_SIZE_IN_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The maximum number of URIs whose responses vary, for which the request headers they vary on are remembered.
+     */
+    private static final int MAXIMUM_VARYING_URIS = 100000;
+
+    /**
+     * Status codes of responses that may be stored, if their headers allow it.
+     */
+    private static final Set <Integer> CACHEABLE_STATUS_CODES = new HashSet <> (Arrays.asList (200, 203, 204, 300, 301, 302, 307, 308, 404, 405, 410, 414, 501));
+
+    /**
+     * Headers that only apply to the connection a response was received on, and so are not stored.
+     */
+    private static final List <CharSequence> HOP_BY_HOP_HEADERS = Arrays.<CharSequence> asList (HttpHeaderNames.CONNECTION, "Keep-Alive", "Proxy-Connection", HttpHeaderNames.PROXY_AUTHENTICATE, HttpHeaderNames.TE, HttpHeaderNames.TRAILER, HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.UPGRADE);
+
+    /**
+     * Headers of a stored response that are sent with a 304 Not Modified (RFC 7232, section 4.1).
+     */
+    private static final List <CharSequence> NOT_MODIFIED_HEADERS = Arrays.<CharSequence> asList (HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.CONTENT_LOCATION, HttpHeaderNames.DATE, HttpHeaderNames.ETAG, HttpHeaderNames.EXPIRES, HttpHeaderNames.VARY);
+
+    /**
+     * Request headers that make a request conditional (RFC 7232, section 3).
+     */
+    private static final List <CharSequence> CONDITIONAL_HEADERS = Arrays.<CharSequence> asList (HttpHeaderNames.IF_MATCH, HttpHeaderNames.IF_NONE_MATCH, HttpHeaderNames.IF_MODIFIED_SINCE, HttpHeaderNames.IF_UNMODIFIED_SINCE, HttpHeaderNames.IF_RANGE);
+
+    private static final String STALE_WARNING = "110 - \"Response is Stale\"";
+    private static final String REVALIDATION_FAILED_WARNING = "111 - \"Revalidation Failed\"";
+
+    private static final Pattern WHITESPACE_AROUND_COMMAS = Pattern.compile ("\\s*,\\s*");
+    private static final Pattern WHITESPACE = Pattern.compile ("\\s+");
+
+    private final ResponseCacheStore store;
+    private final long maximumEntrySizeInBytes;
+    private final long maximumPartialSizeInBytes;
+
+    /**
+     * The ranges received of representations that have not been received as a whole, by URI, least recently used
+     * first, and the number of bytes they hold. Guarded by the map.
+     */
+    private final Map <String, CachedRanges> partials = new LinkedHashMap <> (16, 0.75f, true);
+    private long partialSizeInBytes;
+
+    /**
+     * The request headers that responses vary on, by URI, for URIs whose responses vary.
+     */
+    private final Cache <String, Variants> varyingUris = CacheBuilder.newBuilder ().maximumSize (MAXIMUM_VARYING_URIS).build ();
+
+    private final AtomicLong sequence = new AtomicLong (0);
+    private final AtomicLong hits = new AtomicLong (0);
+    private final AtomicLong misses = new AtomicLong (0);
+    private final AtomicLong revalidations = new AtomicLong (0);
+
+    /**
+     * The keys of the stale responses that are being refreshed in the background.
+     */
+    private final Set <String> refreshing = Collections.newSetFromMap (new ConcurrentHashMap <String, Boolean> ());
+
+    /**
+     * Creates a cache that keeps responses in a {@link MemoryResponseCacheStore} with the default settings.
+     */
+    public ResponseCache ()
+    {
+        this (new MemoryResponseCacheStore (), DEFAULT_MAXIMUM_ENTRY_SIZE_IN_BYTES);
+    }
+
+    /**
+     * @param store                   where responses are kept
+     * @param maximumEntrySizeInBytes size of the largest response body to store
+     */
+    public ResponseCache (ResponseCacheStore store, long maximumEntrySizeInBytes)
+    {
+        this (store, maximumEntrySizeInBytes, DEFAULT_MAXIMUM_PARTIAL_SIZE_IN_BYTES);
+    }
+
+    /**
+     * @param store                     where responses are kept
+     * @param maximumEntrySizeInBytes   size of the largest response body to store, and of the largest range to keep
+     * @param maximumPartialSizeInBytes number of bytes of partially received representations to keep in memory, or 0
+     *                                  to keep none
+     */
+    public ResponseCache (ResponseCacheStore store, long maximumEntrySizeInBytes, long maximumPartialSizeInBytes)
+    {
+        this.store = store;
+        this.maximumEntrySizeInBytes = maximumEntrySizeInBytes;
+        this.maximumPartialSizeInBytes = maximumPartialSizeInBytes;
+    }
+
+    public long getMaximumEntrySizeInBytes ()
+    {
+        return maximumEntrySizeInBytes;
+    }
+
+    /**
+     * @return the number of requests that were answered from the cache
+     */
+    public long getHits ()
+    {
+        return hits.get ();
+    }
+
+    /**
+     * @return the number of GET and HEAD requests that could not be answered from the cache
+     */
+    public long getMisses ()
+    {
+        return misses.get ();
+    }
+
+    /**
+     * @return the number of stored responses that were refreshed by a 304 Not Modified from the server
+     */
+    public long getRevalidations ()
+    {
+        return revalidations.get ();
+    }
+
+    /**
+     * @return the number of bytes of partially received representations that are kept
+     */
+    public long getPartialSizeInBytes ()
+    {
+        synchronized (partials)
+        {
+            return partialSizeInBytes;
+        }
+    }
+
+    /**
+     * Finds a stored response that may be used to answer a GET or HEAD request.
+     *
+     * @param uri     the effective URI of the request, see {@link #effectiveUri(HttpRequest, boolean)}
+     * @param request the request, with the headers the client sent
+     * @return the response to send to the client, which may be a 304 Not Modified for a conditional request, or a 504
+     * Gateway Timeout for a request with only-if-cached, or null if the request has to be sent to the server
+     */
+    public HttpResponse lookup (String uri, HttpRequest request)
+    {
+        Lookup lookup = find (uri, request, false);
+        if (lookup.stale != null)
+        {
+            lookup.stale.getBody ().release ();
+        }
+        return lookup.response;
+    }
+
+    /**
+     * Finds a stored response for a GET or HEAD request, which may either be used to answer it, or has to be
+     * revalidated with the server first.
+     *
+     * @param uri                  the effective URI of the request
+     * @param request              the request, with the headers the client sent
+     * @param staleWhileRevalidate whether the caller can refresh a stale response in the background, so that it may be
+     *                             served in the meantime as allowed by stale-while-revalidate
+     */
+    Lookup find (String uri, HttpRequest request, boolean staleWhileRevalidate)
+    {
+        Lookup lookup = new Lookup ();
+        CacheControl requestCacheControl = CacheControl.parse (request.headers ());
+        Variants variants = varyingUris.getIfPresent (uri);
+        String key = variants != null ? variants.keyFor (uri, request) : uri;
+        CachedResponse cached = store.get (key);
+        if (cached != null && variants != null && cached.getSequence () < variants.minimumSequence)
+        {
+            // stored before the URI was invalidated
+            cached.getBody ().release ();
+            store.remove (key);
+            cached = null;
+        }
+        if (cached != null)
+        {
+            long ageMillis = cached.getCurrentAgeMillis (System.currentTimeMillis ());
+            boolean noCache = requestCacheControl.has (CacheControl.NO_CACHE) || hasPragmaNoCache (request, requestCacheControl);
+            if (!noCache && isAcceptable (cached, requestCacheControl, ageMillis))
+            {
+                LOG.debug ("Answering request for {} from the cache", uri);
+                hits.incrementAndGet ();
+                lookup.response = responseFor (cached, request, ageMillis, null);
+                return lookup;
+            }
+            if (!noCache && staleWhileRevalidate && isServableWhileRevalidating (cached, requestCacheControl, ageMillis))
+            {
+                LOG.debug ("Answering request for {} from the cache while it is revalidated", uri);
+                hits.incrementAndGet ();
+                // only one refresh at a time, while the stale response keeps being served
+                lookup.refreshKey = refreshing.add (key) ? key : null;
+                lookup.response = responseFor (cached, request, ageMillis, null);
+                return lookup;
+            }
+            lookup.stale = cached;
+        }
+        else if (findRange (uri, request, requestCacheControl, lookup))
+        {
+            hits.incrementAndGet ();
+            return lookup;
+        }
+
+        misses.incrementAndGet ();
+        if (requestCacheControl.has (CacheControl.ONLY_IF_CACHED))
+        {
+            if (lookup.stale != null)
+            {
+                lookup.stale.getBody ().release ();
+                lookup.stale = null;
+            }
+            if (lookup.fill != null)
+            {
+                lookup.fill.release ();
+                lookup.fill = null;
+            }
+            FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.GATEWAY_TIMEOUT);
+            HttpUtil.setContentLength (response, 0);
+            HttpUtil.setKeepAlive (response, HttpUtil.isKeepAlive (request));
+            lookup.response = response;
+        }
+        return lookup;
+    }
+
+    /**
+     * Looks for the range that a request asks for among the ranges received of its representation. If only part of
+     * the range is held, the lookup is given what is needed to ask the server for the rest.
+     *
+     * @return true if the lookup was given a response
+     */
+    private boolean findRange (String uri, HttpRequest request, CacheControl requestCacheControl, Lookup lookup)
+    {
+        String rangeHeader = request.headers ().get (HttpHeaderNames.RANGE);
+        if (rangeHeader == null || !HttpMethod.GET.equals (request.method ()) || requestCacheControl.has (CacheControl.NO_CACHE) || hasPragmaNoCache (request, requestCacheControl))
+        {
+            return false;
+        }
+        for (CharSequence headerName : CONDITIONAL_HEADERS)
+        {
+            if (!HttpHeaderNames.IF_RANGE.equals (headerName) && request.headers ().contains (headerName))
+            {
+                return false;
+            }
+        }
+        synchronized (partials)
+        {
+            CachedRanges ranges = partials.get (uri);
+            if (ranges == null)
+            {
+                return false;
+            }
+            CachedResponse representation = ranges.getRepresentation ();
+            long ageMillis = representation.getCurrentAgeMillis (System.currentTimeMillis ());
+            ByteRange range = ByteRange.requested (rangeHeader, ranges.getCompleteLength ());
+            if (range == null || !isAcceptable (representation, requestCacheControl, ageMillis) || !isRangeCurrent (representation.getHeaders (), request))
+            {
+                return false;
+            }
+            ByteRange missing = range.isSatisfiable () ? ranges.missing (range) : null;
+            if (missing == null)
+            {
+                LOG.debug ("Answering request for {} of {} from the cache", range, uri);
+                ByteBuf content = range.isSatisfiable () ? ranges.slice (range.first, range.last) : Unpooled.EMPTY_BUFFER;
+                lookup.response = withCacheHeaders (rangeResponseFor (representation.getHeaders (), content, range), representation, request, ageMillis, null);
+                return true;
+            }
+            LOG.debug ("Requesting {} of {} from the server, the rest of {} is cached", missing, uri, range);
+            ByteBuf before = missing.first > range.first ? ranges.slice (range.first, missing.first - 1) : null;
+            ByteBuf after = missing.last < range.last ? ranges.slice (missing.last + 1, range.last) : null;
+            lookup.fill = new RangeFill (range, missing, ranges.getValidator (), before, after);
+            return false;
+        }
+    }
+
+    /**
+     * Ends the background refresh that {@link #find(String, HttpRequest, boolean)} asked for, so that another may
+     * start.
+     */
+    void finishRefresh (String refreshKey)
+    {
+        refreshing.remove (refreshKey);
+    }
+
+    /**
+     * Decides whether the response to a request may be stored (RFC 7234, section 3).
+     *
+     * @param request  the request, with the headers the client sent
+     * @param response the response from the server
+     * @return true if the response may be stored, once its body has been received
+     */
+    public boolean isStorable (HttpRequest request, HttpResponse response)
+    {
+        if (!isStorableInSharedCache (request, response) || HttpUtil.getContentLength (response, 0L) > maximumEntrySizeInBytes)
+        {
+            return false;
+        }
+        // responses that are stale at once are only worth storing if they can be revalidated
+        return hasValidators (response.headers ()) || CachedResponse.freshnessLifetimeMillis (response.status (), response.headers (), CacheControl.parse (response.headers ()), System.currentTimeMillis ()) > 0;
+    }
+
+    /**
+     * Decides whether a shared cache is allowed to store the response to a request, whatever its size and freshness
+     * (RFC 7234, section 3). Such a response may also be sent to other clients that asked for the same resource at the
+     * same time.
+     *
+     * @param request  the request, with the headers the client sent
+     * @param response the response from the server
+     * @return true if the response may be stored
+     */
+    public static boolean isStorableInSharedCache (HttpRequest request, HttpResponse response)
+    {
+        if (!HttpMethod.GET.equals (request.method ()) || !CACHEABLE_STATUS_CODES.contains (response.status ().code ()))
+        {
+            return false;
+        }
+        return mayStore (request, response) && !varyHeaderNames (response.headers ()).contains ("*");
+    }
+
+    /**
+     * Decides whether the range of a representation in a 206 Partial Content may be kept. Ranges are only kept for
+     * representations with a strong validator, which tells whether later ranges are of the same representation, and
+     * that do not vary.
+     *
+     * @param request  the request, with the headers the client sent
+     * @param response the 206 Partial Content from the server
+     * @return true if the range may be kept, once it has been received
+     */
+    public boolean isStorableRange (HttpRequest request, HttpResponse response)
+    {
+        if (maximumPartialSizeInBytes <= 0 || !HttpMethod.GET.equals (request.method ()) || !HttpResponseStatus.PARTIAL_CONTENT.equals (response.status ()))
+        {
+            return false;
+        }
+        ByteRange range = ByteRange.sent (response.headers ().get (HttpHeaderNames.CONTENT_RANGE));
+        if (range == null || range.length () > maximumEntrySizeInBytes || !hasStrongValidator (response.headers ()) || !varyHeaderNames (response.headers ()).isEmpty ())
+        {
+            return false;
+        }
+        return mayStore (request, response);
+    }
+
+    /**
+     * Decides whether the Cache-Control headers of a request and its response, and the request's credentials, allow
+     * the response to be stored in a shared cache (RFC 7234, section 3).
+     */
+    private static boolean mayStore (HttpRequest request, HttpResponse response)
+    {
+        CacheControl requestCacheControl = CacheControl.parse (request.headers ());
+        CacheControl responseCacheControl = CacheControl.parse (response.headers ());
+        if (requestCacheControl.has (CacheControl.NO_STORE) || responseCacheControl.has (CacheControl.NO_STORE) || responseCacheControl.has (CacheControl.PRIVATE))
+        {
+            return false;
+        }
+        return !request.headers ().contains (HttpHeaderNames.AUTHORIZATION) || responseCacheControl.has (CacheControl.PUBLIC) || responseCacheControl.has (CacheControl.MUST_REVALIDATE) || responseCacheControl.has (CacheControl.S_MAXAGE);
+    }
+
+    /**
+     * Stores a response that {@link #isStorable(HttpRequest, HttpResponse)} allowed, replacing the one stored for the
+     * same URI and variant.
+     *
+     * @param uri          the effective URI of the request
+     * @param request      the request, with the headers the client sent
+     * @param response     the response from the server
+     * @param body         the body of the response, which the cache takes ownership of
+     * @param requestTime  the time at which the request was sent, in milliseconds since the epoch
+     * @param responseTime the time at which the response was received, in milliseconds since the epoch
+     */
+    public void store (String uri, HttpRequest request, HttpResponse response, ByteBuf body, long requestTime, long responseTime)
+    {
+        HttpHeaders headers = endToEndHeaders (response, responseTime);
+        if (!ProxyUtils.isContentAlwaysEmpty (response))
+        {
+            headers.set (HttpHeaderNames.CONTENT_LENGTH, body.readableBytes ());
+        }
+
+        CachedResponse cached = new CachedResponse (response.status (), headers, body, requestTime, responseTime, sequence.incrementAndGet ());
+        put (uri, request, cached);
+        LOG.debug ("Stored response for {}, fresh for {} ms", uri, cached.getFreshnessLifetimeMillis ());
+    }
+
+    /**
+     * Keeps the range of a representation from a 206 Partial Content that {@link #isStorableRange(HttpRequest,
+     * HttpResponse)} allowed, together with the ranges received before, unless the representation has changed since.
+     * Once all of the representation has been received, it is stored as a whole if it is not too large, and the least
+     * recently used ranges are dropped once too many bytes are kept.
+     *
+     * @param uri          the effective URI of the request
+     * @param request      the request, with the headers the client sent
+     * @param response     the 206 Partial Content from the server
+     * @param body         the bytes of the range, which the cache takes ownership of
+     * @param requestTime  the time at which the request was sent, in milliseconds since the epoch
+     * @param responseTime the time at which the response was received, in milliseconds since the epoch
+     */
+    public void storeRange (String uri, HttpRequest request, HttpResponse response, ByteBuf body, long requestTime, long responseTime)
+    {
+        ByteRange range = ByteRange.sent (response.headers ().get (HttpHeaderNames.CONTENT_RANGE));
+        if (range == null || range.length () != body.readableBytes ())
+        {
+            body.release ();
+            return;
+        }
+        HttpHeaders headers = endToEndHeaders (response, responseTime);
+        headers.remove (HttpHeaderNames.CONTENT_RANGE);
+        headers.set (HttpHeaderNames.CONTENT_LENGTH, range.completeLength);
+        CachedResponse representation = new CachedResponse (HttpResponseStatus.OK, headers, Unpooled.EMPTY_BUFFER, requestTime, responseTime, sequence.incrementAndGet ());
+
+        CachedResponse complete = null;
+        synchronized (partials)
+        {
+            CachedRanges ranges = partials.remove (uri);
+            if (ranges != null)
+            {
+                partialSizeInBytes -= ranges.getSizeInBytes ();
+                if (ranges.getCompleteLength () == range.completeLength && ranges.isSameRepresentation (headers))
+                {
+                    ranges.setRepresentation (representation);
+                }
+                else
+                {
+                    LOG.debug ("Representation of {} changed, dropping the ranges received before", uri);
+                    ranges.release ();
+                    ranges = null;
+                }
+            }
+            if (ranges == null)
+            {
+                ranges = new CachedRanges (representation, range.completeLength);
+            }
+            ranges.add (range.first, body);
+            LOG.debug ("Stored {} of {}", range, uri);
+
+            if (ranges.isComplete () && range.completeLength <= maximumEntrySizeInBytes)
+            {
+                complete = representation.withBody (ranges.slice (0, range.completeLength - 1));
+                ranges.release ();
+            }
+            else
+            {
+                partials.put (uri, ranges);
+                partialSizeInBytes += ranges.getSizeInBytes ();
+                Iterator <CachedRanges> leastRecentlyUsed = partials.values ().iterator ();
+                while (partialSizeInBytes > maximumPartialSizeInBytes && leastRecentlyUsed.hasNext ())
+                {
+                    CachedRanges evicted = leastRecentlyUsed.next ();
+                    partialSizeInBytes -= evicted.getSizeInBytes ();
+                    evicted.release ();
+                    leastRecentlyUsed.remove ();
+                }
+            }
+        }
+        if (complete != null)
+        {
+            put (uri, request, complete);
+            LOG.debug ("Received all of {}, stored it as a whole", uri);
+        }
+    }
+
+    /**
+     * @return the headers of a response to store, without those that only applied to the connection it was received
+     * on, and with a Date
+     */
+    private static HttpHeaders endToEndHeaders (HttpResponse response, long responseTime)
+    {
+        HttpHeaders headers = new DefaultHttpHeaders ().set (response.headers ());
+        for (String connectionToken : ProxyUtils.getAllCommaSeparatedHeaderValues (HttpHeaderNames.CONNECTION.toString (), response))
+        {
+            headers.remove (connectionToken);
+        }
+        for (CharSequence hopByHopHeader : HOP_BY_HOP_HEADERS)
+        {
+            headers.remove (hopByHopHeader);
+        }
+        if (!headers.contains (HttpHeaderNames.DATE))
+        {
+            headers.set (HttpHeaderNames.DATE, DateFormatter.format (new Date (responseTime)));
+        }
+        return headers;
+    }
+
+    /**
+     * Updates a stored response with the headers of a 304 Not Modified that the server sent in response to a
+     * conditional request for it (RFC 7234, section 4.3.4).
+     *
+     * @param uri          the effective URI of the request
+     * @param request      the request, with the headers the client sent
+     * @param stale        the stored response, whose body the caller hands over to the returned response
+     * @param notModified  the 304 Not Modified from the server
+     * @param requestTime  the time at which the conditional request was sent, in milliseconds since the epoch
+     * @param responseTime the time at which the 304 Not Modified was received, in milliseconds since the epoch
+     * @return the refreshed response
+     */
+    CachedResponse freshen (String uri, HttpRequest request, CachedResponse stale, HttpResponse notModified, long requestTime, long responseTime)
+    {
+        HttpHeaders headers = new DefaultHttpHeaders ().set (stale.getHeaders ());
+        headers.remove (HttpHeaderNames.AGE);
+        List <String> warnings = headers.getAll (HttpHeaderNames.WARNING);
+        headers.remove (HttpHeaderNames.WARNING);
+        for (String warning : warnings)
+        {
+            // 1xx warnings describe the freshness of the stored response, and no longer apply
+            if (!warning.startsWith ("1"))
+            {
+                headers.add (HttpHeaderNames.WARNING, warning);
+            }
+        }
+        List <String> connectionTokens = ProxyUtils.getAllCommaSeparatedHeaderValues (HttpHeaderNames.CONNECTION.toString (), notModified);
+        for (String name : notModified.headers ().names ())
+        {
+            if (!HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase (name) && !isHopByHop (name) && !containsIgnoreCase (connectionTokens, name))
+            {
+                headers.set (name, notModified.headers ().getAll (name));
+            }
+        }
+        if (!notModified.headers ().contains (HttpHeaderNames.DATE))
+        {
+            headers.set (HttpHeaderNames.DATE, DateFormatter.format (new Date (responseTime)));
+        }
+
+        CachedResponse refreshed = new CachedResponse (stale.getStatus (), headers, stale.getBody ().retainedDuplicate (), requestTime, responseTime, sequence.incrementAndGet ());
+        put (uri, request, refreshed);
+        revalidations.incrementAndGet ();
+        LOG.debug ("Refreshed response for {}, fresh for {} ms", uri, refreshed.getFreshnessLifetimeMillis ());
+        return refreshed.withBody (stale.getBody ());
+    }
+
+    private void put (String uri, HttpRequest request, CachedResponse cached)
+    {
+        List <String> varyHeaderNames = varyHeaderNames (cached.getHeaders ());
+        if (varyHeaderNames.isEmpty ())
+        {
+            varyingUris.invalidate (uri);
+            store.put (uri, cached);
+        }
+        else
+        {
+            Variants variants = varyingUris.getIfPresent (uri);
+            if (variants == null || !variants.headerNames.equals (varyHeaderNames))
+            {
+                // variants stored before, and forgotten since, must not be found again
+                variants = new Variants (varyHeaderNames, cached.getSequence ());
+                varyingUris.put (uri, variants);
+            }
+            store.remove (uri);
+            store.put (variants.keyFor (uri, request), cached);
+        }
+    }
+
+    /**
+     * Decides whether a stored response may be served because the server could not be reached or failed while it was
+     * being revalidated, as allowed by stale-if-error (RFC 5861, section 4).
+     */
+    boolean isServableOnError (CachedResponse cached, HttpRequest request)
+    {
+        CacheControl responseCacheControl = cached.getCacheControl ();
+        if (responseCacheControl.has (CacheControl.MUST_REVALIDATE) || responseCacheControl.has (CacheControl.PROXY_REVALIDATE) || responseCacheControl.has (CacheControl.S_MAXAGE))
+        {
+            return false;
+        }
+        long staleIfError = Math.max (responseCacheControl.getSeconds (CacheControl.STALE_IF_ERROR), CacheControl.parse (request.headers ()).getSeconds (CacheControl.STALE_IF_ERROR));
+        long stalenessMillis = cached.getCurrentAgeMillis (System.currentTimeMillis ()) - cached.getFreshnessLifetimeMillis ();
+        return staleIfError >= 0 && stalenessMillis <= staleIfError * 1000;
+    }
+
+    /**
+     * Builds the response to a request from a stored response, which is served because revalidating it failed.
+     */
+    HttpResponse responseOnError (CachedResponse cached, HttpRequest request)
+    {
+        hits.incrementAndGet ();
+        return responseFor (cached, request, cached.getCurrentAgeMillis (System.currentTimeMillis ()), REVALIDATION_FAILED_WARNING);
+    }
+
+    /**
+     * Builds the response to a request from a stored response that was just refreshed.
+     */
+    HttpResponse responseFor (CachedResponse cached, HttpRequest request)
+    {
+        return responseFor (cached, request, cached.getCurrentAgeMillis (System.currentTimeMillis ()), null);
+    }
+
+    /**
+     * Adds the validators of a stored response to a request, turning it into a conditional request that the server
+     * answers with 304 Not Modified if the stored response is still current (RFC 7234, section 4.3.1).
+     *
+     * @return true if the stored response has validators
+     */
+    static boolean addValidators (CachedResponse cached, HttpRequest request)
+    {
+        String etag = cached.getHeaders ().get (HttpHeaderNames.ETAG);
+        String lastModified = cached.getHeaders ().get (HttpHeaderNames.LAST_MODIFIED);
+        if (etag != null)
+        {
+            request.headers ().set (HttpHeaderNames.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null)
+        {
+            request.headers ().set (HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+        }
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * @return true if a request has preconditions of its own, in which case its response belongs to the client
+     */
+    static boolean isConditional (HttpRequest request)
+    {
+        for (CharSequence headerName : CONDITIONAL_HEADERS)
+        {
+            if (request.headers ().contains (headerName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a 304 Not Modified selects a stored response by its validators (RFC 7234, section 4.3.4)
+     */
+    static boolean isSelectedBy (CachedResponse cached, HttpResponse notModified)
+    {
+        String etag = notModified.headers ().get (HttpHeaderNames.ETAG);
+        if (etag != null)
+        {
+            String storedEtag = cached.getHeaders ().get (HttpHeaderNames.ETAG);
+            return storedEtag != null && !etag.startsWith ("W/") && etag.equals (storedEtag);
+        }
+        String lastModified = notModified.headers ().get (HttpHeaderNames.LAST_MODIFIED);
+        return lastModified != null && lastModified.equals (cached.getHeaders ().get (HttpHeaderNames.LAST_MODIFIED));
+    }
+
+    private static boolean hasValidators (HttpHeaders headers)
+    {
+        return headers.contains (HttpHeaderNames.ETAG) || headers.contains (HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    private static boolean hasStrongValidator (HttpHeaders headers)
+    {
+        String etag = headers.get (HttpHeaderNames.ETAG);
+        return etag != null ? !etag.startsWith ("W/") : headers.contains (HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    private static boolean isHopByHop (String headerName)
+    {
+        for (CharSequence hopByHopHeader : HOP_BY_HOP_HEADERS)
+        {
+            if (hopByHopHeader.toString ().equalsIgnoreCase (headerName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsIgnoreCase (List <String> values, String value)
+    {
+        for (String candidate : values)
+        {
+            if (candidate.equalsIgnoreCase (value))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Invalidates the responses stored for a URI after an unsafe request to it succeeded (RFC 7234, section 4.4),
+     * and those for the URIs in the Location and Content-Location headers of the response, if they are on the same
+     * host.
+     *
+     * @param uri      the effective URI of the unsafe request
+     * @param response the response to the unsafe request
+     */
+    public void invalidate (String uri, HttpResponse response)
+    {
+        invalidate (uri);
+        for (CharSequence headerName : Arrays.<CharSequence> asList (HttpHeaderNames.LOCATION, HttpHeaderNames.CONTENT_LOCATION))
+        {
+            String location = response.headers ().get (headerName);
+            String locationUri = location != null ? resolve (uri, location) : null;
+            if (locationUri != null && originOf (locationUri).equals (originOf (uri)))
+            {
+                invalidate (locationUri);
+            }
+        }
+    }
+
+    private void invalidate (String uri)
+    {
+        LOG.debug ("Invalidating responses stored for {}", uri);
+        store.remove (uri);
+        synchronized (partials)
+        {
+            CachedRanges ranges = partials.remove (uri);
+            if (ranges != null)
+            {
+                partialSizeInBytes -= ranges.getSizeInBytes ();
+                ranges.release ();
+            }
+        }
+        Variants variants = varyingUris.getIfPresent (uri);
+        if (variants != null)
+        {
+            variants.minimumSequence = sequence.get () + 1;
+        }
+    }
+
+    /**
+     * Determines the effective URI of a request (RFC 7230, section 5.5), normalized for use as a cache key.
+     *
+     * @param request the request, with the headers the client sent
+     * @param secure  whether the request was received over TLS, which matters when its URI is only a path
+     * @return the effective URI, or null if it cannot be determined
+     */
+    public static String effectiveUri (HttpRequest request, boolean secure)
+    {
+        String uri = request.uri ();
+        if (uri.regionMatches (true, 0, "http://", 0, 7) || uri.regionMatches (true, 0, "https://", 0, 8))
+        {
+            return normalize (uri);
+        }
+        String host = request.headers ().get (HttpHeaderNames.HOST);
+        if (!uri.startsWith ("/") || host == null || host.isEmpty ())
+        {
+            return null;
+        }
+        return normalize ((secure ? "https://" : "http://") + host + uri);
+    }
+
+    /**
+     * @param absoluteUri an absolute http or https URI
+     * @return the URI with its scheme and authority in lower case, without a default port, and without a fragment
+     */
+    private static String normalize (String absoluteUri)
+    {
+        int schemeEnd = absoluteUri.indexOf ("://");
+        String scheme = absoluteUri.substring (0, schemeEnd).toLowerCase (Locale.US);
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < absoluteUri.length () && "/?#".indexOf (absoluteUri.charAt (authorityEnd)) < 0)
+        {
+            authorityEnd++;
+        }
+        String authority = absoluteUri.substring (authorityStart, authorityEnd).toLowerCase (Locale.US);
+        if ("http".equals (scheme) && authority.endsWith (":80"))
+        {
+            authority = authority.substring (0, authority.length () - 3);
+        }
+        else if ("https".equals (scheme) && authority.endsWith (":443"))
+        {
+            authority = authority.substring (0, authority.length () - 4);
+        }
+        String pathAndQuery = absoluteUri.substring (authorityEnd);
+        int fragmentStart = pathAndQuery.indexOf ('#');
+        if (fragmentStart >= 0)
+        {
+            pathAndQuery = pathAndQuery.substring (0, fragmentStart);
+        }
+        if (!pathAndQuery.startsWith ("/"))
+        {
+            pathAndQuery = "/" + pathAndQuery;
+        }
+        return scheme + "://" + authority + pathAndQuery;
+    }
+
+    /**
+     * @return the URI a Location or Content-Location header refers to, or null if it is a relative path
+     */
+    private static String resolve (String uri, String location)
+    {
+        if (location.regionMatches (true, 0, "http://", 0, 7) || location.regionMatches (true, 0, "https://", 0, 8))
+        {
+            return normalize (location);
+        }
+        else if (location.startsWith ("//"))
+        {
+            return normalize (uri.substring (0, uri.indexOf (':') + 1) + location);
+        }
+        else if (location.startsWith ("/"))
+        {
+            return originOf (uri) + location;
+        }
+        return null;
+    }
+
+    /**
+     * @return the scheme and authority of a normalized URI
+     */
+    private static String originOf (String uri)
+    {
+        int pathStart = uri.indexOf ('/', uri.indexOf ("://") + 3);
+        return pathStart >= 0 ? uri.substring (0, pathStart) : uri;
+    }
+
+    private static boolean hasPragmaNoCache (HttpRequest request, CacheControl requestCacheControl)
+    {
+        // Pragma is only considered if there is no Cache-Control header (RFC 7234, section 5.4)
+        return !request.headers ().contains (HttpHeaderNames.CACHE_CONTROL) && request.headers ().containsValue (HttpHeaderNames.PRAGMA, "no-cache", true);
+    }
+
+    /**
+     * Decides whether a stored response may be used to answer a request, given its age (RFC 7234, section 4.2, and
+     * the request directives of section 5.2.1).
+     */
+    private static boolean isAcceptable (CachedResponse cached, CacheControl requestCacheControl, long ageMillis)
+    {
+        if (cached.getCacheControl ().has (CacheControl.NO_CACHE))
+        {
+            // the response may be stored, but has to be revalidated every time
+            return false;
+        }
+        long freshnessLifetimeMillis = cached.getFreshnessLifetimeMillis ();
+        long maxAge = requestCacheControl.getSeconds (CacheControl.MAX_AGE);
+        if (maxAge >= 0 && ageMillis > maxAge * 1000)
+        {
+            return false;
+        }
+        long minFresh = requestCacheControl.getSeconds (CacheControl.MIN_FRESH);
+        if (minFresh >= 0 && freshnessLifetimeMillis - ageMillis < minFresh * 1000)
+        {
+            return false;
+        }
+        if (ageMillis < freshnessLifetimeMillis)
+        {
+            return true;
+        }
+
+        // the response is stale, which the client may accept, unless the server requires revalidation
+        CacheControl responseCacheControl = cached.getCacheControl ();
+        if (!requestCacheControl.has (CacheControl.MAX_STALE) || responseCacheControl.has (CacheControl.MUST_REVALIDATE) || responseCacheControl.has (CacheControl.PROXY_REVALIDATE) || responseCacheControl.has (CacheControl.S_MAXAGE))
+        {
+            return false;
+        }
+        long maxStale = requestCacheControl.getSeconds (CacheControl.MAX_STALE);
+        return maxStale < 0 || ageMillis - freshnessLifetimeMillis <= maxStale * 1000;
+    }
+
+    /**
+     * Decides whether a stale response may be served while it is revalidated in the background, as allowed by
+     * stale-while-revalidate (RFC 5861, section 3), and as far as the request allows stale responses at all.
+     */
+    private static boolean isServableWhileRevalidating (CachedResponse cached, CacheControl requestCacheControl, long ageMillis)
+    {
+        CacheControl responseCacheControl = cached.getCacheControl ();
+        if (responseCacheControl.has (CacheControl.NO_CACHE) || responseCacheControl.has (CacheControl.MUST_REVALIDATE) || responseCacheControl.has (CacheControl.PROXY_REVALIDATE) || responseCacheControl.has (CacheControl.S_MAXAGE))
+        {
+            return false;
+        }
+        long maxAge = requestCacheControl.getSeconds (CacheControl.MAX_AGE);
+        if (maxAge >= 0 && ageMillis > maxAge * 1000 || requestCacheControl.getSeconds (CacheControl.MIN_FRESH) >= 0)
+        {
+            return false;
+        }
+        long staleWhileRevalidate = responseCacheControl.getSeconds (CacheControl.STALE_WHILE_REVALIDATE);
+        return staleWhileRevalidate >= 0 && ageMillis - cached.getFreshnessLifetimeMillis () <= staleWhileRevalidate * 1000;
+    }
+
+    /**
+     * Builds the response to a request from a stored response, or from the range of it that the request asks for,
+     * taking ownership of its body.
+     *
+     * @param warning a warning to add to the response, besides the one added if it is stale, or null
+     */
+    private static HttpResponse responseFor (CachedResponse cached, HttpRequest request, long ageMillis, String warning)
+    {
+        FullHttpResponse response;
+        if (isNotModified (cached, request))
+        {
+            cached.getBody ().release ();
+            response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            for (CharSequence headerName : NOT_MODIFIED_HEADERS)
+            {
+                if (cached.getHeaders ().contains (headerName))
+                {
+                    response.headers ().set (headerName, cached.getHeaders ().getAll (headerName));
+                }
+            }
+        }
+        else
+        {
+            ByteBuf body = cached.getBody ();
+            ByteRange range = rangeOf (cached, request, body.readableBytes ());
+            if (range != null)
+            {
+                ByteBuf content = range.isSatisfiable () ? body.retainedSlice (body.readerIndex () + (int) range.first, (int) range.length ()) : Unpooled.EMPTY_BUFFER;
+                body.release ();
+                response = rangeResponseFor (cached.getHeaders (), content, range);
+            }
+            else
+            {
+                if (HttpMethod.HEAD.equals (request.method ()))
+                {
+                    body.release ();
+                    body = Unpooled.EMPTY_BUFFER;
+                }
+                response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, cached.getStatus (), body);
+                response.headers ().set (cached.getHeaders ());
+            }
+        }
+        return withCacheHeaders (response, cached, request, ageMillis, warning);
+    }
+
+    /**
+     * Adds the Age of a stored response and its warnings to a response built from it.
+     */
+    private static FullHttpResponse withCacheHeaders (FullHttpResponse response, CachedResponse cached, HttpRequest request, long ageMillis, String warning)
+    {
+        response.headers ().set (HttpHeaderNames.AGE, ageMillis / 1000);
+        if (ageMillis >= cached.getFreshnessLifetimeMillis ())
+        {
+            response.headers ().add (HttpHeaderNames.WARNING, STALE_WARNING);
+        }
+        if (warning != null)
+        {
+            response.headers ().add (HttpHeaderNames.WARNING, warning);
+        }
+        HttpUtil.setKeepAlive (response, HttpUtil.isKeepAlive (request));
+        return response;
+    }
+
+    /**
+     * @param length the length of the stored body
+     * @return the range of a stored response that a GET request asks for, or null if the whole response is sent
+     */
+    private static ByteRange rangeOf (CachedResponse cached, HttpRequest request, long length)
+    {
+        String rangeHeader = request.headers ().get (HttpHeaderNames.RANGE);
+        if (rangeHeader == null || !HttpMethod.GET.equals (request.method ()) || !HttpResponseStatus.OK.equals (cached.getStatus ()) || !isRangeCurrent (cached.getHeaders (), request))
+        {
+            return null;
+        }
+        return ByteRange.requested (rangeHeader, length);
+    }
+
+    /**
+     * Evaluates the If-Range precondition of a request against a stored representation (RFC 7233, section 3.2).
+     *
+     * @return true if the request has no If-Range, or if it names the stored representation by a strong validator
+     */
+    private static boolean isRangeCurrent (HttpHeaders headers, HttpRequest request)
+    {
+        String ifRange = request.headers ().get (HttpHeaderNames.IF_RANGE);
+        if (ifRange == null)
+        {
+            return true;
+        }
+        if (ifRange.startsWith ("\"") || ifRange.startsWith ("W/"))
+        {
+            return !ifRange.startsWith ("W/") && ifRange.equals (headers.get (HttpHeaderNames.ETAG));
+        }
+        Date since = DateFormatter.parseHttpDate (ifRange);
+        Date lastModified = DateFormatter.parseHttpDate (headers.get (HttpHeaderNames.LAST_MODIFIED));
+        return since != null && since.equals (lastModified);
+    }
+
+    /**
+     * Builds a 206 Partial Content with a range of a representation, or a 416 Range Not Satisfiable if the range is
+     * not satisfiable.
+     *
+     * @param headers the headers of the representation
+     * @param content the bytes of the range, which the response takes ownership of
+     */
+    private static FullHttpResponse rangeResponseFor (HttpHeaders headers, ByteBuf content, ByteRange range)
+    {
+        FullHttpResponse response;
+        if (range.isSatisfiable ())
+        {
+            response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, content);
+            response.headers ().set (headers);
+        }
+        else
+        {
+            content.release ();
+            response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+        response.headers ().set (HttpHeaderNames.CONTENT_RANGE, range.toContentRange ());
+        HttpUtil.setContentLength (response, range.isSatisfiable () ? range.length () : 0);
+        return response;
+    }
+
+    /**
+     * Evaluates the If-None-Match and If-Modified-Since preconditions of a request against a stored response (RFC
+     * 7232, sections 3.2, 3.3 and 6).
+     *
+     * @return true if the client's copy of the response is current
+     */
+    private static boolean isNotModified (CachedResponse cached, HttpRequest request)
+    {
+        if (cached.getStatus ().codeClass () != HttpStatusClass.SUCCESS)
+        {
+            return false;
+        }
+        HttpHeaders requestHeaders = request.headers ();
+        if (requestHeaders.contains (HttpHeaderNames.IF_NONE_MATCH))
+        {
+            String etag = cached.getHeaders ().get (HttpHeaderNames.ETAG);
+            for (String candidate : ProxyUtils.getAllCommaSeparatedHeaderValues (HttpHeaderNames.IF_NONE_MATCH.toString (), request))
+            {
+                if ("*".equals (candidate) || etag != null && opaqueTag (candidate).equals (opaqueTag (etag)))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = requestHeaders.get (HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null)
+        {
+            Date since = DateFormatter.parseHttpDate (ifModifiedSince);
+            String lastModified = cached.getHeaders ().get (HttpHeaderNames.LAST_MODIFIED);
+            Date modified = DateFormatter.parseHttpDate (lastModified != null ? lastModified : cached.getHeaders ().get (HttpHeaderNames.DATE));
+            return since != null && modified != null && !modified.after (since);
+        }
+        return false;
+    }
+
+    /**
+     * @return the entity tag without its weakness indicator, for the weak comparison of RFC 7232, section 2.3.2
+     */
+    private static String opaqueTag (String entityTag)
+    {
+        return entityTag.startsWith ("W/") ? entityTag.substring (2) : entityTag;
+    }
+
+    /**
+     * @return the names of the request headers that a response varies on, in lower case and sorted
+     */
+    private static List <String> varyHeaderNames (HttpHeaders responseHeaders)
+    {
+        if (!responseHeaders.contains (HttpHeaderNames.VARY))
+        {
+            return new ArrayList <> ();
+        }
+        Set <String> names = new TreeSet <> ();
+        for (String value : responseHeaders.getAll (HttpHeaderNames.VARY))
+        {
+            for (String name : ProxyUtils.splitCommaSeparatedHeaderValues (value))
+            {
+                names.add (name.toLowerCase (Locale.US));
+            }
+        }
+        return new ArrayList <> (names);
+    }
+
+    /**
+     * What the cache holds for a request.
+     */
+    static class Lookup
+    {
+        /**
+         * The response to send to the client, or null if the request has to be sent to the server.
+         */
+        HttpResponse response;
+
+        /**
+         * The stored response that could not be used as it is, whose body the caller has to release, or null.
+         */
+        CachedResponse stale;
+
+        /**
+         * The key of a stale response that was served and has to be refreshed in the background, after which
+         * {@link #finishRefresh(String)} has to be called, or null.
+         */
+        String refreshKey;
+
+        /**
+         * For a range that is only partly held, what is needed to ask the server for the rest, which the caller has
+         * to release, or null.
+         */
+        RangeFill fill;
+    }
+
+    /**
+     * A range of a representation that is partly held by the cache. The server is asked for the bytes that are
+     * missing, and only if the representation is still the one that the cache holds; the bytes held before and after
+     * them are then sent with the server's.
+     */
+    static class RangeFill
+    {
+        /**
+         * The range the client asked for, and the part of it to ask the server for.
+         */
+        final ByteRange range;
+        final ByteRange missing;
+
+        /**
+         * The strong validator of the representation, for the If-Range header of the request.
+         */
+        final String validator;
+
+        /**
+         * The bytes of the range held before and after the missing ones, or null if there are none. They are owned by
+         * the fill until they are taken.
+         */
+        private ByteBuf before;
+        private ByteBuf after;
+
+        RangeFill (ByteRange range, ByteRange missing, String validator, ByteBuf before, ByteBuf after)
+        {
+            this.range = range;
+            this.missing = missing;
+            this.validator = validator;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * @return true if the server sent the missing bytes of the representation that the cache holds
+         */
+        boolean isFilledBy (HttpResponse response)
+        {
+            HttpHeaders headers = response.headers ();
+            return HttpResponseStatus.PARTIAL_CONTENT.equals (response.status ()) && missing.equals (ByteRange.sent (headers.get (HttpHeaderNames.CONTENT_RANGE))) && (validator.equals (headers.get (HttpHeaderNames.ETAG)) || !headers.contains (HttpHeaderNames.ETAG) && validator.equals (headers.get (HttpHeaderNames.LAST_MODIFIED)));
+        }
+
+        /**
+         * @return the bytes held before the missing ones, now owned by the caller, or null
+         */
+        ByteBuf takeBefore ()
+        {
+            ByteBuf bytes = before;
+            before = null;
+            return bytes;
+        }
+
+        /**
+         * @return the bytes held after the missing ones, now owned by the caller, or null
+         */
+        ByteBuf takeAfter ()
+        {
+            ByteBuf bytes = after;
+            after = null;
+            return bytes;
+        }
+
+        void release ()
+        {
+            ReferenceCountUtil.release (takeBefore ());
+            ReferenceCountUtil.release (takeAfter ());
+        }
+    }
+
+    /**
+     * The request headers that the responses for a URI vary on, and so select which stored response answers a request.
+     */
+    private static class Variants
+    {
+        private final List <String> headerNames;
+
+        /**
+         * Responses stored before this sequence number were invalidated, or stored while the responses varied on other
+         * headers, and must not be used.
+         */
+        private volatile long minimumSequence;
+
+        private Variants (List <String> headerNames, long minimumSequence)
+        {
+            this.headerNames = headerNames;
+            this.minimumSequence = minimumSequence;
+        }
+
+        /**
+         * @return the cache key of the variant that a request selects
+         */
+        private String keyFor (String uri, HttpRequest request)
+        {
+            StringBuilder key = new StringBuilder (uri);
+            for (String headerName : headerNames)
+            {
+                key.append ('\n').append (headerName).append (':');
+                List <String> values = request.headers ().getAll (headerName);
+                for (int i = 0; i < values.size (); i++)
+                {
+                    if (i > 0)
+                    {
+                        key.append (',');
+                    }
+                    String value = WHITESPACE_AROUND_COMMAS.matcher (values.get (i).trim ()).replaceAll (",");
+                    key.append (WHITESPACE.matcher (value).replaceAll (" "));
+                }
+            }
+            return key.toString ();
+        }
+    }
+}
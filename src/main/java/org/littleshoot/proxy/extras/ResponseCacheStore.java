@@ -0,0 +1,32 @@
+package org.littleshoot.proxy.extras;
+
+/**
+ * Storage for the responses of a {@link ResponseCache}. Implementations decide where responses are kept and which
+ * ones to evict, and must be safe for use by many threads at once.
+ */
+public interface ResponseCacheStore
+{
+    /**
+     * @param key the cache key of the response, which identifies its URI and, if it varies, the request headers it
+     *            varies on
+     * @return the stored response, whose body was retained for the caller, who must release it, or null if there is
+     * none
+     */
+    CachedResponse get (String key);
+
+    /**
+     * Stores a response, replacing any response stored under the same key. The store takes ownership of the body of
+     * the response, and releases it once it no longer needs it.
+     *
+     * @param key      the cache key of the response
+     * @param response the response
+     */
+    void put (String key, CachedResponse response);
+
+    /**
+     * Removes the response stored under a key, if there is one.
+     *
+     * @param key the cache key of the response
+     */
+    void remove (String key);
+}
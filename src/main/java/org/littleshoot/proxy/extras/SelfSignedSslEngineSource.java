@@ -1,5 +1,12 @@
 package org.littleshoot.proxy.extras;
 
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.littleshoot.proxy.SslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,25 +18,27 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.Security;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.stream.Collectors;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Basic {@link SslEngineSource} for testing. The {@link SSLContext} uses
  * self-signed certificates that are generated lazily if the given key store
- * file doesn't yet exist.
+ * file doesn't yet exist. A generated certificate is also exported, DER
+ * encoded, to a file next to the key store (see
+ * {@link #certificateFileFor(File)}).
  */
 public class SelfSignedSslEngineSource implements SslEngineSource
 {
@@ -39,21 +48,43 @@ public class SelfSignedSslEngineSource implements SslEngineSource
     private static final String ALIAS = "littleproxy";
     private static final String PASSWORD = "Be Your Own Lantern";
     private static final String PROTOCOL = "TLS";
+    private static final String KEY_STORE_SUFFIX = "_keystore";
+    private static final String CERTIFICATE_SUFFIX = "_cert";
+    private static final long VALIDITY_MILLIS = TimeUnit.DAYS.toMillis (36500);
+
+    /**
+     * The type of key generated for a new key store by default.
+     */
+    public static final KeyAlgorithm DEFAULT_KEY_ALGORITHM = KeyAlgorithm.EC_P256;
+
     private final File keyStoreFile;
+    private final KeyAlgorithm keyAlgorithm;
     private final boolean trustAllServers;
     private final boolean sendCerts;
 
     private SSLContext sslContext;
 
-    public SelfSignedSslEngineSource (String keyStorePath, boolean trustAllServers, boolean sendCerts)
+    /**
+     * @param keyStorePath    path of the key store, which is generated if it doesn't exist
+     * @param trustAllServers if true, servers' certificates are not validated
+     * @param sendCerts       if true, the certificate is presented to peers
+     * @param keyAlgorithm    type of key to generate if the key store doesn't exist
+     */
+    public SelfSignedSslEngineSource (String keyStorePath, boolean trustAllServers, boolean sendCerts, KeyAlgorithm keyAlgorithm)
     {
         this.trustAllServers = trustAllServers;
         this.sendCerts = sendCerts;
         this.keyStoreFile = new File (keyStorePath);
+        this.keyAlgorithm = keyAlgorithm;
         initializeKeyStore ();
         initializeSSLContext ();
     }
 
+    public SelfSignedSslEngineSource (String keyStorePath, boolean trustAllServers, boolean sendCerts)
+    {
+        this (keyStorePath, trustAllServers, sendCerts, DEFAULT_KEY_ALGORITHM);
+    }
+
     public SelfSignedSslEngineSource (String keyStorePath)
     {
         this (keyStorePath, false, true);
@@ -99,9 +130,65 @@ public class SelfSignedSslEngineSource implements SslEngineSource
             return;
         }
 
-        nativeCall ("keytool", "-genkey", "-alias", ALIAS, "-keysize", "4096", "-validity", "36500", "-keyalg", "RSA", "-dname", "CN=littleproxy", "-keypass", PASSWORD, "-storepass", PASSWORD, "-keystore", keyStoreFile.getName ());
+        try
+        {
+            long start = System.nanoTime ();
+            KeyPair keyPair = keyAlgorithm.generateKeyPair ();
+            X509Certificate certificate = selfSignedCertificate (keyPair);
+
+            final KeyStore ks = KeyStore.getInstance ("JKS");
+            ks.load (null, null);
+            ks.setKeyEntry (ALIAS, keyPair.getPrivate (), PASSWORD.toCharArray (), new Certificate[] {certificate});
+            try (OutputStream out = new FileOutputStream (keyStoreFile))
+            {
+                ks.store (out, PASSWORD.toCharArray ());
+            }
 
-        nativeCall ("keytool", "-exportcert", "-alias", ALIAS, "-keystore", keyStoreFile.getName (), "-storepass", PASSWORD, "-file", "littleproxy_cert");
+            // DER encoded, like keytool -exportcert
+            try (OutputStream out = new FileOutputStream (certificateFileFor (keyStoreFile)))
+            {
+                out.write (certificate.getEncoded ());
+            }
+            LOG.info ("Generated {} keystore {} in {} ms", keyAlgorithm, keyStoreFile, TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start));
+        }
+        catch (final GeneralSecurityException | IOException e)
+        {
+            throw new Error ("Failed to generate keystore " + keyStoreFile, e);
+        }
+    }
+
+    /**
+     * Names the file that the certificate of a generated key store is
+     * exported to after the key store, in the same directory: the key store
+     * name without its extension and a trailing "_keystore", followed by
+     * "_cert". The default littleproxy_keystore.jks is exported to
+     * littleproxy_cert.
+     *
+     * @param keyStoreFile the key store
+     * @return the certificate file
+     */
+    static File certificateFileFor (File keyStoreFile)
+    {
+        String name = keyStoreFile.getName ();
+        int extension = name.lastIndexOf ('.');
+        if (extension > 0)
+        {
+            name = name.substring (0, extension);
+        }
+        if (name.endsWith (KEY_STORE_SUFFIX) && name.length () > KEY_STORE_SUFFIX.length ())
+        {
+            name = name.substring (0, name.length () - KEY_STORE_SUFFIX.length ());
+        }
+        return new File (keyStoreFile.getAbsoluteFile ().getParentFile (), name + CERTIFICATE_SUFFIX);
+    }
+
+    private static X509Certificate selfSignedCertificate (KeyPair keyPair) throws GeneralSecurityException, IOException
+    {
+        X500Name name = new X500NameBuilder (BCStyle.INSTANCE).addRDN (BCStyle.CN, "littleproxy").build ();
+        long now = System.currentTimeMillis ();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder (name, CertificateAuthority.newSerialNumber (), new Date (now), new Date (now + VALIDITY_MILLIS), name, keyPair.getPublic ());
+        builder.addExtension (Extension.subjectKeyIdentifier, false, new JcaX509ExtensionUtils ().createSubjectKeyIdentifier (keyPair.getPublic ()));
+        return CertificateAuthority.sign (builder, keyPair.getPrivate ());
     }
 
     private void initializeSSLContext ()
@@ -174,30 +261,4 @@ public class SelfSignedSslEngineSource implements SslEngineSource
             throw new Error ("Failed to initialize the server-side SSLContext", e);
         }
     }
-
-    private String nativeCall (final String... commands)
-    {
-        LOG.info ("Running '{}'", Arrays.asList (commands));
-        final ProcessBuilder pb = new ProcessBuilder (commands);
-        try
-        {
-            final Process process = pb.start ();
-            final InputStream is = process.getInputStream ();
-            final String data = inputStreamToString (is, StandardCharsets.UTF_8);
-            LOG.info ("Completed native call: '{}'\nResponse: '" + data + "'", Arrays.asList (commands));
-            return data;
-        }
-        catch (final IOException e)
-        {
-            LOG.error ("Error running commands: " + Arrays.asList (commands), e);
-            return "";
-        }
-    }
-
-    private String inputStreamToString (InputStream inputStream, Charset cs)
-    {
-        return new BufferedReader (new InputStreamReader (inputStream, cs))
-            .lines()
-            .collect(Collectors.joining("\n"));
-    }
 }
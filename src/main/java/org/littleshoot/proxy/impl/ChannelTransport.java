@@ -0,0 +1,111 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Netty transport used for the proxy's TCP event loops and channels. UDT always uses NIO, regardless of this
+ * setting.
+ */
+public enum ChannelTransport
+{
+    /**
+     * Java NIO, available on all platforms.
+     */
+    NIO
+        {
+            @Override
+            public boolean isAvailable ()
+            {
+                return true;
+            }
+
+            @Override
+            EventLoopGroup newEventLoopGroup (int threads, ThreadFactory threadFactory, SelectorProvider selectorProvider, int ioRatio)
+            {
+                NioEventLoopGroup eventLoopGroup = new NioEventLoopGroup (threads, threadFactory, selectorProvider);
+                eventLoopGroup.setIoRatio (ioRatio);
+                return eventLoopGroup;
+            }
+
+            @Override
+            ServerChannel newServerSocketChannel ()
+            {
+                return new NioServerSocketChannel ();
+            }
+
+            @Override
+            SocketChannel newSocketChannel ()
+            {
+                return new NioSocketChannel ();
+            }
+        },
+
+    /**
+     * Linux native epoll. Requires the netty-transport-native-epoll library for the current platform.
+     */
+    EPOLL
+        {
+            @Override
+            public boolean isAvailable ()
+            {
+                return Epoll.isAvailable ();
+            }
+
+            @Override
+            EventLoopGroup newEventLoopGroup (int threads, ThreadFactory threadFactory, SelectorProvider selectorProvider, int ioRatio)
+            {
+                // the I/O ratio of epoll event loops is deprecated, and left at its default
+                return new EpollEventLoopGroup (threads, threadFactory);
+            }
+
+            @Override
+            ServerChannel newServerSocketChannel ()
+            {
+                return new EpollServerSocketChannel ();
+            }
+
+            @Override
+            SocketChannel newSocketChannel ()
+            {
+                return new EpollSocketChannel ();
+            }
+        };
+
+    /**
+     * @return true if this transport can be used on the current platform
+     */
+    public abstract boolean isAvailable ();
+
+    /**
+     * Creates an event loop group for this transport.
+     *
+     * @param threads          number of threads in the group
+     * @param threadFactory    factory for the group's threads
+     * @param selectorProvider selector provider, only used by {@link #NIO}
+     * @param ioRatio          percentage of time the event loops spend on I/O rather than on tasks, only used by
+     *                         {@link #NIO}
+     */
+    abstract EventLoopGroup newEventLoopGroup (int threads, ThreadFactory threadFactory, SelectorProvider selectorProvider, int ioRatio);
+
+    /**
+     * Creates a server socket channel for accepting connections on an event loop group created by this transport.
+     */
+    abstract ServerChannel newServerSocketChannel ();
+
+    /**
+     * Creates a socket channel for connecting to servers on an event loop group created by this transport.
+     */
+    abstract SocketChannel newSocketChannel ();
+}
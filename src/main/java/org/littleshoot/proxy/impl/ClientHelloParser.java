@@ -0,0 +1,138 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.littleshoot.proxy.TlsClientHello;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the server name (SNI) and application protocols (ALPN) from the TLS ClientHello at the start of a tunnel,
+ * without consuming or decrypting anything. See RFC 8446 sections 4.1.2 and 5.1, RFC 6066 section 3 and RFC 7301.
+ */
+final class ClientHelloParser
+{
+    /**
+     * The most bytes of a tunnel that are buffered while looking for the end of the ClientHello. A ClientHello
+     * normally fits in one TLS record of at most 16 KB.
+     */
+    static final int MAXIMUM_CLIENT_HELLO_BYTES = 64 * 1024;
+
+    private static final int RECORD_HEADER_LENGTH = 5;
+    private static final int CONTENT_TYPE_HANDSHAKE = 22;
+    private static final int HANDSHAKE_HEADER_LENGTH = 4;
+    private static final int HANDSHAKE_TYPE_CLIENT_HELLO = 1;
+    private static final int EXTENSION_SERVER_NAME = 0;
+    private static final int EXTENSION_APPLICATION_LAYER_PROTOCOL_NEGOTIATION = 16;
+    private static final int SERVER_NAME_TYPE_HOST_NAME = 0;
+
+    private ClientHelloParser ()
+    {
+    }
+
+    /**
+     * Parses the ClientHello at the start of the given bytes, which are not consumed.
+     *
+     * @param buf the bytes the client has sent through the tunnel so far
+     * @return the ClientHello, {@link TlsClientHello#NOT_TLS} if the bytes are not a ClientHello, or null if more bytes
+     *         are needed
+     */
+    static TlsClientHello parse (ByteBuf buf)
+    {
+        // the ClientHello may span several records, so collect the handshake fragments first
+        ByteBuf handshake = Unpooled.buffer ();
+        try
+        {
+            int offset = buf.readerIndex ();
+            while (true)
+            {
+                if (handshake.readableBytes () >= HANDSHAKE_HEADER_LENGTH)
+                {
+                    if (handshake.getUnsignedByte (0) != HANDSHAKE_TYPE_CLIENT_HELLO)
+                    {
+                        return TlsClientHello.NOT_TLS;
+                    }
+                    int length = handshake.getUnsignedMedium (1);
+                    if (length > MAXIMUM_CLIENT_HELLO_BYTES)
+                    {
+                        return TlsClientHello.NOT_TLS;
+                    }
+                    if (handshake.readableBytes () >= HANDSHAKE_HEADER_LENGTH + length)
+                    {
+                        return parseClientHello (handshake.slice (HANDSHAKE_HEADER_LENGTH, length));
+                    }
+                }
+                if (buf.writerIndex () - offset < RECORD_HEADER_LENGTH)
+                {
+                    return null;
+                }
+                if (buf.getUnsignedByte (offset) != CONTENT_TYPE_HANDSHAKE || buf.getUnsignedByte (offset + 1) != 3)
+                {
+                    return TlsClientHello.NOT_TLS;
+                }
+                int recordLength = buf.getUnsignedShort (offset + 3);
+                if (buf.writerIndex () - offset < RECORD_HEADER_LENGTH + recordLength)
+                {
+                    return null;
+                }
+                handshake.writeBytes (buf, offset + RECORD_HEADER_LENGTH, recordLength);
+                offset += RECORD_HEADER_LENGTH + recordLength;
+            }
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            // a length field pointed past the end of its enclosing structure
+            return TlsClientHello.NOT_TLS;
+        }
+        finally
+        {
+            handshake.release ();
+        }
+    }
+
+    private static TlsClientHello parseClientHello (ByteBuf body)
+    {
+        // legacy_version and random
+        body.skipBytes (2 + 32);
+        // legacy_session_id, cipher_suites and legacy_compression_methods
+        body.skipBytes (body.readUnsignedByte ());
+        body.skipBytes (body.readUnsignedShort ());
+        body.skipBytes (body.readUnsignedByte ());
+
+        String serverName = null;
+        List <String> applicationProtocols = new ArrayList <> ();
+        if (body.isReadable ())
+        {
+            ByteBuf extensions = body.readSlice (body.readUnsignedShort ());
+            while (extensions.isReadable ())
+            {
+                int type = extensions.readUnsignedShort ();
+                ByteBuf data = extensions.readSlice (extensions.readUnsignedShort ());
+                if (type == EXTENSION_SERVER_NAME)
+                {
+                    ByteBuf serverNames = data.readSlice (data.readUnsignedShort ());
+                    while (serverNames.isReadable ())
+                    {
+                        int nameType = serverNames.readUnsignedByte ();
+                        ByteBuf name = serverNames.readSlice (serverNames.readUnsignedShort ());
+                        if (nameType == SERVER_NAME_TYPE_HOST_NAME && serverName == null)
+                        {
+                            serverName = name.toString (StandardCharsets.US_ASCII);
+                        }
+                    }
+                }
+                else if (type == EXTENSION_APPLICATION_LAYER_PROTOCOL_NEGOTIATION)
+                {
+                    ByteBuf protocols = data.readSlice (data.readUnsignedShort ());
+                    while (protocols.isReadable ())
+                    {
+                        applicationProtocols.add (protocols.readSlice (protocols.readUnsignedByte ()).toString (StandardCharsets.US_ASCII));
+                    }
+                }
+            }
+        }
+        return new TlsClientHello (serverName, applicationProtocols);
+    }
+}
@@ -1,8 +1,12 @@
 package org.littleshoot.proxy.impl;
 
+import com.google.common.net.HostAndPort;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -21,10 +25,21 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.apache.commons.lang3.StringUtils;
 import org.littleshoot.proxy.ActivityTracker;
 import org.littleshoot.proxy.FlowContext;
@@ -33,19 +48,26 @@ import org.littleshoot.proxy.HttpFilters;
 import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.littleshoot.proxy.ProxyAuthenticator;
 import org.littleshoot.proxy.SslEngineSource;
+import org.littleshoot.proxy.TlsClientHello;
+import org.littleshoot.proxy.TransportProtocol;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -53,6 +75,7 @@ import java.util.regex.Pattern;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_PROXY_AUTHENTICATION;
+import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECTED;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECT_REQUESTED;
 import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
 
@@ -78,6 +101,14 @@ import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
  * {@link #respond(ProxyToServerConnection, HttpFilters, HttpRequest, HttpResponse, HttpObject)}
  * .
  * </p>
+ *
+ * <p>
+ * A MITM'd client that negotiates HTTP/2 with ALPN sends its requests on
+ * streams of a single connection. Each stream then gets a
+ * ClientToProxyConnection of its own, which handles its one request like a
+ * request on a MITM'd HTTP/1.1 connection, with its own
+ * {@link ProxyToServerConnection}.
+ * </p>
  */
 public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
 {
@@ -92,6 +123,22 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      */
     private static final Pattern HTTP_SCHEME = Pattern.compile ("^http://.*", Pattern.CASE_INSENSITIVE);
 
+    /**
+     * How long to wait for the TLS ClientHello of a CONNECT tunnel before connecting to the server without it.
+     */
+    private static final long CLIENT_HELLO_PEEK_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The maximum number of concurrent streams HTTP/2 clients may open on a connection. Each stream has a connection to
+     * its server.
+     */
+    private static final int HTTP2_MAX_CONCURRENT_STREAMS = 100;
+
+    /**
+     * The handlers of the HTTP/1.1 codec, which are removed when a connection switches to HTTP/2.
+     */
+    private static final String[] HTTP1_HANDLER_NAMES = {"decoder", "requestReadMonitor", "inflater", "aggregator", "encoder", "responseWrittenMonitor"};
+
     /**
      * Keep track of all ProxyToServerConnections by host+port.
      */
@@ -140,16 +187,85 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      */
     private volatile HttpRequest currentRequest;
 
+    /**
+     * While the TLS ClientHello of a CONNECT tunnel is being read, the CONNECT request, the server it is for, the bytes
+     * read from the tunnel so far, and the timeout for reading the ClientHello. Only accessed on the event loop.
+     */
+    private HttpRequest peekedConnectRequest;
+    private String peekedServerHostAndPort;
+    private ByteBuf peekedBytes;
+    private ScheduledFuture <?> clientHelloPeekTimeout;
+
+    /**
+     * Messages read from the client since it pipelined a request that has to wait until the responses to its earlier
+     * requests are complete. They are read in order once the server connections have answered. Only accessed on the
+     * event loop.
+     */
+    private final Deque <Object> heldMessages = new ArrayDeque <> ();
+
+    /**
+     * True while messages are being held in {@link #heldMessages}, during which reading from the client is stopped.
+     */
+    private volatile boolean holdingMessages = false;
+
+    /**
+     * True once this MITM'd connection has switched to HTTP/2. Its requests then arrive on streams, each of which has a
+     * ClientToProxyConnection of its own.
+     */
+    private volatile boolean http2 = false;
+
+    /**
+     * For a connection that switched to HTTP/2, the server that the client asked to CONNECT to.
+     */
+    private volatile String http2ServerHostAndPort;
+
+    /**
+     * For an HTTP/2 stream, the connection to the client that carries it; otherwise null.
+     */
+    private final ClientToProxyConnection http2Connection;
+
+    /**
+     * With collapsed forwarding, the flight of the request this connection sent to the server for itself and for
+     * identical requests, the filters of that request, and the server connection it was written to.
+     */
+    private volatile CollapsedForwarding.Flight leadingFlight;
+    private volatile HttpFilters leadingFlightFilters;
+    private volatile ProxyToServerConnection leadingServerConnection;
+
+    /**
+     * With collapsed forwarding, the flight whose response this connection waits for instead of sending its request,
+     * the request and the server it is for, and the response relayed so far. Apart from the flight, only accessed on
+     * the event loop.
+     */
+    private volatile CollapsedForwarding.Flight followedFlight;
+    private HttpRequest collapsedRequest;
+    private String collapsedServerHostAndPort;
+    private HttpResponse collapsedResponse;
+
     ClientToProxyConnection (final DefaultHttpProxyServer proxyServer, SslEngineSource sslEngineSource, boolean authenticateClients, ChannelPipeline pipeline, GlobalTrafficShapingHandler globalTrafficShapingHandler)
     {
         super (AWAITING_INITIAL, proxyServer, false);
+        this.http2Connection = null;
 
         initChannelPipeline (pipeline);
 
         if (sslEngineSource != null)
         {
             LOG.debug ("Enabling encryption of traffic from client to proxy");
-            encrypt (pipeline, sslEngineSource.newSslEngine (), authenticateClients).addListener (new GenericFutureListener <Future <? super Channel>> ()
+            pipeline.channel ().attr (ProxyUtils.SSL_ENGINE_SOURCE).set (sslEngineSource);
+            SSLEngine engine = sslEngineSource.newSslEngine ();
+            final ServerSslSessionCache sessionCache = proxyServer.getServerSslSessionCache ();
+            final long handshakeStartMillis = System.currentTimeMillis ();
+            if (sessionCache != null)
+            {
+                // ticket keys must be in place before the handshake so that the client's ticket can be decrypted
+                if (sessionCache.configure (engine.getSession ().getSessionContext ()))
+                {
+                    ReferenceCountUtil.release (engine);
+                    engine = sslEngineSource.newSslEngine ();
+                }
+            }
+            encrypt (pipeline, engine, authenticateClients).addListener (new GenericFutureListener <Future <? super Channel>> ()
             {
                 @Override
                 public void operationComplete (Future <? super Channel> future) throws Exception
@@ -157,6 +273,10 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
                     if (future.isSuccess ())
                     {
                         clientSslSession = sslEngine.getSession ();
+                        if (sessionCache != null)
+                        {
+                            sessionCache.handshakeCompleted (sslEngine, handshakeStartMillis);
+                        }
                         recordClientSSLHandshakeSucceeded ();
                     }
                 }
@@ -167,10 +287,154 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         LOG.debug ("Created ClientToProxyConnection");
     }
 
+    /**
+     * Creates the connection for a stream of an HTTP/2 connection. The client already authenticated itself and its
+     * CONNECT was MITM'd on that connection.
+     *
+     * @param proxyServer     the proxy server
+     * @param http2Connection the connection that carries the stream
+     * @param pipeline        the pipeline of the stream's channel
+     */
+    private ClientToProxyConnection (DefaultHttpProxyServer proxyServer, ClientToProxyConnection http2Connection, ChannelPipeline pipeline)
+    {
+        super (AWAITING_INITIAL, proxyServer, false);
+        this.http2Connection = http2Connection;
+        this.globalTrafficShapingHandler = http2Connection.globalTrafficShapingHandler;
+        this.clientSslSession = http2Connection.clientSslSession;
+        this.mitming = true;
+        this.authenticated.set (true);
+
+        initStreamChannelPipeline (pipeline);
+
+        LOG.debug ("Created ClientToProxyConnection for HTTP/2 stream");
+    }
+
     /***************************************************************************
      * Reading
      **************************************************************************/
 
+    @Override
+    protected void read (Object msg)
+    {
+        if (http2)
+        {
+            // requests are read by the connections of the streams, only frames about the connection as a whole get here
+            LOG.debug ("Ignoring HTTP/2 frame: {}", msg);
+            return;
+        }
+        if (holdingMessages || mustHoldRequest (msg))
+        {
+            LOG.debug ("Holding message until earlier requests are answered: {}", msg);
+            heldMessages.add (ReferenceCountUtil.retain (msg));
+            if (!holdingMessages)
+            {
+                holdingMessages = true;
+                stopReading ();
+            }
+            return;
+        }
+        super.read (msg);
+    }
+
+    /**
+     * Determines whether a request that the client pipelined behind earlier ones has to wait until their responses
+     * are complete. Responses must reach the client in the order of its requests, so only a request to the server
+     * connection that is answering can skip the wait, and only if it can be pipelined to that server.
+     *
+     * @param msg the message read from the client
+     * @return true if the message is a request that has to wait
+     */
+    private boolean mustHoldRequest (Object msg)
+    {
+        if (!(msg instanceof HttpRequest) || !is (AWAITING_INITIAL) || isTunneling ())
+        {
+            return false;
+        }
+        if (followedFlight != null)
+        {
+            // the response to the collapsed request has to reach the client first
+            return true;
+        }
+        ProxyToServerConnection answeringServerConnection = null;
+        for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
+        {
+            if (serverConnection.hasUnansweredRequests ())
+            {
+                if (answeringServerConnection != null)
+                {
+                    return true;
+                }
+                answeringServerConnection = serverConnection;
+            }
+        }
+        if (answeringServerConnection == null)
+        {
+            return false;
+        }
+        HttpRequest httpRequest = (HttpRequest) msg;
+        String serverHostAndPort = isMitming () ? answeringServerConnection.getServerHostAndPort () : identifyHostAndPort (httpRequest);
+        return !answeringServerConnection.getServerHostAndPort ().equals (serverHostAndPort) || !answeringServerConnection.canPipeline (httpRequest);
+    }
+
+    /**
+     * Called by a server connection once the responses to the requests written to it are complete, or once it is
+     * closed. The held messages are then read in order, until one of them has to wait again.
+     */
+    void serverRequestsAnswered ()
+    {
+        // even if nothing is held yet, a request may be about to be held on the event loop
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                readHeldMessages ();
+            }
+        });
+    }
+
+    private void readHeldMessages ()
+    {
+        if (!holdingMessages)
+        {
+            return;
+        }
+        while (!heldMessages.isEmpty ())
+        {
+            if (mustHoldRequest (heldMessages.peek ()))
+            {
+                return;
+            }
+            Object msg = heldMessages.poll ();
+            try
+            {
+                super.read (msg);
+            }
+            finally
+            {
+                ReferenceCountUtil.release (msg);
+            }
+        }
+        LOG.debug ("Read all held messages, resuming reading from client");
+        holdingMessages = false;
+        if (numberOfCurrentlyConnectingServers.get () == 0)
+        {
+            resumeReading ();
+        }
+    }
+
+    /**
+     * Reading stays stopped while messages are held, since they have to be read first.
+     */
+    @Override
+    protected void resumeReading ()
+    {
+        if (!holdingMessages)
+        {
+            super.resumeReading ();
+        }
+    }
+
     @Override
     protected ConnectionState readHTTPInitial (HttpRequest httpRequest)
     {
@@ -209,6 +473,15 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      */
     private ConnectionState doReadHTTPInitial (HttpRequest httpRequest)
     {
+        if (http2Connection != null)
+        {
+            // the pseudo-headers that the HTTP/2 codec exposes as extension headers are not for the server
+            for (HttpConversionUtil.ExtensionHeaderNames extensionHeaderName : HttpConversionUtil.ExtensionHeaderNames.values ())
+            {
+                httpRequest.headers ().remove (extensionHeaderName.text ());
+            }
+        }
+
         // Make a copy of the original request
         this.currentRequest = copy (httpRequest);
 
@@ -220,6 +493,10 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             currentFilters = filterInstance;
         }
 
+        // whether the request may be collapsed is decided on the request as the client sent it
+        CollapsedForwarding collapsedForwarding = proxyServer.getCollapsedForwarding ();
+        boolean collapsible = collapsedForwarding != null && leadingFlight == null && CollapsedForwarding.isCollapsible (httpRequest);
+
         // Send the request through the clientToProxyRequest filter, and respond with the short-circuit response if required
         HttpResponse clientToProxyFilterResponse = currentFilters.clientToProxyRequest (httpRequest);
 
@@ -252,8 +529,22 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             }
         }
 
+        if (http2Connection != null && !isForConnectedServer (httpRequest))
+        {
+            LOG.debug ("Stream of a connection to {} asked for another server: {}", http2Connection.http2ServerHostAndPort, httpRequest.headers ().get (HttpHeaderNames.HOST));
+            boolean keepAlive = writeMisdirectedRequest (httpRequest);
+            if (keepAlive)
+            {
+                return AWAITING_INITIAL;
+            }
+            else
+            {
+                return DISCONNECT_REQUESTED;
+            }
+        }
+
         // Identify our server and chained proxy
-        String serverHostAndPort = identifyHostAndPort (httpRequest);
+        String serverHostAndPort = http2Connection != null ? http2Connection.http2ServerHostAndPort : identifyHostAndPort (httpRequest);
 
         LOG.debug ("Ensuring that hostAndPort are available in {}", httpRequest.uri ());
         if (serverHostAndPort == null || StringUtils.isBlank (serverHostAndPort))
@@ -270,6 +561,44 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             }
         }
 
+        if (ProxyUtils.isCONNECT (httpRequest) && proxyServer.isPeekingClientHello () && !proxyServer.shouldMitm (serverHostAndPort, httpRequest))
+        {
+            return peekClientHello (httpRequest, serverHostAndPort);
+        }
+
+        if (collapsible)
+        {
+            String key = (isMitming () ? "https://" : "http://") + serverHostAndPort + " " + httpRequest.uri ();
+            CollapsedForwarding.Flight flight = collapsedForwarding.join (key, this, httpRequest);
+            if (!flight.isLedBy (this))
+            {
+                followedFlight = flight;
+                collapsedRequest = ReferenceCountUtil.retain (httpRequest);
+                collapsedServerHostAndPort = serverHostAndPort;
+                return ProxyUtils.isChunked (httpRequest) ? AWAITING_CHUNK : AWAITING_INITIAL;
+            }
+            leadingFlight = flight;
+            leadingFlightFilters = currentFilters;
+            ConnectionState nextState = forward (httpRequest, serverHostAndPort);
+            if (leadingFlight == flight)
+            {
+                leadingServerConnection = currentServerConnection;
+            }
+            return nextState;
+        }
+
+        return forward (httpRequest, serverHostAndPort);
+    }
+
+    /**
+     * Writes a request to the server it is for, connecting to the server first if there is no connection to it yet.
+     *
+     * @param httpRequest       the request, after the clientToProxyRequest filter
+     * @param serverHostAndPort the server the request is for
+     * @return the next state
+     */
+    private ConnectionState forward (HttpRequest httpRequest, String serverHostAndPort)
+    {
         LOG.debug ("Finding ProxyToServerConnection for: {}", serverHostAndPort);
         currentServerConnection = isMitming () || isTunneling () ? this.currentServerConnection : this.serverConnectionsByHostAndPort.get (serverHostAndPort);
 
@@ -364,6 +693,103 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         }
     }
 
+    /**
+     * Responds to a CONNECT request and starts reading the tunnel, without connecting to the server until the TLS
+     * ClientHello has been read.
+     *
+     * @param httpRequest       the CONNECT request
+     * @param serverHostAndPort the server the client asked to connect to
+     * @return the next state
+     */
+    private ConnectionState peekClientHello (HttpRequest httpRequest, String serverHostAndPort)
+    {
+        LOG.debug ("Reading the TLS ClientHello of the tunnel to {} before connecting", serverHostAndPort);
+        peekedConnectRequest = httpRequest;
+        peekedServerHostAndPort = serverHostAndPort;
+        peekedBytes = ctx.alloc ().buffer ();
+        clientHelloPeekTimeout = ctx.executor ().schedule (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                if (peekedBytes != null)
+                {
+                    LOG.debug ("Timed out reading the TLS ClientHello of the tunnel to {}", peekedServerHostAndPort);
+                    clientHelloPeeked (TlsClientHello.NOT_TLS);
+                }
+            }
+        }, CLIENT_HELLO_PEEK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        writeConnectionEstablished ();
+        StartTunneling.execute ();
+        return NEGOTIATING_CONNECT;
+    }
+
+    /**
+     * Connects a CONNECT tunnel to its server once its ClientHello has been read, unless the filters or chained proxy
+     * manager deny it, and forwards the bytes read from the tunnel so far.
+     *
+     * @param clientHello the ClientHello, or {@link TlsClientHello#NOT_TLS}
+     */
+    private void clientHelloPeeked (TlsClientHello clientHello)
+    {
+        clientHelloPeekTimeout.cancel (false);
+        HttpRequest connectRequest = peekedConnectRequest;
+        String serverHostAndPort = peekedServerHostAndPort;
+        ByteBuf bytes = peekedBytes;
+        peekedConnectRequest = null;
+        peekedServerHostAndPort = null;
+        peekedBytes = null;
+        LOG.debug ("Read {} from the tunnel to {}", clientHello, serverHostAndPort);
+
+        try
+        {
+            if (!currentFilters.clientToProxyClientHello (clientHello))
+            {
+                LOG.debug ("Filter denied the tunnel to {}, disconnecting", serverHostAndPort);
+                disconnect ();
+                return;
+            }
+
+            try
+            {
+                currentServerConnection = ProxyToServerConnection.create (proxyServer, this, serverHostAndPort, currentFilters, connectRequest, globalTrafficShapingHandler, clientHello);
+            }
+            catch (UnknownHostException uhe)
+            {
+                LOG.info ("Bad Host {}", connectRequest.uri ());
+                currentServerConnection = null;
+            }
+            if (currentServerConnection == null)
+            {
+                // the CONNECT was already answered, so the client can only be told by closing the tunnel
+                LOG.debug ("Unable to create server connection for the tunnel to {}, disconnecting", serverHostAndPort);
+                disconnect ();
+                return;
+            }
+            serverConnectionsByHostAndPort.put (serverHostAndPort, currentServerConnection);
+
+            modifyRequestHeadersToReflectProxying (connectRequest);
+            if (currentFilters.proxyToServerRequest (connectRequest) != null)
+            {
+                LOG.debug ("Filter short-circuited the tunnel to {}, disconnecting", serverHostAndPort);
+                disconnect ();
+                return;
+            }
+
+            // the server connection holds on to what is written while it connects, and sends it once the tunnel is up
+            currentServerConnection.write (connectRequest, currentFilters);
+            if (bytes.isReadable ())
+            {
+                currentServerConnection.write (bytes);
+            }
+        }
+        finally
+        {
+            bytes.release ();
+        }
+    }
+
     /**
      * Returns true if the specified request is a request to an origin server, rather than to a proxy server. If this
      * request is being MITM'd, this method always returns false. The format of requests to a proxy server are defined
@@ -401,6 +827,17 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
     @Override
     protected void readHTTPChunk (HttpContent chunk)
     {
+        if (collapsedRequest != null)
+        {
+            // a collapsed request has no body, so this can only be the end of it
+            if (followedFlight == null && ProxyUtils.isLastChunk (chunk))
+            {
+                ReferenceCountUtil.release (collapsedRequest);
+                collapsedRequest = null;
+            }
+            return;
+        }
+
         currentFilters.clientToProxyRequest (chunk);
         currentFilters.proxyToServerRequest (chunk);
 
@@ -410,6 +847,20 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
     @Override
     protected void readRaw (ByteBuf buf)
     {
+        if (peekedBytes != null)
+        {
+            peekedBytes.writeBytes (buf);
+            TlsClientHello clientHello = ClientHelloParser.parse (peekedBytes);
+            if (clientHello == null && peekedBytes.readableBytes () > ClientHelloParser.MAXIMUM_CLIENT_HELLO_BYTES)
+            {
+                clientHello = TlsClientHello.NOT_TLS;
+            }
+            if (clientHello != null)
+            {
+                clientHelloPeeked (clientHello);
+            }
+            return;
+        }
         currentServerConnection.write (buf);
     }
 
@@ -471,6 +922,19 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             modifyResponseHeadersToReflectProxying (httpResponse);
         }
 
+        // identical requests that were collapsed into this one are answered with copies, before this client's filters
+        CollapsedForwarding.Flight flight = leadingFlight;
+        if (flight != null && filters == leadingFlightFilters)
+        {
+            flight.relay (httpObject);
+            if (ProxyUtils.isLastChunk (httpObject))
+            {
+                leadingFlight = null;
+                leadingFlightFilters = null;
+                leadingServerConnection = null;
+            }
+        }
+
         httpObject = filters.proxyToClientResponse (httpObject);
         if (httpObject == null)
         {
@@ -488,6 +952,154 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         closeConnectionsAfterWriteIfNecessary (serverConnection, currentHttpRequest, currentHttpResponse, httpObject);
     }
 
+    /**
+     * Called by the flight that this connection follows with a copy of part of the response to the request that
+     * leads it, which is written to the client on this connection's event loop.
+     *
+     * @param httpObject the copy, which this connection releases
+     */
+    void relayCollapsedResponse (final HttpObject httpObject)
+    {
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                writeCollapsedResponse (httpObject);
+            }
+        });
+    }
+
+    private void writeCollapsedResponse (HttpObject httpObject)
+    {
+        try
+        {
+            if (followedFlight == null)
+            {
+                // the client went away or was answered otherwise
+                return;
+            }
+            if (httpObject instanceof HttpResponse)
+            {
+                this.currentRequest = null;
+                collapsedResponse = (HttpResponse) httpObject;
+                HttpUtil.setKeepAlive (collapsedResponse, HttpUtil.isKeepAlive (collapsedRequest));
+            }
+
+            HttpObject filteredObject = currentFilters.proxyToClientResponse (httpObject);
+            if (filteredObject == null)
+            {
+                leaveFollowedFlight ();
+                disconnect ();
+                return;
+            }
+
+            write (filteredObject);
+
+            if (ProxyUtils.isLastChunk (filteredObject))
+            {
+                writeEmptyBuffer ();
+                boolean keepAlive = HttpUtil.isKeepAlive (collapsedResponse);
+                leaveFollowedFlight ();
+                if (keepAlive)
+                {
+                    serverRequestsAnswered ();
+                }
+                else
+                {
+                    LOG.debug ("Closing connection to client after writing the response to a collapsed request");
+                    disconnect ();
+                }
+            }
+        }
+        finally
+        {
+            ReferenceCountUtil.release (httpObject);
+        }
+    }
+
+    /**
+     * Called by the flight that this connection follows if the response to the request that leads it cannot be
+     * shared with this connection's request, or if that request failed before its response arrived. The request is
+     * then sent to the server on its own.
+     */
+    void forwardCollapsedRequest ()
+    {
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                if (followedFlight == null || is (DISCONNECT_REQUESTED) || is (DISCONNECTED))
+                {
+                    return;
+                }
+                HttpRequest httpRequest = collapsedRequest;
+                boolean requestEnded = !is (AWAITING_CHUNK);
+                followedFlight = null;
+                collapsedRequest = null;
+                LOG.debug ("Sending collapsed request on its own: {}", httpRequest);
+                try
+                {
+                    ConnectionState nextState = forward (httpRequest, collapsedServerHostAndPort);
+                    if (requestEnded && nextState == AWAITING_CHUNK)
+                    {
+                        // the end of the request was read while it was collapsed
+                        readHTTPChunk (LastHttpContent.EMPTY_LAST_CONTENT);
+                        nextState = AWAITING_INITIAL;
+                    }
+                    become (nextState);
+                }
+                finally
+                {
+                    ReferenceCountUtil.release (httpRequest);
+                }
+                serverRequestsAnswered ();
+            }
+        });
+    }
+
+    /**
+     * Called by the flight that this connection follows if the request that leads it failed after part of its
+     * response was relayed to this connection's client, which can then only be told by closing the connection.
+     */
+    void collapsedResponseAbandoned ()
+    {
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                if (followedFlight != null)
+                {
+                    LOG.debug ("Response to collapsed request was cut off, disconnecting");
+                    leaveFollowedFlight ();
+                    disconnect ();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops waiting for the response to the request that this connection's request was collapsed into.
+     */
+    private void leaveFollowedFlight ()
+    {
+        CollapsedForwarding.Flight flight = followedFlight;
+        if (flight == null)
+        {
+            return;
+        }
+        followedFlight = null;
+        collapsedResponse = null;
+        flight.leave (this);
+        if (!is (AWAITING_CHUNK))
+        {
+            ReferenceCountUtil.release (collapsedRequest);
+            collapsedRequest = null;
+        }
+    }
+
     /***************************************************************************
      * Connection Lifecycle
      **************************************************************************/
@@ -505,14 +1117,98 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
 
         protected Future <?> execute ()
         {
-            LOG.debug ("Responding with CONNECT successful");
-            HttpResponse response = responseFor (HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
-            response.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            response.headers ().set ("Proxy-Connection", HttpHeaderValues.KEEP_ALIVE);
-            ProxyUtils.addVia (response, proxyServer.getProxyAlias ());
-            return writeToChannel (response);
+            return writeConnectionEstablished ();
+        }
+    };
+
+    private Future <?> writeConnectionEstablished ()
+    {
+        LOG.debug ("Responding with CONNECT successful");
+        HttpResponse response = responseFor (HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
+        response.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        response.headers ().set ("Proxy-Connection", HttpHeaderValues.KEEP_ALIVE);
+        ProxyUtils.addVia (response, proxyServer.getProxyAlias ());
+        return writeToChannel (response);
+    }
+
+    /**
+     * <p>
+     * Encrypts this connection for a MITM'd CONNECT. If the client and the
+     * {@link SSLEngine} negotiate HTTP/2 with ALPN, the connection then
+     * switches to HTTP/2 before it reads any requests.
+     * </p>
+     *
+     * @param sslEngine         the engine that impersonates the server
+     * @param serverHostAndPort the server of the CONNECT, which HTTP/2 streams are pinned to
+     * @return a Future for when the SSL handshake has completed
+     */
+    Future <Channel> encryptMitm (SSLEngine sslEngine, String serverHostAndPort)
+    {
+        http2ServerHostAndPort = serverHostAndPort;
+        // the buffer goes in first so that it ends up behind the SslHandler, where it holds on to decrypted requests
+        final HandshakeReadBuffer readBuffer = new HandshakeReadBuffer ();
+        channel.pipeline ().addFirst ("handshakeReadBuffer", readBuffer);
+        Future <Channel> handshakeFuture = encrypt (sslEngine, false);
+        final SslHandler sslHandler = (SslHandler) channel.pipeline ().get ("ssl");
+        handshakeFuture.addListener (new GenericFutureListener <Future <? super Channel>> ()
+        {
+            @Override
+            public void operationComplete (Future <? super Channel> future) throws Exception
+            {
+                // set right away, so that the connection flow of the CONNECT already sees it when it completes
+                http2 = future.isSuccess () && ApplicationProtocolNames.HTTP_2.equals (sslHandler.applicationProtocol ());
+                Runnable switchProtocol = new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        if (http2)
+                        {
+                            startHttp2 (channel.pipeline ());
+                        }
+                        readBuffer.flushAndRemove ();
+                    }
+                };
+                if (channel.eventLoop ().inEventLoop ())
+                {
+                    switchProtocol.run ();
+                }
+                else
+                {
+                    channel.eventLoop ().execute (switchProtocol);
+                }
+            }
+        });
+        return handshakeFuture;
+    }
+
+    /**
+     * Replaces the HTTP/1.1 codec of this connection with an HTTP/2 codec, and creates a connection for each stream the
+     * client opens.
+     *
+     * @param pipeline the pipeline of this connection's channel
+     */
+    private void startHttp2 (ChannelPipeline pipeline)
+    {
+        LOG.debug ("Client negotiated HTTP/2, switching codecs");
+        for (String name : HTTP1_HANDLER_NAMES)
+        {
+            if (pipeline.get (name) != null)
+            {
+                pipeline.remove (name);
+            }
         }
-    };
+        Http2Settings settings = Http2Settings.defaultSettings ().maxConcurrentStreams (HTTP2_MAX_CONCURRENT_STREAMS);
+        pipeline.addBefore ("idle", "http2", Http2FrameCodecBuilder.forServer ().initialSettings (settings).build ());
+        pipeline.addBefore ("idle", "http2Multiplexer", new Http2MultiplexHandler (new ChannelInitializer <Http2StreamChannel> ()
+        {
+            @Override
+            protected void initChannel (Http2StreamChannel streamChannel)
+            {
+                new ClientToProxyConnection (proxyServer, ClientToProxyConnection.this, streamChannel.pipeline ());
+            }
+        }));
+    }
 
     /**
      * On connect of the client, start waiting for an initial
@@ -523,12 +1219,21 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
     {
         super.connected ();
         become (AWAITING_INITIAL);
-        recordClientConnected ();
+        if (http2Connection == null)
+        {
+            recordClientConnected ();
+        }
     }
 
     @Override
     protected void timedOut ()
     {
+        if (http2)
+        {
+            // the streams' requests time out on their own connections, so this connection has simply been idle
+            super.timedOut ();
+            return;
+        }
         boolean clientReadMoreRecentlyThanServer = currentServerConnection == null || this.lastReadTime > currentServerConnection.lastReadTime;
         if (clientReadMoreRecentlyThanServer)
         {
@@ -544,17 +1249,43 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
     }
 
     /**
-     * On disconnect of the client, disconnect all server connections.
+     * On disconnect of the client, disconnect all server connections, or
+     * return them to the server connection pool if one is configured.
      */
     @Override
     protected void disconnected ()
     {
         super.disconnected ();
+        CollapsedForwarding.Flight flight = leadingFlight;
+        if (flight != null)
+        {
+            leadingFlight = null;
+            flight.abandon ();
+        }
+        leaveFollowedFlight ();
+        Object heldMessage;
+        while ((heldMessage = heldMessages.poll ()) != null)
+        {
+            ReferenceCountUtil.release (heldMessage);
+        }
+        if (peekedBytes != null)
+        {
+            clientHelloPeekTimeout.cancel (false);
+            peekedBytes.release ();
+            peekedBytes = null;
+        }
+        ServerConnectionPool connectionPool = proxyServer.getServerConnectionPool ();
         for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
         {
-            serverConnection.disconnect ();
+            if (connectionPool == null || !connectionPool.release (serverConnection))
+            {
+                serverConnection.disconnect ();
+            }
+        }
+        if (http2Connection == null)
+        {
+            recordClientDisconnected ();
         }
-        recordClientDisconnected ();
     }
 
     /**
@@ -581,6 +1312,107 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         resumeReadingIfNecessary ();
         become (shouldForwardInitialRequest ? getCurrentState () : AWAITING_INITIAL);
         numberOfCurrentlyConnectedServers.incrementAndGet ();
+        if (http2)
+        {
+            releaseHttp2ServerConnection (serverConnection);
+        }
+    }
+
+    /**
+     * Once a MITM'd CONNECT has switched to HTTP/2, its own server connection carries no requests. It is handed to the
+     * server connection pool, from which the first stream for the server can take it, or else closed.
+     *
+     * @param serverConnection the server connection of the CONNECT
+     */
+    private void releaseHttp2ServerConnection (ProxyToServerConnection serverConnection)
+    {
+        serverConnectionsByHostAndPort.remove (serverConnection.getServerHostAndPort ());
+        currentServerConnection = null;
+        ServerConnectionPool connectionPool = proxyServer.getServerConnectionPool ();
+        if (connectionPool != null && connectionPool.register (ServerConnectionPool.mitmKeyFor (serverConnection.getServerHostAndPort (), serverConnection.getChainedProxy ()), serverConnection))
+        {
+            if (connectionPool.release (serverConnection))
+            {
+                return;
+            }
+        }
+        serverConnection.disconnect ();
+    }
+
+    /**
+     * Called by a pooled server connection once the responses to the requests written to it are complete. The
+     * connection goes back to the pool, where other clients can take it while this client sends the server nothing,
+     * unless the client is still sending a request on it.
+     *
+     * @param serverConnection the server connection that has answered its requests
+     */
+    void serverConnectionIdle (final ProxyToServerConnection serverConnection)
+    {
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                String serverHostAndPort = serverConnection.getServerHostAndPort ();
+                if (serverConnectionsByHostAndPort.get (serverHostAndPort) != serverConnection || serverConnection == leadingServerConnection)
+                {
+                    return;
+                }
+                if (serverConnection == currentServerConnection && is (AWAITING_CHUNK))
+                {
+                    return;
+                }
+                if (proxyServer.getServerConnectionPool ().offer (serverConnection))
+                {
+                    serverConnectionsByHostAndPort.remove (serverHostAndPort);
+                    if (currentServerConnection == serverConnection)
+                    {
+                        currentServerConnection = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by the server connection pool when a server connection that waited for a slot is replaced by a pooled
+     * connection to the same server, which then sends the requests that were written to the waiting connection.
+     *
+     * @param waitingConnection the connection that waited for a slot, without ever connecting
+     * @param pooledConnection  the pooled connection, already bound to this client
+     */
+    void serverConnectionHandedOver (final ProxyToServerConnection waitingConnection, final ProxyToServerConnection pooledConnection)
+    {
+        channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                String serverHostAndPort = waitingConnection.getServerHostAndPort ();
+                if (!channel.isActive () || serverConnectionsByHostAndPort.get (serverHostAndPort) != waitingConnection)
+                {
+                    // the client went away in the meantime
+                    if (!proxyServer.getServerConnectionPool ().release (pooledConnection))
+                    {
+                        pooledConnection.disconnect ();
+                    }
+                    return;
+                }
+                LOG.debug ("Sending requests that waited for a connection slot on pooled connection: {}", pooledConnection);
+                serverConnectionsByHostAndPort.put (serverHostAndPort, pooledConnection);
+                if (currentServerConnection == waitingConnection)
+                {
+                    currentServerConnection = pooledConnection;
+                }
+                if (leadingServerConnection == waitingConnection)
+                {
+                    leadingServerConnection = pooledConnection;
+                }
+                waitingConnection.transferTo (pooledConnection);
+                numberOfReusedServerConnections.incrementAndGet ();
+                resumeReadingIfNecessary ();
+            }
+        });
     }
 
     /**
@@ -635,6 +1467,18 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         // map of open server connections
         serverConnection.disconnect ();
         this.serverConnectionsByHostAndPort.remove (serverConnection.getServerHostAndPort ());
+        ServerConnectionPool connectionPool = proxyServer.getServerConnectionPool ();
+        if (connectionPool != null)
+        {
+            connectionPool.retire (serverConnection);
+        }
+
+        if (isTunneling ())
+        {
+            // the CONNECT was answered before connecting, so the client can only be told by closing the tunnel
+            disconnect ();
+            return;
+        }
 
         boolean keepAlive = writeBadGateway (initialRequest);
         if (keepAlive)
@@ -670,11 +1514,19 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
     {
         numberOfCurrentlyConnectedServers.decrementAndGet ();
 
+        CollapsedForwarding.Flight flight = leadingFlight;
+        if (flight != null && serverConnection == leadingServerConnection)
+        {
+            leadingFlight = null;
+            flight.abandon ();
+        }
+
         // for non-SSL connections, do not disconnect the client from the proxy, even if this was the last server connection.
         // this allows clients to continue to use the open connection to the proxy to make future requests. for SSL
         // connections, whether we are tunneling or MITMing, we need to disconnect the client because there is always
-        // exactly one ClientToProxyConnection per ProxyToServerConnection, and vice versa.
-        if (isTunneling () || isMitming ())
+        // exactly one ClientToProxyConnection per ProxyToServerConnection, and vice versa. HTTP/2 connections are the
+        // exception, since their requests are sent on the server connections of their streams.
+        if ((isTunneling () || isMitming ()) && !http2)
         {
             disconnect ();
         }
@@ -685,17 +1537,19 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      * associated ProxyToServerConnections.
      */
     @Override
-    synchronized protected void becameSaturated ()
+    protected void becameSaturated ()
     {
-        super.becameSaturated ();
-        for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
+        if (serverConnectionsColocated ())
+        {
+            super.becameSaturated ();
+            updateServerReading (false);
+        }
+        else
         {
-            synchronized (serverConnection)
+            synchronized (this)
             {
-                if (this.isSaturated ())
-                {
-                    serverConnection.stopReading ();
-                }
+                super.becameSaturated ();
+                updateServerReading (true);
             }
         }
     }
@@ -705,17 +1559,19 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      * associated ProxyToServerConnections.
      */
     @Override
-    synchronized protected void becameWritable ()
+    protected void becameWritable ()
     {
-        super.becameWritable ();
-        for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
+        if (serverConnectionsColocated ())
+        {
+            super.becameWritable ();
+            updateServerReading (false);
+        }
+        else
         {
-            synchronized (serverConnection)
+            synchronized (this)
             {
-                if (!this.isSaturated ())
-                {
-                    serverConnection.resumeReading ();
-                }
+                super.becameWritable ();
+                updateServerReading (true);
             }
         }
     }
@@ -725,12 +1581,18 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      *
      * @param serverConnection
      */
-    synchronized protected void serverBecameSaturated (ProxyToServerConnection serverConnection)
+    protected void serverBecameSaturated (ProxyToServerConnection serverConnection)
     {
-        if (serverConnection.isSaturated ())
+        if (serverConnectionsColocated ())
         {
-            LOG.info ("Connection to server became saturated, stopping reading");
-            stopReading ();
+            stopReadingIfSaturated (serverConnection);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                stopReadingIfSaturated (serverConnection);
+            }
         }
     }
 
@@ -740,7 +1602,89 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
      *
      * @param serverConnection
      */
-    synchronized protected void serverBecameWriteable (ProxyToServerConnection serverConnection)
+    protected void serverBecameWriteable (ProxyToServerConnection serverConnection)
+    {
+        if (serverConnectionsColocated ())
+        {
+            resumeReadingIfServersWriteable ();
+        }
+        else
+        {
+            synchronized (this)
+            {
+                resumeReadingIfServersWriteable ();
+            }
+        }
+    }
+
+    /**
+     * Determines whether all server connections run on this connection's
+     * event loop. The backpressure callbacks are then only ever invoked from
+     * that loop, and need no locking.
+     */
+    private boolean serverConnectionsColocated ()
+    {
+        if (!proxyServer.colocatesEventLoopsFor (TransportProtocol.TCP))
+        {
+            return false;
+        }
+        for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
+        {
+            if (!serverConnection.isColocatedWithClient ())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops reading on all server connections while this connection is
+     * saturated, and resumes reading once it is writable again.
+     *
+     * @param lockServerConnections whether to synchronize on each server
+     *                              connection while updating it
+     */
+    private void updateServerReading (boolean lockServerConnections)
+    {
+        for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort.values ())
+        {
+            if (lockServerConnections)
+            {
+                synchronized (serverConnection)
+                {
+                    updateServerReading (serverConnection);
+                }
+            }
+            else
+            {
+                updateServerReading (serverConnection);
+            }
+        }
+    }
+
+    private void updateServerReading (ProxyToServerConnection serverConnection)
+    {
+        if (this.isSaturated ())
+        {
+            serverConnection.stopReading ();
+        }
+        else
+        {
+            serverConnection.resumeReading ();
+        }
+    }
+
+    private void stopReadingIfSaturated (ProxyToServerConnection serverConnection)
+    {
+        if (serverConnection.isSaturated ())
+        {
+            LOG.info ("Connection to server became saturated, stopping reading");
+            stopReading ();
+        }
+    }
+
+    private void resumeReadingIfServersWriteable ()
     {
         boolean anyServersSaturated = false;
         for (ProxyToServerConnection otherServerConnection : serverConnectionsByHostAndPort.values ())
@@ -816,6 +1760,32 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         pipeline.addLast ("handler", this);
     }
 
+    /**
+     * Initialize the {@link ChannelPipeline} for a stream of an HTTP/2
+     * connection. Bytes, throttling and idleness are handled by the pipeline
+     * of the connection.
+     *
+     * @param pipeline
+     */
+    private void initStreamChannelPipeline (ChannelPipeline pipeline)
+    {
+        LOG.debug ("Configuring ChannelPipeline for HTTP/2 stream");
+
+        pipeline.addLast ("codec", new Http2StreamFrameToHttpObjectCodec (true));
+        pipeline.addLast ("requestReadMonitor", requestReadMonitor);
+
+        int numberOfBytesToBuffer = proxyServer.getFiltersSource ().getMaximumRequestBufferSizeInBytes ();
+        if (numberOfBytesToBuffer > 0)
+        {
+            aggregateContentForFiltering (pipeline, numberOfBytesToBuffer);
+        }
+
+        pipeline.addLast ("emptyBufferFilter", EmptyBufferFilter.INSTANCE);
+        pipeline.addLast ("responseWrittenMonitor", responseWrittenMonitor);
+
+        pipeline.addLast ("handler", this);
+    }
+
     /**
      * This method takes care of closing client to proxy and/or proxy to server
      * connections after finishing a write.
@@ -1271,6 +2241,27 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         return respondWithShortCircuitResponse (response);
     }
 
+    /**
+     * Tells the client of an HTTP/2 stream that its request is for a server other than the one its connection was
+     * established for, so that it opens a connection of its own for that server (RFC 7540, section 9.1.2).
+     *
+     * @param httpRequest the HttpRequest that is resulting in the Misdirected Request response
+     * @return true if the connection will be kept open, or false if it will be disconnected
+     */
+    private boolean writeMisdirectedRequest (HttpRequest httpRequest)
+    {
+        String body = "Misdirected Request: " + httpRequest.uri ();
+        DefaultFullHttpResponse response = responseFor (HttpVersion.HTTP_1_1, HttpResponseStatus.MISDIRECTED_REQUEST, body);
+
+        if (ProxyUtils.isHEAD (httpRequest))
+        {
+            // don't allow any body content in response to a HEAD request
+            response.content ().clear ();
+        }
+
+        return respondWithShortCircuitResponse (response);
+    }
+
     /**
      * Tells the client that the connection to the server, or possibly to some intermediary service (such as DNS), timed out.
      * If the Gateway Timeout is a response to an HTTP HEAD request, the response will contain no body, but the
@@ -1309,6 +2300,15 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         // we are sending a response to the client, so we are done handling this request
         this.currentRequest = null;
 
+        // the request was not answered by the server, so identical requests that were collapsed into it are sent on their own
+        CollapsedForwarding.Flight flight = leadingFlight;
+        if (flight != null && currentFilters == leadingFlightFilters)
+        {
+            leadingFlight = null;
+            flight.abandon ();
+        }
+        leaveFollowedFlight ();
+
         HttpResponse filteredResponse = (HttpResponse) currentFilters.proxyToClientResponse (httpResponse);
         if (filteredResponse == null)
         {
@@ -1316,6 +2316,9 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             return false;
         }
 
+        // the filter may have replaced the response, for example with a stored one when the server could not be reached
+        httpResponse = filteredResponse;
+
         // allow short-circuit messages to close the connection. normally the Connection header would be stripped when modifying
         // the message for proxying, so save the keep-alive status before the modifications are made.
         boolean isKeepAlive = HttpUtil.isKeepAlive (httpResponse);
@@ -1414,6 +2417,42 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         return hostAndPort;
     }
 
+    /**
+     * Determines whether a request on an HTTP/2 stream is for the server of
+     * the CONNECT that the stream's connection was MITM'd for. Streams are
+     * pinned to that server, since the filters, authentication and MITM
+     * decision of the CONNECT were only applied to it. Requests without an
+     * authority are for that server, and an authority without a port has the
+     * port of the CONNECT.
+     *
+     * @param httpRequest
+     * @return
+     */
+    private boolean isForConnectedServer (HttpRequest httpRequest)
+    {
+        String connectHostAndPort = http2Connection.http2ServerHostAndPort;
+        if (connectHostAndPort == null)
+        {
+            return false;
+        }
+        String authority = identifyHostAndPort (httpRequest);
+        if (StringUtils.isBlank (authority))
+        {
+            return true;
+        }
+        try
+        {
+            HostAndPort connect = HostAndPort.fromString (connectHostAndPort).withDefaultPort (443);
+            HostAndPort requested = HostAndPort.fromString (authority).withDefaultPort (connect.getPort ());
+            return connect.getHost ().equalsIgnoreCase (requested.getHost ()) && connect.getPort () == requested.getPort ();
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOG.debug ("Invalid authority {}", authority);
+            return false;
+        }
+    }
+
     /**
      * Write an empty buffer at the end of a chunked transfer. We need to do
      * this to handle the way Netty creates HttpChunks from responses that
@@ -1439,6 +2478,14 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
         return mitming;
     }
 
+    /**
+     * @return true if the client negotiated HTTP/2 on this connection
+     */
+    public boolean isHttp2 ()
+    {
+        return http2;
+    }
+
     protected void setMitming (boolean isMitming)
     {
         this.mitming = isMitming;
@@ -1570,4 +2617,68 @@ public class ClientToProxyConnection extends ProxyConnection <HttpRequest>
             return new FlowContext (this);
         }
     }
+
+    /**
+     * Holds on to what is read from the client while the TLS handshake of a
+     * MITM'd connection completes, so that nothing is decoded before the
+     * connection has switched to the protocol negotiated with ALPN.
+     */
+    private static class HandshakeReadBuffer extends ChannelInboundHandlerAdapter
+    {
+        private final List <Object> bufferedMessages = new ArrayList <> ();
+        private volatile ChannelHandlerContext ctx;
+
+        @Override
+        public void handlerAdded (ChannelHandlerContext ctx)
+        {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void channelRead (ChannelHandlerContext ctx, Object msg)
+        {
+            bufferedMessages.add (msg);
+        }
+
+        @Override
+        public void channelReadComplete (ChannelHandlerContext ctx)
+        {
+            if (bufferedMessages.isEmpty ())
+            {
+                ctx.fireChannelReadComplete ();
+            }
+        }
+
+        /**
+         * Passes on what was read so far and removes the buffer. Must be
+         * called on the channel's event loop.
+         */
+        void flushAndRemove ()
+        {
+            if (ctx.isRemoved ())
+            {
+                return;
+            }
+            if (!bufferedMessages.isEmpty ())
+            {
+                for (Object msg : bufferedMessages)
+                {
+                    ctx.fireChannelRead (msg);
+                }
+                bufferedMessages.clear ();
+                ctx.fireChannelReadComplete ();
+            }
+            ctx.pipeline ().remove (this);
+        }
+
+        @Override
+        public void handlerRemoved (ChannelHandlerContext ctx)
+        {
+            for (Object msg : bufferedMessages)
+            {
+                ReferenceCountUtil.release (msg);
+            }
+            bufferedMessages.clear ();
+        }
+    }
 }
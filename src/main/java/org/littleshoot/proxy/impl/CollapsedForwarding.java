@@ -0,0 +1,318 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.extras.ResponseCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Coalesces concurrent identical GET requests into one request to the server, so that a burst of requests for the same
+ * resource, such as for a popular download or after a cache was emptied, does not reach the server all at once. The
+ * first request is sent and leads a {@link Flight}. Identical requests that arrive before its response are held as
+ * its followers, and the response is relayed to them as it is written to the leader's client. Its chunks are shared
+ * with {@link HttpContent#retainedDuplicate()} rather than copied.
+ * </p>
+ *
+ * <p>
+ * A response is only relayed if a shared cache may store it (see
+ * {@link ResponseCache#isStorableInSharedCache(HttpRequest, HttpResponse)}), it does not set cookies, and it does not
+ * vary on request headers in which a follower's request differs from the leader's. Otherwise, and if the leader's
+ * request fails before its response arrives, the followers' requests are sent on their own. Requests that carry
+ * cookies or credentials are never collapsed, since a server may personalize its response to them without marking it
+ * private.
+ * </p>
+ */
+class CollapsedForwarding
+{
+    private static final Logger LOG = LoggerFactory.getLogger (CollapsedForwarding.class);
+
+    /**
+     * Request headers that make a request belong to its client alone: its response depends on the client's
+     * credentials, on what the client already has, or on the part of the resource it asks for.
+     */
+    private static final List <CharSequence> UNCOLLAPSIBLE_REQUEST_HEADERS = Arrays.<CharSequence> asList (HttpHeaderNames.AUTHORIZATION, HttpHeaderNames.PROXY_AUTHORIZATION, HttpHeaderNames.COOKIE, HttpHeaderNames.RANGE, HttpHeaderNames.IF_MATCH, HttpHeaderNames.IF_NONE_MATCH, HttpHeaderNames.IF_MODIFIED_SINCE, HttpHeaderNames.IF_UNMODIFIED_SINCE, HttpHeaderNames.IF_RANGE, HttpHeaderNames.UPGRADE, HttpHeaderNames.EXPECT);
+
+    /**
+     * The flights that may still be joined, by the server and URI of their request.
+     */
+    private final ConcurrentMap <String, Flight> flights = new ConcurrentHashMap <> ();
+
+    private final AtomicLong collapsedRequests = new AtomicLong (0);
+
+    /**
+     * @return the number of requests that were answered with the response to another request
+     */
+    long getCollapsedRequests ()
+    {
+        return collapsedRequests.get ();
+    }
+
+    /**
+     * Determines whether a request may be coalesced with identical ones, judging by the request as the client sent it.
+     *
+     * @param httpRequest the request, before it was filtered
+     * @return true if the request may lead or follow a flight
+     */
+    static boolean isCollapsible (HttpRequest httpRequest)
+    {
+        if (!HttpMethod.GET.equals (httpRequest.method ()) || !HttpVersion.HTTP_1_1.equals (httpRequest.protocolVersion ()))
+        {
+            return false;
+        }
+        if (HttpUtil.isTransferEncodingChunked (httpRequest) || HttpUtil.getContentLength (httpRequest, 0L) != 0L)
+        {
+            return false;
+        }
+        for (CharSequence headerName : UNCOLLAPSIBLE_REQUEST_HEADERS)
+        {
+            if (httpRequest.headers ().contains (headerName))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joins the flight of an identical request, or starts a new one.
+     *
+     * @param key         identifies the server and URI of the request
+     * @param connection  the connection the request was read from
+     * @param httpRequest the request, as it will be sent to the server
+     * @return the flight the request follows, or the new flight that it leads
+     */
+    Flight join (String key, ClientToProxyConnection connection, HttpRequest httpRequest)
+    {
+        Flight flight = new Flight (key, connection, httpRequest);
+        while (true)
+        {
+            Flight existing = flights.putIfAbsent (key, flight);
+            if (existing == null)
+            {
+                return flight;
+            }
+            if (existing.follow (connection, httpRequest))
+            {
+                LOG.debug ("Collapsing request for {} into one already sent", key);
+                return existing;
+            }
+            // the existing flight is being answered, so requests that arrive now start a flight of their own
+            if (flights.replace (key, existing, flight))
+            {
+                return flight;
+            }
+        }
+    }
+
+    /**
+     * A request that was sent to the server, and the identical requests that wait for its response.
+     */
+    class Flight
+    {
+        private final String key;
+        private final ClientToProxyConnection leader;
+        private final HttpRequest leaderRequest;
+        private final List <Follower> followers = new ArrayList <> ();
+
+        /**
+         * True once the response has arrived or the request failed, after which no more followers can join.
+         */
+        private boolean closed;
+
+        /**
+         * True once the response is being relayed to the followers.
+         */
+        private boolean relaying;
+
+        private Flight (String key, ClientToProxyConnection leader, HttpRequest httpRequest)
+        {
+            this.key = key;
+            this.leader = leader;
+            this.leaderRequest = new DefaultHttpRequest (httpRequest.protocolVersion (), httpRequest.method (), httpRequest.uri (), new DefaultHttpHeaders ().set (httpRequest.headers ()));
+        }
+
+        boolean isLedBy (ClientToProxyConnection connection)
+        {
+            return leader == connection;
+        }
+
+        private synchronized boolean follow (ClientToProxyConnection connection, HttpRequest httpRequest)
+        {
+            if (closed)
+            {
+                return false;
+            }
+            followers.add (new Follower (connection, httpRequest));
+            return true;
+        }
+
+        /**
+         * Stops relaying the response to a follower, which is disconnecting or was answered otherwise.
+         */
+        synchronized void leave (ClientToProxyConnection connection)
+        {
+            Iterator <Follower> iterator = followers.iterator ();
+            while (iterator.hasNext ())
+            {
+                if (iterator.next ().connection == connection)
+                {
+                    iterator.remove ();
+                }
+            }
+        }
+
+        /**
+         * Relays part of the leader's response to the followers. Called by the leader just before it writes the part
+         * to its own client, so that the part is still referenced while it is duplicated.
+         *
+         * @param httpObject the part of the response, after the leader's filters
+         */
+        void relay (HttpObject httpObject)
+        {
+            List <Follower> unanswered = new ArrayList <> ();
+            List <Follower> recipients;
+            synchronized (this)
+            {
+                if (httpObject instanceof HttpResponse && !closed)
+                {
+                    closed = true;
+                    flights.remove (key, this);
+                    HttpResponse response = (HttpResponse) httpObject;
+                    boolean shareable = isShareable (response);
+                    Iterator <Follower> iterator = followers.iterator ();
+                    while (iterator.hasNext ())
+                    {
+                        Follower follower = iterator.next ();
+                        if (!shareable || !hasSameVariant (response, follower.requestHeaders))
+                        {
+                            iterator.remove ();
+                            unanswered.add (follower);
+                        }
+                    }
+                    relaying = true;
+                    collapsedRequests.addAndGet (followers.size ());
+                    LOG.debug ("Relaying response for {} to {} identical requests, sending {} on their own", key, followers.size (), unanswered.size ());
+                }
+                recipients = relaying ? new ArrayList <> (followers) : new ArrayList <Follower> ();
+                if (ProxyUtils.isLastChunk (httpObject))
+                {
+                    followers.clear ();
+                }
+            }
+            for (Follower follower : unanswered)
+            {
+                follower.connection.forwardCollapsedRequest ();
+            }
+            for (Follower follower : recipients)
+            {
+                follower.connection.relayCollapsedResponse (duplicate (httpObject));
+            }
+        }
+
+        /**
+         * Gives up on the flight, because the leader's request failed or its client went away. Followers that have not
+         * received any of the response yet send their requests on their own, and the others are disconnected.
+         */
+        void abandon ()
+        {
+            List <Follower> abandoned;
+            boolean wasRelaying;
+            synchronized (this)
+            {
+                closed = true;
+                flights.remove (key, this);
+                abandoned = new ArrayList <> (followers);
+                followers.clear ();
+                wasRelaying = relaying;
+            }
+            if (!abandoned.isEmpty ())
+            {
+                LOG.debug ("Abandoned request for {} with {} identical requests waiting", key, abandoned.size ());
+            }
+            for (Follower follower : abandoned)
+            {
+                if (wasRelaying)
+                {
+                    follower.connection.collapsedResponseAbandoned ();
+                }
+                else
+                {
+                    follower.connection.forwardCollapsedRequest ();
+                }
+            }
+        }
+
+        /**
+         * @return true if the response to the leader's request may be sent to the clients of identical requests
+         */
+        private boolean isShareable (HttpResponse response)
+        {
+            return ResponseCache.isStorableInSharedCache (leaderRequest, response) && !response.headers ().contains (HttpHeaderNames.SET_COOKIE);
+        }
+
+        /**
+         * @return true if a follower's request has the same values as the leader's for the headers that the response
+         * varies on
+         */
+        private boolean hasSameVariant (HttpResponse response, HttpHeaders requestHeaders)
+        {
+            for (String varyHeaderName : ProxyUtils.getAllCommaSeparatedHeaderValues (HttpHeaderNames.VARY.toString (), response))
+            {
+                if (!leaderRequest.headers ().getAll (varyHeaderName).equals (requestHeaders.getAll (varyHeaderName)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return a copy of part of a response for a follower, with headers of its own and a body that shares the
+     * leader's buffer
+     */
+    private static HttpObject duplicate (HttpObject httpObject)
+    {
+        if (httpObject instanceof FullHttpResponse)
+        {
+            return ((FullHttpResponse) httpObject).retainedDuplicate ();
+        }
+        else if (httpObject instanceof HttpResponse)
+        {
+            return ProxyUtils.duplicateHttpResponse ((HttpResponse) httpObject);
+        }
+        return ((HttpContent) httpObject).retainedDuplicate ();
+    }
+
+    private static class Follower
+    {
+        private final ClientToProxyConnection connection;
+        private final HttpHeaders requestHeaders;
+
+        private Follower (ClientToProxyConnection connection, HttpRequest httpRequest)
+        {
+            this.connection = connection;
+            this.requestHeaders = new DefaultHttpHeaders ().set (httpRequest.headers ());
+        }
+    }
+}
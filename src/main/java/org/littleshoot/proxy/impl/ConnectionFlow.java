@@ -28,9 +28,9 @@ class ConnectionFlow
      * @param clientConnection
      * @param serverConnection
      * @param connectLock      an object that's shared by {@link ConnectionFlow} and
-     *                         {@link ProxyToServerConnection} and that is used for
-     *                         synchronizing the reader and writer threads that are both
-     *                         involved during the establishing of a connection.
+     *                         {@link ProxyToServerConnection} and that guards the
+     *                         messages queued for writing while the connection is
+     *                         being established.
      */
     ConnectionFlow (ClientToProxyConnection clientConnection, ProxyToServerConnection serverConnection, Object connectLock)
     {
@@ -172,7 +172,10 @@ class ConnectionFlow
 
     /**
      * Called when the flow is complete and successful. Notifies the
-     * {@link ProxyToServerConnection} that we succeeded.
+     * {@link ProxyToServerConnection} that we succeeded and then writes out
+     * whatever was queued while we were connecting. This happens on the event
+     * loop that completed the last step, while holding the connect lock, so
+     * that queued messages go out ahead of anything written afterwards.
      */
     void succeed ()
     {
@@ -180,7 +183,7 @@ class ConnectionFlow
         {
             serverConnection.getLOG ().debug ("Connection flow completed successfully: {}", currentStep);
             serverConnection.connectionSucceeded (!suppressInitialRequest);
-            notifyThreadsWaitingForConnection ();
+            serverConnection.writePendingMessages ();
         }
     }
 
@@ -193,42 +196,49 @@ class ConnectionFlow
     void fail (final Throwable cause)
     {
         final ConnectionState lastStateBeforeFailure = serverConnection.getCurrentState ();
-        serverConnection.disconnect ().addListener (new GenericFutureListener ()
+        Future <Void> disconnectFuture = serverConnection.disconnect ();
+        if (disconnectFuture == null)
+        {
+            // we failed before a channel was opened (e.g. while resolving the server's address), so there is nothing
+            // to disconnect
+            notifyClientOfFailure (lastStateBeforeFailure, cause);
+            return;
+        }
+        disconnectFuture.addListener (new GenericFutureListener ()
         {
             @Override
             public void operationComplete (Future future) throws Exception
             {
-                synchronized (connectLock)
-                {
-                    if (!clientConnection.serverConnectionFailed (serverConnection, lastStateBeforeFailure, cause))
-                    {
-                        // the connection to the server failed and we are not retrying, so transition to the
-                        // DISCONNECTED state
-                        serverConnection.become (ConnectionState.DISCONNECTED);
-
-                        // We are not retrying our connection, let anyone waiting for a connection know that we're done
-                        notifyThreadsWaitingForConnection ();
-                    }
-                }
+                notifyClientOfFailure (lastStateBeforeFailure, cause);
             }
         });
     }
 
     /**
-     * Like {@link #fail(Throwable)} but with no cause.
+     * Lets the {@link ClientToProxyConnection} know that our connection
+     * failed, and cleans up if it isn't going to retry.
      */
-    void fail ()
+    private void notifyClientOfFailure (ConnectionState lastStateBeforeFailure, Throwable cause)
     {
-        fail (null);
+        synchronized (connectLock)
+        {
+            if (!clientConnection.serverConnectionFailed (serverConnection, lastStateBeforeFailure, cause))
+            {
+                // the connection to the server failed and we are not retrying, so transition to the
+                // DISCONNECTED state
+                serverConnection.become (ConnectionState.DISCONNECTED);
+
+                // We are not retrying our connection, so nothing that was queued while connecting will be sent
+                serverConnection.discardPendingMessages ();
+            }
+        }
     }
 
     /**
-     * Once we've finished recording our connection and written our initial
-     * request, we can notify anyone who is waiting on the connection that it's
-     * okay to proceed.
+     * Like {@link #fail(Throwable)} but with no cause.
      */
-    private void notifyThreadsWaitingForConnection ()
+    void fail ()
     {
-        connectLock.notifyAll ();
+        fail (null);
     }
 }
@@ -0,0 +1,85 @@
+package org.littleshoot.proxy.impl;
+
+/**
+ * Configuration object for the proxy's upstream connection pool. When a pool is configured, idle proxy-to-server
+ * connections are not closed when the client that opened them disconnects; instead they are parked in a server-wide
+ * pool, keyed by host:port and chained proxy, from which any other client connection can check them out.
+ */
+public class ConnectionPoolConfiguration
+{
+    /**
+     * The default maximum number of idle connections to keep per host:port and chained proxy.
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+
+    /**
+     * The default maximum number of open connections (idle plus checked out) per host:port and chained proxy.
+     */
+    public static final int DEFAULT_MAX_ACTIVE_PER_HOST = 64;
+
+    /**
+     * The default time, in seconds, after which an idle pooled connection is evicted.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+
+    private int maxIdlePerHost = DEFAULT_MAX_IDLE_PER_HOST;
+    private int maxActivePerHost = DEFAULT_MAX_ACTIVE_PER_HOST;
+    private int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+
+    public int getMaxIdlePerHost ()
+    {
+        return maxIdlePerHost;
+    }
+
+    /**
+     * Set the maximum number of idle connections the pool keeps for a single host:port and chained proxy. Connections
+     * released while the pool is already holding this many idle connections for the host are closed. The default value
+     * is {@link #DEFAULT_MAX_IDLE_PER_HOST}.
+     *
+     * @param maxIdlePerHost maximum number of idle connections per host
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withMaxIdlePerHost (int maxIdlePerHost)
+    {
+        this.maxIdlePerHost = maxIdlePerHost;
+        return this;
+    }
+
+    public int getMaxActivePerHost ()
+    {
+        return maxActivePerHost;
+    }
+
+    /**
+     * Set the maximum number of connections per host:port and chained proxy that the pool manages, counting both idle
+     * connections and connections currently checked out by a client. A request that needs a new connection beyond this
+     * limit waits until a connection to the host is closed or returned to the pool. CONNECT tunnels are not pooled and
+     * do not count against the limit. The default value is {@link #DEFAULT_MAX_ACTIVE_PER_HOST}.
+     *
+     * @param maxActivePerHost maximum number of pooled connections per host
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withMaxActivePerHost (int maxActivePerHost)
+    {
+        this.maxActivePerHost = maxActivePerHost;
+        return this;
+    }
+
+    public int getIdleTimeoutSeconds ()
+    {
+        return idleTimeoutSeconds;
+    }
+
+    /**
+     * Set the time, in seconds, after which a connection that has been sitting idle in the pool is closed. The default
+     * value is {@link #DEFAULT_IDLE_TIMEOUT_SECONDS}.
+     *
+     * @param idleTimeoutSeconds idle eviction timeout in seconds
+     * @return this connection pool configuration instance, for chaining
+     */
+    public ConnectionPoolConfiguration withIdleTimeoutSeconds (int idleTimeoutSeconds)
+    {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+}
@@ -2,6 +2,16 @@ package org.littleshoot.proxy.impl;
 
 enum ConnectionState
 {
+    /**
+     * Waiting for the server connection pool to allow another connection to the server.
+     */
+    AWAITING_CONNECTION_SLOT (true),
+
+    /**
+     * Resolving the address of the server before connecting to it.
+     */
+    RESOLVING (true),
+
     /**
      * Connection attempting to connect.
      */
@@ -1,5 +1,6 @@
 package org.littleshoot.proxy.impl;
 
+import com.google.common.net.HostAndPort;
 import io.netty.channel.ChannelFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
@@ -7,18 +8,22 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.littleshoot.proxy.ActivityTracker;
 import org.littleshoot.proxy.ChainedProxyManager;
-import org.littleshoot.proxy.DefaultHostResolver;
+import org.littleshoot.proxy.CachingHostResolver;
 import org.littleshoot.proxy.DnsSecServerResolver;
 import org.littleshoot.proxy.HostResolver;
 import org.littleshoot.proxy.HttpFilters;
@@ -28,6 +33,7 @@ import org.littleshoot.proxy.HttpProxyServer;
 import org.littleshoot.proxy.HttpProxyServerBootstrap;
 import org.littleshoot.proxy.MitmManager;
 import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.SelectiveMitmManager;
 import org.littleshoot.proxy.SslEngineSource;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
@@ -43,6 +49,7 @@ import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -109,6 +116,68 @@ public class DefaultHttpProxyServer implements HttpProxyServer
     private volatile int idleConnectionTimeout;
     private final HostResolver serverResolver;
     private volatile GlobalTrafficShapingHandler globalTrafficShapingHandler;
+    private final ConnectionPoolConfiguration connectionPoolConfiguration;
+
+    /**
+     * If true, TCP listeners are bound with SO_REUSEPORT, one per client-to-proxy worker loop.
+     */
+    private final boolean reusePort;
+
+    /**
+     * If true, TCP connections to servers are registered on the event loop of the client connection they serve.
+     */
+    private final boolean colocateEventLoops;
+
+    /**
+     * If true, CONNECT tunnels between colocated epoll channels relay data in kernel space with splice.
+     */
+    private final boolean spliceTunnels;
+
+    /**
+     * Configures the TLS session caches of handshakes with servers and counts resumed sessions, or null.
+     */
+    private final UpstreamSslSessionCache upstreamSslSessionCache;
+
+    /**
+     * Configures the TLS session caches and ticket keys of handshakes with clients and counts resumed sessions, or null.
+     */
+    private final ServerSslSessionCache serverSslSessionCache;
+
+    /**
+     * If true, non-MITM CONNECT tunnels read the client's TLS ClientHello before connecting to the server.
+     */
+    private final boolean clientHelloPeek;
+
+    /**
+     * Configures which requests are sent to servers with HTTP/2, or null to always use HTTP/1.1.
+     */
+    private final Http2UpstreamConfiguration http2UpstreamConfiguration;
+
+    /**
+     * Configures to which servers requests are pipelined, or null to send one request at a time.
+     */
+    private final PipeliningConfiguration pipeliningConfiguration;
+
+    /**
+     * Coalesces concurrent identical GET requests into one request to the server, or null if every request is sent on
+     * its own.
+     */
+    private final CollapsedForwarding collapsedForwarding;
+
+    /**
+     * Pool of idle proxy-to-server connections shared by all clients of this server, or null if pooling is disabled.
+     */
+    private final ServerConnectionPool serverConnectionPool;
+
+    /**
+     * The HTTP/2 connections to servers that are shared by all clients, or null if HTTP/2 is not used upstream.
+     */
+    private final Http2ServerConnectionPool http2ServerConnectionPool;
+
+    /**
+     * Decides which requests are pipelined to servers, or null if requests are sent one at a time.
+     */
+    private final ServerPipelining serverPipelining;
 
     /**
      * The alias or pseudonym for this proxy, used when adding the Via header.
@@ -218,8 +287,29 @@ public class DefaultHttpProxyServer implements HttpProxyServer
      * @param serverResolver              the {@link HostResolver} to use for resolving server addresses
      * @param readThrottleBytesPerSecond  read throttle bandwidth
      * @param writeThrottleBytesPerSecond write throttle bandwidth
+     * @param localAddress                local network interface for outgoing connections
+     * @param proxyAlias                  alias to use in Via headers
+     * @param connectionPoolConfiguration (optional) if specified, idle proxy-to-server connections are pooled
+     *                                    and shared between clients
+     * @param reusePort                   if true, bind one SO_REUSEPORT listener per client-to-proxy worker
+     *                                    loop instead of a single listener
+     * @param colocateEventLoops          if true, register TCP connections to servers on the event loop of
+     *                                    their client connection
+     * @param spliceTunnels               if true, relay CONNECT tunnels with splice where possible
+     * @param upstreamSslSessionCache     (optional) if specified, configures upstream TLS session caches and
+     *                                    counts resumed handshakes
+     * @param serverSslSessionCache       (optional) if specified, configures the TLS session caches and ticket
+     *                                    keys used when encrypting inbound connections
+     * @param clientHelloPeek             if true, read the TLS ClientHello of CONNECT tunnels before connecting
+     *                                    to the server
+     * @param http2UpstreamConfiguration  (optional) if specified, requests to servers that speak HTTP/2 share
+     *                                    connections as concurrent streams
+     * @param pipeliningConfiguration     (optional) if specified, idempotent requests are pipelined to the
+     *                                    servers it lists
+     * @param collapsedForwarding         if true, concurrent identical GET requests share one request to the
+     *                                    server
      */
-    private DefaultHttpProxyServer (ServerGroup serverGroup, TransportProtocol transportProtocol, InetSocketAddress requestedAddress, SslEngineSource sslEngineSource, boolean authenticateSslClients, ProxyAuthenticator proxyAuthenticator, ChainedProxyManager chainProxyManager, MitmManager mitmManager, HttpFiltersSource filtersSource, boolean transparent, int idleConnectionTimeout, Collection <ActivityTracker> activityTrackers, int connectTimeout, HostResolver serverResolver, long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond, InetSocketAddress localAddress, String proxyAlias)
+    private DefaultHttpProxyServer (ServerGroup serverGroup, TransportProtocol transportProtocol, InetSocketAddress requestedAddress, SslEngineSource sslEngineSource, boolean authenticateSslClients, ProxyAuthenticator proxyAuthenticator, ChainedProxyManager chainProxyManager, MitmManager mitmManager, HttpFiltersSource filtersSource, boolean transparent, int idleConnectionTimeout, Collection <ActivityTracker> activityTrackers, int connectTimeout, HostResolver serverResolver, long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond, InetSocketAddress localAddress, String proxyAlias, ConnectionPoolConfiguration connectionPoolConfiguration, boolean reusePort, boolean colocateEventLoops, boolean spliceTunnels, UpstreamSslSessionCache upstreamSslSessionCache, ServerSslSessionCache serverSslSessionCache, boolean clientHelloPeek, Http2UpstreamConfiguration http2UpstreamConfiguration, PipeliningConfiguration pipeliningConfiguration, boolean collapsedForwarding)
     {
         this.serverGroup = serverGroup;
         this.transportProtocol = transportProtocol;
@@ -263,6 +353,20 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         {
             this.proxyAlias = proxyAlias;
         }
+
+        this.connectionPoolConfiguration = connectionPoolConfiguration;
+        this.reusePort = reusePort;
+        this.colocateEventLoops = colocateEventLoops;
+        this.spliceTunnels = spliceTunnels;
+        this.upstreamSslSessionCache = upstreamSslSessionCache;
+        this.serverSslSessionCache = serverSslSessionCache;
+        this.clientHelloPeek = clientHelloPeek;
+        this.http2UpstreamConfiguration = http2UpstreamConfiguration;
+        this.pipeliningConfiguration = pipeliningConfiguration;
+        this.serverConnectionPool = connectionPoolConfiguration != null ? new ServerConnectionPool (connectionPoolConfiguration) : null;
+        this.http2ServerConnectionPool = http2UpstreamConfiguration != null ? new Http2ServerConnectionPool (this, http2UpstreamConfiguration) : null;
+        this.serverPipelining = pipeliningConfiguration != null ? new ServerPipelining (pipeliningConfiguration) : null;
+        this.collapsedForwarding = collapsedForwarding ? new CollapsedForwarding () : null;
     }
 
     /**
@@ -309,6 +413,33 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         return localAddress;
     }
 
+    ServerConnectionPool getServerConnectionPool ()
+    {
+        return serverConnectionPool;
+    }
+
+    Http2ServerConnectionPool getHttp2ServerConnectionPool ()
+    {
+        return http2ServerConnectionPool;
+    }
+
+    /**
+     * @return the policy that decides which requests are pipelined to servers, or null if requests are sent one at a
+     * time
+     */
+    ServerPipelining getServerPipelining ()
+    {
+        return serverPipelining;
+    }
+
+    /**
+     * @return the requests to servers that other clients can join, or null if collapsed forwarding is disabled
+     */
+    CollapsedForwarding getCollapsedForwarding ()
+    {
+        return collapsedForwarding;
+    }
+
     @Override
     public InetSocketAddress getListenAddress ()
     {
@@ -345,7 +476,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer
     @Override
     public HttpProxyServerBootstrap clone ()
     {
-        return new DefaultHttpProxyServerBootstrap (serverGroup, transportProtocol, new InetSocketAddress (requestedAddress.getAddress (), requestedAddress.getPort () == 0 ? 0 : requestedAddress.getPort () + 1), sslEngineSource, authenticateSslClients, proxyAuthenticator, chainProxyManager, mitmManager, filtersSource, transparent, idleConnectionTimeout, activityTrackers, connectTimeout, serverResolver, globalTrafficShapingHandler != null ? globalTrafficShapingHandler.getReadLimit () : 0, globalTrafficShapingHandler != null ? globalTrafficShapingHandler.getWriteLimit () : 0, localAddress, proxyAlias);
+        return new DefaultHttpProxyServerBootstrap (serverGroup, transportProtocol, new InetSocketAddress (requestedAddress.getAddress (), requestedAddress.getPort () == 0 ? 0 : requestedAddress.getPort () + 1), sslEngineSource, authenticateSslClients, proxyAuthenticator, chainProxyManager, mitmManager, filtersSource, transparent, idleConnectionTimeout, activityTrackers, connectTimeout, serverResolver, globalTrafficShapingHandler != null ? globalTrafficShapingHandler.getReadLimit () : 0, globalTrafficShapingHandler != null ? globalTrafficShapingHandler.getWriteLimit () : 0, localAddress, proxyAlias, connectionPoolConfiguration, reusePort, colocateEventLoops, spliceTunnels, upstreamSslSessionCache, serverSslSessionCache, clientHelloPeek, http2UpstreamConfiguration, pipeliningConfiguration, collapsedForwarding != null);
     }
 
     @Override
@@ -380,6 +511,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer
                 LOG.info ("Shutting down proxy server immediately (non-graceful)");
             }
 
+            if (serverConnectionPool != null)
+            {
+                serverConnectionPool.stop ();
+            }
+
             closeAllChannels (graceful);
 
             serverGroup.unregisterProxyServer (this, graceful);
@@ -466,7 +602,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer
 
     private void doStart ()
     {
-        ServerBootstrap serverBootstrap = new ServerBootstrap ().group (serverGroup.getClientToProxyAcceptorPoolForTransport (transportProtocol), serverGroup.getClientToProxyWorkerPoolForTransport (transportProtocol));
+        ServerBootstrap serverBootstrap = new ServerBootstrap ();
 
         ChannelInitializer <Channel> initializer = new ChannelInitializer <Channel> ()
         {
@@ -475,28 +611,95 @@ public class DefaultHttpProxyServer implements HttpProxyServer
                 new ClientToProxyConnection (DefaultHttpProxyServer.this, sslEngineSource, authenticateSslClients, ch.pipeline (), globalTrafficShapingHandler);
             }
         };
+        boolean bindReusePortListeners = false;
         switch (transportProtocol)
         {
             case TCP:
-                LOG.info ("Proxy listening with TCP transport");
+                final ChannelTransport channelTransport = getChannelTransportFor (TransportProtocol.TCP);
+                LOG.info ("Proxy listening with TCP transport ({})", channelTransport);
                 serverBootstrap.channelFactory (new ChannelFactory <ServerChannel> ()
                 {
                     @Override
                     public ServerChannel newChannel ()
                     {
-                        return new NioServerSocketChannel ();
+                        return channelTransport.newServerSocketChannel ();
                     }
                 });
+                if (isSplicingTunnels ())
+                {
+                    // splice requires level-triggered epoll, which can only be set before the channel is registered
+                    serverBootstrap.childOption (EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+                }
+                else if (spliceTunnels)
+                {
+                    LOG.warn ("Splicing tunnels requires the {} transport and colocated event loops, relaying tunnels through the proxy instead", ChannelTransport.EPOLL);
+                }
+                if (reusePort)
+                {
+                    if (channelTransport == ChannelTransport.EPOLL)
+                    {
+                        serverBootstrap.option (EpollChannelOption.SO_REUSEPORT, true);
+                        bindReusePortListeners = true;
+                    }
+                    else
+                    {
+                        LOG.warn ("SO_REUSEPORT requires the {} transport, binding a single listener instead", ChannelTransport.EPOLL);
+                    }
+                }
                 break;
             case UDT:
                 LOG.info ("Proxy listening with UDT transport");
                 serverBootstrap.channelFactory (NioUdtProvider.BYTE_ACCEPTOR).option (ChannelOption.SO_BACKLOG, 10).option (ChannelOption.SO_REUSEADDR, true);
+                if (reusePort)
+                {
+                    LOG.warn ("SO_REUSEPORT is not supported with UDT, binding a single listener instead");
+                }
                 break;
             default:
                 throw new UnknownTransportProtocolException (transportProtocol);
         }
         serverBootstrap.childHandler (initializer);
-        ChannelFuture future = serverBootstrap.bind (requestedAddress).addListener (new ChannelFutureListener ()
+
+        if (bindReusePortListeners)
+        {
+            // One listener per worker loop, each accepting on and serving its connections from that loop. The first
+            // listener determines the actual port, in case port 0 was requested.
+            int listeners = 0;
+            for (EventExecutor workerLoop : serverGroup.getClientToProxyWorkerPoolForTransport (transportProtocol))
+            {
+                EventLoop eventLoop = (EventLoop) workerLoop;
+                Channel listener = bind (serverBootstrap.clone ().group (eventLoop, eventLoop), listeners == 0 ? requestedAddress : boundAddress);
+                if (listeners == 0)
+                {
+                    this.boundAddress = (InetSocketAddress) listener.localAddress ();
+                }
+                listeners++;
+            }
+            LOG.info ("Bound {} SO_REUSEPORT listeners", listeners);
+        }
+        else
+        {
+            serverBootstrap.group (serverGroup.getClientToProxyAcceptorPoolForTransport (transportProtocol), serverGroup.getClientToProxyWorkerPoolForTransport (transportProtocol));
+            this.boundAddress = (InetSocketAddress) bind (serverBootstrap, requestedAddress).localAddress ();
+        }
+        LOG.info ("Proxy started at address: " + this.boundAddress);
+
+        if (serverConnectionPool != null)
+        {
+            serverConnectionPool.start (getProxyToServerWorkerFor (TransportProtocol.TCP));
+        }
+
+        Runtime.getRuntime ().addShutdownHook (jvmShutdownHook);
+    }
+
+    /**
+     * Binds a listener to the given address and registers it, so that it is closed when the proxy stops.
+     *
+     * @return the bound server channel
+     */
+    private Channel bind (ServerBootstrap serverBootstrap, InetSocketAddress address)
+    {
+        ChannelFuture future = serverBootstrap.bind (address).addListener (new ChannelFutureListener ()
         {
             @Override
             public void operationComplete (ChannelFuture future) throws Exception
@@ -513,11 +716,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         {
             throw new RuntimeException (cause);
         }
-
-        this.boundAddress = ((InetSocketAddress) future.channel ().localAddress ());
-        LOG.info ("Proxy started at address: " + this.boundAddress);
-
-        Runtime.getRuntime ().addShutdownHook (jvmShutdownHook);
+        return future.channel ();
     }
 
     protected ChainedProxyManager getChainProxyManager ()
@@ -535,6 +734,16 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         return sslEngineSource;
     }
 
+    protected UpstreamSslSessionCache getUpstreamSslSessionCache ()
+    {
+        return upstreamSslSessionCache;
+    }
+
+    protected ServerSslSessionCache getServerSslSessionCache ()
+    {
+        return serverSslSessionCache;
+    }
+
     protected ProxyAuthenticator getProxyAuthenticator ()
     {
         return proxyAuthenticator;
@@ -560,6 +769,83 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         return serverGroup.getProxyToServerWorkerPoolForTransport (transportProtocol);
     }
 
+    /**
+     * Determines whether a connection to a server over the given transport protocol is registered on the event loop
+     * of its client connection. This requires that both the client and the server connection use TCP, so that the
+     * channels share a transport.
+     *
+     * @param serverTransportProtocol transport protocol of the connection to the server (or chained proxy)
+     * @return true if the server connection shares its client connection's event loop
+     */
+    boolean colocatesEventLoopsFor (TransportProtocol serverTransportProtocol)
+    {
+        return colocateEventLoops && transportProtocol == TransportProtocol.TCP && serverTransportProtocol == TransportProtocol.TCP;
+    }
+
+    /**
+     * Determines whether CONNECT tunnels may be relayed with splice. This requires the epoll transport and colocated
+     * event loops, since splice only works between epoll channels on the same event loop.
+     *
+     * @return true if tunnels are spliced where the channels allow it
+     */
+    boolean isSplicingTunnels ()
+    {
+        return spliceTunnels && colocatesEventLoopsFor (TransportProtocol.TCP) && getChannelTransportFor (TransportProtocol.TCP) == ChannelTransport.EPOLL;
+    }
+
+    /**
+     * @return true if CONNECT tunnels that are not MITM'd read the client's TLS ClientHello before connecting to the
+     *         server
+     */
+    boolean isPeekingClientHello ()
+    {
+        return clientHelloPeek;
+    }
+
+    /**
+     * Determines whether a CONNECT is intercepted as a man in the middle. That requires a {@link MitmManager}, which may
+     * choose per connection if it is a {@link SelectiveMitmManager}.
+     *
+     * @param serverHostAndPort the "host:port" the client asked to connect to
+     * @param connectRequest    the CONNECT request
+     * @return true if the connection is MITM'd, false if it is tunneled
+     */
+    boolean shouldMitm (String serverHostAndPort, HttpRequest connectRequest)
+    {
+        if (mitmManager == null)
+        {
+            return false;
+        }
+        if (!(mitmManager instanceof SelectiveMitmManager))
+        {
+            return true;
+        }
+        HostAndPort hostAndPort = HostAndPort.fromString (serverHostAndPort);
+        return ((SelectiveMitmManager) mitmManager).shouldMitm (hostAndPort.getHost (), hostAndPort.getPortOrDefault (443), connectRequest);
+    }
+
+    protected ChannelTransport getChannelTransportFor (TransportProtocol transportProtocol)
+    {
+        return serverGroup.getChannelTransportForProtocol (transportProtocol);
+    }
+
+    /**
+     * @return the executor on which SSLEngines run their delegated handshake tasks, or null to run them on the event
+     *         loops
+     */
+    protected Executor getHandshakeExecutor ()
+    {
+        return serverGroup.getHandshakeExecutor ();
+    }
+
+    /**
+     * @return the ServerGroup whose threads this proxy runs on
+     */
+    public ServerGroup getServerGroup ()
+    {
+        return serverGroup;
+    }
+
     // TODO: refactor bootstrap into a separate class
     private static class DefaultHttpProxyServerBootstrap implements HttpProxyServerBootstrap
     {
@@ -579,7 +865,7 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         private int idleConnectionTimeout = 70;
         private final Collection <ActivityTracker> activityTrackers = new ConcurrentLinkedQueue <ActivityTracker> ();
         private int connectTimeout = 40000;
-        private HostResolver serverResolver = new DefaultHostResolver ();
+        private HostResolver serverResolver = new CachingHostResolver ();
         private long readThrottleBytesPerSecond;
         private long writeThrottleBytesPerSecond;
         private InetSocketAddress localAddress;
@@ -587,12 +873,24 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         private int clientToProxyAcceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
         private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
         private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+        private ChannelTransport channelTransport = ChannelTransport.NIO;
+        private int handshakeThreads = ServerGroup.DEFAULT_HANDSHAKE_THREADS;
+        private ConnectionPoolConfiguration connectionPoolConfiguration = null;
+        private boolean reusePort = false;
+        private boolean colocateEventLoops = false;
+        private boolean spliceTunnels = false;
+        private UpstreamSslSessionCache upstreamSslSessionCache = null;
+        private ServerSslSessionCache serverSslSessionCache = null;
+        private boolean clientHelloPeek = false;
+        private Http2UpstreamConfiguration http2UpstreamConfiguration = null;
+        private PipeliningConfiguration pipeliningConfiguration = null;
+        private boolean collapsedForwarding = false;
 
         private DefaultHttpProxyServerBootstrap ()
         {
         }
 
-        private DefaultHttpProxyServerBootstrap (ServerGroup serverGroup, TransportProtocol transportProtocol, InetSocketAddress requestedAddress, SslEngineSource sslEngineSource, boolean authenticateSslClients, ProxyAuthenticator proxyAuthenticator, ChainedProxyManager chainProxyManager, MitmManager mitmManager, HttpFiltersSource filtersSource, boolean transparent, int idleConnectionTimeout, Collection <ActivityTracker> activityTrackers, int connectTimeout, HostResolver serverResolver, long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond, InetSocketAddress localAddress, String proxyAlias)
+        private DefaultHttpProxyServerBootstrap (ServerGroup serverGroup, TransportProtocol transportProtocol, InetSocketAddress requestedAddress, SslEngineSource sslEngineSource, boolean authenticateSslClients, ProxyAuthenticator proxyAuthenticator, ChainedProxyManager chainProxyManager, MitmManager mitmManager, HttpFiltersSource filtersSource, boolean transparent, int idleConnectionTimeout, Collection <ActivityTracker> activityTrackers, int connectTimeout, HostResolver serverResolver, long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond, InetSocketAddress localAddress, String proxyAlias, ConnectionPoolConfiguration connectionPoolConfiguration, boolean reusePort, boolean colocateEventLoops, boolean spliceTunnels, UpstreamSslSessionCache upstreamSslSessionCache, ServerSslSessionCache serverSslSessionCache, boolean clientHelloPeek, Http2UpstreamConfiguration http2UpstreamConfiguration, PipeliningConfiguration pipeliningConfiguration, boolean collapsedForwarding)
         {
             this.serverGroup = serverGroup;
             this.transportProtocol = transportProtocol;
@@ -616,6 +914,16 @@ public class DefaultHttpProxyServer implements HttpProxyServer
             this.writeThrottleBytesPerSecond = writeThrottleBytesPerSecond;
             this.localAddress = localAddress;
             this.proxyAlias = proxyAlias;
+            this.connectionPoolConfiguration = connectionPoolConfiguration;
+            this.reusePort = reusePort;
+            this.colocateEventLoops = colocateEventLoops;
+            this.spliceTunnels = spliceTunnels;
+            this.upstreamSslSessionCache = upstreamSslSessionCache;
+            this.serverSslSessionCache = serverSslSessionCache;
+            this.clientHelloPeek = clientHelloPeek;
+            this.http2UpstreamConfiguration = http2UpstreamConfiguration;
+            this.pipeliningConfiguration = pipeliningConfiguration;
+            this.collapsedForwarding = collapsedForwarding;
         }
 
         private DefaultHttpProxyServerBootstrap (Properties props)
@@ -624,6 +932,12 @@ public class DefaultHttpProxyServer implements HttpProxyServer
             this.transparent = ProxyUtils.extractBooleanDefaultFalse (props, "transparent");
             this.idleConnectionTimeout = ProxyUtils.extractInt (props, "idle_connection_timeout");
             this.connectTimeout = ProxyUtils.extractInt (props, "connect_timeout", 0);
+            this.reusePort = ProxyUtils.extractBooleanDefaultFalse (props, "reuse_port");
+            if (reusePort)
+            {
+                // SO_REUSEPORT listeners are only bound with epoll, which the group falls back from where unavailable
+                this.channelTransport = ChannelTransport.EPOLL;
+            }
         }
 
         @Override
@@ -741,11 +1055,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer
         {
             if (useDnsSec)
             {
-                this.serverResolver = new DnsSecServerResolver ();
+                this.serverResolver = new CachingHostResolver (new DnsSecServerResolver ());
             }
             else
             {
-                this.serverResolver = new DefaultHostResolver ();
+                this.serverResolver = new CachingHostResolver ();
             }
             return this;
         }
@@ -805,6 +1119,88 @@ public class DefaultHttpProxyServer implements HttpProxyServer
             this.clientToProxyAcceptorThreads = configuration.getAcceptorThreads ();
             this.clientToProxyWorkerThreads = configuration.getClientToProxyWorkerThreads ();
             this.proxyToServerWorkerThreads = configuration.getProxyToServerWorkerThreads ();
+            if (configuration.getChannelTransport () != null)
+            {
+                this.channelTransport = configuration.getChannelTransport ();
+            }
+            this.handshakeThreads = configuration.getHandshakeThreads ();
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withChannelTransport (ChannelTransport channelTransport)
+        {
+            this.channelTransport = channelTransport;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withConnectionPoolConfiguration (ConnectionPoolConfiguration configuration)
+        {
+            this.connectionPoolConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withReusePort (boolean reusePort)
+        {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withColocatedEventLoops (boolean colocateEventLoops)
+        {
+            this.colocateEventLoops = colocateEventLoops;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withSplicedTunnels (boolean spliceTunnels)
+        {
+            this.spliceTunnels = spliceTunnels;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withUpstreamSslSessionCache (UpstreamSslSessionCache upstreamSslSessionCache)
+        {
+            this.upstreamSslSessionCache = upstreamSslSessionCache;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withServerSslSessionCache (ServerSslSessionCache serverSslSessionCache)
+        {
+            this.serverSslSessionCache = serverSslSessionCache;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withClientHelloPeek (boolean clientHelloPeek)
+        {
+            this.clientHelloPeek = clientHelloPeek;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withHttp2Upstream (Http2UpstreamConfiguration configuration)
+        {
+            this.http2UpstreamConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withPipelining (PipeliningConfiguration configuration)
+        {
+            this.pipeliningConfiguration = configuration;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withCollapsedForwarding (boolean collapsedForwarding)
+        {
+            this.collapsedForwarding = collapsedForwarding;
             return this;
         }
 
@@ -818,10 +1214,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer
             }
             else
             {
-                serverGroup = new ServerGroup (name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads);
+                serverGroup = new ServerGroup (name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads, channelTransport, handshakeThreads);
             }
 
-            return new DefaultHttpProxyServer (serverGroup, transportProtocol, determineListenAddress (), sslEngineSource, authenticateSslClients, proxyAuthenticator, chainProxyManager, mitmManager, filtersSource, transparent, idleConnectionTimeout, activityTrackers, connectTimeout, serverResolver, readThrottleBytesPerSecond, writeThrottleBytesPerSecond, localAddress, proxyAlias);
+            return new DefaultHttpProxyServer (serverGroup, transportProtocol, determineListenAddress (), sslEngineSource, authenticateSslClients, proxyAuthenticator, chainProxyManager, mitmManager, filtersSource, transparent, idleConnectionTimeout, activityTrackers, connectTimeout, serverResolver, readThrottleBytesPerSecond, writeThrottleBytesPerSecond, localAddress, proxyAlias, connectionPoolConfiguration, reusePort, colocateEventLoops, spliceTunnels, upstreamSslSessionCache, serverSslSessionCache, clientHelloPeek, http2UpstreamConfiguration, pipeliningConfiguration, collapsedForwarding);
         }
 
         private InetSocketAddress determineListenAddress ()
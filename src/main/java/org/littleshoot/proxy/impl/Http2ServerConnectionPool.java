@@ -0,0 +1,446 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.littleshoot.proxy.Http2MitmManager;
+import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.TransportProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * The HTTP/2 connections to servers that are shared by all {@link ProxyToServerConnection}s of a
+ * {@link DefaultHttpProxyServer}.
+ * </p>
+ *
+ * <p>
+ * A {@link ProxyToServerConnection} that sends its requests with HTTP/2 does not open a connection of its own. For
+ * each request it opens a stream on one of the connections to the server that has room for another stream, and this
+ * pool opens a new connection once all of them are at their limit. The limit is the lower of the configured maximum
+ * and the server's SETTINGS_MAX_CONCURRENT_STREAMS. Connections are closed once they have carried no streams for the
+ * proxy's idle connection timeout, or when the server sends GOAWAY, which lets their open streams finish.
+ * </p>
+ *
+ * <p>
+ * Encrypted connections offer h2 with ALPN. Servers that select http/1.1 instead are remembered, and the requests
+ * that found out fall back to HTTP/1.1 connections of their own.
+ * </p>
+ */
+class Http2ServerConnectionPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger (Http2ServerConnectionPool.class);
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final int maxConcurrentStreams;
+    private final boolean alpn;
+    private final Set <String> priorKnowledgeHosts;
+
+    /**
+     * The open connections by server and encryption. Accesses, and the stream counts of the connections, are
+     * synchronized on this map.
+     */
+    private final Map <String, List <Connection>> connections = new HashMap <> ();
+
+    /**
+     * The encrypted servers that selected http/1.1 with ALPN.
+     */
+    private final Set <String> http1Servers = Collections.newSetFromMap (new ConcurrentHashMap <String, Boolean> ());
+
+    Http2ServerConnectionPool (DefaultHttpProxyServer proxyServer, Http2UpstreamConfiguration configuration)
+    {
+        this.proxyServer = proxyServer;
+        this.maxConcurrentStreams = configuration.getMaxConcurrentStreams ();
+        this.alpn = configuration.isAlpn ();
+        this.priorKnowledgeHosts = configuration.getPriorKnowledgeHosts ();
+    }
+
+    /**
+     * Determines whether requests to the given server should be sent with HTTP/2.
+     *
+     * @param serverHostAndPort the host:port of the server
+     * @param encrypted         whether the requests are MITM'd, and so are sent encrypted
+     * @return true to try HTTP/2
+     */
+    boolean usesHttp2 (String serverHostAndPort, boolean encrypted)
+    {
+        if (encrypted)
+        {
+            MitmManager mitmManager = proxyServer.getMitmManager ();
+            return alpn && mitmManager instanceof Http2MitmManager && !http1Servers.contains (serverHostAndPort);
+        }
+        return priorKnowledgeHosts.contains (serverHostAndPort);
+    }
+
+    /**
+     * Opens a stream to the given server, connecting to it first if there is no connection with room for another
+     * stream.
+     *
+     * @param serverHostAndPort the host:port of the server
+     * @param remoteAddress     the address of the server
+     * @param localAddress      the local address to connect from, or null
+     * @param encrypted         whether to connect with TLS and ALPN rather than h2c
+     * @param trafficHandler    the proxy's traffic shaping handler, or null
+     * @param streamHandler     the handler to add to the stream's pipeline, usually a {@link ChannelInitializer}
+     * @return a future that completes with the stream, or with null if the server turned out not to speak HTTP/2
+     */
+    Future <Channel> openStream (String serverHostAndPort, InetSocketAddress remoteAddress, InetSocketAddress localAddress, boolean encrypted, GlobalTrafficShapingHandler trafficHandler, ChannelHandler streamHandler)
+    {
+        if (encrypted && http1Servers.contains (serverHostAndPort))
+        {
+            return ImmediateEventExecutor.INSTANCE.newSucceededFuture (null);
+        }
+
+        String key = (encrypted ? "h2 " : "h2c ") + serverHostAndPort;
+        Connection connection = null;
+        boolean created = false;
+        synchronized (connections)
+        {
+            List <Connection> serverConnections = connections.get (key);
+            if (serverConnections == null)
+            {
+                serverConnections = new ArrayList <> ();
+                connections.put (key, serverConnections);
+            }
+            for (Connection candidate : serverConnections)
+            {
+                if (candidate.hasRoomForStream ())
+                {
+                    connection = candidate;
+                    break;
+                }
+            }
+            if (connection == null)
+            {
+                connection = new Connection (key, serverHostAndPort, remoteAddress, encrypted);
+                serverConnections.add (connection);
+                created = true;
+            }
+            connection.activeStreams++;
+        }
+
+        if (created)
+        {
+            connection.connect (localAddress, trafficHandler);
+        }
+        return connection.openStream (streamHandler);
+    }
+
+    private void remove (Connection connection)
+    {
+        synchronized (connections)
+        {
+            List <Connection> serverConnections = connections.get (connection.key);
+            if (serverConnections != null && serverConnections.remove (connection) && serverConnections.isEmpty ())
+            {
+                connections.remove (connection.key);
+            }
+        }
+    }
+
+    /**
+     * A connection to a server that carries concurrent streams. It is the last handler in its channel's pipeline,
+     * where it sees the frames that don't belong to a stream.
+     */
+    private class Connection extends ChannelInboundHandlerAdapter
+    {
+        private final String key;
+        private final String serverHostAndPort;
+        private final InetSocketAddress remoteAddress;
+        private final boolean encrypted;
+
+        /**
+         * Completes with true once the connection speaks HTTP/2, or with false if the server selected another
+         * protocol.
+         */
+        private final Promise <Boolean> negotiation = ImmediateEventExecutor.INSTANCE.newPromise ();
+        private volatile Channel channel;
+        private volatile long remoteMaxConcurrentStreams = Long.MAX_VALUE;
+        private volatile boolean goingAway = false;
+        private volatile boolean closed = false;
+
+        /**
+         * The number of streams that are open or about to be opened. Guarded by {@link #connections}.
+         */
+        private int activeStreams = 0;
+
+        private Connection (String key, String serverHostAndPort, InetSocketAddress remoteAddress, boolean encrypted)
+        {
+            this.key = key;
+            this.serverHostAndPort = serverHostAndPort;
+            this.remoteAddress = remoteAddress;
+            this.encrypted = encrypted;
+        }
+
+        /**
+         * Called while holding the lock on {@link #connections}.
+         */
+        private boolean hasRoomForStream ()
+        {
+            return !goingAway && !closed && activeStreams < Math.min (maxConcurrentStreams, remoteMaxConcurrentStreams);
+        }
+
+        private void connect (InetSocketAddress localAddress, final GlobalTrafficShapingHandler trafficHandler)
+        {
+            LOG.debug ("Opening HTTP/2 connection to {}", serverHostAndPort);
+
+            final ChannelTransport channelTransport = proxyServer.getChannelTransportFor (TransportProtocol.TCP);
+            Bootstrap cb = new Bootstrap ().group (proxyServer.getProxyToServerWorkerFor (TransportProtocol.TCP)).channelFactory (new ChannelFactory <Channel> ()
+            {
+                @Override
+                public Channel newChannel ()
+                {
+                    return channelTransport.newSocketChannel ();
+                }
+            });
+            cb.option (ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout ());
+            cb.handler (new ChannelInitializer <Channel> ()
+            {
+                @Override
+                protected void initChannel (final Channel ch) throws Exception
+                {
+                    proxyServer.registerChannel (ch);
+                    if (trafficHandler != null)
+                    {
+                        ch.pipeline ().addLast ("global-traffic-shaping", trafficHandler);
+                    }
+                    if (encrypted)
+                    {
+                        SslHandler sslHandler = new SslHandler (((Http2MitmManager) proxyServer.getMitmManager ()).http2ServerSslEngine (remoteAddress.getHostName (), remoteAddress.getPort ()));
+                        ch.pipeline ().addLast ("ssl", sslHandler);
+                        sslHandler.handshakeFuture ().addListener (new GenericFutureListener <Future <? super Channel>> ()
+                        {
+                            @Override
+                            public void operationComplete (Future <? super Channel> future) throws Exception
+                            {
+                                handshakeCompleted (ch, future);
+                            }
+                        });
+                    }
+                    else
+                    {
+                        initHttp2Pipeline (ch.pipeline ());
+                    }
+                }
+            });
+
+            ChannelFuture connectFuture = localAddress != null ? cb.connect (remoteAddress, localAddress) : cb.connect (remoteAddress);
+            channel = connectFuture.channel ();
+            connectFuture.addListener (new ChannelFutureListener ()
+            {
+                @Override
+                public void operationComplete (ChannelFuture future) throws Exception
+                {
+                    future.channel ().closeFuture ().addListener (new ChannelFutureListener ()
+                    {
+                        @Override
+                        public void operationComplete (ChannelFuture future) throws Exception
+                        {
+                            closed = true;
+                            remove (Connection.this);
+                            negotiation.tryFailure (new IllegalStateException ("HTTP/2 connection to " + serverHostAndPort + " closed"));
+                        }
+                    });
+                    if (!future.isSuccess ())
+                    {
+                        negotiation.tryFailure (future.cause ());
+                    }
+                }
+            });
+        }
+
+        private void handshakeCompleted (Channel ch, Future <? super Channel> handshakeFuture)
+        {
+            if (!handshakeFuture.isSuccess ())
+            {
+                negotiation.tryFailure (handshakeFuture.cause ());
+                return;
+            }
+            String protocol = ch.pipeline ().get (SslHandler.class).applicationProtocol ();
+            if (ApplicationProtocolNames.HTTP_2.equals (protocol))
+            {
+                initHttp2Pipeline (ch.pipeline ());
+                negotiation.trySuccess (true);
+            }
+            else
+            {
+                LOG.debug ("{} selected {} rather than h2, sending its requests with HTTP/1.1", serverHostAndPort, protocol);
+                http1Servers.add (serverHostAndPort);
+                remove (this);
+                negotiation.trySuccess (false);
+                ch.close ();
+            }
+        }
+
+        private void initHttp2Pipeline (ChannelPipeline pipeline)
+        {
+            pipeline.addLast ("idle", new IdleStateHandler (0, 0, proxyServer.getIdleConnectionTimeout ()));
+            pipeline.addLast ("http2", Http2FrameCodecBuilder.forClient ().initialSettings (Http2Settings.defaultSettings ().pushEnabled (false)).build ());
+            pipeline.addLast ("http2Multiplexer", new Http2MultiplexHandler (new ChannelInitializer <Channel> ()
+            {
+                @Override
+                protected void initChannel (Channel ch)
+                {
+                    // push is disabled, so the server has no business opening streams
+                    ch.close ();
+                }
+            }));
+            pipeline.addLast ("handler", this);
+        }
+
+        private Future <Channel> openStream (final ChannelHandler streamHandler)
+        {
+            final Promise <Channel> streamPromise = ImmediateEventExecutor.INSTANCE.newPromise ();
+            negotiation.addListener (new GenericFutureListener <Future <Boolean>> ()
+            {
+                @Override
+                public void operationComplete (Future <Boolean> future) throws Exception
+                {
+                    if (!future.isSuccess ())
+                    {
+                        streamClosed ();
+                        streamPromise.tryFailure (future.cause ());
+                    }
+                    else if (!future.getNow ())
+                    {
+                        streamClosed ();
+                        streamPromise.trySuccess (null);
+                    }
+                    else
+                    {
+                        new Http2StreamChannelBootstrap (channel).handler (streamHandler).open ().addListener (new GenericFutureListener <Future <Http2StreamChannel>> ()
+                        {
+                            @Override
+                            public void operationComplete (Future <Http2StreamChannel> future) throws Exception
+                            {
+                                if (!future.isSuccess ())
+                                {
+                                    streamClosed ();
+                                    streamPromise.tryFailure (future.cause ());
+                                    return;
+                                }
+                                future.getNow ().closeFuture ().addListener (new ChannelFutureListener ()
+                                {
+                                    @Override
+                                    public void operationComplete (ChannelFuture future) throws Exception
+                                    {
+                                        streamClosed ();
+                                    }
+                                });
+                                streamPromise.trySuccess (future.getNow ());
+                            }
+                        });
+                    }
+                }
+            });
+            return streamPromise;
+        }
+
+        private void streamClosed ()
+        {
+            synchronized (connections)
+            {
+                activeStreams--;
+            }
+        }
+
+        /**
+         * Only fired on h2c connections, whose pipeline is complete before they connect. The codec has sent the
+         * connection preface by now, which must precede the first stream.
+         */
+        @Override
+        public void channelActive (ChannelHandlerContext ctx) throws Exception
+        {
+            negotiation.trySuccess (true);
+            super.channelActive (ctx);
+        }
+
+        @Override
+        public void channelRead (ChannelHandlerContext ctx, Object msg) throws Exception
+        {
+            try
+            {
+                if (msg instanceof Http2SettingsFrame)
+                {
+                    Long maxConcurrentStreams = ((Http2SettingsFrame) msg).settings ().maxConcurrentStreams ();
+                    if (maxConcurrentStreams != null)
+                    {
+                        remoteMaxConcurrentStreams = maxConcurrentStreams;
+                    }
+                }
+                else if (msg instanceof Http2GoAwayFrame)
+                {
+                    LOG.debug ("{} is going away, opening new streams on another connection", serverHostAndPort);
+                    goingAway = true;
+                }
+            }
+            finally
+            {
+                ReferenceCountUtil.release (msg);
+            }
+        }
+
+        @Override
+        public void userEventTriggered (ChannelHandlerContext ctx, Object evt) throws Exception
+        {
+            if (evt instanceof IdleStateEvent)
+            {
+                synchronized (connections)
+                {
+                    if (activeStreams > 0)
+                    {
+                        return;
+                    }
+                    // no new streams once the connection is on its way out
+                    goingAway = true;
+                }
+                LOG.debug ("Closing idle HTTP/2 connection to {}", serverHostAndPort);
+                ctx.close ();
+                return;
+            }
+            super.userEventTriggered (ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught (ChannelHandlerContext ctx, Throwable cause) throws Exception
+        {
+            LOG.debug ("Caught an exception on HTTP/2 connection to {}, closing it", serverHostAndPort, cause);
+            ctx.close ();
+        }
+    }
+}
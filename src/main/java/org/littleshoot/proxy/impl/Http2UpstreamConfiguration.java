@@ -0,0 +1,82 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Configuration object for sending requests to servers with HTTP/2. Requests to the same server then share one
+ * connection as concurrent streams, instead of each taking a connection of its own. HTTP/2 is negotiated with ALPN on
+ * the encrypted connections that carry the requests of MITM'd HTTP/2 streams, if the proxy's
+ * {@link org.littleshoot.proxy.MitmManager} is an {@link org.littleshoot.proxy.Http2MitmManager}, and spoken without
+ * negotiation (h2c with prior knowledge) to the unencrypted servers listed in this configuration. Requests through
+ * chained proxies are always sent with HTTP/1.1.
+ */
+public class Http2UpstreamConfiguration
+{
+    /**
+     * The default maximum number of concurrent streams the proxy opens on one connection.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private boolean alpn = true;
+    private Set <String> priorKnowledgeHosts = Collections.emptySet ();
+
+    public int getMaxConcurrentStreams ()
+    {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Set the maximum number of concurrent streams the proxy opens on one connection to a server. If the server allows
+     * fewer, its limit applies. Once all connections to a server are at their limit, another connection is opened.
+     * The default value is {@link #DEFAULT_MAX_CONCURRENT_STREAMS}.
+     *
+     * @param maxConcurrentStreams maximum number of concurrent streams per connection
+     * @return this configuration instance, for chaining
+     */
+    public Http2UpstreamConfiguration withMaxConcurrentStreams (int maxConcurrentStreams)
+    {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    public boolean isAlpn ()
+    {
+        return alpn;
+    }
+
+    /**
+     * Set whether HTTP/2 is offered with ALPN on the encrypted connections that carry the requests of MITM'd HTTP/2
+     * streams. Servers that select http/1.1 are remembered, and their requests are sent with HTTP/1.1 from then on.
+     * The default value is true.
+     *
+     * @param alpn true to negotiate HTTP/2 with ALPN
+     * @return this configuration instance, for chaining
+     */
+    public Http2UpstreamConfiguration withAlpn (boolean alpn)
+    {
+        this.alpn = alpn;
+        return this;
+    }
+
+    public Set <String> getPriorKnowledgeHosts ()
+    {
+        return priorKnowledgeHosts;
+    }
+
+    /**
+     * Set the unencrypted servers that are known to speak HTTP/2, to which requests are sent with h2c without an
+     * upgrade. By default there are none.
+     *
+     * @param hostAndPorts the host:port of each server, as the proxy identifies it from its requests
+     * @return this configuration instance, for chaining
+     */
+    public Http2UpstreamConfiguration withPriorKnowledgeHosts (String... hostAndPorts)
+    {
+        this.priorKnowledgeHosts = Collections.unmodifiableSet (new HashSet <> (Arrays.asList (hostAndPorts)));
+        return this;
+    }
+}
@@ -0,0 +1,60 @@
+package org.littleshoot.proxy.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Configuration object for pipelining requests to servers over HTTP/1.1. Without it, a request that a client
+ * pipelines behind another one is held until the response to the earlier request is complete. With it, idempotent
+ * requests without a body are written to the servers listed here right away, up to the configured depth, and their
+ * responses are relayed to the client in order. This saves a round trip per request, which matters most on high
+ * latency links such as those to chained proxies.
+ */
+public class PipeliningConfiguration
+{
+    /**
+     * The default maximum number of requests awaiting a response on one connection.
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    private int depth = DEFAULT_DEPTH;
+    private Set <String> hosts = Collections.emptySet ();
+
+    public int getDepth ()
+    {
+        return depth;
+    }
+
+    /**
+     * Set the maximum number of requests that may await a response on one connection to a server, counting the one
+     * that is being answered. The default value is {@link #DEFAULT_DEPTH}.
+     *
+     * @param depth maximum number of unanswered requests per connection
+     * @return this configuration instance, for chaining
+     */
+    public PipeliningConfiguration withDepth (int depth)
+    {
+        this.depth = depth;
+        return this;
+    }
+
+    public Set <String> getHosts ()
+    {
+        return hosts;
+    }
+
+    /**
+     * Set the servers that are known to support pipelining, and to which requests are pipelined. By default there are
+     * none.
+     *
+     * @param hostAndPorts the host:port of each server, as the proxy identifies it from its requests
+     * @return this configuration instance, for chaining
+     */
+    public PipeliningConfiguration withHosts (String... hostAndPorts)
+    {
+        this.hosts = Collections.unmodifiableSet (new HashSet <> (Arrays.asList (hostAndPorts)));
+        return this;
+    }
+}
@@ -26,6 +26,7 @@ import io.netty.util.concurrent.Promise;
 import org.littleshoot.proxy.HttpFilters;
 
 import javax.net.ssl.SSLEngine;
+import java.util.concurrent.Executor;
 
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
@@ -127,8 +128,17 @@ abstract class ProxyConnection <I extends HttpObject> extends SimpleChannelInbou
 
         if (tunneling)
         {
-            // In tunneling mode, this connection is simply shoveling bytes
-            readRaw ((ByteBuf) msg);
+            if (msg instanceof ByteBuf)
+            {
+                // In tunneling mode, this connection is simply shoveling bytes
+                readRaw ((ByteBuf) msg);
+            }
+            else
+            {
+                // decoded before the HTTP codec was removed, e.g. the LastHttpContent of a CONNECT that was answered
+                // while it was being read
+                LOG.debug ("Dropping HTTP object read after tunneling started: {}", msg);
+            }
         }
         else
         {
@@ -418,7 +428,8 @@ abstract class ProxyConnection <I extends HttpObject> extends SimpleChannelInbou
         {
             channel.config ().setAutoRead (true);
         }
-        SslHandler handler = new SslHandler (sslEngine);
+        Executor handshakeExecutor = proxyServer.getHandshakeExecutor ();
+        SslHandler handler = handshakeExecutor != null ? new SslHandler (sslEngine, false, handshakeExecutor) : new SslHandler (sslEngine);
         pipeline.addFirst ("ssl", handler);
         return handler.handshakeFuture ();
     }
@@ -937,4 +948,27 @@ abstract class ProxyConnection <I extends HttpObject> extends SimpleChannelInbou
 
         protected abstract void responseWritten (HttpResponse httpResponse);
     }
+
+    /**
+     * Drops the empty buffers that {@link #disconnect()} and the end of a
+     * response write on HTTP/1.1 connections, which HTTP/2 streams can't
+     * carry.
+     */
+    @Sharable
+    protected static class EmptyBufferFilter extends ChannelOutboundHandlerAdapter
+    {
+        static final EmptyBufferFilter INSTANCE = new EmptyBufferFilter ();
+
+        @Override
+        public void write (ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception
+        {
+            if (msg instanceof ByteBuf && !((ByteBuf) msg).isReadable ())
+            {
+                ((ByteBuf) msg).release ();
+                promise.setSuccess ();
+                return;
+            }
+            super.write (ctx, msg, promise);
+        }
+    }
 }
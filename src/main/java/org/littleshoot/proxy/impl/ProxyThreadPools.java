@@ -2,7 +2,6 @@ package org.littleshoot.proxy.impl;
 
 import com.google.common.collect.ImmutableList;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 
 import java.nio.channels.spi.SelectorProvider;
 import java.util.List;
@@ -18,31 +17,43 @@ public class ProxyThreadPools
      * proxies. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup clientToProxyAcceptorPool;
+    private final EventLoopGroup clientToProxyAcceptorPool;
 
     /**
      * These {@link EventLoopGroup}s process incoming requests to the
      * proxies. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup clientToProxyWorkerPool;
+    private final EventLoopGroup clientToProxyWorkerPool;
 
     /**
      * These {@link EventLoopGroup}s are used for making outgoing
      * connections to servers. A different EventLoopGroup is used for each
      * TransportProtocol, since these have to be configured differently.
      */
-    private final NioEventLoopGroup proxyToServerWorkerPool;
+    private final EventLoopGroup proxyToServerWorkerPool;
 
     public ProxyThreadPools (SelectorProvider selectorProvider, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, String serverGroupName, int serverGroupId)
     {
-        clientToProxyAcceptorPool = new NioEventLoopGroup (incomingAcceptorThreads, new CategorizedThreadFactory (serverGroupName, "ClientToProxyAcceptor", serverGroupId), selectorProvider);
+        this (ChannelTransport.NIO, selectorProvider, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, serverGroupName, serverGroupId);
+    }
+
+    /**
+     * @param channelTransport        the transport whose event loops to create
+     * @param selectorProvider        selector provider for {@link ChannelTransport#NIO} event loops
+     * @param incomingAcceptorThreads number of acceptor threads
+     * @param incomingWorkerThreads   number of client-to-proxy worker threads
+     * @param outgoingWorkerThreads   number of proxy-to-server worker threads
+     * @param serverGroupName         ServerGroup name to include in thread names
+     * @param serverGroupId           ServerGroup ID to include in thread names
+     */
+    public ProxyThreadPools (ChannelTransport channelTransport, SelectorProvider selectorProvider, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, String serverGroupName, int serverGroupId)
+    {
+        clientToProxyAcceptorPool = channelTransport.newEventLoopGroup (incomingAcceptorThreads, new CategorizedThreadFactory (serverGroupName, "ClientToProxyAcceptor", serverGroupId), selectorProvider, 50);
 
-        clientToProxyWorkerPool = new NioEventLoopGroup (incomingWorkerThreads, new CategorizedThreadFactory (serverGroupName, "ClientToProxyWorker", serverGroupId), selectorProvider);
-        clientToProxyWorkerPool.setIoRatio (90);
+        clientToProxyWorkerPool = channelTransport.newEventLoopGroup (incomingWorkerThreads, new CategorizedThreadFactory (serverGroupName, "ClientToProxyWorker", serverGroupId), selectorProvider, 90);
 
-        proxyToServerWorkerPool = new NioEventLoopGroup (outgoingWorkerThreads, new CategorizedThreadFactory (serverGroupName, "ProxyToServerWorker", serverGroupId), selectorProvider);
-        proxyToServerWorkerPool.setIoRatio (90);
+        proxyToServerWorkerPool = channelTransport.newEventLoopGroup (outgoingWorkerThreads, new CategorizedThreadFactory (serverGroupName, "ProxyToServerWorker", serverGroupId), selectorProvider, 90);
     }
 
     /**
@@ -53,17 +64,17 @@ public class ProxyThreadPools
         return ImmutableList.of (clientToProxyAcceptorPool, clientToProxyWorkerPool, proxyToServerWorkerPool);
     }
 
-    public NioEventLoopGroup getClientToProxyAcceptorPool ()
+    public EventLoopGroup getClientToProxyAcceptorPool ()
     {
         return clientToProxyAcceptorPool;
     }
 
-    public NioEventLoopGroup getClientToProxyWorkerPool ()
+    public EventLoopGroup getClientToProxyWorkerPool ()
     {
         return clientToProxyWorkerPool;
     }
 
-    public NioEventLoopGroup getProxyToServerWorkerPool ()
+    public EventLoopGroup getProxyToServerWorkerPool ()
     {
         return proxyToServerWorkerPool;
     }
@@ -5,11 +5,17 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.udt.nio.NioUdtProvider;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpMessage;
@@ -19,37 +25,58 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
 import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.AsyncHostResolver;
 import org.littleshoot.proxy.ChainedProxy;
 import org.littleshoot.proxy.ChainedProxyAdapter;
 import org.littleshoot.proxy.ChainedProxyManager;
+import org.littleshoot.proxy.ClientHelloChainedProxyManager;
 import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.HostResolver;
 import org.littleshoot.proxy.HttpFilters;
 import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.TlsClientHello;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.slf4j.spi.LocationAwareLogger;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
+import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECTION_SLOT;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECT_OK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.CONNECTING;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECTED;
 import static org.littleshoot.proxy.impl.ConnectionState.HANDSHAKING;
+import static org.littleshoot.proxy.impl.ConnectionState.NEGOTIATING_CONNECT;
+import static org.littleshoot.proxy.impl.ConnectionState.RESOLVING;
 
 /**
  * <p>
@@ -70,7 +97,7 @@ import static org.littleshoot.proxy.impl.ConnectionState.HANDSHAKING;
 @Sharable
 public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
 {
-    private final ClientToProxyConnection clientConnection;
+    private volatile ClientToProxyConnection clientConnection;
     private final ProxyToServerConnection serverConnection = this;
     private volatile TransportProtocol transportProtocol;
     private volatile InetSocketAddress remoteAddress;
@@ -80,23 +107,118 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     private final Queue <ChainedProxy> availableChainedProxies;
 
     /**
-     * The filters to apply to response/chunks received from server.
+     * The ClientHello the client sent through this CONNECT tunnel before the connection was made, or null if it was
+     * not read.
+     */
+    private final TlsClientHello clientHello;
+
+    /**
+     * True if this connection carries requests that were MITM'd from a stream of an HTTP/2 connection to the client.
+     * Since no CONNECT sets up such a connection, it encrypts its connection to the server itself.
+     */
+    private final boolean mitming;
+
+    /**
+     * True if this connection sends its requests as streams on a shared HTTP/2 connection from the
+     * {@link Http2ServerConnectionPool}, opening a new stream for each request. Cleared if the server turns out not to
+     * speak HTTP/2.
+     */
+    private volatile boolean http2;
+
+    /**
+     * The stream being opened by {@link #OpenHttp2Stream}.
+     */
+    private volatile Future <Channel> http2StreamOpening;
+
+    /**
+     * The filters of the request most recently written to the server.
      */
     private volatile HttpFilters currentFilters;
 
+    /**
+     * The filters to apply to response/chunks received from server. These are
+     * the filters of the request being answered, which differ from
+     * {@link #currentFilters} while later requests are pipelined.
+     */
+    private volatile HttpFilters responseFilters;
+
+    /**
+     * The filters of each request that awaits its response.
+     */
+    private final Map <HttpRequest, HttpFilters> issuedRequestFilters = Collections.synchronizedMap (new IdentityHashMap <HttpRequest, HttpFilters> ());
+
+    /**
+     * The number of requests written, or about to be written, to the server
+     * whose responses have not been read in full. The client holds back the
+     * requests it pipelines until this drops to zero, unless they can be
+     * pipelined to the server as well.
+     */
+    private final AtomicInteger unansweredRequests = new AtomicInteger (0);
+
+    /**
+     * Whether the unanswered requests may have others pipelined behind them.
+     */
+    private volatile boolean unansweredPipelinable;
+
+    /**
+     * Whether a request was pipelined behind the unanswered requests.
+     */
+    private volatile boolean pipelined;
+
+    /**
+     * Requests that the server left unanswered when it closed its connection
+     * while they were pipelined, and that are sent again one at a time.
+     */
+    private final Queue <HttpRequest> resendRequests = new ConcurrentLinkedQueue <> ();
+
+    /**
+     * True while the requests in {@link #resendRequests} are being sent again.
+     */
+    private volatile boolean resending;
+
+    /**
+     * True once the channel is being closed by the proxy, so that no more
+     * requests are written to it.
+     */
+    private volatile boolean disconnecting;
+
     /**
      * Encapsulates the flow for establishing a connection, which can vary
      * depending on how things are configured.
      */
     private volatile ConnectionFlow connectionFlow;
 
+    /**
+     * While {@link #remoteAddress} is being resolved by an
+     * {@link AsyncHostResolver}, this completes on the client's event loop
+     * once the lookup is done. The {@link ConnectionFlow} waits for it before
+     * connecting. Null if there is no resolution in progress.
+     */
+    private volatile Future <InetSocketAddress> serverAddressResolution;
+
     /**
      * While we're in the process of connecting, it's possible that we'll
-     * receive a new message to write. This lock helps us synchronize and wait
-     * for the connection to be established before writing the next message.
+     * receive a new message to write. This lock synchronizes the queueing of
+     * such messages in {@link #pendingWrites} with the completion of the
+     * {@link ConnectionFlow}.
      */
     private final Object connectLock = new Object ();
 
+    /**
+     * Messages that were written while we were still connecting. These are
+     * written out in order as soon as the {@link ConnectionFlow} succeeds, or
+     * released if it fails. Guarded by {@link #connectLock}.
+     */
+    private final Queue <Object> pendingWrites = new ArrayDeque <> ();
+
+    /**
+     * True from the moment the {@link ConnectionFlow} succeeds until the
+     * initial request and the {@link #pendingWrites} are written, so that
+     * messages written from other threads in the meantime wait for them
+     * rather than overtaking them on the wire.
+     */
+    private volatile boolean writingPendingMessages;
+
     /**
      * This is the initial request received prior to connecting. We keep track
      * of it so that we can process it after connection finishes.
@@ -131,26 +253,96 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
      */
     private static final int MINIMUM_RECV_BUFFER_SIZE_BYTES = 64;
 
+    /**
+     * The key under which this connection is managed by the
+     * {@link ServerConnectionPool}, or null if it isn't pooled.
+     */
+    private volatile String poolKey;
+
+    /**
+     * True while this connection is sitting idle in the
+     * {@link ServerConnectionPool}, i.e. while it has no client.
+     */
+    private volatile boolean idleInPool = false;
+
+    /**
+     * While this connection waits for the {@link ServerConnectionPool} to
+     * allow another connection to its server, this completes on the client's
+     * event loop once it does. Null if the connection does not wait.
+     */
+    private volatile Promise <Void> poolSlot;
+
     /**
      * Create a new ProxyToServerConnection.
      */
     static ProxyToServerConnection create (DefaultHttpProxyServer proxyServer, ClientToProxyConnection clientConnection, String serverHostAndPort, HttpFilters initialFilters, HttpRequest initialHttpRequest, GlobalTrafficShapingHandler globalTrafficShapingHandler) throws UnknownHostException
+    {
+        return create (proxyServer, clientConnection, serverHostAndPort, initialFilters, initialHttpRequest, globalTrafficShapingHandler, null);
+    }
+
+    /**
+     * Like {@link #create(DefaultHttpProxyServer, ClientToProxyConnection, String, HttpFilters, HttpRequest, GlobalTrafficShapingHandler)},
+     * for a CONNECT tunnel whose ClientHello has already been read. The proxy has then already responded to the
+     * CONNECT, so the connection flow does not respond to it again.
+     *
+     * @param clientHello the ClientHello the client sent through the tunnel, or null if it was not read
+     */
+    static ProxyToServerConnection create (DefaultHttpProxyServer proxyServer, ClientToProxyConnection clientConnection, String serverHostAndPort, HttpFilters initialFilters, HttpRequest initialHttpRequest, GlobalTrafficShapingHandler globalTrafficShapingHandler, TlsClientHello clientHello) throws UnknownHostException
     {
         Queue <ChainedProxy> chainedProxies = new ConcurrentLinkedQueue <> ();
         ChainedProxyManager chainedProxyManager = proxyServer.getChainProxyManager ();
         if (chainedProxyManager != null)
         {
-            chainedProxyManager.lookupChainedProxies (initialHttpRequest, chainedProxies);
+            if (clientHello != null && chainedProxyManager instanceof ClientHelloChainedProxyManager)
+            {
+                ((ClientHelloChainedProxyManager) chainedProxyManager).lookupChainedProxies (initialHttpRequest, clientHello, chainedProxies);
+            }
+            else
+            {
+                chainedProxyManager.lookupChainedProxies (initialHttpRequest, chainedProxies);
+            }
             if (chainedProxies.size () == 0)
             {
                 // ChainedProxyManager returned no proxies, can't connect
                 return null;
             }
         }
-        return new ProxyToServerConnection (proxyServer, clientConnection, serverHostAndPort, chainedProxies.poll (), chainedProxies, initialFilters, globalTrafficShapingHandler);
+        ChainedProxy chainedProxy = chainedProxies.poll ();
+
+        // a MITM'ing client connection only asks for a new server connection for the requests of its HTTP/2 streams
+        boolean mitming = !ProxyUtils.isCONNECT (initialHttpRequest) && clientConnection.isMitming ();
+
+        // HTTP/2 connections are shared by way of their streams, so they are never pooled
+        Http2ServerConnectionPool http2ConnectionPool = proxyServer.getHttp2ServerConnectionPool ();
+        boolean direct = chainedProxy == null || chainedProxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION;
+        boolean http2 = http2ConnectionPool != null && direct && !ProxyUtils.isCONNECT (initialHttpRequest) && http2ConnectionPool.usesHttp2 (serverHostAndPort, mitming);
+
+        ServerConnectionPool connectionPool = proxyServer.getServerConnectionPool ();
+        if (connectionPool == null || ProxyUtils.isCONNECT (initialHttpRequest) || http2)
+        {
+            return new ProxyToServerConnection (proxyServer, clientConnection, serverHostAndPort, chainedProxy, chainedProxies, initialFilters, globalTrafficShapingHandler, clientHello, mitming, http2);
+        }
+
+        String poolKey = mitming ? ServerConnectionPool.mitmKeyFor (serverHostAndPort, chainedProxy) : ServerConnectionPool.keyFor (serverHostAndPort, chainedProxy);
+        TransportProtocol serverTransportProtocol = chainedProxy != null && chainedProxy != ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION ? chainedProxy.getTransportProtocol () : TransportProtocol.TCP;
+        EventLoop requiredEventLoop = proxyServer.colocatesEventLoopsFor (serverTransportProtocol) ? clientConnection.channel.eventLoop () : null;
+        ProxyToServerConnection pooledConnection = connectionPool.acquire (poolKey, clientConnection, requiredEventLoop);
+        if (pooledConnection != null)
+        {
+            return pooledConnection;
+        }
+
+        ProxyToServerConnection connection = new ProxyToServerConnection (proxyServer, clientConnection, serverHostAndPort, chainedProxy, chainedProxies, initialFilters, globalTrafficShapingHandler, null, mitming, false);
+        if (!connectionPool.register (poolKey, connection))
+        {
+            // the connection is only opened once another one to the server is closed, unless a pooled one is handed
+            // to the client first
+            connectionPool.await (poolKey, connection);
+        }
+        return connection;
     }
 
-    private ProxyToServerConnection (DefaultHttpProxyServer proxyServer, ClientToProxyConnection clientConnection, String serverHostAndPort, ChainedProxy chainedProxy, Queue <ChainedProxy> availableChainedProxies, HttpFilters initialFilters, GlobalTrafficShapingHandler globalTrafficShapingHandler) throws UnknownHostException
+    private ProxyToServerConnection (DefaultHttpProxyServer proxyServer, ClientToProxyConnection clientConnection, String serverHostAndPort, ChainedProxy chainedProxy, Queue <ChainedProxy> availableChainedProxies, HttpFilters initialFilters, GlobalTrafficShapingHandler globalTrafficShapingHandler, TlsClientHello clientHello, boolean mitming, boolean http2) throws UnknownHostException
     {
         super (DISCONNECTED, proxyServer, true);
         this.clientConnection = clientConnection;
@@ -159,6 +351,10 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         this.availableChainedProxies = availableChainedProxies;
         this.trafficHandler = globalTrafficShapingHandler;
         this.currentFilters = initialFilters;
+        this.responseFilters = initialFilters;
+        this.clientHello = clientHello;
+        this.mitming = mitming;
+        this.http2 = http2;
 
         // Report connection status to HttpFilters
         currentFilters.proxyToServerConnectionQueued ();
@@ -173,7 +369,12 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     @Override
     protected void read (Object msg)
     {
-        if (isConnecting ())
+        if (idleInPool)
+        {
+            LOG.debug ("Received unexpected message while idle in the connection pool, disconnecting: {}", msg);
+            disconnect ();
+        }
+        else if (isConnecting ())
         {
             LOG.debug ("In the middle of connecting, forwarding message to connection flow: {}", msg);
             this.connectionFlow.read (msg);
@@ -189,7 +390,13 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     {
         LOG.debug ("Received raw response: {}", httpResponse);
 
-        currentFilters.serverToProxyResponseReceiving ();
+        responseFilters.serverToProxyResponseReceiving ();
+
+        if (http2)
+        {
+            // streams have no HeadAwareHttpResponseDecoder to do this for us
+            identifyCurrentRequest ();
+        }
 
         rememberCurrentResponse (httpResponse);
         respondWith (httpResponse);
@@ -200,7 +407,8 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         }
         else
         {
-            currentFilters.serverToProxyResponseReceived ();
+            responseFilters.serverToProxyResponseReceived ();
+            responseCompleted (httpResponse);
 
             return AWAITING_INITIAL;
         }
@@ -210,6 +418,11 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     protected void readHTTPChunk (HttpContent chunk)
     {
         respondWith (chunk);
+
+        if (ProxyUtils.isLastChunk (chunk))
+        {
+            responseCompleted (currentHttpResponse);
+        }
     }
 
     @Override
@@ -268,9 +481,165 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     void write (Object msg, HttpFilters filters)
     {
         this.currentFilters = filters;
+        if (msg instanceof HttpRequest && !ProxyUtils.isCONNECT ((HttpRequest) msg))
+        {
+            HttpRequest httpRequest = (HttpRequest) msg;
+            issuedRequestFilters.put (httpRequest, filters);
+            if (unansweredRequests.getAndIncrement () == 0)
+            {
+                unansweredPipelinable = ServerPipelining.isPipelinable (httpRequest);
+            }
+            else
+            {
+                pipelined = true;
+            }
+        }
         write (msg);
     }
 
+    /**
+     * @return true if requests written to the server await their responses,
+     * or if the connection is being closed, in which case the next request
+     * has to wait until it is closed to go out on a new connection
+     */
+    boolean hasUnansweredRequests ()
+    {
+        return unansweredRequests.get () > 0 || disconnecting;
+    }
+
+    /**
+     * Determines whether a request can be written to the server right away,
+     * although earlier requests await their responses. That takes a server
+     * that is known to support pipelining, room in the pipeline, and
+     * idempotent requests without a body, so that they can be sent again if
+     * the server closes the connection before answering them.
+     *
+     * @param httpRequest the request to pipeline
+     * @return true if the request can be pipelined
+     */
+    boolean canPipeline (HttpRequest httpRequest)
+    {
+        ServerPipelining serverPipelining = proxyServer.getServerPipelining ();
+        return serverPipelining != null && !http2 && !resending && !disconnecting && unansweredPipelinable && !getCurrentState ().isDisconnectingOrDisconnected () && unansweredRequests.get () < serverPipelining.getDepth () && serverPipelining.supports (serverHostAndPort) && ServerPipelining.isPipelinable (httpRequest);
+    }
+
+    /**
+     * Called once the response to a request has been read in full. Once no
+     * more responses are expected, the client is told, so that it can go on
+     * with the requests it held back, unless requests are still being sent
+     * again, or the connection is being closed. In the latter case the
+     * client is told once it is closed, so that its next request goes out on
+     * a new connection.
+     */
+    private void responseCompleted (HttpResponse httpResponse)
+    {
+        if (httpResponse != null && httpResponse.status ().codeClass () == HttpStatusClass.INFORMATIONAL && httpResponse.status ().code () != HttpResponseStatus.SWITCHING_PROTOCOLS.code ())
+        {
+            // the final response is still to come
+            return;
+        }
+        if (unansweredRequests.get () == 0)
+        {
+            return;
+        }
+        if (unansweredRequests.decrementAndGet () > 0)
+        {
+            if (resending)
+            {
+                resendNextRequest ();
+            }
+            return;
+        }
+        resending = false;
+        pipelined = false;
+        Channel currentChannel = channel;
+        if (!disconnecting && !http2 && currentChannel != null && currentChannel.isActive ())
+        {
+            clientConnection.serverRequestsAnswered ();
+            if (poolKey != null)
+            {
+                // the connection is only reusable once it awaits the next response, after the current one was read
+                final ClientToProxyConnection answeredClientConnection = clientConnection;
+                currentChannel.eventLoop ().execute (new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        answeredClientConnection.serverConnectionIdle (ProxyToServerConnection.this);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Called once the channel has been closed. If the server closed it with
+     * pipelined requests unanswered, before it began to answer any of them,
+     * they are sent again one at a time on a new connection, and requests to
+     * the server are no longer pipelined. Otherwise, the unanswered requests
+     * are given up on.
+     */
+    private void resendOrAbandonUnansweredRequests ()
+    {
+        disconnecting = false;
+        ServerPipelining serverPipelining = proxyServer.getServerPipelining ();
+        boolean resend = serverPipelining != null && pipelined && !resending && !http2 && !issuedRequests.isEmpty () && issuedRequests.size () == unansweredRequests.get () && !clientConnection.isMitming () && clientConnection.channel.isActive ();
+        if (resend)
+        {
+            serverPipelining.pipeliningFailed (serverHostAndPort);
+            resending = true;
+            resendRequests.addAll (issuedRequests);
+            issuedRequests.clear ();
+            resendNextRequest ();
+            return;
+        }
+
+        unansweredRequests.set (0);
+        issuedRequests.clear ();
+        issuedRequestFilters.clear ();
+        resendRequests.clear ();
+        resending = false;
+        pipelined = false;
+        clientConnection.serverRequestsAnswered ();
+    }
+
+    /**
+     * Sends the next request that the server left unanswered again, from the
+     * client's event loop, which connects to the server first if need be.
+     */
+    private void resendNextRequest ()
+    {
+        final HttpRequest httpRequest = resendRequests.poll ();
+        if (httpRequest == null)
+        {
+            return;
+        }
+        clientConnection.channel.eventLoop ().execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                LOG.debug ("Sending unanswered request again: {}", httpRequest);
+                HttpFilters filters = issuedRequestFilters.get (httpRequest);
+                if (filters != null)
+                {
+                    currentFilters = filters;
+                }
+                write (httpRequest);
+                write (LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+        });
+    }
+
+    @Override
+    Future <Void> disconnect ()
+    {
+        disconnecting = channel != null;
+        // a connection that waits for a slot in the pool stops waiting
+        poolSlot = null;
+        return super.disconnect ();
+    }
+
     @Override
     void write (Object msg)
     {
@@ -289,31 +658,25 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         }
         else
         {
-            if (isConnecting ())
+            if (isConnecting () || writingPendingMessages)
             {
                 synchronized (connectLock)
                 {
                     if (isConnecting ())
                     {
-                        LOG.debug ("Attempted to write while still in the process of connecting, waiting for connection.");
-                        clientConnection.stopReading ();
-                        try
-                        {
-                            connectLock.wait (30000);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                            LOG.warn ("Interrupted while waiting for connect monitor");
-                        }
+                        LOG.debug ("Attempted to write while still in the process of connecting, queueing message until connected.");
+                        pendingWrites.add (msg);
+                        return;
                     }
                 }
             }
 
             // only write this message if a connection was established and is not in the process of disconnecting or
             // already disconnected
-            if (isConnecting () || getCurrentState ().isDisconnectingOrDisconnected ())
+            if (getCurrentState ().isDisconnectingOrDisconnected ())
             {
-                LOG.debug ("Connection failed or timed out while waiting to write message to server. Message will be discarded: {}", msg);
+                LOG.debug ("Connection failed or closed before message could be written to server. Message will be discarded: {}", msg);
+                ReferenceCountUtil.release (msg);
                 return;
             }
 
@@ -322,6 +685,38 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         }
     }
 
+    /**
+     * Writes out any messages that were queued while we were connecting. Must
+     * be called with {@link #connectLock} held, once the connection has been
+     * established.
+     */
+    void writePendingMessages ()
+    {
+        Object msg;
+        while ((msg = pendingWrites.poll ()) != null)
+        {
+            LOG.debug ("Writing message queued while connecting: {}", msg);
+            doWrite (msg);
+        }
+        writingPendingMessages = false;
+    }
+
+    /**
+     * Releases any messages that were queued while we were connecting. Must be
+     * called with {@link #connectLock} held, once the connection flow has
+     * failed for good.
+     */
+    void discardPendingMessages ()
+    {
+        Object msg;
+        while ((msg = pendingWrites.poll ()) != null)
+        {
+            LOG.debug ("Connection failed, discarding message queued while connecting: {}", msg);
+            ReferenceCountUtil.release (msg);
+        }
+        resendOrAbandonUnansweredRequests ();
+    }
+
     @Override
     protected void writeHttp (HttpObject httpObject)
     {
@@ -346,7 +741,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
     protected void become (ConnectionState newState)
     {
         // Report connection status to HttpFilters
-        if (getCurrentState () == DISCONNECTED && newState == CONNECTING)
+        if ((getCurrentState () == DISCONNECTED || getCurrentState () == AWAITING_CONNECTION_SLOT || getCurrentState () == RESOLVING) && newState == CONNECTING)
         {
             currentFilters.proxyToServerConnectionStarted ();
         }
@@ -378,31 +773,63 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         }
         else if (getCurrentState () == AWAITING_CHUNK && newState != AWAITING_CHUNK)
         {
-            currentFilters.serverToProxyResponseReceived ();
+            responseFilters.serverToProxyResponseReceived ();
         }
 
         super.become (newState);
     }
 
+    @Override
+    protected Future <Channel> encrypt (ChannelPipeline pipeline, final SSLEngine sslEngine, boolean authenticateClients)
+    {
+        final UpstreamSslSessionCache sessionCache = proxyServer.getUpstreamSslSessionCache ();
+        final long handshakeStartMillis = System.currentTimeMillis ();
+        Future <Channel> handshakeFuture = super.encrypt (pipeline, sslEngine, authenticateClients);
+        if (sessionCache != null)
+        {
+            handshakeFuture.addListener (new GenericFutureListener <Future <? super Channel>> ()
+            {
+                @Override
+                public void operationComplete (Future <? super Channel> future) throws Exception
+                {
+                    if (future.isSuccess ())
+                    {
+                        sessionCache.handshakeCompleted (sslEngine, handshakeStartMillis);
+                    }
+                }
+            });
+        }
+        return handshakeFuture;
+    }
+
     @Override
     protected void becameSaturated ()
     {
         super.becameSaturated ();
-        this.clientConnection.serverBecameSaturated (this);
+        if (!idleInPool)
+        {
+            this.clientConnection.serverBecameSaturated (this);
+        }
     }
 
     @Override
     protected void becameWritable ()
     {
         super.becameWritable ();
-        this.clientConnection.serverBecameWriteable (this);
+        if (!idleInPool)
+        {
+            this.clientConnection.serverBecameWriteable (this);
+        }
     }
 
     @Override
     protected void timedOut ()
     {
         super.timedOut ();
-        clientConnection.timedOut ();
+        if (!idleInPool)
+        {
+            clientConnection.timedOut ();
+        }
     }
 
     @Override
@@ -421,7 +848,17 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
                 LOG.error ("Unable to record connectionFailed", e);
             }
         }
-        clientConnection.serverDisconnected (this);
+        if (idleInPool)
+        {
+            // nobody is using us, just make sure the pool forgets about us
+            disconnecting = false;
+            proxyServer.getServerConnectionPool ().retire (this);
+        }
+        else
+        {
+            resendOrAbandonUnansweredRequests ();
+            clientConnection.serverDisconnected (this);
+        }
     }
 
     @Override
@@ -510,6 +947,159 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         return currentFilters;
     }
 
+    String getPoolKey ()
+    {
+        return poolKey;
+    }
+
+    void setPoolKey (String poolKey)
+    {
+        this.poolKey = poolKey;
+    }
+
+    /**
+     * Indicates whether this connection can be handed to another client, i.e.
+     * it is connected, not tunneling and not in the middle of an exchange.
+     */
+    boolean isReusable ()
+    {
+        Channel currentChannel = channel;
+        return is (AWAITING_INITIAL) && currentChannel != null && currentChannel.isActive () && !isTunneling () && issuedRequests.isEmpty () && unansweredRequests.get () == 0 && !disconnecting;
+    }
+
+    /**
+     * Marks this connection as sitting idle in the {@link ServerConnectionPool}.
+     */
+    void park ()
+    {
+        idleInPool = true;
+    }
+
+    /**
+     * Binds this pooled connection to a new client.
+     *
+     * @param newClientConnection the client checking this connection out of the pool
+     * @return false if the connection is no longer usable
+     */
+    boolean adopt (ClientToProxyConnection newClientConnection)
+    {
+        if (!isReusable ())
+        {
+            return false;
+        }
+        this.clientConnection = newClientConnection;
+        idleInPool = false;
+        return true;
+    }
+
+    /**
+     * Makes this new connection wait for the {@link ServerConnectionPool} to
+     * allow another connection to its server before it connects.
+     */
+    void awaitPoolSlot ()
+    {
+        poolSlot = clientConnection.channel.eventLoop ().newPromise ();
+    }
+
+    /**
+     * @return true if this connection still waits for a slot in the pool
+     */
+    boolean isAwaitingPoolSlot ()
+    {
+        Promise <Void> slot = poolSlot;
+        return slot != null && !slot.isDone ();
+    }
+
+    /**
+     * Lets this waiting connection connect, now that the pool manages it. If
+     * it stopped waiting in the meantime, the slot is given up again.
+     */
+    void poolSlotGranted ()
+    {
+        Promise <Void> slot = poolSlot;
+        if (slot == null || !slot.trySuccess (null))
+        {
+            proxyServer.getServerConnectionPool ().retire (this);
+        }
+    }
+
+    /**
+     * Hands this waiting connection's client a pooled connection to the same
+     * server, which then sends the requests this connection waited to send.
+     *
+     * @param pooledConnection the idle connection taken from the pool
+     * @return false if the pooled connection is no longer usable
+     */
+    boolean handOver (ProxyToServerConnection pooledConnection)
+    {
+        if (!pooledConnection.adopt (clientConnection))
+        {
+            return false;
+        }
+        clientConnection.serverConnectionHandedOver (this, pooledConnection);
+        return true;
+    }
+
+    /**
+     * Writes the requests, and the messages that followed them, that were
+     * written to this connection while it waited for a slot to the pooled
+     * connection that its client was handed instead. Called on the client's
+     * event loop, which writes to this connection.
+     *
+     * @param pooledConnection the connection to send the messages on
+     */
+    void transferTo (ProxyToServerConnection pooledConnection)
+    {
+        poolSlot = null;
+        connectionFlow = null;
+        become (DISCONNECTED);
+        HttpRequest waitingRequest = initialRequest;
+        if (waitingRequest != null)
+        {
+            pooledConnection.write (waitingRequest, filtersFor (waitingRequest));
+            ReferenceCountUtil.release (waitingRequest);
+        }
+        synchronized (connectLock)
+        {
+            Object msg;
+            while ((msg = pendingWrites.poll ()) != null)
+            {
+                if (msg instanceof HttpRequest)
+                {
+                    pooledConnection.write (msg, filtersFor ((HttpRequest) msg));
+                }
+                else
+                {
+                    pooledConnection.write (msg);
+                }
+                ReferenceCountUtil.release (msg);
+            }
+        }
+        unansweredRequests.set (0);
+        issuedRequestFilters.clear ();
+    }
+
+    private HttpFilters filtersFor (HttpRequest httpRequest)
+    {
+        HttpFilters filters = issuedRequestFilters.get (httpRequest);
+        return filters != null ? filters : currentFilters;
+    }
+
+    /**
+     * Determines whether this connection's channel is registered, or will be registered once connected, on the event
+     * loop of its client connection's channel.
+     */
+    boolean isColocatedWithClient ()
+    {
+        // the shared HTTP/2 connections serve clients on every event loop
+        if (http2 || !proxyServer.colocatesEventLoopsFor (transportProtocol))
+        {
+            return false;
+        }
+        Channel serverChannel = channel;
+        return serverChannel == null || serverChannel.eventLoop () == clientConnection.channel.eventLoop ();
+    }
+
     /***************************************************************************
      * Private Implementation
      **************************************************************************/
@@ -537,6 +1127,10 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         {
             LOG.debug ("Request queue is empty!");
         }
+
+        // filter the response with the filters of its own request, rather than those of a request pipelined behind it
+        HttpFilters filters = this.currentHttpRequest != null ? this.issuedRequestFilters.remove (this.currentHttpRequest) : null;
+        this.responseFilters = filters != null ? filters : this.currentFilters;
     }
 
     /**
@@ -559,7 +1153,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
      */
     private void respondWith (HttpObject httpObject)
     {
-        clientConnection.respond (this, currentFilters, currentHttpRequest, currentHttpResponse, httpObject);
+        clientConnection.respond (this, responseFilters, currentHttpRequest, currentHttpResponse, httpObject);
     }
 
     /**
@@ -582,17 +1176,49 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
      */
     private void initializeConnectionFlow ()
     {
-        this.connectionFlow = new ConnectionFlow (clientConnection, this, connectLock).then (ConnectChannel);
+        this.connectionFlow = new ConnectionFlow (clientConnection, this, connectLock);
+        this.disconnecting = false;
+
+        Promise <Void> slot = poolSlot;
+        if (slot != null)
+        {
+            connectionFlow.then (AwaitPoolSlot (slot));
+        }
+
+        if (serverAddressResolution != null)
+        {
+            connectionFlow.then (ResolveServerAddress);
+        }
+
+        if (http2)
+        {
+            connectionFlow.then (OpenHttp2Stream);
+            return;
+        }
+
+        connectionFlow.then (ConnectChannel);
 
         if (chainedProxy != null && chainedProxy.requiresEncryption ())
         {
-            connectionFlow.then (serverConnection.EncryptChannel (chainedProxy.newSslEngine ()));
+            // an engine for the chained proxy's host and port can resume cached sessions
+            SSLEngine sslEngine = chainedProxy.newSslEngine (remoteAddress.getHostString (), remoteAddress.getPort ());
+            if (sslEngine == null)
+            {
+                sslEngine = chainedProxy.newSslEngine ();
+            }
+            connectionFlow.then (serverConnection.EncryptChannel (sslEngine));
+        }
+
+        if (mitming)
+        {
+            connectionFlow.then (serverConnection.EncryptChannel (proxyServer.getMitmManager ().serverSslEngine (remoteAddress.getHostName (), remoteAddress.getPort ())));
         }
 
         if (ProxyUtils.isCONNECT (initialRequest))
         {
             MitmManager mitmManager = proxyServer.getMitmManager ();
-            boolean isMitmEnabled = mitmManager != null;
+            // tunnels whose ClientHello was read were already found not to be MITM'd
+            boolean isMitmEnabled = clientHello == null && proxyServer.shouldMitm (serverHostAndPort, initialRequest);
 
             if (isMitmEnabled)
             {
@@ -606,11 +1232,164 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
                     connectionFlow.then (serverConnection.HTTPCONNECTWithChainedProxy);
                 }
 
-                connectionFlow.then (serverConnection.StartTunneling).then (clientConnection.RespondCONNECTSuccessful).then (clientConnection.StartTunneling);
+                connectionFlow.then (serverConnection.StartTunneling);
+
+                // if the ClientHello was read, the client has already been told that the CONNECT succeeded
+                if (clientHello == null)
+                {
+                    connectionFlow.then (clientConnection.RespondCONNECTSuccessful).then (clientConnection.StartTunneling);
+                }
+
+                if (proxyServer.isSplicingTunnels ())
+                {
+                    connectionFlow.then (serverConnection.SpliceTunnel);
+                }
             }
         }
     }
 
+    /**
+     * <p>
+     * Relays the tunnel between the client and server channels with splice,
+     * so that its data no longer passes through the proxy. Runs after both
+     * connections have started tunneling and while the client connection is
+     * not yet reading again.
+     * </p>
+     *
+     * <p>
+     * If the channels can't be spliced, for example because one of them is
+     * encrypted or throttled, the tunnel is relayed through the proxy as
+     * usual.
+     * </p>
+     */
+    private final ConnectionFlowStep SpliceTunnel = new ConnectionFlowStep (this, NEGOTIATING_CONNECT)
+    {
+        @Override
+        boolean shouldSuppressInitialRequest ()
+        {
+            return true;
+        }
+
+        @Override
+        protected Future <?> execute ()
+        {
+            Channel clientChannel = clientConnection.channel;
+            if (!canSpliceTo (clientChannel))
+            {
+                LOG.debug ("Unable to splice tunnel, relaying it through the proxy");
+                return channel.newSucceededFuture ();
+            }
+
+            LOG.debug ("Splicing tunnel");
+            // the proxy no longer sees the tunnel's traffic, so the idle timers would close it regardless of activity
+            ctx.pipeline ().remove ("idle");
+            clientChannel.pipeline ().remove ("idle");
+
+            ChannelFutureListener spliceListener = new ChannelFutureListener ()
+            {
+                @Override
+                public void operationComplete (ChannelFuture future) throws Exception
+                {
+                    // splicing ends with a ClosedChannelException once either side closes, which the usual
+                    // disconnect handling takes care of
+                    if (!future.isSuccess () && !(future.cause () instanceof ClosedChannelException))
+                    {
+                        LOG.warn ("Splicing tunnel failed, disconnecting", future.cause ());
+                        disconnect ();
+                    }
+                }
+            };
+            ((AbstractEpollStreamChannel) clientChannel).spliceTo ((AbstractEpollStreamChannel) channel, Integer.MAX_VALUE).addListener (spliceListener);
+            ((AbstractEpollStreamChannel) channel).spliceTo ((AbstractEpollStreamChannel) clientChannel, Integer.MAX_VALUE).addListener (spliceListener);
+            return channel.newSucceededFuture ();
+        }
+    };
+
+    /**
+     * Determines whether this connection's tunnel can be spliced to the given
+     * client channel. Both channels must be epoll channels on the same event
+     * loop with nothing but the tunnel's raw bytes passing through their
+     * pipelines, and no data from the client may still be waiting to be
+     * written to the server.
+     */
+    private boolean canSpliceTo (Channel clientChannel)
+    {
+        if (!(channel instanceof AbstractEpollStreamChannel) || !(clientChannel instanceof AbstractEpollStreamChannel))
+        {
+            return false;
+        }
+        if (channel.eventLoop () != clientChannel.eventLoop ())
+        {
+            return false;
+        }
+        if (ctx.pipeline ().get ("ssl") != null || clientChannel.pipeline ().get ("ssl") != null || ctx.pipeline ().get ("global-traffic-shaping") != null)
+        {
+            return false;
+        }
+        synchronized (connectLock)
+        {
+            return pendingWrites.isEmpty ();
+        }
+    }
+
+    /**
+     * Waits for the server's address to be resolved by the proxy server's
+     * {@link AsyncHostResolver}. The lookup itself was started when this
+     * connection was set up, see {@link #resolveAsync(AsyncHostResolver)}.
+     */
+    private final ConnectionFlowStep ResolveServerAddress = new ConnectionFlowStep (this, RESOLVING)
+    {
+        @Override
+        boolean shouldExecuteOnEventLoop ()
+        {
+            return false;
+        }
+
+        @Override
+        protected Future <?> execute ()
+        {
+            return serverAddressResolution;
+        }
+
+        @Override
+        void onSuccess (ConnectionFlow flow)
+        {
+            serverAddressResolution = null;
+            flow.advance ();
+        }
+    };
+
+    /**
+     * Waits for the {@link ServerConnectionPool} to allow another connection
+     * to the server.
+     *
+     * @param slot completes once the pool allows it
+     */
+    private ConnectionFlowStep AwaitPoolSlot (final Future <Void> slot)
+    {
+        return new ConnectionFlowStep (this, AWAITING_CONNECTION_SLOT)
+        {
+            @Override
+            boolean shouldExecuteOnEventLoop ()
+            {
+                return false;
+            }
+
+            @Override
+            protected Future <?> execute ()
+            {
+                return slot;
+            }
+
+            @Override
+            void onSuccess (ConnectionFlow flow)
+            {
+                poolSlot = null;
+                flow.advance ();
+            }
+        };
+    }
+
     /**
      * Opens the socket connection.
      */
@@ -625,18 +1404,33 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         @Override
         protected Future <?> execute ()
         {
-            Bootstrap cb = new Bootstrap ().group (proxyServer.getProxyToServerWorkerFor (transportProtocol));
+            EventLoopGroup eventLoopGroup;
+            if (proxyServer.colocatesEventLoopsFor (transportProtocol))
+            {
+                LOG.debug ("Registering server channel on the client channel's event loop");
+                eventLoopGroup = clientConnection.channel.eventLoop ();
+            }
+            else
+            {
+                eventLoopGroup = proxyServer.getProxyToServerWorkerFor (transportProtocol);
+            }
+            Bootstrap cb = new Bootstrap ().group (eventLoopGroup);
 
             switch (transportProtocol)
             {
                 case TCP:
                     LOG.debug ("Connecting to server with TCP");
+                    final ChannelTransport channelTransport = proxyServer.getChannelTransportFor (transportProtocol);
+                    if (proxyServer.isSplicingTunnels ())
+                    {
+                        cb.option (EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+                    }
                     cb.channelFactory (new ChannelFactory <Channel> ()
                     {
                         @Override
                         public Channel newChannel ()
                         {
-                            return new NioSocketChannel ();
+                            return channelTransport.newSocketChannel ();
                         }
                     });
                     break;
@@ -668,6 +1462,49 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         }
     };
 
+    /**
+     * Opens a stream for the next request on a shared HTTP/2 connection to the server. If the server turns out not to
+     * speak HTTP/2, the flow continues by connecting to it as usual instead.
+     */
+    private final ConnectionFlowStep OpenHttp2Stream = new ConnectionFlowStep (this, CONNECTING)
+    {
+        @Override
+        boolean shouldExecuteOnEventLoop ()
+        {
+            return false;
+        }
+
+        @Override
+        protected Future <?> execute ()
+        {
+            http2StreamOpening = proxyServer.getHttp2ServerConnectionPool ().openStream (serverHostAndPort, remoteAddress, localAddress, mitming, trafficHandler, new ChannelInitializer <Channel> ()
+            {
+                @Override
+                protected void initChannel (Channel ch) throws Exception
+                {
+                    initHttp2StreamPipeline (ch.pipeline ());
+                }
+            });
+            return http2StreamOpening;
+        }
+
+        @Override
+        void onSuccess (ConnectionFlow flow)
+        {
+            if (http2StreamOpening.getNow () == null)
+            {
+                LOG.debug ("{} does not speak HTTP/2, connecting with HTTP/1.1", serverHostAndPort);
+                http2 = false;
+                flow.then (ConnectChannel);
+                if (mitming)
+                {
+                    flow.then (serverConnection.EncryptChannel (proxyServer.getMitmManager ().serverSslEngine (remoteAddress.getHostName (), remoteAddress.getPort ())));
+                }
+            }
+            flow.advance ();
+        }
+    };
+
     /**
      * Writes the HTTP CONNECT to the server and waits for a 200 response.
      */
@@ -738,7 +1575,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         @Override
         protected Future <?> execute ()
         {
-            return clientConnection.encrypt (proxyServer.getMitmManager ().clientSslEngineFor (sslEngine.getSession ()), false).addListener (new GenericFutureListener <Future <? super Channel>> ()
+            return clientConnection.encryptMitm (proxyServer.getMitmManager ().clientSslEngineFor (sslEngine.getSession ()), serverHostAndPort).addListener (new GenericFutureListener <Future <? super Channel>> ()
             {
                 @Override
                 public void operationComplete (Future <? super Channel> future) throws Exception
@@ -782,8 +1619,12 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         this.chainedProxy = this.availableChainedProxies.poll ();
         if (chainedProxy != null)
         {
-            // Remove ourselves as handler on the old context
-            this.ctx.pipeline ().remove (this);
+            // Remove ourselves as handler on the old context, unless the old channel was already deregistered, which
+            // removes all handlers
+            if (this.ctx.pipeline ().context (this) != null)
+            {
+                this.ctx.pipeline ().remove (this);
+            }
             this.ctx.close ();
             this.ctx = null;
             this.setupConnectionParameters ();
@@ -808,6 +1649,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
             this.transportProtocol = chainedProxy.getTransportProtocol ();
             this.remoteAddress = chainedProxy.getChainedProxyAddress ();
             this.localAddress = chainedProxy.getLocalAddress ();
+            this.serverAddressResolution = null;
         }
         else
         {
@@ -816,6 +1658,11 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
             // Report DNS resolution to HttpFilters
             this.remoteAddress = this.currentFilters.proxyToServerResolutionStarted (serverHostAndPort);
 
+            // if the proxy server's resolver is asynchronous, leave the address unresolved and resolve it as part of
+            // the connection flow instead of blocking this thread
+            HostResolver serverResolver = proxyServer.getServerResolver ();
+            boolean resolveAsynchronously = serverResolver instanceof AsyncHostResolver;
+
             // save the hostname and port of the unresolved address in hostAndPort, in case name resolution fails
             String hostAndPort = null;
             try
@@ -823,13 +1670,13 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
                 if (this.remoteAddress == null)
                 {
                     hostAndPort = serverHostAndPort;
-                    this.remoteAddress = addressFor (serverHostAndPort, proxyServer);
+                    this.remoteAddress = resolveAsynchronously ? unresolvedAddressFor (serverHostAndPort) : addressFor (serverHostAndPort, proxyServer);
                 }
-                else if (this.remoteAddress.isUnresolved ())
+                else if (this.remoteAddress.isUnresolved () && !resolveAsynchronously)
                 {
                     // filter returned an unresolved address, so resolve it using the proxy server's resolver
                     hostAndPort = HostAndPort.fromParts (this.remoteAddress.getHostName (), this.remoteAddress.getPort ()).toString ();
-                    this.remoteAddress = proxyServer.getServerResolver ().resolve (this.remoteAddress.getHostName (), this.remoteAddress.getPort ());
+                    this.remoteAddress = serverResolver.resolve (this.remoteAddress.getHostName (), this.remoteAddress.getPort ());
                 }
             }
             catch (UnknownHostException e)
@@ -841,12 +1688,77 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
                 throw e;
             }
 
-            this.currentFilters.proxyToServerResolutionSucceeded (serverHostAndPort, this.remoteAddress);
-
             this.localAddress = proxyServer.getLocalAddress ();
+
+            if (resolveAsynchronously && this.remoteAddress.isUnresolved ())
+            {
+                this.serverAddressResolution = resolveAsync ((AsyncHostResolver) serverResolver);
+            }
+            else
+            {
+                this.serverAddressResolution = null;
+                this.currentFilters.proxyToServerResolutionSucceeded (serverHostAndPort, this.remoteAddress);
+            }
         }
     }
 
+    /**
+     * Starts resolving {@link #remoteAddress} with the given resolver. Once the
+     * lookup is done, the resolved address is recorded and the filters are
+     * notified on the client's event loop.
+     */
+    private Future <InetSocketAddress> resolveAsync (AsyncHostResolver serverResolver)
+    {
+        final String host = remoteAddress.getHostString ();
+        final int port = remoteAddress.getPort ();
+        final HttpFilters filters = currentFilters;
+        LOG.debug ("Resolving {}:{} asynchronously", host, port);
+
+        final Promise <InetSocketAddress> resolution = clientConnection.channel.eventLoop ().newPromise ();
+        resolution.addListener (new GenericFutureListener <Future <InetSocketAddress>> ()
+        {
+            @Override
+            public void operationComplete (Future <InetSocketAddress> future) throws Exception
+            {
+                if (future.isSuccess ())
+                {
+                    remoteAddress = future.getNow ();
+                    filters.proxyToServerResolutionSucceeded (serverHostAndPort, remoteAddress);
+                }
+                else
+                {
+                    LOG.debug ("Unable to resolve {}:{}", host, port, future.cause ());
+                    filters.proxyToServerResolutionFailed (HostAndPort.fromParts (host, port).toString ());
+                }
+            }
+        });
+
+        serverResolver.resolveAsync (host, port).whenComplete (new BiConsumer <InetSocketAddress, Throwable> ()
+        {
+            @Override
+            public void accept (InetSocketAddress resolvedAddress, Throwable cause)
+            {
+                if (cause instanceof CompletionException && cause.getCause () != null)
+                {
+                    resolution.tryFailure (cause.getCause ());
+                }
+                else if (cause != null)
+                {
+                    resolution.tryFailure (cause);
+                }
+                else if (resolvedAddress == null || resolvedAddress.isUnresolved ())
+                {
+                    resolution.tryFailure (new UnknownHostException (host));
+                }
+                else
+                {
+                    resolution.trySuccess (resolvedAddress);
+                }
+            }
+        });
+        return resolution;
+    }
+
     /**
      * Initialize our {@link ChannelPipeline}.
      */
@@ -879,6 +1791,29 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         pipeline.addLast ("handler", this);
     }
 
+    /**
+     * Initialize the {@link ChannelPipeline} of a stream on a shared HTTP/2
+     * connection. The stream's frames are converted to and from the same
+     * HTTP objects as on HTTP/1.1 connections. The traffic shaping handler
+     * and byte counters don't apply to individual streams.
+     */
+    private void initHttp2StreamPipeline (ChannelPipeline pipeline)
+    {
+        pipeline.addLast ("codec", new Http2StreamFrameToHttpObjectCodec (false));
+        pipeline.addLast ("emptyBufferFilter", EmptyBufferFilter.INSTANCE);
+        pipeline.addLast ("responseReadMonitor", responseReadMonitor);
+
+        int numberOfBytesToBuffer = proxyServer.getFiltersSource ().getMaximumResponseBufferSizeInBytes ();
+        if (numberOfBytesToBuffer > 0)
+        {
+            aggregateContentForFiltering (pipeline, numberOfBytesToBuffer);
+        }
+
+        pipeline.addLast ("requestWrittenMonitor", requestWrittenMonitor);
+        pipeline.addLast ("idle", new IdleStateHandler (0, 0, proxyServer.getIdleConnectionTimeout ()));
+        pipeline.addLast ("handler", this);
+    }
+
     /**
      * <p>
      * Do all the stuff that needs to be done after our {@link ConnectionFlow}
@@ -890,6 +1825,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
      */
     void connectionSucceeded (boolean shouldForwardInitialRequest)
     {
+        writingPendingMessages = true;
         become (AWAITING_INITIAL);
         if (this.chainedProxy != null)
         {
@@ -926,6 +1862,19 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
      *                              a host and port.
      */
     public static InetSocketAddress addressFor (String hostAndPort, DefaultHttpProxyServer proxyServer) throws UnknownHostException
+    {
+        InetSocketAddress unresolvedAddress = unresolvedAddressFor (hostAndPort);
+        return proxyServer.getServerResolver ().resolve (unresolvedAddress.getHostString (), unresolvedAddress.getPort ());
+    }
+
+    /**
+     * Build an unresolved {@link InetSocketAddress} for the given hostAndPort.
+     *
+     * @param hostAndPort String representation of the host and port
+     * @return an unresolved InetSocketAddress for the specified hostAndPort
+     * @throws UnknownHostException if the input string could not be parsed into a host and port.
+     */
+    private static InetSocketAddress unresolvedAddressFor (String hostAndPort) throws UnknownHostException
     {
         HostAndPort parsedHostAndPort;
         try
@@ -941,7 +1890,7 @@ public class ProxyToServerConnection extends ProxyConnection <HttpResponse>
         String host = parsedHostAndPort.getHost ();
         int port = parsedHostAndPort.getPortOrDefault (80);
 
-        return proxyServer.getServerResolver ().resolve (host, port);
+        return InetSocketAddress.createUnresolved (host, port);
     }
 
     /***************************************************************************
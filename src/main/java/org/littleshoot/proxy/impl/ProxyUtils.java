@@ -16,11 +16,17 @@ import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.internal.tcnative.SSL;
+import io.netty.util.AttributeKey;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.littleshoot.proxy.SslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLEngine;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
@@ -58,6 +64,12 @@ public class ProxyUtils
         HttpHeaderNames.UPGRADE.toString ().toLowerCase (Locale.US),
         "Keep-Alive".toLowerCase (Locale.US));
 
+    /**
+     * The source of the {@link SSLEngine}s with which a proxy encrypts the connections that its clients make to it,
+     * set on the channels of those connections, so that a connection back to the proxy can be encrypted the same way.
+     */
+    public static final AttributeKey <SslEngineSource> SSL_ENGINE_SOURCE = AttributeKey.valueOf ("sslEngineSource");
+
     private static final Logger LOG = LoggerFactory.getLogger (ProxyUtils.class);
 
     private static final TimeZone GMT = TimeZone.getTimeZone ("GMT");
@@ -590,4 +602,26 @@ public class ProxyUtils
             return false;
         }
     }
+
+    /**
+     * Determines whether the completed handshake of an SSLEngine resumed an earlier session.
+     *
+     * @param sslEngine            an engine that has completed its handshake
+     * @param handshakeStartMillis the time at which the handshake started
+     * @return true if the handshake resumed a session
+     */
+    public static boolean isSessionResumed (SSLEngine sslEngine, long handshakeStartMillis)
+    {
+        if (OpenSsl.isAvailable () && sslEngine instanceof ReferenceCountedOpenSslEngine)
+        {
+            ReferenceCountedOpenSslEngine openSslEngine = (ReferenceCountedOpenSslEngine) sslEngine;
+            synchronized (openSslEngine)
+            {
+                long ssl = openSslEngine.sslPointer ();
+                return ssl != 0 && SSL.isSessionReused (ssl);
+            }
+        }
+        // the JDK's engines keep the creation time of the session they resume
+        return sslEngine.getSession ().getCreationTime () < handshakeStartMillis;
+    }
 }
@@ -0,0 +1,551 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A server-wide pool of idle {@link ProxyToServerConnection}s that is shared by all
+ * {@link ClientToProxyConnection}s of a {@link DefaultHttpProxyServer}.
+ * </p>
+ *
+ * <p>
+ * Connections are keyed by the host:port of the server plus the chained proxy (if any) through which they were
+ * established. Once a server connection has answered the requests of its client, and when the client disconnects, it
+ * is returned here instead of being closed, and the next client asking for the same key checks it out and rebinds it
+ * to itself. CONNECT tunnels and MITM'd CONNECTs are never pooled, but the connections that carry the requests of
+ * MITM'd HTTP/2 streams are, under keys of their own.
+ * </p>
+ *
+ * <p>
+ * The pool enforces a per-key maximum number of idle connections and a per-key maximum number of managed (idle plus
+ * checked out) connections, and periodically evicts connections that have been idle for longer than the configured
+ * timeout. A new connection that would exceed the maximum waits before connecting, until either a connection for its
+ * key is closed or one is returned to the pool, which its client is then handed instead.
+ * </p>
+ */
+class ServerConnectionPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger (ServerConnectionPool.class);
+
+    private final int maxIdlePerHost;
+    private final int maxActivePerHost;
+    private final long idleTimeoutMillis;
+
+    private final ConcurrentMap <String, HostPool> hostPools = new ConcurrentHashMap <> ();
+
+    private volatile ScheduledFuture <?> evictionTask;
+
+    ServerConnectionPool (ConnectionPoolConfiguration configuration)
+    {
+        this.maxIdlePerHost = configuration.getMaxIdlePerHost ();
+        this.maxActivePerHost = configuration.getMaxActivePerHost ();
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis (configuration.getIdleTimeoutSeconds ());
+    }
+
+    /**
+     * Builds the key under which connections to the given server through the given chained proxy are pooled.
+     *
+     * @param serverHostAndPort the host:port of the server
+     * @param chainedProxy      the chained proxy used to reach the server, or null for direct connections
+     * @return the pool key
+     */
+    static String keyFor (String serverHostAndPort, ChainedProxy chainedProxy)
+    {
+        if (chainedProxy == null || chainedProxy == ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION)
+        {
+            return serverHostAndPort;
+        }
+        return serverHostAndPort + " via " + chainedProxy.getChainedProxyAddress () + "/" + chainedProxy.getTransportProtocol () + (chainedProxy.requiresEncryption () ? "/TLS" : "");
+    }
+
+    /**
+     * Builds the key under which the encrypted connections that carry requests MITM'd from HTTP/2 streams are pooled.
+     *
+     * @param serverHostAndPort the host:port of the server
+     * @param chainedProxy      the chained proxy used to reach the server, or null for direct connections
+     * @return the pool key
+     */
+    static String mitmKeyFor (String serverHostAndPort, ChainedProxy chainedProxy)
+    {
+        return keyFor (serverHostAndPort, chainedProxy) + " MITM";
+    }
+
+    /**
+     * Starts the periodic eviction of idle connections on the given event loop group.
+     */
+    void start (EventLoopGroup eventLoopGroup)
+    {
+        long period = Math.max (1000L, idleTimeoutMillis / 2);
+        evictionTask = eventLoopGroup.next ().scheduleAtFixedRate (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                evictIdleConnections ();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops idle eviction and closes all idle connections.
+     */
+    void stop ()
+    {
+        ScheduledFuture <?> task = evictionTask;
+        if (task != null)
+        {
+            task.cancel (false);
+        }
+
+        List <ProxyToServerConnection> toClose = new ArrayList <> ();
+        for (HostPool hostPool : hostPools.values ())
+        {
+            synchronized (hostPool)
+            {
+                for (IdleConnection idleConnection : hostPool.idle)
+                {
+                    toClose.add (idleConnection.connection);
+                }
+            }
+        }
+        for (ProxyToServerConnection connection : toClose)
+        {
+            retire (connection);
+            connection.disconnect ();
+        }
+    }
+
+    /**
+     * Checks out an idle connection for the given key and binds it to the given client.
+     *
+     * @param key              pool key, as returned by {@link #keyFor(String, ChainedProxy)}
+     * @param clientConnection the client that will use the connection
+     * @param eventLoop        if not null, connections whose channel is registered on this event loop are checked
+     *                         out in preference to others
+     * @return a connected, idle server connection, or null if none is available
+     */
+    ProxyToServerConnection acquire (String key, ClientToProxyConnection clientConnection, EventLoop eventLoop)
+    {
+        HostPool hostPool = hostPools.get (key);
+        if (hostPool == null)
+        {
+            return null;
+        }
+
+        while (true)
+        {
+            IdleConnection idleConnection;
+            synchronized (hostPool)
+            {
+                idleConnection = pollIdle (hostPool, eventLoop);
+            }
+            if (idleConnection == null)
+            {
+                return null;
+            }
+
+            ProxyToServerConnection connection = idleConnection.connection;
+            if (connection.adopt (clientConnection))
+            {
+                LOG.debug ("Checked out pooled connection for {}", key);
+                return connection;
+            }
+
+            LOG.debug ("Discarding stale pooled connection for {}", key);
+            retire (connection);
+            connection.disconnect ();
+        }
+    }
+
+    /**
+     * Places a newly created connection under the management of this pool, provided the per-key active limit allows
+     * it. Connections that are not registered are never returned to the pool.
+     *
+     * @return true if the connection is now managed by the pool, false if it has to {@link #await(String,
+     * ProxyToServerConnection)} a slot or be closed once its client is done with it
+     */
+    boolean register (String key, ProxyToServerConnection connection)
+    {
+        while (true)
+        {
+            HostPool hostPool = hostPoolFor (key);
+            synchronized (hostPool)
+            {
+                if (hostPool.removed)
+                {
+                    continue;
+                }
+                if (hostPool.active >= maxActivePerHost)
+                {
+                    LOG.debug ("Not pooling new connection for {}, {} connections already active", key, hostPool.active);
+                    return false;
+                }
+                hostPool.active++;
+                connection.setPoolKey (key);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Makes a new connection that the per-key active limit did not allow to be registered wait before connecting. Once
+     * a connection for the key is closed, the waiting connection is registered in its place and connects. If a
+     * connection for the key is returned to the pool first, the waiting connection's client is handed that one
+     * instead, and the waiting connection never connects.
+     *
+     * @param key        pool key, as returned by {@link #keyFor(String, ChainedProxy)}
+     * @param connection the new connection, which was not registered
+     */
+    void await (String key, ProxyToServerConnection connection)
+    {
+        while (true)
+        {
+            HostPool hostPool = hostPoolFor (key);
+            synchronized (hostPool)
+            {
+                if (hostPool.removed)
+                {
+                    continue;
+                }
+                LOG.debug ("Waiting for a slot for new connection for {}, {} connections already active", key, hostPool.active);
+                connection.awaitPoolSlot ();
+                hostPool.waiting.addLast (connection);
+            }
+            dispatch (key, hostPool);
+            return;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool once its client no longer needs it.
+     *
+     * @return true if the connection was pooled, false if the caller should close it
+     */
+    boolean release (ProxyToServerConnection connection)
+    {
+        String key = connection.getPoolKey ();
+        if (key == null)
+        {
+            return false;
+        }
+
+        if (!connection.isReusable () || !pool (key, connection))
+        {
+            retire (connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a connection to the pool once it has answered the requests of its client, which stays connected. Unlike
+     * {@link #release(ProxyToServerConnection)}, a connection that is not pooled stays with its client.
+     *
+     * @return true if the connection was pooled, false if its client keeps it
+     */
+    boolean offer (ProxyToServerConnection connection)
+    {
+        String key = connection.getPoolKey ();
+        return key != null && connection.isReusable () && pool (key, connection);
+    }
+
+    /**
+     * Adds a connection to the idle connections of its key, if there is room or another connection waits for it.
+     */
+    private boolean pool (String key, ProxyToServerConnection connection)
+    {
+        HostPool hostPool = hostPoolFor (key);
+        synchronized (hostPool)
+        {
+            if (hostPool.waiting.isEmpty () && hostPool.idle.size () >= maxIdlePerHost)
+            {
+                LOG.debug ("Not pooling connection for {}, {} connections already idle", key, hostPool.idle.size ());
+                return false;
+            }
+            connection.park ();
+            hostPool.idle.addFirst (new IdleConnection (connection, System.currentTimeMillis ()));
+        }
+        LOG.debug ("Returned connection for {} to pool", key);
+        dispatch (key, hostPool);
+        return true;
+    }
+
+    /**
+     * Removes a connection from the pool's management, for example because it was closed or can no longer be reused.
+     * Safe to call more than once.
+     */
+    void retire (ProxyToServerConnection connection)
+    {
+        String key = connection.getPoolKey ();
+        if (key == null)
+        {
+            return;
+        }
+
+        HostPool hostPool = hostPoolFor (key);
+        synchronized (hostPool)
+        {
+            if (connection.getPoolKey () == null)
+            {
+                return;
+            }
+            connection.setPoolKey (null);
+            hostPool.active--;
+            Iterator <IdleConnection> it = hostPool.idle.iterator ();
+            while (it.hasNext ())
+            {
+                if (it.next ().connection == connection)
+                {
+                    it.remove ();
+                    break;
+                }
+            }
+        }
+        dispatch (key, hostPool);
+    }
+
+    /**
+     * Closes connections that have been idle longer than the configured timeout.
+     */
+    void evictIdleConnections ()
+    {
+        long idleSinceCutoff = System.currentTimeMillis () - idleTimeoutMillis;
+        List <ProxyToServerConnection> toClose = new ArrayList <> ();
+        for (Map.Entry <String, HostPool> entry : hostPools.entrySet ())
+        {
+            HostPool hostPool = entry.getValue ();
+            synchronized (hostPool)
+            {
+                // the oldest connections are at the tail of the deque
+                Iterator <IdleConnection> it = hostPool.idle.descendingIterator ();
+                while (it.hasNext ())
+                {
+                    IdleConnection idleConnection = it.next ();
+                    if (idleConnection.idleSince > idleSinceCutoff)
+                    {
+                        break;
+                    }
+                    it.remove ();
+                    idleConnection.connection.setPoolKey (null);
+                    hostPool.active--;
+                    toClose.add (idleConnection.connection);
+                }
+            }
+            dispatch (entry.getKey (), hostPool);
+        }
+
+        if (!toClose.isEmpty ())
+        {
+            LOG.debug ("Evicting {} idle pooled connections", toClose.size ());
+        }
+        for (ProxyToServerConnection connection : toClose)
+        {
+            connection.disconnect ();
+        }
+    }
+
+    /**
+     * @return the number of idle connections currently pooled for the given key
+     */
+    int getIdleCount (String key)
+    {
+        HostPool hostPool = hostPools.get (key);
+        if (hostPool == null)
+        {
+            return 0;
+        }
+        synchronized (hostPool)
+        {
+            return hostPool.idle.size ();
+        }
+    }
+
+    /**
+     * @return the number of connections (idle plus checked out) currently managed for the given key
+     */
+    int getActiveCount (String key)
+    {
+        HostPool hostPool = hostPools.get (key);
+        if (hostPool == null)
+        {
+            return 0;
+        }
+        synchronized (hostPool)
+        {
+            return hostPool.active;
+        }
+    }
+
+    /**
+     * @return the number of keys for which connections are managed or waiting
+     */
+    int getKeyCount ()
+    {
+        return hostPools.size ();
+    }
+
+    /**
+     * Hands the connections that wait for a slot under the given key the idle connections of the key, or else registers
+     * them as slots free up, in the order in which they started to wait.
+     */
+    private void dispatch (String key, HostPool hostPool)
+    {
+        List <ProxyToServerConnection> registered = new ArrayList <> ();
+        Map <ProxyToServerConnection, ProxyToServerConnection> handedOver = new LinkedHashMap <> ();
+        synchronized (hostPool)
+        {
+            while (!hostPool.waiting.isEmpty ())
+            {
+                ProxyToServerConnection waitingConnection = hostPool.waiting.peekFirst ();
+                if (!waitingConnection.isAwaitingPoolSlot ())
+                {
+                    // its client went away
+                    hostPool.waiting.pollFirst ();
+                }
+                else if (!hostPool.idle.isEmpty ())
+                {
+                    handedOver.put (hostPool.waiting.pollFirst (), hostPool.idle.pollFirst ().connection);
+                }
+                else if (hostPool.active < maxActivePerHost)
+                {
+                    hostPool.waiting.pollFirst ();
+                    hostPool.active++;
+                    waitingConnection.setPoolKey (key);
+                    registered.add (waitingConnection);
+                }
+                else
+                {
+                    break;
+                }
+            }
+            removeIfUnused (key, hostPool);
+        }
+
+        for (ProxyToServerConnection waitingConnection : registered)
+        {
+            LOG.debug ("Slot for {} freed up, connecting", key);
+            waitingConnection.poolSlotGranted ();
+        }
+        for (Map.Entry <ProxyToServerConnection, ProxyToServerConnection> entry : handedOver.entrySet ())
+        {
+            ProxyToServerConnection waitingConnection = entry.getKey ();
+            ProxyToServerConnection pooledConnection = entry.getValue ();
+            if (waitingConnection.handOver (pooledConnection))
+            {
+                LOG.debug ("Handed pooled connection for {} to a client waiting for a slot", key);
+                continue;
+            }
+            LOG.debug ("Discarding stale pooled connection for {}", key);
+            synchronized (hostPool)
+            {
+                hostPool.waiting.addFirst (waitingConnection);
+            }
+            // closing the stale connection frees a slot for the waiting one
+            retire (pooledConnection);
+            pooledConnection.disconnect ();
+        }
+    }
+
+    /**
+     * Removes the most recently used idle connection, so that the oldest connections age out, preferring connections
+     * on the given event loop unless it is null. Must be called while synchronized on the HostPool.
+     */
+    private static IdleConnection pollIdle (HostPool hostPool, EventLoop eventLoop)
+    {
+        if (eventLoop == null)
+        {
+            return hostPool.idle.pollFirst ();
+        }
+        Iterator <IdleConnection> it = hostPool.idle.iterator ();
+        while (it.hasNext ())
+        {
+            IdleConnection idleConnection = it.next ();
+            Channel channel = idleConnection.connection.channel;
+            if (channel != null && channel.eventLoop () == eventLoop)
+            {
+                it.remove ();
+                return idleConnection;
+            }
+        }
+        return hostPool.idle.pollFirst ();
+    }
+
+    /**
+     * Forgets the HostPool of a key once it has no connections and none wait for one, so that the pool does not keep
+     * a HostPool for every server it ever connected to. Must be called while synchronized on the HostPool.
+     */
+    private void removeIfUnused (String key, HostPool hostPool)
+    {
+        if (hostPool.active == 0 && hostPool.idle.isEmpty () && hostPool.waiting.isEmpty () && !hostPool.removed)
+        {
+            hostPool.removed = true;
+            hostPools.remove (key, hostPool);
+        }
+    }
+
+    /**
+     * @return the HostPool of a key, which may have been removed by the time it is locked. Only a HostPool that manages
+     * a connection is certain not to be removed, so callers that add the first connection or waiting connection to it
+     * check {@link HostPool#removed} once they hold its lock, and look it up again if it was.
+     */
+    private HostPool hostPoolFor (String key)
+    {
+        HostPool hostPool = hostPools.get (key);
+        if (hostPool == null)
+        {
+            HostPool newHostPool = new HostPool ();
+            hostPool = hostPools.putIfAbsent (key, newHostPool);
+            if (hostPool == null)
+            {
+                hostPool = newHostPool;
+            }
+        }
+        return hostPool;
+    }
+
+    /**
+     * Idle connections, the active count and the connections that wait for a slot for a single pool key. All access
+     * is synchronized on the HostPool.
+     */
+    private static class HostPool
+    {
+        private final Deque <IdleConnection> idle = new ArrayDeque <> ();
+        private final Deque <ProxyToServerConnection> waiting = new ArrayDeque <> ();
+        private int active;
+
+        /**
+         * True once the HostPool was removed from the pool for having no connections, after which it must not be used.
+         */
+        private boolean removed;
+    }
+
+    private static class IdleConnection
+    {
+        private final ProxyToServerConnection connection;
+        private final long idleSince;
+
+        private IdleConnection (ProxyToServerConnection connection, long idleSince)
+        {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+}
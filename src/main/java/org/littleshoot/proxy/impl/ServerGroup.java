@@ -12,9 +12,14 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages thread pools for one or more proxy server instances. When servers are created, they must register with the
@@ -41,6 +46,17 @@ public class ServerGroup
      */
     public static final int DEFAULT_OUTGOING_WORKER_THREADS = 8;
 
+    /**
+     * The default number of threads to run TLS handshake tasks on. 0 runs them on the event loop of the connection.
+     */
+    public static final int DEFAULT_HANDSHAKE_THREADS = 0;
+
+    /**
+     * The maximum number of TLS handshake tasks waiting for a handshake thread. Once the queue is full, further tasks
+     * run on the event loop of their connection.
+     */
+    public static final int HANDSHAKE_QUEUE_CAPACITY = 1024;
+
     /**
      * Global counter for the {@link #serverGroupId}.
      */
@@ -61,6 +77,19 @@ public class ServerGroup
     private final int incomingWorkerThreads;
     private final int outgoingWorkerThreads;
 
+    /**
+     * Runs the delegated tasks of SSLEngines, which do the expensive cryptography of TLS handshakes, so that they don't
+     * hold up the other connections on an event loop. Null if the tasks run on the event loops.
+     */
+    private final ThreadPoolExecutor handshakeExecutor;
+    private final AtomicInteger peakHandshakeQueueDepth = new AtomicInteger (0);
+    private final AtomicLong inlineHandshakeTasks = new AtomicLong (0);
+
+    /**
+     * The transport used for TCP event loops and channels. UDT always uses NIO.
+     */
+    private final ChannelTransport channelTransport;
+
     /**
      * List of all servers registered to use this ServerGroup. Any access to this list should be synchronized using the
      * {@link #SERVER_REGISTRATION_LOCK}.
@@ -111,12 +140,88 @@ public class ServerGroup
      * @param outgoingWorkerThreads   number of proxy-to-server worker threads per protocol
      */
     public ServerGroup (String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads)
+    {
+        this (name, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, ChannelTransport.NIO);
+    }
+
+    /**
+     * Creates a new ServerGroup instance for a proxy, using the given transport for TCP event loops and channels. If
+     * the transport is not available on this platform, the ServerGroup falls back to {@link ChannelTransport#NIO}.
+     *
+     * @param name                    ServerGroup name to include in thread names
+     * @param incomingAcceptorThreads number of acceptor threads per protocol
+     * @param incomingWorkerThreads   number of client-to-proxy worker threads per protocol
+     * @param outgoingWorkerThreads   number of proxy-to-server worker threads per protocol
+     * @param channelTransport        transport to use for TCP
+     */
+    public ServerGroup (String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, ChannelTransport channelTransport)
+    {
+        this (name, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, channelTransport, DEFAULT_HANDSHAKE_THREADS);
+    }
+
+    /**
+     * Creates a new ServerGroup instance for a proxy, using the given transport for TCP event loops and channels, and
+     * running TLS handshake tasks on a separate pool of threads.
+     *
+     * @param name                    ServerGroup name to include in thread names
+     * @param incomingAcceptorThreads number of acceptor threads per protocol
+     * @param incomingWorkerThreads   number of client-to-proxy worker threads per protocol
+     * @param outgoingWorkerThreads   number of proxy-to-server worker threads per protocol
+     * @param channelTransport        transport to use for TCP
+     * @param handshakeThreads        number of threads to run TLS handshake tasks on, or 0 to run them on the event
+     *                                loops
+     */
+    public ServerGroup (String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, ChannelTransport channelTransport, int handshakeThreads)
     {
         this.name = name;
         this.serverGroupId = serverGroupCount.getAndIncrement ();
         this.incomingAcceptorThreads = incomingAcceptorThreads;
         this.incomingWorkerThreads = incomingWorkerThreads;
         this.outgoingWorkerThreads = outgoingWorkerThreads;
+
+        if (channelTransport.isAvailable ())
+        {
+            this.channelTransport = channelTransport;
+        }
+        else
+        {
+            log.warn ("{} transport is not available on this platform, falling back to {}", channelTransport, ChannelTransport.NIO);
+            this.channelTransport = ChannelTransport.NIO;
+        }
+
+        if (handshakeThreads > 0)
+        {
+            this.handshakeExecutor = new ThreadPoolExecutor (handshakeThreads, handshakeThreads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue <Runnable> (HANDSHAKE_QUEUE_CAPACITY), new CategorizedThreadFactory (name, "Handshake", serverGroupId), new RejectedExecutionHandler ()
+            {
+                @Override
+                public void rejectedExecution (Runnable task, ThreadPoolExecutor executor)
+                {
+                    if (!executor.isShutdown ())
+                    {
+                        // the queue is full, so don't make the handshake wait any longer
+                        inlineHandshakeTasks.incrementAndGet ();
+                        task.run ();
+                    }
+                }
+            })
+            {
+                @Override
+                public void execute (Runnable task)
+                {
+                    super.execute (task);
+                    int depth = getQueue ().size ();
+                    int peak = peakHandshakeQueueDepth.get ();
+                    while (depth > peak && !peakHandshakeQueueDepth.compareAndSet (peak, depth))
+                    {
+                        peak = peakHandshakeQueueDepth.get ();
+                    }
+                }
+            };
+        }
+        else
+        {
+            this.handshakeExecutor = null;
+        }
     }
 
     /**
@@ -152,7 +257,7 @@ public class ServerGroup
                         throw new UnknownTransportProtocolException (protocol);
                     }
 
-                    ProxyThreadPools threadPools = new ProxyThreadPools (selectorProvider, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, name, serverGroupId);
+                    ProxyThreadPools threadPools = new ProxyThreadPools (getChannelTransportForProtocol (protocol), selectorProvider, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads, name, serverGroupId);
                     protocolThreadPools.put (protocol, threadPools);
                 }
             }
@@ -248,6 +353,18 @@ public class ServerGroup
             }
         }
 
+        if (handshakeExecutor != null)
+        {
+            if (graceful)
+            {
+                handshakeExecutor.shutdown ();
+            }
+            else
+            {
+                handshakeExecutor.shutdownNow ();
+            }
+        }
+
         if (graceful)
         {
             for (EventLoopGroup group : allEventLoopGroups)
@@ -310,6 +427,59 @@ public class ServerGroup
         return getThreadPoolsForProtocol (protocol).getProxyToServerWorkerPool ();
     }
 
+    /**
+     * Retrieves the transport used for the event loops and channels of the specified protocol.
+     *
+     * @param protocol transport protocol to retrieve the channel transport for
+     * @return the channel transport
+     */
+    public ChannelTransport getChannelTransportForProtocol (TransportProtocol protocol)
+    {
+        return protocol == TransportProtocol.TCP ? channelTransport : ChannelTransport.NIO;
+    }
+
+    /**
+     * Retrieves the executor on which SSLEngines run their delegated handshake tasks.
+     *
+     * @return the handshake executor, or null if handshake tasks run on the event loops
+     */
+    public Executor getHandshakeExecutor ()
+    {
+        return handshakeExecutor;
+    }
+
+    /**
+     * @return the number of TLS handshake tasks currently waiting for a handshake thread
+     */
+    public int getHandshakeQueueDepth ()
+    {
+        return handshakeExecutor != null ? handshakeExecutor.getQueue ().size () : 0;
+    }
+
+    /**
+     * @return the largest number of TLS handshake tasks that have waited for a handshake thread at once
+     */
+    public int getPeakHandshakeQueueDepth ()
+    {
+        return peakHandshakeQueueDepth.get ();
+    }
+
+    /**
+     * @return the number of TLS handshake tasks that ran on a handshake thread
+     */
+    public long getCompletedHandshakeTaskCount ()
+    {
+        return handshakeExecutor != null ? handshakeExecutor.getCompletedTaskCount () : 0;
+    }
+
+    /**
+     * @return the number of TLS handshake tasks that ran on an event loop because the handshake queue was full
+     */
+    public long getInlineHandshakeTaskCount ()
+    {
+        return inlineHandshakeTasks.get ();
+    }
+
     /**
      * @return true if this ServerGroup has already been stopped
      */
@@ -0,0 +1,79 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which requests a {@link DefaultHttpProxyServer} pipelines to which servers, and remembers the servers that
+ * turned out not to support pipelining after all.
+ */
+class ServerPipelining
+{
+    private static final Logger LOG = LoggerFactory.getLogger (ServerPipelining.class);
+
+    private final int depth;
+    private final Set <String> hosts;
+
+    /**
+     * The servers that closed their connection while pipelined requests were unanswered.
+     */
+    private final Set <String> unsupportedServers = Collections.newSetFromMap (new ConcurrentHashMap <String, Boolean> ());
+
+    ServerPipelining (PipeliningConfiguration configuration)
+    {
+        this.depth = configuration.getDepth ();
+        this.hosts = configuration.getHosts ();
+    }
+
+    /**
+     * @return the maximum number of unanswered requests on one connection
+     */
+    int getDepth ()
+    {
+        return depth;
+    }
+
+    /**
+     * @param serverHostAndPort the host:port of the server
+     * @return true if requests may be pipelined to the server
+     */
+    boolean supports (String serverHostAndPort)
+    {
+        return hosts.contains (serverHostAndPort) && !unsupportedServers.contains (serverHostAndPort);
+    }
+
+    /**
+     * Stops pipelining to a server that closed its connection with pipelined requests unanswered.
+     *
+     * @param serverHostAndPort the host:port of the server
+     */
+    void pipeliningFailed (String serverHostAndPort)
+    {
+        if (unsupportedServers.add (serverHostAndPort))
+        {
+            LOG.info ("{} closed its connection with pipelined requests unanswered, no longer pipelining to it", serverHostAndPort);
+        }
+    }
+
+    /**
+     * Determines whether a request may be pipelined, which requires that sending it again on another connection is
+     * harmless and takes no more than the request itself: its method must be idempotent and it must have no body.
+     *
+     * @param httpRequest the request
+     * @return true if the request may be pipelined
+     */
+    static boolean isPipelinable (HttpRequest httpRequest)
+    {
+        HttpMethod method = httpRequest.method ();
+        boolean idempotent = HttpMethod.GET.equals (method) || HttpMethod.HEAD.equals (method) || HttpMethod.OPTIONS.equals (method) || HttpMethod.TRACE.equals (method) || HttpMethod.PUT.equals (method) || HttpMethod.DELETE.equals (method);
+        return idempotent && !HttpUtil.isTransferEncodingChunked (httpRequest) && HttpUtil.getContentLength (httpRequest, 0L) == 0L && !httpRequest.headers ().contains (HttpHeaderNames.EXPECT);
+    }
+}
@@ -0,0 +1,202 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Configures the caches of TLS sessions for connections from clients to the proxy, when the proxy encrypts them with
+ * an {@link org.littleshoot.proxy.SslEngineSource}, and counts how many of those handshakes resumed a session.
+ * </p>
+ *
+ * <p>
+ * Session tickets let clients resume sessions on any server that holds the key the ticket was encrypted with. This
+ * class generates those keys and rotates them periodically, keeping the previous key so that tickets issued shortly
+ * before a rotation can still be resumed. Servers that share an instance, such as the servers in a
+ * {@link ServerGroup} that were created with {@link org.littleshoot.proxy.HttpProxyServer#clone()}, therefore resume
+ * each other's sessions.
+ * </p>
+ *
+ * <p>
+ * Ticket keys can only be set on OpenSSL-based engines. The JDK's engines encrypt tickets with keys of their own,
+ * which they rotate hourly (see the jdk.tls.server.statelessKeyTimeout system property); for those, only the size and
+ * timeout of the session cache are applied.
+ * </p>
+ */
+public class ServerSslSessionCache
+{
+    /**
+     * The default maximum number of sessions cached per SSLContext.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 20000;
+
+    /**
+     * The default number of seconds a session may be resumed.
+     */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 3600;
+
+    /**
+     * The default number of seconds after which a new ticket key is used to encrypt session tickets.
+     */
+    public static final int DEFAULT_TICKET_KEY_ROTATION_SECONDS = 3600;
+
+    private static final SecureRandom RANDOM = new SecureRandom ();
+
+    private final int maximumSize;
+    private final int timeoutSeconds;
+    private final long ticketKeyRotationMillis;
+
+    /**
+     * The generation of ticket keys last applied to each session context. Accesses are synchronized on this map.
+     */
+    private final Map <SSLSessionContext, Long> configuredContexts = new WeakHashMap <> ();
+
+    private final AtomicLong hits = new AtomicLong (0);
+    private final AtomicLong misses = new AtomicLong (0);
+
+    /**
+     * The current and previous ticket keys, and when and in which generation the current key was generated. Guarded by
+     * {@link #configuredContexts}.
+     */
+    private OpenSslSessionTicketKey currentTicketKey;
+    private OpenSslSessionTicketKey previousTicketKey;
+    private long ticketKeyCreatedMillis;
+    private long ticketKeyGeneration;
+
+    public ServerSslSessionCache ()
+    {
+        this (DEFAULT_MAXIMUM_SIZE, DEFAULT_TIMEOUT_SECONDS, DEFAULT_TICKET_KEY_ROTATION_SECONDS);
+    }
+
+    /**
+     * @param maximumSize               maximum number of sessions cached per SSLContext, or 0 for no limit
+     * @param timeoutSeconds            number of seconds a session may be resumed, or 0 for no limit
+     * @param ticketKeyRotationSeconds  number of seconds after which a new ticket key is used
+     */
+    public ServerSslSessionCache (int maximumSize, int timeoutSeconds, int ticketKeyRotationSeconds)
+    {
+        this.maximumSize = maximumSize;
+        this.timeoutSeconds = timeoutSeconds;
+        this.ticketKeyRotationMillis = TimeUnit.SECONDS.toMillis (ticketKeyRotationSeconds);
+    }
+
+    public int getMaximumSize ()
+    {
+        return maximumSize;
+    }
+
+    public int getTimeoutSeconds ()
+    {
+        return timeoutSeconds;
+    }
+
+    /**
+     * @return the number of client handshakes that resumed a session
+     */
+    public long getHitCount ()
+    {
+        return hits.get ();
+    }
+
+    /**
+     * @return the number of client handshakes that established a new session
+     */
+    public long getMissCount ()
+    {
+        return misses.get ();
+    }
+
+    /**
+     * Applies the cache settings and current ticket keys to the session context of an engine that is about to
+     * handshake, rotating the ticket keys first if they are due.
+     *
+     * @param sessionContext the session context, or null if the engine doesn't expose one before its handshake
+     * @return true if session tickets were enabled on the context for the first time. OpenSSL-based engines created
+     *         from the context before then do not issue tickets, and should be replaced.
+     */
+    boolean configure (SSLSessionContext sessionContext)
+    {
+        if (sessionContext == null)
+        {
+            return false;
+        }
+        boolean openSsl = OpenSsl.isAvailable () && sessionContext instanceof OpenSslSessionContext;
+        synchronized (configuredContexts)
+        {
+            if (openSsl)
+            {
+                rotateTicketKeysIfDue ();
+            }
+            Long appliedGeneration = configuredContexts.get (sessionContext);
+            if (appliedGeneration == null)
+            {
+                sessionContext.setSessionCacheSize (maximumSize);
+                sessionContext.setSessionTimeout (timeoutSeconds);
+            }
+            if (openSsl && (appliedGeneration == null || appliedGeneration != ticketKeyGeneration))
+            {
+                // the first key encrypts new tickets, the others only decrypt
+                if (previousTicketKey != null)
+                {
+                    ((OpenSslSessionContext) sessionContext).setTicketKeys (currentTicketKey, previousTicketKey);
+                }
+                else
+                {
+                    ((OpenSslSessionContext) sessionContext).setTicketKeys (currentTicketKey);
+                }
+            }
+            configuredContexts.put (sessionContext, ticketKeyGeneration);
+            return openSsl && appliedGeneration == null;
+        }
+    }
+
+    /**
+     * Records a completed client handshake.
+     *
+     * @param sslEngine            the engine that completed the handshake
+     * @param handshakeStartMillis the time at which the handshake started
+     */
+    void handshakeCompleted (SSLEngine sslEngine, long handshakeStartMillis)
+    {
+        SSLSession session = sslEngine.getSession ();
+        configure (session.getSessionContext ());
+
+        if (ProxyUtils.isSessionResumed (sslEngine, handshakeStartMillis))
+        {
+            hits.incrementAndGet ();
+        }
+        else
+        {
+            misses.incrementAndGet ();
+        }
+    }
+
+    private void rotateTicketKeysIfDue ()
+    {
+        long now = System.currentTimeMillis ();
+        if (currentTicketKey == null || now - ticketKeyCreatedMillis >= ticketKeyRotationMillis)
+        {
+            previousTicketKey = currentTicketKey;
+            currentTicketKey = new OpenSslSessionTicketKey (randomBytes (OpenSslSessionTicketKey.NAME_SIZE), randomBytes (OpenSslSessionTicketKey.HMAC_KEY_SIZE), randomBytes (OpenSslSessionTicketKey.AES_KEY_SIZE));
+            ticketKeyCreatedMillis = now;
+            ticketKeyGeneration++;
+        }
+    }
+
+    private static byte[] randomBytes (int length)
+    {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes (bytes);
+        return bytes;
+    }
+}
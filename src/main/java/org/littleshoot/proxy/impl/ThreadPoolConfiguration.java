@@ -9,6 +9,8 @@ public class ThreadPoolConfiguration
     private int acceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
     private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
     private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+    private ChannelTransport channelTransport;
+    private int handshakeThreads = ServerGroup.DEFAULT_HANDSHAKE_THREADS;
 
     public int getClientToProxyWorkerThreads ()
     {
@@ -65,4 +67,50 @@ public class ThreadPoolConfiguration
         this.proxyToServerWorkerThreads = proxyToServerWorkerThreads;
         return this;
     }
+
+    /**
+     * @return the transport set with {@link #withChannelTransport(ChannelTransport)}, or null if none was set, in
+     * which case the proxy's transport is left as it is
+     */
+    public ChannelTransport getChannelTransport ()
+    {
+        return channelTransport;
+    }
+
+    /**
+     * Set the Netty transport used for the proxy's TCP event loops and channels. If the transport is not available on
+     * this platform (e.g. {@link ChannelTransport#EPOLL} on a non-Linux system, or without the native library), the
+     * proxy falls back to {@link ChannelTransport#NIO}. If it is not set, applying this configuration leaves the
+     * transport set with {@link org.littleshoot.proxy.HttpProxyServerBootstrap#withChannelTransport(ChannelTransport)},
+     * which is {@link ChannelTransport#NIO} by default.
+     *
+     * @param channelTransport transport to use for TCP
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withChannelTransport (ChannelTransport channelTransport)
+    {
+        this.channelTransport = channelTransport;
+        return this;
+    }
+
+    public int getHandshakeThreads ()
+    {
+        return handshakeThreads;
+    }
+
+    /**
+     * Set the number of threads on which TLS handshake tasks run. Handshake tasks do the expensive cryptography of TLS
+     * handshakes, such as signing with the server's private key, and would otherwise run on the worker thread of the
+     * connection, delaying every other connection on that thread. Up to {@link ServerGroup#HANDSHAKE_QUEUE_CAPACITY}
+     * tasks wait for a handshake thread; beyond that they run on the worker thread. The default value is
+     * {@link ServerGroup#DEFAULT_HANDSHAKE_THREADS}, which runs all handshake tasks on the worker threads.
+     *
+     * @param handshakeThreads number of handshake threads to create, or 0 for none
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withHandshakeThreads (int handshakeThreads)
+    {
+        this.handshakeThreads = handshakeThreads;
+        return this;
+    }
 }
@@ -0,0 +1,110 @@
+package org.littleshoot.proxy.impl;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Configures the caches of TLS sessions for handshakes with servers and chained proxies, and counts how many of those
+ * handshakes resumed a cached session.
+ * </p>
+ *
+ * <p>
+ * The JDK caches client sessions per {@link javax.net.ssl.SSLContext}, keyed by the host and port the
+ * {@link javax.net.ssl.SSLEngine} was created for, and stores TLS 1.3 session tickets in the same cache. LittleProxy
+ * creates upstream engines for the server's (or chained proxy's) host and port, so reconnects to the same origin
+ * through the same {@link org.littleshoot.proxy.MitmManager} or {@link org.littleshoot.proxy.ChainedProxy} get
+ * abbreviated handshakes. This class applies its size and timeout to each of those caches when a handshake first
+ * completes through it.
+ * </p>
+ */
+public class UpstreamSslSessionCache
+{
+    /**
+     * The default maximum number of sessions cached per SSLContext.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    /**
+     * The default number of seconds a cached session may be resumed.
+     */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 3600;
+
+    private final int maximumSize;
+    private final int timeoutSeconds;
+    private final Set <SSLSessionContext> configuredContexts = Collections.synchronizedSet (Collections.newSetFromMap (new WeakHashMap <SSLSessionContext, Boolean> ()));
+    private final AtomicLong hits = new AtomicLong (0);
+    private final AtomicLong misses = new AtomicLong (0);
+
+    public UpstreamSslSessionCache ()
+    {
+        this (DEFAULT_MAXIMUM_SIZE, DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * @param maximumSize    maximum number of sessions cached per SSLContext, or 0 for no limit
+     * @param timeoutSeconds number of seconds a cached session may be resumed, or 0 for no limit
+     */
+    public UpstreamSslSessionCache (int maximumSize, int timeoutSeconds)
+    {
+        this.maximumSize = maximumSize;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public int getMaximumSize ()
+    {
+        return maximumSize;
+    }
+
+    public int getTimeoutSeconds ()
+    {
+        return timeoutSeconds;
+    }
+
+    /**
+     * @return the number of upstream handshakes that resumed a cached session
+     */
+    public long getHitCount ()
+    {
+        return hits.get ();
+    }
+
+    /**
+     * @return the number of upstream handshakes that established a new session
+     */
+    public long getMissCount ()
+    {
+        return misses.get ();
+    }
+
+    /**
+     * Records a completed upstream handshake, and configures the cache that its session belongs to.
+     *
+     * @param sslEngine            the engine that completed the handshake
+     * @param handshakeStartMillis the time at which the handshake started
+     */
+    void handshakeCompleted (SSLEngine sslEngine, long handshakeStartMillis)
+    {
+        SSLSession session = sslEngine.getSession ();
+        SSLSessionContext sessionContext = session.getSessionContext ();
+        if (sessionContext != null && configuredContexts.add (sessionContext))
+        {
+            sessionContext.setSessionCacheSize (maximumSize);
+            sessionContext.setSessionTimeout (timeoutSeconds);
+        }
+
+        if (ProxyUtils.isSessionResumed (sslEngine, handshakeStartMillis))
+        {
+            hits.incrementAndGet ();
+        }
+        else
+        {
+            misses.incrementAndGet ();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link CachingHostResolver}.
+ */
+public class CachingHostResolverTest
+{
+    @Test
+    public void testSuccessfulLookupIsCached () throws Exception
+    {
+        CountingResolver delegate = new CountingResolver ();
+        CachingHostResolver resolver = new CachingHostResolver (delegate);
+
+        InetSocketAddress first = resolver.resolveAsync ("www.example.com", 80).toCompletableFuture ().get (5, TimeUnit.SECONDS);
+        InetSocketAddress second = resolver.resolveAsync ("www.example.com", 8080).toCompletableFuture ().get (5, TimeUnit.SECONDS);
+
+        assertEquals (1, delegate.lookups.get ());
+        assertEquals (first.getAddress (), second.getAddress ());
+        assertEquals (80, first.getPort ());
+        assertEquals (8080, second.getPort ());
+
+        resolver.clearCache ();
+        resolver.resolve ("www.example.com", 80);
+        assertEquals (2, delegate.lookups.get ());
+    }
+
+    @Test
+    public void testFailedLookupIsCached () throws Exception
+    {
+        CountingResolver delegate = new CountingResolver ();
+        CachingHostResolver resolver = new CachingHostResolver (delegate);
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                resolver.resolveAsync ("www.doesnotexist", 80).toCompletableFuture ().get (5, TimeUnit.SECONDS);
+                fail ("Expected lookup to fail");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue ("Expected an UnknownHostException", e.getCause () instanceof UnknownHostException);
+            }
+        }
+
+        try
+        {
+            resolver.resolve ("www.doesnotexist", 80);
+            fail ("Expected lookup to fail");
+        }
+        catch (UnknownHostException e)
+        {
+            // expected
+        }
+
+        assertEquals (1, delegate.lookups.get ());
+    }
+
+    @Test
+    public void testFailedLookupIsNotCachedWithZeroNegativeTtl () throws Exception
+    {
+        CountingResolver delegate = new CountingResolver ();
+        CachingHostResolver resolver = new CachingHostResolver (delegate, 100, 30, 0, 1);
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                resolver.resolve ("www.doesnotexist", 80);
+                fail ("Expected lookup to fail");
+            }
+            catch (UnknownHostException e)
+            {
+                // expected
+            }
+        }
+
+        assertEquals (2, delegate.lookups.get ());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCoalesced () throws Exception
+    {
+        CountingResolver delegate = new CountingResolver ();
+        delegate.blockLookups = new CountDownLatch (1);
+        CachingHostResolver resolver = new CachingHostResolver (delegate);
+
+        CompletableFuture <InetSocketAddress> first = resolver.resolveAsync ("www.example.com", 80).toCompletableFuture ();
+        CompletableFuture <InetSocketAddress> second = resolver.resolveAsync ("www.example.com", 443).toCompletableFuture ();
+
+        delegate.blockLookups.countDown ();
+
+        assertEquals (80, first.get (5, TimeUnit.SECONDS).getPort ());
+        assertEquals (443, second.get (5, TimeUnit.SECONDS).getPort ());
+        assertEquals (1, delegate.lookups.get ());
+    }
+
+    @Test
+    public void testAddressLiteralsAreNotLookedUp () throws Exception
+    {
+        CountingResolver delegate = new CountingResolver ();
+        CachingHostResolver resolver = new CachingHostResolver (delegate);
+
+        InetSocketAddress address = resolver.resolveAsync ("127.0.0.1", 80).toCompletableFuture ().getNow (null);
+
+        assertEquals (InetAddress.getByName ("127.0.0.1"), address.getAddress ());
+        assertEquals (0, delegate.lookups.get ());
+    }
+
+    /**
+     * Resolves www.example.com to 192.0.2.1, fails for everything else, and counts the lookups.
+     */
+    private static class CountingResolver implements HostResolver
+    {
+        private final AtomicInteger lookups = new AtomicInteger (0);
+        private volatile CountDownLatch blockLookups;
+
+        @Override
+        public InetSocketAddress resolve (String host, int port) throws UnknownHostException
+        {
+            lookups.incrementAndGet ();
+            if (blockLookups != null)
+            {
+                try
+                {
+                    blockLookups.await (5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread ().interrupt ();
+                }
+            }
+            if ("www.example.com".equals (host))
+            {
+                return new InetSocketAddress (InetAddress.getByAddress (host, new byte[] {(byte) 192, 0, 2, 1}), port);
+            }
+            throw new UnknownHostException (host);
+        }
+    }
+}
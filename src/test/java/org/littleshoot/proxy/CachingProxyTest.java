@@ -0,0 +1,453 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.littleshoot.proxy.extras.CachedResponse;
+import org.littleshoot.proxy.extras.CachingHttpFiltersSource;
+import org.littleshoot.proxy.extras.MemoryResponseCacheStore;
+import org.littleshoot.proxy.extras.OffHeapResponseCacheStore;
+import org.littleshoot.proxy.extras.ResponseCache;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the proxy answers requests from its cache when {@link CachingHttpFiltersSource} is installed, as far as the
+ * caching headers of the requests and responses allow.
+ */
+public class CachingProxyTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder ();
+
+    private HttpProxyServer proxyServer;
+    private CachingHttpFiltersSource filtersSource;
+    private HttpClient httpClient;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        mockServer = new ClientAndServer (0);
+        mockServerPort = mockServer.getPort ();
+
+        filtersSource = new CachingHttpFiltersSource ();
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withFiltersSource (filtersSource).start ();
+        httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        try
+        {
+            if (proxyServer != null)
+            {
+                proxyServer.abort ();
+            }
+        }
+        finally
+        {
+            if (mockServer != null)
+            {
+                mockServer.stop ();
+            }
+        }
+    }
+
+    @Test
+    public void testServesFreshResponseFromCache () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/fresh")).respond (response ().withStatusCode (200).withBody ("fresh").withHeader ("Cache-Control", "max-age=60"));
+
+        assertEquals ("fresh", get ("/fresh"));
+        HttpResponse response = execute (new HttpGet (uriOf ("/fresh")));
+        assertEquals ("fresh", EntityUtils.toString (response.getEntity ()));
+        assertNotNull ("Expected an Age header on a response from the cache", response.getFirstHeader ("Age"));
+
+        assertEquals (1, requestsTo ("/fresh"));
+        assertEquals (1, filtersSource.getCache ().getHits ());
+    }
+
+    @Test
+    public void testServesResponseFromDisk () throws Exception
+    {
+        // bodies are written to disk at once, since none fit in memory
+        OffHeapResponseCacheStore store = new OffHeapResponseCacheStore (0, temporaryFolder.newFolder (), 1024 * 1024, 64 * 1024);
+        proxyServer.abort ();
+        filtersSource = new CachingHttpFiltersSource (new ResponseCache (store, ResponseCache.DEFAULT_MAXIMUM_ENTRY_SIZE_IN_BYTES));
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withFiltersSource (filtersSource).start ();
+        httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+        try
+        {
+            mockServer.when (request ().withMethod ("GET").withPath ("/disk")).respond (response ().withStatusCode (200).withBody ("disk").withHeader ("Cache-Control", "max-age=60"));
+
+            assertEquals ("disk", get ("/disk"));
+            assertEquals (1, store.getDiskEntries ());
+            assertEquals ("disk", get ("/disk"));
+            assertEquals ("disk", get ("/disk"));
+
+            assertEquals (1, requestsTo ("/disk"));
+        }
+        finally
+        {
+            store.close ();
+        }
+    }
+
+    @Test
+    public void testReleasesBodiesServedFromCache () throws Exception
+    {
+        final List <ByteBuf> storedBodies = new ArrayList <> ();
+        MemoryResponseCacheStore store = new MemoryResponseCacheStore ()
+        {
+            @Override
+            public void put (String key, CachedResponse response)
+            {
+                storedBodies.add (response.getBody ());
+                super.put (key, response);
+            }
+        };
+        proxyServer.abort ();
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withFiltersSource (new CachingHttpFiltersSource (new ResponseCache (store, ResponseCache.DEFAULT_MAXIMUM_ENTRY_SIZE_IN_BYTES))).start ();
+        httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+        mockServer.when (request ().withMethod ("GET").withPath ("/released")).respond (response ().withStatusCode (200).withBody ("released").withHeader ("Cache-Control", "max-age=60"));
+
+        assertEquals ("released", get ("/released"));
+        assertEquals ("released", get ("/released"));
+        assertEquals ("released", get ("/released"));
+
+        assertEquals (1, storedBodies.size ());
+        long deadline = System.currentTimeMillis () + 1000;
+        while (storedBodies.get (0).refCnt () > 1 && System.currentTimeMillis () < deadline)
+        {
+            Thread.sleep (10);
+        }
+        assertEquals ("Only the store should hold a reference to the body", 1, storedBodies.get (0).refCnt ());
+    }
+
+    @Test
+    public void testDoesNotStoreNoStoreResponses () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/nostore")).respond (response ().withStatusCode (200).withBody ("nostore").withHeader ("Cache-Control", "max-age=60, no-store"));
+
+        assertEquals ("nostore", get ("/nostore"));
+        assertEquals ("nostore", get ("/nostore"));
+
+        assertEquals (2, requestsTo ("/nostore"));
+    }
+
+    @Test
+    public void testStoresVariantsSeparately () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/vary").withHeader ("Accept-Language", "en")).respond (response ().withStatusCode (200).withBody ("hello").withHeader ("Cache-Control", "max-age=60").withHeader ("Vary", "Accept-Language"));
+        mockServer.when (request ().withMethod ("GET").withPath ("/vary").withHeader ("Accept-Language", "fr")).respond (response ().withStatusCode (200).withBody ("bonjour").withHeader ("Cache-Control", "max-age=60").withHeader ("Vary", "Accept-Language"));
+
+        assertEquals ("hello", get ("/vary", "Accept-Language", "en"));
+        assertEquals ("bonjour", get ("/vary", "Accept-Language", "fr"));
+        assertEquals ("hello", get ("/vary", "Accept-Language", "en"));
+        assertEquals ("bonjour", get ("/vary", "Accept-Language", "fr"));
+
+        assertEquals (2, requestsTo ("/vary"));
+    }
+
+    @Test
+    public void testDoesNotServeExpiredResponses () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/expiring")).respond (response ().withStatusCode (200).withBody ("expiring").withHeader ("Cache-Control", "max-age=1"));
+
+        assertEquals ("expiring", get ("/expiring"));
+        Thread.sleep (2100);
+        assertEquals ("expiring", get ("/expiring"));
+
+        assertEquals (2, requestsTo ("/expiring"));
+    }
+
+    @Test
+    public void testUnsafeRequestInvalidatesStoredResponse () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/resource")).respond (response ().withStatusCode (200).withBody ("resource").withHeader ("Cache-Control", "max-age=60"));
+        mockServer.when (request ().withMethod ("POST").withPath ("/resource")).respond (response ().withStatusCode (200).withBody ("posted"));
+
+        assertEquals ("resource", get ("/resource"));
+        EntityUtils.consume (execute (new HttpPost (uriOf ("/resource"))).getEntity ());
+        assertEquals ("resource", get ("/resource"));
+
+        assertEquals (2, mockServer.retrieveRecordedRequests (request ().withMethod ("GET").withPath ("/resource")).length);
+    }
+
+    @Test
+    public void testAnswersConditionalRequestWithNotModified () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/etag")).respond (response ().withStatusCode (200).withBody ("etag").withHeader ("Cache-Control", "max-age=60").withHeader ("ETag", "\"v1\""));
+
+        assertEquals ("etag", get ("/etag"));
+        HttpGet conditionalRequest = new HttpGet (uriOf ("/etag"));
+        conditionalRequest.addHeader ("If-None-Match", "\"v0\", W/\"v1\"");
+        HttpResponse response = execute (conditionalRequest);
+        EntityUtils.consume (response.getEntity ());
+
+        assertEquals (304, response.getStatusLine ().getStatusCode ());
+        assertEquals ("\"v1\"", response.getFirstHeader ("ETag").getValue ());
+        assertEquals (1, requestsTo ("/etag"));
+    }
+
+    @Test
+    public void testOnlyIfCachedRequestIsNotSentToServer () throws Exception
+    {
+        HttpGet request = new HttpGet (uriOf ("/uncached"));
+        request.addHeader ("Cache-Control", "only-if-cached");
+        HttpResponse response = execute (request);
+        EntityUtils.consume (response.getEntity ());
+
+        assertEquals (504, response.getStatusLine ().getStatusCode ());
+        assertEquals (0, requestsTo ("/uncached"));
+    }
+
+    @Test
+    public void testRevalidatesStaleResponse () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/revalidate").withHeader ("If-None-Match", "\"v1\"")).respond (response ().withStatusCode (304).withHeader ("Cache-Control", "max-age=0").withHeader ("ETag", "\"v1\""));
+        mockServer.when (request ().withMethod ("GET").withPath ("/revalidate")).respond (response ().withStatusCode (200).withBody ("revalidate").withHeader ("Cache-Control", "max-age=0").withHeader ("ETag", "\"v1\""));
+
+        assertEquals ("revalidate", get ("/revalidate"));
+        assertEquals ("revalidate", get ("/revalidate"));
+        assertEquals ("revalidate", get ("/revalidate"));
+
+        assertEquals (3, requestsTo ("/revalidate"));
+        assertEquals (2, mockServer.retrieveRecordedRequests (request ().withPath ("/revalidate").withHeader ("If-None-Match", "\"v1\"")).length);
+        assertEquals (2, filtersSource.getCache ().getRevalidations ());
+    }
+
+    @Test
+    public void testServesStaleResponseWhileRevalidating () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/swr")).respond (response ().withStatusCode (200).withBody ("swr").withHeader ("Cache-Control", "max-age=2, stale-while-revalidate=60"));
+
+        assertEquals ("swr", get ("/swr"));
+        Thread.sleep (3100);
+        HttpResponse response = execute (new HttpGet (uriOf ("/swr")));
+        assertEquals ("swr", EntityUtils.toString (response.getEntity ()));
+        assertTrue ("Expected a stale response", response.getFirstHeader ("Warning").getValue ().startsWith ("110"));
+
+        long deadline = System.currentTimeMillis () + 5000;
+        while (requestsTo ("/swr") < 2 && System.currentTimeMillis () < deadline)
+        {
+            Thread.sleep (50);
+        }
+        assertEquals ("Expected the response to be refreshed in the background", 2, requestsTo ("/swr"));
+
+        // the refreshed response is stored once the refresh has been answered
+        Thread.sleep (200);
+        response = execute (new HttpGet (uriOf ("/swr")));
+        assertEquals ("swr", EntityUtils.toString (response.getEntity ()));
+        assertNull (response.getFirstHeader ("Warning"));
+        assertEquals (2, requestsTo ("/swr"));
+    }
+
+    @Test
+    public void testRefreshesStaleResponseThroughEncryptedProxy () throws Exception
+    {
+        // the caching proxy encrypts the connections of its clients, here of a proxy chained in front of it
+        final SslEngineSource sslEngineSource = new SelfSignedSslEngineSource ("chain_proxy_keystore_1.jks");
+        final HttpProxyServer cachingProxy = DefaultHttpProxyServer.bootstrap ().withName ("Caching").withPort (0).withSslEngineSource (sslEngineSource).withFiltersSource (filtersSource).start ();
+        proxyServer.abort ();
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withChainProxyManager (new ChainedProxyManager ()
+        {
+            @Override
+            public void lookupChainedProxies (HttpRequest httpRequest, Queue <ChainedProxy> chainedProxies)
+            {
+                chainedProxies.add (new ChainedProxyAdapter ()
+                {
+                    @Override
+                    public InetSocketAddress getChainedProxyAddress ()
+                    {
+                        return new InetSocketAddress ("127.0.0.1", cachingProxy.getListenAddress ().getPort ());
+                    }
+
+                    @Override
+                    public boolean requiresEncryption ()
+                    {
+                        return true;
+                    }
+
+                    @Override
+                    public SSLEngine newSslEngine (String peerHost, int peerPort)
+                    {
+                        return sslEngineSource.newSslEngine (peerHost, peerPort);
+                    }
+                });
+            }
+        }).start ();
+        httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+        try
+        {
+            mockServer.when (request ().withMethod ("GET").withPath ("/swrtls")).respond (response ().withStatusCode (200).withBody ("swrtls").withHeader ("Cache-Control", "max-age=2, stale-while-revalidate=60"));
+
+            assertEquals ("swrtls", get ("/swrtls"));
+            Thread.sleep (3100);
+            assertEquals ("swrtls", get ("/swrtls"));
+
+            long deadline = System.currentTimeMillis () + 5000;
+            while (requestsTo ("/swrtls") < 2 && System.currentTimeMillis () < deadline)
+            {
+                Thread.sleep (50);
+            }
+            assertEquals ("Expected the response to be refreshed in the background", 2, requestsTo ("/swrtls"));
+        }
+        finally
+        {
+            cachingProxy.abort ();
+        }
+    }
+
+    @Test
+    public void testServesStaleResponseOnServerError () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/sie"), Times.once ()).respond (response ().withStatusCode (200).withBody ("sie").withHeader ("Cache-Control", "max-age=1, stale-if-error=60"));
+        mockServer.when (request ().withMethod ("GET").withPath ("/sie")).respond (response ().withStatusCode (503).withBody ("unavailable"));
+
+        assertEquals ("sie", get ("/sie"));
+        Thread.sleep (2100);
+        HttpResponse response = execute (new HttpGet (uriOf ("/sie")));
+        assertEquals (200, response.getStatusLine ().getStatusCode ());
+        assertEquals ("sie", EntityUtils.toString (response.getEntity ()));
+        assertNotNull (response.getFirstHeader ("Warning"));
+
+        assertEquals (2, requestsTo ("/sie"));
+    }
+
+    @Test
+    public void testServesStaleResponseWhenServerIsDown () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/down")).respond (response ().withStatusCode (200).withBody ("down").withHeader ("Cache-Control", "max-age=1, stale-if-error=60"));
+
+        assertEquals ("down", get ("/down"));
+        mockServer.stop ();
+        Thread.sleep (2100);
+
+        assertEquals ("down", get ("/down"));
+    }
+
+    @Test
+    public void testDoesNotServeStaleResponseOnErrorWithoutStaleIfError () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/error"), Times.once ()).respond (response ().withStatusCode (200).withBody ("error").withHeader ("Cache-Control", "max-age=1"));
+        mockServer.when (request ().withMethod ("GET").withPath ("/error")).respond (response ().withStatusCode (503).withBody ("unavailable"));
+
+        assertEquals ("error", get ("/error"));
+        Thread.sleep (2100);
+        HttpResponse response = execute (new HttpGet (uriOf ("/error")));
+        EntityUtils.consume (response.getEntity ());
+
+        assertEquals (503, response.getStatusLine ().getStatusCode ());
+    }
+
+    @Test
+    public void testServesRangeOfStoredResponse () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/whole")).respond (response ().withStatusCode (200).withBody ("0123456789").withHeader ("Cache-Control", "max-age=60").withHeader ("ETag", "\"v1\""));
+
+        assertEquals ("0123456789", get ("/whole"));
+        HttpResponse response = getRange ("/whole", "bytes=2-5");
+        assertEquals (206, response.getStatusLine ().getStatusCode ());
+        assertEquals ("bytes 2-5/10", response.getFirstHeader ("Content-Range").getValue ());
+        assertEquals ("2345", EntityUtils.toString (response.getEntity ()));
+
+        assertEquals (1, requestsTo ("/whole"));
+    }
+
+    @Test
+    public void testServesStoredRange () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/part").withHeader ("Range", "bytes=0-3")).respond (response ().withStatusCode (206).withBody ("0123").withHeader ("Cache-Control", "max-age=60").withHeader ("ETag", "\"v1\"").withHeader ("Content-Range", "bytes 0-3/10"));
+
+        HttpResponse response = getRange ("/part", "bytes=0-3");
+        assertEquals ("0123", EntityUtils.toString (response.getEntity ()));
+        response = getRange ("/part", "bytes=1-2");
+        assertEquals (206, response.getStatusLine ().getStatusCode ());
+        assertEquals ("bytes 1-2/10", response.getFirstHeader ("Content-Range").getValue ());
+        assertEquals ("12", EntityUtils.toString (response.getEntity ()));
+
+        assertEquals (1, requestsTo ("/part"));
+    }
+
+    @Test
+    public void testRequestsOnlyMissingBytesOfRange () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/gap").withHeader ("Range", "bytes=0-3")).respond (response ().withStatusCode (206).withBody ("0123").withHeader ("Cache-Control", "max-age=60").withHeader ("ETag", "\"v1\"").withHeader ("Content-Range", "bytes 0-3/10"));
+        mockServer.when (request ().withMethod ("GET").withPath ("/gap").withHeader ("Range", "bytes=4-9").withHeader ("If-Range", "\"v1\"")).respond (response ().withStatusCode (206).withBody ("456789").withHeader ("Cache-Control", "max-age=60").withHeader ("ETag", "\"v1\"").withHeader ("Content-Range", "bytes 4-9/10"));
+
+        EntityUtils.consume (getRange ("/gap", "bytes=0-3").getEntity ());
+        HttpResponse response = getRange ("/gap", "bytes=2-");
+        assertEquals (206, response.getStatusLine ().getStatusCode ());
+        assertEquals ("bytes 2-9/10", response.getFirstHeader ("Content-Range").getValue ());
+        assertEquals ("23456789", EntityUtils.toString (response.getEntity ()));
+        assertEquals (2, requestsTo ("/gap"));
+
+        // every byte has now been received, so the whole representation is served from the cache
+        assertEquals ("0123456789", get ("/gap"));
+        assertEquals (2, requestsTo ("/gap"));
+    }
+
+    private HttpResponse getRange (String path, String range) throws Exception
+    {
+        HttpGet request = new HttpGet (uriOf (path));
+        request.addHeader ("Range", range);
+        return execute (request);
+    }
+
+    private String get (String path, String... headerNamesAndValues) throws Exception
+    {
+        HttpGet request = new HttpGet (uriOf (path));
+        for (int i = 0; i < headerNamesAndValues.length; i += 2)
+        {
+            request.addHeader (headerNamesAndValues[i], headerNamesAndValues[i + 1]);
+        }
+        HttpResponse response = execute (request);
+        assertEquals (200, response.getStatusLine ().getStatusCode ());
+        return EntityUtils.toString (response.getEntity ());
+    }
+
+    private HttpResponse execute (HttpUriRequest request) throws Exception
+    {
+        return httpClient.execute (request);
+    }
+
+    private String uriOf (String path)
+    {
+        return "http://localhost:" + mockServerPort + path;
+    }
+
+    private int requestsTo (String path)
+    {
+        return mockServer.retrieveRecordedRequests (request ().withPath (path)).length;
+    }
+}
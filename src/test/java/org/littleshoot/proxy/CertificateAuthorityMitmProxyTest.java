@@ -0,0 +1,24 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+
+/**
+ * Tests a single basic proxy running as a man in the middle, impersonating servers with certificates issued by a
+ * {@link CertificateAuthority}.
+ */
+public class CertificateAuthorityMitmProxyTest extends BaseProxyTest
+{
+    @Override
+    protected void setUp () throws Exception
+    {
+        CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (new CertificateAuthorityMitmManager (certificateAuthority, true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE)).start ();
+    }
+
+    @Override
+    protected boolean isMITM ()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Test;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests a proxy that reads the TLS ClientHello of CONNECT tunnels before connecting them.
+ */
+public class ClientHelloPeekTest extends AbstractProxyTest
+{
+    private final AtomicReference <TlsClientHello> filteredClientHello = new AtomicReference <> ();
+    private final AtomicReference <TlsClientHello> routedClientHello = new AtomicReference <> ();
+    private final AtomicBoolean denyTunnels = new AtomicBoolean (false);
+
+    @Override
+    protected void setUp () throws Exception
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withClientHelloPeek (true).withFiltersSource (new HttpFiltersSourceAdapter ()
+        {
+            @Override
+            public HttpFilters filterRequest (HttpRequest originalRequest)
+            {
+                return new HttpFiltersAdapter (originalRequest)
+                {
+                    @Override
+                    public boolean clientToProxyClientHello (TlsClientHello clientHello)
+                    {
+                        filteredClientHello.set (clientHello);
+                        return !denyTunnels.get ();
+                    }
+                };
+            }
+        }).withChainProxyManager (new ClientHelloChainedProxyManager ()
+        {
+            @Override
+            public void lookupChainedProxies (HttpRequest httpRequest, TlsClientHello clientHello, Queue <ChainedProxy> chainedProxies)
+            {
+                routedClientHello.set (clientHello);
+                chainedProxies.add (ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+            }
+
+            @Override
+            public void lookupChainedProxies (HttpRequest httpRequest, Queue <ChainedProxy> chainedProxies)
+            {
+                chainedProxies.add (ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION);
+            }
+        }).start ();
+    }
+
+    @Test
+    public void testServerNameIsAvailableBeforeConnecting () throws Exception
+    {
+        assertEquals ("HTTP/1.1 200 OK", getThroughTunnel ("www.example.com"));
+
+        TlsClientHello clientHello = filteredClientHello.get ();
+        assertTrue ("Tunnel should have started with a ClientHello", clientHello.isTls ());
+        assertEquals ("www.example.com", clientHello.getServerName ());
+        assertSame ("Chained proxy manager should have been given the same ClientHello", clientHello, routedClientHello.get ());
+    }
+
+    @Test
+    public void testHttpsClient () throws Exception
+    {
+        ResponseInfo response = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+
+        assertEquals (200, response.getStatusCode ());
+        assertTrue ("Tunnel should have started with a ClientHello", filteredClientHello.get ().isTls ());
+    }
+
+    @Test
+    public void testDeniedTunnelIsClosed () throws Exception
+    {
+        denyTunnels.set (true);
+        try
+        {
+            getThroughTunnel ("www.example.com");
+            fail ("Denied tunnel should have been closed");
+        }
+        catch (IOException expected)
+        {
+        }
+        assertEquals ("www.example.com", filteredClientHello.get ().getServerName ());
+        assertNull ("Denied tunnel should not have been routed", routedClientHello.get ());
+    }
+
+    @Test
+    public void testPlainHttpIsNotPeeked () throws Exception
+    {
+        ResponseInfo response = httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+
+        assertEquals (200, response.getStatusCode ());
+        assertNull ("Requests that are not tunneled have no ClientHello", filteredClientHello.get ());
+        assertFalse (denyTunnels.get ());
+    }
+
+    /**
+     * Opens a CONNECT tunnel to the HTTPS web server, handshakes with the given server name, and returns the status line
+     * of a GET request.
+     */
+    private String getThroughTunnel (String serverName) throws Exception
+    {
+        try (Socket socket = new Socket ("127.0.0.1", proxyServer.getListenAddress ().getPort ()))
+        {
+            socket.setSoTimeout (10000);
+            String authority = "127.0.0.1:" + httpsWebServerPort;
+            OutputStream out = socket.getOutputStream ();
+            out.write (("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes (StandardCharsets.US_ASCII));
+            out.flush ();
+            BufferedReader connectResponse = new BufferedReader (new InputStreamReader (socket.getInputStream (), StandardCharsets.US_ASCII), 1);
+            assertTrue (connectResponse.readLine ().contains ("200"));
+            String line;
+            do
+            {
+                line = connectResponse.readLine ();
+            }
+            while (line != null && !line.isEmpty ());
+
+            SSLContext sslContext = SSLContext.getInstance ("TLS");
+            sslContext.init (null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers (), null);
+            try (SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory ().createSocket (socket, "127.0.0.1", httpsWebServerPort, true))
+            {
+                SSLParameters parameters = sslSocket.getSSLParameters ();
+                parameters.setServerNames (Collections.<SNIServerName>singletonList (new SNIHostName (serverName)));
+                sslSocket.setSSLParameters (parameters);
+                sslSocket.startHandshake ();
+                sslSocket.getOutputStream ().write (("GET / HTTP/1.1\r\nHost: " + serverName + "\r\nConnection: close\r\n\r\n").getBytes (StandardCharsets.US_ASCII));
+                sslSocket.getOutputStream ().flush ();
+                return new BufferedReader (new InputStreamReader (sslSocket.getInputStream (), StandardCharsets.US_ASCII)).readLine ();
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that concurrent identical GET requests are sent to the server as one when collapsed forwarding is enabled,
+ * and that requests whose response cannot be shared are still sent on their own.
+ */
+public class CollapsedForwardingTest
+{
+    /**
+     * How many clients send the same request at once.
+     */
+    private static final int CLIENTS = 4;
+
+    /**
+     * How long the server waits before answering, so that the identical requests arrive in the meantime.
+     */
+    private static final long RESPONSE_DELAY_MILLIS = 500;
+
+    private HttpProxyServer proxyServer;
+    private ExecutorService executor;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        mockServer = new ClientAndServer (0);
+        mockServerPort = mockServer.getPort ();
+
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withCollapsedForwarding (true).start ();
+        executor = Executors.newFixedThreadPool (CLIENTS);
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        try
+        {
+            executor.shutdownNow ();
+            if (proxyServer != null)
+            {
+                proxyServer.abort ();
+            }
+        }
+        finally
+        {
+            if (mockServer != null)
+            {
+                mockServer.stop ();
+            }
+        }
+    }
+
+    @Test
+    public void testCollapsesIdenticalRequests () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/collapsed")).respond (response ().withStatusCode (200).withBody ("collapsed").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+
+        List <String> responses = getConcurrently ("/collapsed");
+
+        for (String response : responses)
+        {
+            assertEquals ("200 collapsed", response);
+        }
+        assertEquals ("Expected the identical requests to reach the server as one", 1, requestsTo ("/collapsed"));
+    }
+
+    @Test
+    public void testDoesNotShareLaterResponse () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/sequential")).respond (response ().withStatusCode (200).withBody ("sequential"));
+
+        HttpClient httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+        assertEquals ("200 sequential", get (httpClient, "/sequential"));
+        assertEquals ("200 sequential", get (httpClient, "/sequential"));
+
+        assertEquals (2, requestsTo ("/sequential"));
+    }
+
+    @Test
+    public void testSendsPrivateResponseRequestsOnTheirOwn () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/private")).respond (response ().withStatusCode (200).withBody ("private").withHeader ("Cache-Control", "private").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+
+        List <String> responses = getConcurrently ("/private");
+
+        for (String response : responses)
+        {
+            assertEquals ("200 private", response);
+        }
+        assertEquals ("Expected a private response not to be shared", CLIENTS, requestsTo ("/private"));
+    }
+
+    @Test
+    public void testSendsRequestsWithCookiesOnTheirOwn () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/cookie").withHeader ("Cookie", "user=alice")).respond (response ().withStatusCode (200).withBody ("alice").withHeader ("Cache-Control", "max-age=60").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+        mockServer.when (request ().withMethod ("GET").withPath ("/cookie").withHeader ("Cookie", "user=bob")).respond (response ().withStatusCode (200).withBody ("bob").withHeader ("Cache-Control", "max-age=60").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+
+        CountDownLatch start = new CountDownLatch (1);
+        Future <String> alice = executor.submit (getter (start, uriOf ("/cookie"), "Cookie", "user=alice"));
+        Future <String> bob = executor.submit (getter (start, uriOf ("/cookie"), "Cookie", "user=bob"));
+        start.countDown ();
+
+        assertEquals ("200 alice", alice.get (10, TimeUnit.SECONDS));
+        assertEquals ("200 bob", bob.get (10, TimeUnit.SECONDS));
+        assertEquals ("Expected requests with cookies not to be collapsed", 2, requestsTo ("/cookie"));
+    }
+
+    @Test
+    public void testSendsRequestsForOtherVariantsOnTheirOwn () throws Exception
+    {
+        mockServer.when (request ().withMethod ("GET").withPath ("/vary").withHeader ("Accept-Language", "en")).respond (response ().withStatusCode (200).withBody ("hello").withHeader ("Vary", "Accept-Language").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+        mockServer.when (request ().withMethod ("GET").withPath ("/vary").withHeader ("Accept-Language", "fr")).respond (response ().withStatusCode (200).withBody ("bonjour").withHeader ("Vary", "Accept-Language").withDelay (TimeUnit.MILLISECONDS, RESPONSE_DELAY_MILLIS));
+
+        List <Future <String>> english = new ArrayList <> ();
+        List <Future <String>> french = new ArrayList <> ();
+        CountDownLatch start = new CountDownLatch (1);
+        for (int i = 0; i < CLIENTS; i++)
+        {
+            if (i % 2 == 0)
+            {
+                english.add (executor.submit (getter (start, uriOf ("/vary"), "Accept-Language", "en")));
+            }
+            else
+            {
+                french.add (executor.submit (getter (start, uriOf ("/vary"), "Accept-Language", "fr")));
+            }
+        }
+        start.countDown ();
+
+        for (Future <String> response : english)
+        {
+            assertEquals ("200 hello", response.get (10, TimeUnit.SECONDS));
+        }
+        for (Future <String> response : french)
+        {
+            assertEquals ("200 bonjour", response.get (10, TimeUnit.SECONDS));
+        }
+        // the requests for the leader's variant are collapsed, and the others are sent once the response arrives
+        assertEquals (1 + CLIENTS / 2, requestsTo ("/vary"));
+    }
+
+    @Test
+    public void testAnswersEveryRequestWhenServerIsDown () throws Exception
+    {
+        int closedPort = mockServerPort;
+        mockServer.stop ();
+        mockServer = null;
+
+        List <String> responses = getUriConcurrently ("http://localhost:" + closedPort + "/down");
+
+        for (String response : responses)
+        {
+            assertEquals ("502", response.substring (0, 3));
+        }
+    }
+
+    private List <String> getConcurrently (String path) throws Exception
+    {
+        return getUriConcurrently (uriOf (path));
+    }
+
+    /**
+     * Sends the same request from {@link #CLIENTS} clients at once.
+     *
+     * @return the status codes and bodies of the responses
+     */
+    private List <String> getUriConcurrently (String uri) throws Exception
+    {
+        List <Future <String>> futures = new ArrayList <> ();
+        CountDownLatch start = new CountDownLatch (1);
+        for (int i = 0; i < CLIENTS; i++)
+        {
+            futures.add (executor.submit (getter (start, uri)));
+        }
+        start.countDown ();
+
+        List <String> responses = new ArrayList <> ();
+        for (Future <String> future : futures)
+        {
+            responses.add (future.get (10, TimeUnit.SECONDS));
+        }
+        return responses;
+    }
+
+    private Callable <String> getter (final CountDownLatch start, final String uri, final String... headerNamesAndValues) throws Exception
+    {
+        final HttpClient httpClient = TestUtils.createProxiedHttpClient (proxyServer.getListenAddress ().getPort ());
+        return new Callable <String> ()
+        {
+            @Override
+            public String call () throws Exception
+            {
+                start.await ();
+                HttpGet request = new HttpGet (uri);
+                for (int i = 0; i < headerNamesAndValues.length; i += 2)
+                {
+                    request.addHeader (headerNamesAndValues[i], headerNamesAndValues[i + 1]);
+                }
+                HttpResponse response = httpClient.execute (request);
+                return response.getStatusLine ().getStatusCode () + " " + EntityUtils.toString (response.getEntity ());
+            }
+        };
+    }
+
+    private String get (HttpClient httpClient, String path) throws Exception
+    {
+        HttpResponse response = httpClient.execute (new HttpGet (uriOf (path)));
+        return response.getStatusLine ().getStatusCode () + " " + EntityUtils.toString (response.getEntity ());
+    }
+
+    private String uriOf (String path)
+    {
+        return "http://localhost:" + mockServerPort + path;
+    }
+
+    private int requestsTo (String path)
+    {
+        return mockServer.retrieveRecordedRequests (request ().withPath (path)).length;
+    }
+}
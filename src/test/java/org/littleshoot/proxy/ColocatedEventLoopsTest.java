@@ -0,0 +1,55 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a single basic proxy whose server connections are registered on the event loops of their client connections.
+ */
+public class ColocatedEventLoopsTest extends BaseProxyTest
+{
+    private final AtomicInteger colocatedConnections = new AtomicInteger (0);
+    private final AtomicInteger separateConnections = new AtomicInteger (0);
+
+    @Override
+    protected void setUp ()
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withColocatedEventLoops (true).withFiltersSource (new HttpFiltersSourceAdapter ()
+        {
+            @Override
+            public HttpFilters filterRequest (HttpRequest originalRequest, final ChannelHandlerContext clientCtx)
+            {
+                return new HttpFiltersAdapter (originalRequest, clientCtx)
+                {
+                    @Override
+                    public void proxyToServerConnectionSucceeded (ChannelHandlerContext serverCtx)
+                    {
+                        if (serverCtx.channel ().eventLoop () == clientCtx.channel ().eventLoop ())
+                        {
+                            colocatedConnections.incrementAndGet ();
+                        }
+                        else
+                        {
+                            separateConnections.incrementAndGet ();
+                        }
+                    }
+                };
+            }
+        }).start ();
+    }
+
+    @Test
+    public void testServerConnectionSharesClientEventLoop () throws Exception
+    {
+        compareProxiedAndUnproxiedGET (webHost, DEFAULT_RESOURCE);
+
+        assertTrue ("Expected a server connection on the client's event loop", colocatedConnections.get () > 0);
+        assertEquals ("Expected no server connections on other event loops", 0, separateConnections.get ());
+    }
+}
@@ -0,0 +1,38 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ChannelTransport;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerGroup;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests a single basic proxy running on the native epoll transport. On platforms where epoll is not available, the
+ * proxy falls back to NIO and this behaves like {@link SimpleProxyTest}.
+ */
+public class EpollTransportTest extends BaseProxyTest
+{
+    @Override
+    protected void setUp ()
+    {
+        // a thread pool configuration that does not set a transport leaves the one set before
+        this.proxyServer = bootstrapProxy ().withPort (0).withChannelTransport (ChannelTransport.EPOLL).withThreadPoolConfiguration (new ThreadPoolConfiguration ().withClientToProxyWorkerThreads (2)).start ();
+    }
+
+    @Test
+    public void testUsesEpoll ()
+    {
+        assumeTrue ("epoll is not available on this platform", Epoll.isAvailable ());
+
+        ServerGroup serverGroup = ((DefaultHttpProxyServer) proxyServer).getServerGroup ();
+        assertEquals (ChannelTransport.EPOLL, serverGroup.getChannelTransportForProtocol (TransportProtocol.TCP));
+        assertTrue (serverGroup.getClientToProxyWorkerPoolForTransport (TransportProtocol.TCP) instanceof EpollEventLoopGroup);
+        assertTrue (serverGroup.getProxyToServerWorkerPoolForTransport (TransportProtocol.TCP) instanceof EpollEventLoopGroup);
+    }
+}
@@ -0,0 +1,44 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerGroup;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a MITM'ing proxy that runs TLS handshake tasks on dedicated handshake threads.
+ */
+public class HandshakeExecutorTest extends BaseProxyTest
+{
+    @Override
+    protected void setUp () throws Exception
+    {
+        CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (new CertificateAuthorityMitmManager (certificateAuthority, true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE)).withThreadPoolConfiguration (new ThreadPoolConfiguration ().withHandshakeThreads (2)).start ();
+    }
+
+    @Override
+    protected boolean isMITM ()
+    {
+        return true;
+    }
+
+    @Test
+    public void testHandshakeTasksRunOnHandshakeThreads () throws Exception
+    {
+        ServerGroup serverGroup = ((DefaultHttpProxyServer) proxyServer).getServerGroup ();
+        assertNotNull ("Handshake executor should have been created", serverGroup.getHandshakeExecutor ());
+
+        httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+
+        assertTrue ("Handshake tasks should have run on the handshake threads", serverGroup.getCompletedHandshakeTaskCount () > 0);
+        assertEquals ("No handshake tasks should still be waiting", 0, serverGroup.getHandshakeQueueDepth ());
+        assertEquals ("No handshake tasks should have run on the event loops", 0, serverGroup.getInlineHandshakeTaskCount ());
+    }
+}
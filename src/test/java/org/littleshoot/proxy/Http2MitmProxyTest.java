@@ -0,0 +1,77 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslProvider;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests a proxy running as a man in the middle that offers HTTP/2 to its clients. The tests inherited from
+ * {@link BaseProxyTest} use HTTP/1.1 clients, which must be unaffected.
+ */
+public class Http2MitmProxyTest extends BaseProxyTest
+{
+    private static final int STREAM_COUNT = 3;
+
+    @Override
+    protected void setUp () throws Exception
+    {
+        CertificateAuthorityMitmManager mitmManager = new CertificateAuthorityMitmManager (CertificateAuthority.create ("LittleProxy Test CA"), true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE, null, null, SslProvider.JDK, true);
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (mitmManager).start ();
+    }
+
+    @Override
+    protected boolean isMITM ()
+    {
+        return true;
+    }
+
+    @Test
+    public void testConcurrentStreamsOverOneConnection () throws Exception
+    {
+        Http2TestClient client = new Http2TestClient (proxyServer.getListenAddress (), "127.0.0.1", httpsWebServerPort);
+        try
+        {
+            assertEquals ("The proxy should have negotiated HTTP/2", ApplicationProtocolNames.HTTP_2, client.getApplicationProtocol ());
+
+            List <ResponseInfo> responses = client.get (DEFAULT_RESOURCE, STREAM_COUNT);
+            for (ResponseInfo response : responses)
+            {
+                assertEquals (200, response.getStatusCode ());
+                assertEquals ("Received 0 bytes\n", response.getBody ());
+            }
+        }
+        finally
+        {
+            client.close ();
+        }
+
+        assertEquals ("All streams should share the client's connection", 1, clientConnects.get ());
+        assertEquals ("The proxy should have read the CONNECT and each stream's GET", STREAM_COUNT + 1, requestsReceivedFromClient.get ());
+    }
+
+    @Test
+    public void testRejectsStreamsForOtherServers () throws Exception
+    {
+        Http2TestClient client = new Http2TestClient (proxyServer.getListenAddress (), "127.0.0.1", httpsWebServerPort);
+        try
+        {
+            List <ResponseInfo> responses = client.get ("127.0.0.1:" + webServerPort, DEFAULT_RESOURCE, 1);
+            assertEquals ("A stream for another server than the CONNECT's should be misdirected", 421, responses.get (0).getStatusCode ());
+
+            responses = client.get ("127.0.0.1:" + httpsWebServerPort, DEFAULT_RESOURCE, 1);
+            assertEquals (200, responses.get (0).getStatusCode ());
+        }
+        finally
+        {
+            client.close ();
+        }
+
+        assertEquals ("Only the stream for the CONNECT's server should have been sent to a server", 1, requestsSentToServer.get ());
+    }
+}
@@ -0,0 +1,164 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.proxy.HttpProxyHandler;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTPS client for tests that connects to a server through a proxy with a CONNECT, offers h2 and http/1.1 with
+ * ALPN, and sends concurrent requests as HTTP/2 streams.
+ */
+public class Http2TestClient
+{
+    private final EventLoopGroup group = new NioEventLoopGroup (1);
+    private final String host;
+    private final int port;
+    private final Channel channel;
+    private final String applicationProtocol;
+
+    /**
+     * Connects to the server and waits for the TLS handshake to complete.
+     */
+    public Http2TestClient (final InetSocketAddress proxyAddress, final String host, final int port) throws Exception
+    {
+        this.host = host;
+        this.port = port;
+        final SslContext sslContext = SslContextBuilder.forClient ().sslProvider (SslProvider.JDK).trustManager (InsecureTrustManagerFactory.INSTANCE).applicationProtocolConfig (new ApplicationProtocolConfig (ApplicationProtocolConfig.Protocol.ALPN, ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE, ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1)).build ();
+        try
+        {
+            channel = new Bootstrap ().group (group).channel (NioSocketChannel.class).handler (new ChannelInitializer <SocketChannel> ()
+            {
+                @Override
+                protected void initChannel (SocketChannel ch)
+                {
+                    ch.pipeline ().addLast (new HttpProxyHandler (proxyAddress));
+                    ch.pipeline ().addLast (sslContext.newHandler (ch.alloc (), host, port));
+                    ch.pipeline ().addLast (Http2FrameCodecBuilder.forClient ().build ());
+                    ch.pipeline ().addLast (new Http2MultiplexHandler (new ChannelInboundHandlerAdapter ()));
+                }
+            }).connect (host, port).sync ().channel ();
+
+            SslHandler sslHandler = channel.pipeline ().get (SslHandler.class);
+            sslHandler.handshakeFuture ().get (10, TimeUnit.SECONDS);
+            applicationProtocol = sslHandler.applicationProtocol ();
+        }
+        catch (Exception e)
+        {
+            group.shutdownGracefully (0, 0, TimeUnit.SECONDS);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the protocol the proxy selected with ALPN, or null if it selected none
+     */
+    public String getApplicationProtocol ()
+    {
+        return applicationProtocol;
+    }
+
+    /**
+     * Sends GET requests for the given resource on concurrent streams, and waits for their responses.
+     *
+     * @param resource    the resource to request
+     * @param streamCount the number of requests to send
+     * @return the responses, in the order of their requests
+     */
+    public List <ResponseInfo> get (String resource, int streamCount) throws Exception
+    {
+        return get (host + ":" + port, resource, streamCount);
+    }
+
+    /**
+     * Sends GET requests for the given resource of the given authority on concurrent streams, and waits for their
+     * responses.
+     *
+     * @param authority   the host:port the requests are for
+     * @param resource    the resource to request
+     * @param streamCount the number of requests to send
+     * @return the responses, in the order of their requests
+     */
+    public List <ResponseInfo> get (String authority, String resource, int streamCount) throws Exception
+    {
+        List <Promise <ResponseInfo>> promises = new ArrayList <> ();
+        for (int i = 0; i < streamCount; i++)
+        {
+            final Promise <ResponseInfo> promise = group.next ().newPromise ();
+            promises.add (promise);
+            Http2StreamChannel stream = new Http2StreamChannelBootstrap (channel).handler (new ChannelInitializer <Http2StreamChannel> ()
+            {
+                @Override
+                protected void initChannel (Http2StreamChannel ch)
+                {
+                    ch.pipeline ().addLast (new Http2StreamFrameToHttpObjectCodec (false));
+                    ch.pipeline ().addLast (new HttpObjectAggregator (1024 * 1024));
+                    ch.pipeline ().addLast (new SimpleChannelInboundHandler <FullHttpResponse> ()
+                    {
+                        @Override
+                        protected void channelRead0 (ChannelHandlerContext ctx, FullHttpResponse msg)
+                        {
+                            promise.trySuccess (new ResponseInfo (msg.status ().code (), msg.content ().toString (StandardCharsets.UTF_8)));
+                        }
+                    });
+                }
+            }).open ().sync ().getNow ();
+
+            FullHttpRequest request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, resource);
+            request.headers ().set (HttpHeaderNames.HOST, authority);
+            stream.writeAndFlush (request);
+        }
+
+        List <ResponseInfo> responses = new ArrayList <> ();
+        for (Promise <ResponseInfo> promise : promises)
+        {
+            responses.add (promise.get (10, TimeUnit.SECONDS));
+        }
+        return responses;
+    }
+
+    public void close () throws InterruptedException
+    {
+        try
+        {
+            channel.close ().sync ();
+        }
+        finally
+        {
+            group.shutdownGracefully (0, 0, TimeUnit.SECONDS).sync ();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HTTP/2 web server for tests, that speaks h2c on an unencrypted port, or h2 and HTTP/1.1 with ALPN on an
+ * encrypted one. Like the servers of {@link TestUtils}, each response has a body that indicates how many bytes were
+ * received with a message like "Received x bytes\n".
+ */
+public class Http2TestServer
+{
+    private final EventLoopGroup group = new NioEventLoopGroup (1);
+    private final AtomicInteger http2Connections = new AtomicInteger (0);
+    private final AtomicInteger http1Connections = new AtomicInteger (0);
+    private final AtomicInteger streams = new AtomicInteger (0);
+    private final Channel serverChannel;
+
+    /**
+     * Starts a server on a JVM-assigned port.
+     *
+     * @param encrypted if true, the server speaks TLS and offers h2 and http/1.1 with ALPN; otherwise it speaks h2c
+     */
+    public Http2TestServer (boolean encrypted) throws Exception
+    {
+        final SslContext sslContext;
+        if (encrypted)
+        {
+            SelfSignedCertificate certificate = new SelfSignedCertificate ("localhost");
+            sslContext = SslContextBuilder.forServer (certificate.certificate (), certificate.privateKey ()).sslProvider (SslProvider.JDK).applicationProtocolConfig (new ApplicationProtocolConfig (ApplicationProtocolConfig.Protocol.ALPN, ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE, ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1)).build ();
+        }
+        else
+        {
+            sslContext = null;
+        }
+
+        serverChannel = new ServerBootstrap ().group (group).channel (NioServerSocketChannel.class).childHandler (new ChannelInitializer <SocketChannel> ()
+        {
+            @Override
+            protected void initChannel (SocketChannel ch)
+            {
+                if (sslContext == null)
+                {
+                    initHttp2Pipeline (ch.pipeline ());
+                    return;
+                }
+                ch.pipeline ().addLast (sslContext.newHandler (ch.alloc ()));
+                ch.pipeline ().addLast (new ApplicationProtocolNegotiationHandler (ApplicationProtocolNames.HTTP_1_1)
+                {
+                    @Override
+                    protected void configurePipeline (ChannelHandlerContext ctx, String protocol)
+                    {
+                        if (ApplicationProtocolNames.HTTP_2.equals (protocol))
+                        {
+                            initHttp2Pipeline (ctx.pipeline ());
+                        }
+                        else
+                        {
+                            http1Connections.incrementAndGet ();
+                            ctx.pipeline ().addLast (new HttpServerCodec ());
+                            ctx.pipeline ().addLast (new HttpObjectAggregator (1024 * 1024));
+                            ctx.pipeline ().addLast (Responder.INSTANCE);
+                        }
+                    }
+                });
+            }
+        }).bind ("127.0.0.1", 0).sync ().channel ();
+    }
+
+    private void initHttp2Pipeline (ChannelPipeline pipeline)
+    {
+        http2Connections.incrementAndGet ();
+        pipeline.addLast (Http2FrameCodecBuilder.forServer ().build ());
+        pipeline.addLast (new Http2MultiplexHandler (new ChannelInitializer <Channel> ()
+        {
+            @Override
+            protected void initChannel (Channel ch)
+            {
+                streams.incrementAndGet ();
+                ch.pipeline ().addLast (new Http2StreamFrameToHttpObjectCodec (true));
+                ch.pipeline ().addLast (new HttpObjectAggregator (1024 * 1024));
+                ch.pipeline ().addLast (Responder.INSTANCE);
+            }
+        }));
+    }
+
+    public int getPort ()
+    {
+        return ((InetSocketAddress) serverChannel.localAddress ()).getPort ();
+    }
+
+    /**
+     * @return the number of connections that spoke HTTP/2
+     */
+    public int getHttp2ConnectionCount ()
+    {
+        return http2Connections.get ();
+    }
+
+    /**
+     * @return the number of encrypted connections that spoke HTTP/1.1
+     */
+    public int getHttp1ConnectionCount ()
+    {
+        return http1Connections.get ();
+    }
+
+    /**
+     * @return the number of HTTP/2 streams opened by clients
+     */
+    public int getStreamCount ()
+    {
+        return streams.get ();
+    }
+
+    public void stop () throws InterruptedException
+    {
+        serverChannel.close ().sync ();
+        group.shutdownGracefully (0, 0, TimeUnit.SECONDS).sync ();
+    }
+
+    @Sharable
+    private static class Responder extends SimpleChannelInboundHandler <FullHttpRequest>
+    {
+        static final Responder INSTANCE = new Responder ();
+
+        @Override
+        protected void channelRead0 (ChannelHandlerContext ctx, FullHttpRequest request)
+        {
+            byte[] content = ("Received " + request.content ().readableBytes () + " bytes\n").getBytes (StandardCharsets.UTF_8);
+            FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer (content));
+            response.headers ().set (HttpHeaderNames.CONTENT_LENGTH, content.length);
+            ctx.writeAndFlush (response);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.ssl.SslProvider;
+import org.apache.http.HttpHost;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+import org.littleshoot.proxy.extras.HostPatternMatcher;
+import org.littleshoot.proxy.extras.HostPatternMitmManager;
+import org.littleshoot.proxy.impl.Http2UpstreamConfiguration;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that requests to servers that speak HTTP/2 share connections as concurrent streams.
+ */
+public class Http2UpstreamTest extends AbstractProxyTest
+{
+    private static final int STREAM_COUNT = 3;
+
+    private Http2TestServer http2Server;
+
+    @Override
+    protected void setUp () throws Exception
+    {
+    }
+
+    @Override
+    protected void tearDown () throws Exception
+    {
+        try
+        {
+            super.tearDown ();
+        }
+        finally
+        {
+            if (http2Server != null)
+            {
+                http2Server.stop ();
+            }
+        }
+    }
+
+    @Test
+    public void testPriorKnowledgeRequestsShareOneConnection () throws Exception
+    {
+        http2Server = new Http2TestServer (false);
+        String serverHostAndPort = "127.0.0.1:" + http2Server.getPort ();
+        this.proxyServer = bootstrapProxy ().withPort (0).withHttp2Upstream (new Http2UpstreamConfiguration ().withPriorKnowledgeHosts (serverHostAndPort)).start ();
+
+        HttpHost host = new HttpHost ("127.0.0.1", http2Server.getPort ());
+        for (int i = 0; i < STREAM_COUNT; i++)
+        {
+            ResponseInfo response = httpGetWithApacheClient (host, DEFAULT_RESOURCE, true, false);
+            assertEquals (200, response.getStatusCode ());
+            assertEquals ("Received 0 bytes\n", response.getBody ());
+        }
+        ResponseInfo response = httpPostWithApacheClient (host, DEFAULT_RESOURCE, true);
+        assertEquals (200, response.getStatusCode ());
+        assertEquals ("Received 4 bytes\n", response.getBody ());
+
+        assertEquals ("All requests should share one connection", 1, http2Server.getHttp2ConnectionCount ());
+        assertEquals ("Each request should have its own stream", STREAM_COUNT + 1, http2Server.getStreamCount ());
+    }
+
+    @Test
+    public void testMitmStreamsShareOneConnection () throws Exception
+    {
+        http2Server = new Http2TestServer (true);
+        startMitmProxy ();
+
+        List <ResponseInfo> responses = getWithHttp2 (http2Server.getPort ());
+        for (ResponseInfo response : responses)
+        {
+            assertEquals (200, response.getStatusCode ());
+            assertEquals ("Received 0 bytes\n", response.getBody ());
+        }
+
+        assertEquals ("All streams should share one connection", 1, http2Server.getHttp2ConnectionCount ());
+        assertEquals (STREAM_COUNT, http2Server.getStreamCount ());
+        assertEquals ("Only the CONNECT should have connected with HTTP/1.1", 1, http2Server.getHttp1ConnectionCount ());
+    }
+
+    @Test
+    public void testSelectivelyMitmStreamsShareOneConnection () throws Exception
+    {
+        http2Server = new Http2TestServer (true);
+        startMitmProxy (new HostPatternMitmManager (newMitmManager (), new HostPatternMatcher ("127.0.0.1")));
+
+        List <ResponseInfo> responses = getWithHttp2 (http2Server.getPort ());
+        for (ResponseInfo response : responses)
+        {
+            assertEquals (200, response.getStatusCode ());
+            assertEquals ("Received 0 bytes\n", response.getBody ());
+        }
+
+        assertEquals ("All streams should share one connection", 1, http2Server.getHttp2ConnectionCount ());
+        assertEquals (STREAM_COUNT, http2Server.getStreamCount ());
+    }
+
+    @Test
+    public void testFallsBackToHttp1WhenServerDoesNotSelectH2 () throws Exception
+    {
+        startMitmProxy ();
+
+        for (int i = 0; i < 2; i++)
+        {
+            List <ResponseInfo> responses = getWithHttp2 (httpsWebServerPort);
+            for (ResponseInfo response : responses)
+            {
+                assertEquals (200, response.getStatusCode ());
+                assertEquals ("Received 0 bytes\n", response.getBody ());
+            }
+        }
+    }
+
+    private void startMitmProxy () throws Exception
+    {
+        startMitmProxy (newMitmManager ());
+    }
+
+    private void startMitmProxy (MitmManager mitmManager)
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (mitmManager).withHttp2Upstream (new Http2UpstreamConfiguration ()).start ();
+    }
+
+    private static CertificateAuthorityMitmManager newMitmManager () throws Exception
+    {
+        return new CertificateAuthorityMitmManager (CertificateAuthority.create ("LittleProxy Test CA"), true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE, null, null, SslProvider.JDK, true);
+    }
+
+    private List <ResponseInfo> getWithHttp2 (int port) throws Exception
+    {
+        Http2TestClient client = new Http2TestClient (proxyServer.getListenAddress (), "127.0.0.1", port);
+        try
+        {
+            return client.get (DEFAULT_RESOURCE, STREAM_COUNT);
+        }
+        finally
+        {
+            client.close ();
+        }
+    }
+}
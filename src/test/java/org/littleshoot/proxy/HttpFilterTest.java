@@ -525,6 +525,44 @@ public class HttpFilterTest
         assertFalse ("Expected filter method to not be called", filter.isServerToProxyResponseTimedOutInvoked ());
     }
 
+    @Test
+    public void testResolutionFailedCalledAfterAsyncDnsFailure () throws Exception
+    {
+        final HttpFiltersMethodInvokedAdapter filter = new HttpFiltersMethodInvokedAdapter ();
+
+        HttpFiltersSource filtersSource = new HttpFiltersSourceAdapter ()
+        {
+            @Override
+            public HttpFilters filterRequest (HttpRequest originalRequest)
+            {
+                return filter;
+            }
+        };
+
+        HostResolver mockFailingResolver = mock (HostResolver.class);
+        when (mockFailingResolver.resolve ("www.doesnotexist", 0)).thenThrow (new UnknownHostException ("www.doesnotexist"));
+
+        this.proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withFiltersSource (filtersSource).withServerResolver (new CachingHostResolver (mockFailingResolver)).start ();
+
+        org.apache.http.HttpResponse response = HttpClientUtil.performHttpGet ("http://www.doesnotexist/some-resource", proxyServer);
+        Thread.sleep (500);
+
+        assertEquals ("Expected a 502 Bad Gateway when the server's address cannot be resolved", 502, response.getStatusLine ().getStatusCode ());
+
+        assertFalse ("proxyToServerResolutionSucceeded method was called but should not have been", filter.isProxyToServerResolutionSucceededInvoked ());
+        assertTrue ("proxyToServerResolutionFailed method was not called", filter.isProxyToServerResolutionFailedInvoked ());
+
+        assertTrue ("Expected filter method to be called", filter.isProxyToServerConnectionQueuedInvoked ());
+        assertTrue ("Expected filter method to be called", filter.isProxyToServerResolutionStartedInvoked ());
+        assertTrue ("Expected filter method to be called", filter.isProxyToClientResponseInvoked ());
+
+        assertFalse ("Expected filter method to not be called", filter.isProxyToServerConnectionStartedInvoked ());
+        assertFalse ("Expected filter method to not be called", filter.isProxyToServerConnectionFailedInvoked ());
+        assertFalse ("Expected filter method to not be called", filter.isProxyToServerConnectionSucceededInvoked ());
+        assertFalse ("Expected filter method to not be called", filter.isProxyToServerRequestSentInvoked ());
+        assertFalse ("Expected filter method to not be called", filter.isServerToProxyResponseReceivedInvoked ());
+    }
+
     @Test
     public void testConnectionFailedCalledAfterConnectionFailure () throws Exception
     {
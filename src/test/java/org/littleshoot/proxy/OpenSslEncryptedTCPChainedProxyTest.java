@@ -0,0 +1,103 @@
+package org.littleshoot.proxy;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.KeyAlgorithm;
+import org.littleshoot.proxy.extras.OpenSslEngineSource;
+import org.littleshoot.proxy.impl.ServerSslSessionCache;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.littleshoot.proxy.TransportProtocol.TCP;
+
+/**
+ * Tests a proxy chained over TLS to an upstream proxy whose engines are OpenSSL-based where OpenSSL is available. The
+ * downstream proxy uses the JDK's engines, which resume sessions with the upstream proxy.
+ */
+public class OpenSslEncryptedTCPChainedProxyTest extends BaseChainedProxyTest
+{
+    private final SslEngineSource sslEngineSource = newSslEngineSource ();
+    private final SslContext clientSslContext = newClientSslContext ();
+    private final ServerSslSessionCache sessionCache = new ServerSslSessionCache ();
+
+    @Override
+    protected HttpProxyServerBootstrap upstreamProxy ()
+    {
+        return super.upstreamProxy ().withTransportProtocol (TCP).withSslEngineSource (sslEngineSource).withAuthenticateSslClients (false).withServerSslSessionCache (sessionCache);
+    }
+
+    @Override
+    protected ChainedProxy newChainedProxy ()
+    {
+        return new BaseChainedProxy ()
+        {
+            @Override
+            public TransportProtocol getTransportProtocol ()
+            {
+                return TransportProtocol.TCP;
+            }
+
+            @Override
+            public boolean requiresEncryption ()
+            {
+                return true;
+            }
+
+            @Override
+            public SSLEngine newSslEngine (String peerHost, int peerPort)
+            {
+                return clientSslContext.newEngine (ByteBufAllocator.DEFAULT, peerHost, peerPort);
+            }
+        };
+    }
+
+    @Test
+    public void testReconnectResumesSession () throws Exception
+    {
+        // each request is sent over a new client connection, and so a new connection to the upstream proxy
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+
+        assertEquals ("Only the first handshake should be a full handshake", 1, sessionCache.getMissCount ());
+        assertTrue ("Later handshakes should resume the first session", sessionCache.getHitCount () >= 2);
+    }
+
+    private static SslEngineSource newSslEngineSource ()
+    {
+        try
+        {
+            CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+            KeyPair keyPair = KeyAlgorithm.EC_P256.generateKeyPair ();
+            X509Certificate certificate = certificateAuthority.issueCertificate ("127.0.0.1", Collections.singleton ("127.0.0.1"), keyPair.getPublic ());
+            return new OpenSslEngineSource (keyPair.getPrivate (), new X509Certificate[] {certificate}, true);
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException (e);
+        }
+    }
+
+    private static SslContext newClientSslContext ()
+    {
+        try
+        {
+            return SslContextBuilder.forClient ().sslProvider (SslProvider.JDK).trustManager (InsecureTrustManagerFactory.INSTANCE).build ();
+        }
+        catch (SSLException e)
+        {
+            throw new RuntimeException (e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.littleshoot.proxy;
+
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+import org.littleshoot.proxy.extras.OpenSslEngineSource;
+
+/**
+ * Tests a single basic proxy running as a man in the middle with OpenSSL-based engines, or the JDK's engines where
+ * OpenSSL is not available.
+ */
+public class OpenSslMitmProxyTest extends BaseProxyTest
+{
+    @Override
+    protected void setUp () throws Exception
+    {
+        CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (new CertificateAuthorityMitmManager (certificateAuthority, true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE, null, null, OpenSslEngineSource.preferredSslProvider ())).start ();
+    }
+
+    @Override
+    protected boolean isMITM ()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,335 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.PipeliningConfiguration;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that requests that clients pipeline are pipelined to the servers that support it, held back otherwise, and
+ * sent again if a server closes its connection with pipelined requests unanswered.
+ */
+public class PipeliningTest
+{
+    /**
+     * How long the server waits before answering a request, so that pipelined requests arrive in the meantime.
+     */
+    private static final long RESPONSE_DELAY_MILLIS = 300;
+
+    private PipeliningServer server;
+    private HttpProxyServer proxyServer;
+    private Socket socket;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        server = new PipeliningServer ();
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        try
+        {
+            if (proxyServer != null)
+            {
+                proxyServer.abort ();
+            }
+        }
+        finally
+        {
+            try
+            {
+                server.stop ();
+            }
+            finally
+            {
+                if (socket != null)
+                {
+                    socket.close ();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinesIdempotentRequestsToListedServers () throws Exception
+    {
+        startProxy (new PipeliningConfiguration ().withHosts (server.getHostAndPort ()));
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "GET /2", "GET /3"));
+        assertEquals ("All requests should have been pipelined", 3, server.getMaxUnansweredRequests ());
+        assertEquals (1, server.getConnectionCount ());
+    }
+
+    @Test
+    public void testLimitsPipelineToConfiguredDepth () throws Exception
+    {
+        startProxy (new PipeliningConfiguration ().withHosts (server.getHostAndPort ()).withDepth (2));
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "GET /2", "GET /3"));
+        assertEquals (2, server.getMaxUnansweredRequests ());
+    }
+
+    @Test
+    public void testHoldsRequestsToServersNotKnownToSupportPipelining () throws Exception
+    {
+        startProxy (new PipeliningConfiguration ().withHosts ("127.0.0.1:1"));
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "GET /2", "GET /3"));
+        assertEquals ("Requests should have been sent one at a time", 1, server.getMaxUnansweredRequests ());
+    }
+
+    @Test
+    public void testHoldsRequestsWithoutPipeliningConfiguration () throws Exception
+    {
+        startProxy (null);
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "GET /2", "GET /3"));
+        assertEquals ("Requests should have been sent one at a time", 1, server.getMaxUnansweredRequests ());
+        assertEquals (1, server.getConnectionCount ());
+    }
+
+    @Test
+    public void testDoesNotPipelineNonIdempotentRequests () throws Exception
+    {
+        startProxy (new PipeliningConfiguration ().withHosts (server.getHostAndPort ()));
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "POST /2", "GET /3"));
+        assertEquals ("Requests should have been sent one at a time", 1, server.getMaxUnansweredRequests ());
+    }
+
+    @Test
+    public void testResendsUnansweredRequestsWhenServerCloses () throws Exception
+    {
+        server.closeFirstConnectionAfterFirstResponse ();
+        startProxy (new PipeliningConfiguration ().withHosts (server.getHostAndPort ()));
+
+        assertEquals (Arrays.asList ("/1", "/2", "/3"), sendPipelined ("GET /1", "GET /2", "GET /3"));
+        assertEquals (2, server.getConnectionCount ());
+
+        // the server does not support pipelining after all, so requests to it are now sent one at a time
+        server.resetMaxUnansweredRequests ();
+        assertEquals (Arrays.asList ("/4", "/5"), sendPipelined ("GET /4", "GET /5"));
+        assertEquals (1, server.getMaxUnansweredRequests ());
+    }
+
+    private void startProxy (PipeliningConfiguration configuration) throws IOException
+    {
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withPipelining (configuration).start ();
+        socket = SocketClientUtil.getSocketToProxyServer (proxyServer);
+        socket.setSoTimeout (10000);
+    }
+
+    /**
+     * Writes requests for the given methods and paths to the proxy at once, and reads their responses.
+     *
+     * @return the bodies of the responses, which are the paths of their requests
+     */
+    private List <String> sendPipelined (String... methodsAndPaths) throws IOException
+    {
+        StringBuilder requests = new StringBuilder ();
+        for (String methodAndPath : methodsAndPaths)
+        {
+            String[] parts = methodAndPath.split (" ");
+            requests.append (parts[0]).append (" http://").append (server.getHostAndPort ()).append (parts[1]).append (" HTTP/1.1\r\n");
+            requests.append ("Host: ").append (server.getHostAndPort ()).append ("\r\n");
+            if ("POST".equals (parts[0]))
+            {
+                requests.append ("Content-Length: 0\r\n");
+            }
+            requests.append ("\r\n");
+        }
+        SocketClientUtil.writeStringToSocket (requests.toString (), socket);
+
+        List <String> bodies = new ArrayList <> ();
+        InputStream in = socket.getInputStream ();
+        for (int i = 0; i < methodsAndPaths.length; i++)
+        {
+            bodies.add (readResponseBody (in));
+        }
+        return bodies;
+    }
+
+    private static String readResponseBody (InputStream in) throws IOException
+    {
+        String statusLine = readLine (in);
+        assertEquals ("HTTP/1.1 200 OK", statusLine);
+        int contentLength = 0;
+        String line;
+        while (!(line = readLine (in)).isEmpty ())
+        {
+            if (line.toLowerCase (Locale.US).startsWith ("content-length:"))
+            {
+                contentLength = Integer.parseInt (line.substring ("content-length:".length ()).trim ());
+            }
+        }
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength)
+        {
+            int n = in.read (body, read, contentLength - read);
+            if (n < 0)
+            {
+                throw new IOException ("Connection closed while reading response body");
+            }
+            read += n;
+        }
+        return new String (body, StandardCharsets.US_ASCII);
+    }
+
+    private static String readLine (InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream ();
+        int b;
+        while ((b = in.read ()) != '\n')
+        {
+            if (b < 0)
+            {
+                throw new IOException ("Connection closed while reading response");
+            }
+            if (b != '\r')
+            {
+                line.write (b);
+            }
+        }
+        return new String (line.toByteArray (), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A server that answers each request after a delay, with the path of the request as the body, and keeps track of
+     * how many requests were pipelined on a connection at most.
+     */
+    private static class PipeliningServer
+    {
+        private final EventLoopGroup group = new NioEventLoopGroup (1);
+        private final AtomicInteger connections = new AtomicInteger (0);
+        private final AtomicInteger maxUnansweredRequests = new AtomicInteger (0);
+        private final Channel serverChannel;
+        private volatile boolean closeFirstConnectionAfterFirstResponse = false;
+
+        private PipeliningServer () throws InterruptedException
+        {
+            serverChannel = new ServerBootstrap ().group (group).channel (NioServerSocketChannel.class).childHandler (new ChannelInitializer <SocketChannel> ()
+            {
+                @Override
+                protected void initChannel (SocketChannel ch)
+                {
+                    final boolean closeAfterFirstResponse = connections.incrementAndGet () == 1 && closeFirstConnectionAfterFirstResponse;
+                    ch.pipeline ().addLast (new HttpServerCodec ());
+                    ch.pipeline ().addLast (new HttpObjectAggregator (1024));
+                    ch.pipeline ().addLast (new SimpleChannelInboundHandler <FullHttpRequest> ()
+                    {
+                        private int unanswered = 0;
+                        private boolean answered = false;
+
+                        @Override
+                        protected void channelRead0 (final ChannelHandlerContext ctx, FullHttpRequest request)
+                        {
+                            unanswered++;
+                            recordUnansweredRequests (unanswered);
+                            final String path = request.uri ();
+                            ctx.executor ().schedule (new Runnable ()
+                            {
+                                @Override
+                                public void run ()
+                                {
+                                    unanswered--;
+                                    if (answered && closeAfterFirstResponse)
+                                    {
+                                        return;
+                                    }
+                                    answered = true;
+                                    byte[] content = path.getBytes (StandardCharsets.US_ASCII);
+                                    FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer (content));
+                                    response.headers ().set (HttpHeaderNames.CONTENT_LENGTH, content.length);
+                                    ctx.writeAndFlush (response);
+                                    if (closeAfterFirstResponse)
+                                    {
+                                        ctx.close ();
+                                    }
+                                }
+                            }, RESPONSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                        }
+                    });
+                }
+            }).bind ("127.0.0.1", 0).sync ().channel ();
+        }
+
+        private void recordUnansweredRequests (int unanswered)
+        {
+            int max;
+            do
+            {
+                max = maxUnansweredRequests.get ();
+            }
+            while (unanswered > max && !maxUnansweredRequests.compareAndSet (max, unanswered));
+        }
+
+        String getHostAndPort ()
+        {
+            return "127.0.0.1:" + ((InetSocketAddress) serverChannel.localAddress ()).getPort ();
+        }
+
+        int getConnectionCount ()
+        {
+            return connections.get ();
+        }
+
+        int getMaxUnansweredRequests ()
+        {
+            return maxUnansweredRequests.get ();
+        }
+
+        void resetMaxUnansweredRequests ()
+        {
+            maxUnansweredRequests.set (0);
+        }
+
+        void closeFirstConnectionAfterFirstResponse ()
+        {
+            closeFirstConnectionAfterFirstResponse = true;
+        }
+
+        void stop () throws InterruptedException
+        {
+            serverChannel.close ().sync ();
+            group.shutdownGracefully (0, 0, TimeUnit.SECONDS).sync ();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.epoll.Epoll;
+import org.junit.Assume;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ChannelTransport;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerGroup;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests a single basic proxy that binds one SO_REUSEPORT listener per client-to-proxy worker thread. On platforms
+ * where epoll is not available, the proxy falls back to a single NIO listener and this behaves like
+ * {@link SimpleProxyTest}.
+ */
+public class ReusePortTest extends BaseProxyTest
+{
+    private static final int CLIENT_TO_PROXY_WORKER_THREADS = 4;
+
+    /**
+     * The state of a listening socket in /proc/net/tcp.
+     */
+    private static final String TCP_LISTEN = "0A";
+
+    @Override
+    protected void setUp ()
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withThreadPoolConfiguration (new ThreadPoolConfiguration ().withChannelTransport (ChannelTransport.EPOLL).withClientToProxyWorkerThreads (CLIENT_TO_PROXY_WORKER_THREADS)).withReusePort (true).start ();
+    }
+
+    @Test
+    public void testBindsOneListenerPerWorkerThread () throws Exception
+    {
+        Assume.assumeTrue ("SO_REUSEPORT listeners require epoll", Epoll.isAvailable ());
+        Assume.assumeTrue ("Counting listeners requires /proc/net/tcp", new File ("/proc/net/tcp").isFile ());
+
+        int port = proxyServer.getListenAddress ().getPort ();
+
+        assertEquals ("Expected one listener per client-to-proxy worker thread", CLIENT_TO_PROXY_WORKER_THREADS, countListeners ("/proc/net/tcp", port) + countListeners ("/proc/net/tcp6", port));
+    }
+
+    @Test
+    public void testReusePortPropertyBindsOneListenerPerWorkerThread () throws Exception
+    {
+        Assume.assumeTrue ("SO_REUSEPORT listeners require epoll", Epoll.isAvailable ());
+        Assume.assumeTrue ("Counting listeners requires /proc/net/tcp", new File ("/proc/net/tcp").isFile ());
+
+        File propertiesFile = File.createTempFile ("littleproxy", ".properties");
+        HttpProxyServer server = null;
+        try
+        {
+            Properties properties = new Properties ();
+            properties.setProperty ("reuse_port", "true");
+            try (OutputStream out = new FileOutputStream (propertiesFile))
+            {
+                properties.store (out, null);
+            }
+
+            server = DefaultHttpProxyServer.bootstrapFromFile (propertiesFile.getPath ()).withPort (0).start ();
+            int port = server.getListenAddress ().getPort ();
+
+            assertEquals ("Expected one listener per client-to-proxy worker thread", ServerGroup.DEFAULT_INCOMING_WORKER_THREADS, countListeners ("/proc/net/tcp", port) + countListeners ("/proc/net/tcp6", port));
+        }
+        finally
+        {
+            if (server != null)
+            {
+                server.abort ();
+            }
+            propertiesFile.delete ();
+        }
+    }
+
+    @Test
+    public void testLauncherReusePortOptionBindsOneListenerPerWorkerThread () throws Exception
+    {
+        Assume.assumeTrue ("SO_REUSEPORT listeners require epoll", Epoll.isAvailable ());
+        Assume.assumeTrue ("Counting listeners requires /proc/net/tcp", new File ("/proc/net/tcp").isFile ());
+
+        HttpProxyServer server = Launcher.start ("--port", "0", "--reuseport");
+        try
+        {
+            int port = server.getListenAddress ().getPort ();
+
+            assertEquals ("Expected one listener per client-to-proxy worker thread", ServerGroup.DEFAULT_INCOMING_WORKER_THREADS, countListeners ("/proc/net/tcp", port) + countListeners ("/proc/net/tcp6", port));
+        }
+        finally
+        {
+            server.abort ();
+        }
+    }
+
+    /**
+     * Counts the listening sockets bound to a port in a /proc/net/tcp style table.
+     */
+    private static int countListeners (String table, int port) throws IOException
+    {
+        File file = new File (table);
+        if (!file.isFile ())
+        {
+            return 0;
+        }
+        String localPort = String.format (Locale.ROOT, ":%04X", port);
+        int listeners = 0;
+        for (String line : Files.readAllLines (file.toPath (), StandardCharsets.US_ASCII))
+        {
+            // sl local_address rem_address st ...
+            String[] fields = line.trim ().split ("\\s+");
+            if (fields.length > 3 && fields[1].endsWith (localPort) && TCP_LISTEN.equals (fields[3]))
+            {
+                listeners++;
+            }
+        }
+        return listeners;
+    }
+}
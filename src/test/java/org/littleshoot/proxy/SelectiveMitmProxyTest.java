@@ -0,0 +1,68 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+import org.littleshoot.proxy.extras.HostPatternMatcher;
+import org.littleshoot.proxy.extras.HostPatternMitmManager;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests a proxy with a {@link SelectiveMitmManager} that intercepts some hosts and tunnels the others.
+ */
+public class SelectiveMitmProxyTest extends AbstractProxyTest
+{
+    private CertificateAuthorityMitmManager mitmManager;
+
+    @Override
+    protected void setUp () throws Exception
+    {
+        mitmManager = new CertificateAuthorityMitmManager (CertificateAuthority.create ("LittleProxy Test CA"), true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE);
+    }
+
+    @Test
+    public void testMatchingHostIsIntercepted () throws Exception
+    {
+        startProxy (new HostPatternMitmManager (mitmManager, new HostPatternMatcher ("127.0.0.1", "*.example.com")));
+
+        ResponseInfo response = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        assertEquals (200, response.getStatusCode ());
+        assertEquals ("The proxy should have read the CONNECT and the decrypted GET", 2, requestsReceivedFromClient.get ());
+    }
+
+    @Test
+    public void testOtherHostIsTunneled () throws Exception
+    {
+        startProxy (new HostPatternMitmManager (mitmManager, new HostPatternMatcher ("*.example.com")));
+
+        ResponseInfo response = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        assertEquals (200, response.getStatusCode ());
+        assertEquals ("The proxy should only have read the CONNECT", 1, requestsReceivedFromClient.get ());
+    }
+
+    @Test
+    public void testTunneledHostOverridesInterceptedHost () throws Exception
+    {
+        startProxy (new HostPatternMitmManager (mitmManager, new HostPatternMatcher ("*"), new HostPatternMatcher ("127.0.0.1")));
+
+        ResponseInfo response = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        assertEquals (200, response.getStatusCode ());
+        assertEquals ("The proxy should only have read the CONNECT", 1, requestsReceivedFromClient.get ());
+    }
+
+    @Test
+    public void testTunneledHostWithClientHelloPeek () throws Exception
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (new HostPatternMitmManager (mitmManager, new HostPatternMatcher ("*.example.com"))).withClientHelloPeek (true).start ();
+
+        ResponseInfo response = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        assertEquals (200, response.getStatusCode ());
+        assertEquals ("The proxy should only have read the CONNECT", 1, requestsReceivedFromClient.get ());
+    }
+
+    private void startProxy (SelectiveMitmManager selectiveMitmManager)
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (selectiveMitmManager).start ();
+    }
+}
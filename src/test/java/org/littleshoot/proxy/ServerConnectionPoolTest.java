@@ -0,0 +1,196 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ConnectionPoolConfiguration;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.SocketClientUtil;
+import org.mockserver.integration.ClientAndServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that idle proxy-to-server connections are shared between client connections when a connection pool is
+ * configured.
+ */
+public class ServerConnectionPoolTest
+{
+    private HttpProxyServer proxyServer;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+
+    private final AtomicInteger serverConnectionsStarted = new AtomicInteger (0);
+
+    @Before
+    public void setUp () throws Exception
+    {
+        mockServer = new ClientAndServer (0);
+        mockServerPort = mockServer.getPort ();
+        mockServer.when (request ().withMethod ("GET").withPath ("/pooled")).respond (response ().withStatusCode (200).withBody ("pooled"));
+        mockServer.when (request ().withMethod ("GET").withPath ("/slow")).respond (response ().withStatusCode (200).withBody ("pooled").withDelay (TimeUnit.MILLISECONDS, 1000));
+    }
+
+    @After
+    public void tearDown () throws Exception
+    {
+        try
+        {
+            if (proxyServer != null)
+            {
+                proxyServer.abort ();
+            }
+        }
+        finally
+        {
+            if (mockServer != null)
+            {
+                mockServer.stop ();
+            }
+        }
+    }
+
+    @Test
+    public void testIdleServerConnectionIsReusedByNextClient () throws Exception
+    {
+        startProxy (new ConnectionPoolConfiguration ());
+
+        sendRequestFromNewClient ();
+        sendRequestFromNewClient ();
+
+        assertEquals ("Expected the second client to reuse the pooled server connection", 1, serverConnectionsStarted.get ());
+    }
+
+    @Test
+    public void testIdleServerConnectionIsEvicted () throws Exception
+    {
+        startProxy (new ConnectionPoolConfiguration ().withIdleTimeoutSeconds (1));
+
+        sendRequestFromNewClient ();
+
+        // give the eviction task time to close the idle connection
+        Thread.sleep (3000);
+
+        sendRequestFromNewClient ();
+
+        assertEquals ("Expected the idle server connection to be evicted", 2, serverConnectionsStarted.get ());
+    }
+
+    @Test
+    public void testServerConnectionIsNotPooledWhenMaxIdleIsZero () throws Exception
+    {
+        startProxy (new ConnectionPoolConfiguration ().withMaxIdlePerHost (0));
+
+        sendRequestFromNewClient ();
+        sendRequestFromNewClient ();
+
+        assertEquals ("Expected each client to open its own server connection", 2, serverConnectionsStarted.get ());
+    }
+
+    @Test
+    public void testServerConnectionOfKeepAliveClientIsReusedByNextClient () throws Exception
+    {
+        startProxy (new ConnectionPoolConfiguration ());
+
+        Socket keepAliveSocket = SocketClientUtil.getSocketToProxyServer (proxyServer);
+        try
+        {
+            SocketClientUtil.writeStringToSocket ("GET http://localhost:" + mockServerPort + "/pooled HTTP/1.1\r\n\r\n", keepAliveSocket);
+            Thread.sleep (750);
+            assertThat ("Expected to receive an HTTP 200 from the server", SocketClientUtil.readStringFromSocket (keepAliveSocket), startsWith ("HTTP/1.1 200 OK"));
+
+            // the first client stays connected, but its server connection went back to the pool with its response
+            sendRequestFromNewClient ();
+        }
+        finally
+        {
+            keepAliveSocket.close ();
+        }
+
+        assertEquals ("Expected the second client to reuse the server connection of the first", 1, serverConnectionsStarted.get ());
+    }
+
+    @Test
+    public void testRequestWaitsForServerConnectionWhenMaxActiveIsReached () throws Exception
+    {
+        startProxy (new ConnectionPoolConfiguration ().withMaxActivePerHost (1));
+
+        Socket slowSocket = SocketClientUtil.getSocketToProxyServer (proxyServer);
+        Socket waitingSocket = SocketClientUtil.getSocketToProxyServer (proxyServer);
+        try
+        {
+            SocketClientUtil.writeStringToSocket ("GET http://localhost:" + mockServerPort + "/slow HTTP/1.1\r\n\r\n", slowSocket);
+            Thread.sleep (250);
+            SocketClientUtil.writeStringToSocket ("GET http://localhost:" + mockServerPort + "/pooled HTTP/1.1\r\n\r\n", waitingSocket);
+
+            // the second request is sent once the response to the first has freed the only server connection
+            Thread.sleep (2000);
+
+            assertThat ("Expected to receive an HTTP 200 from the server", SocketClientUtil.readStringFromSocket (slowSocket), startsWith ("HTTP/1.1 200 OK"));
+            String response = SocketClientUtil.readStringFromSocket (waitingSocket);
+            assertThat ("Expected to receive an HTTP 200 from the server", response, startsWith ("HTTP/1.1 200 OK"));
+            assertThat ("Unexpected message body", response, endsWith ("pooled"));
+        }
+        finally
+        {
+            slowSocket.close ();
+            waitingSocket.close ();
+        }
+
+        assertEquals ("Expected the waiting request to be sent on the only server connection", 1, serverConnectionsStarted.get ());
+    }
+
+    private void startProxy (ConnectionPoolConfiguration connectionPoolConfiguration)
+    {
+        proxyServer = DefaultHttpProxyServer.bootstrap ().withPort (0).withConnectionPoolConfiguration (connectionPoolConfiguration).withFiltersSource (new HttpFiltersSourceAdapter ()
+        {
+            @Override
+            public HttpFilters filterRequest (HttpRequest originalRequest)
+            {
+                return new HttpFiltersAdapter (originalRequest)
+                {
+                    @Override
+                    public void proxyToServerConnectionStarted ()
+                    {
+                        serverConnectionsStarted.incrementAndGet ();
+                    }
+                };
+            }
+        }).start ();
+    }
+
+    private void sendRequestFromNewClient () throws IOException, InterruptedException
+    {
+        Socket socket = SocketClientUtil.getSocketToProxyServer (proxyServer);
+        try
+        {
+            SocketClientUtil.writeStringToSocket ("GET http://localhost:" + mockServerPort + "/pooled HTTP/1.1\r\n\r\n", socket);
+
+            // wait a bit to allow the proxy server to respond
+            Thread.sleep (750);
+
+            String response = SocketClientUtil.readStringFromSocket (socket);
+            assertThat ("Expected to receive an HTTP 200 from the server", response, startsWith ("HTTP/1.1 200 OK"));
+            assertThat ("Unexpected message body", response, endsWith ("pooled"));
+        }
+        finally
+        {
+            socket.close ();
+        }
+
+        // wait a bit to allow the proxy to notice the client went away
+        Thread.sleep (250);
+    }
+}
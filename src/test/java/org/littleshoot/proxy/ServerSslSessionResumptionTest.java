@@ -0,0 +1,80 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.Test;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.ServerSslSessionCache;
+import org.littleshoot.proxy.impl.UpstreamSslSessionCache;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a proxy that encrypts inbound connections resumes the TLS sessions of clients that reconnect. The client
+ * is a downstream proxy that chains to it over TLS.
+ */
+public class ServerSslSessionResumptionTest extends AbstractProxyTest
+{
+    private final SslEngineSource sslEngineSource = new SelfSignedSslEngineSource ("chain_proxy_keystore_1.jks");
+    private final ServerSslSessionCache serverSessionCache = new ServerSslSessionCache ();
+    private final UpstreamSslSessionCache upstreamSessionCache = new UpstreamSslSessionCache ();
+
+    private HttpProxyServer upstreamProxy;
+
+    @Override
+    protected void setUp ()
+    {
+        this.upstreamProxy = DefaultHttpProxyServer.bootstrap ().withName ("Upstream").withPort (0).withSslEngineSource (sslEngineSource).withServerSslSessionCache (serverSessionCache).start ();
+        this.proxyServer = bootstrapProxy ().withName ("Downstream").withPort (0).withUpstreamSslSessionCache (upstreamSessionCache).withChainProxyManager (new ChainedProxyManager ()
+        {
+            @Override
+            public void lookupChainedProxies (HttpRequest httpRequest, Queue <ChainedProxy> chainedProxies)
+            {
+                chainedProxies.add (new ChainedProxyAdapter ()
+                {
+                    @Override
+                    public InetSocketAddress getChainedProxyAddress ()
+                    {
+                        return new InetSocketAddress ("127.0.0.1", upstreamProxy.getListenAddress ().getPort ());
+                    }
+
+                    @Override
+                    public boolean requiresEncryption ()
+                    {
+                        return true;
+                    }
+
+                    @Override
+                    public SSLEngine newSslEngine (String peerHost, int peerPort)
+                    {
+                        return sslEngineSource.newSslEngine (peerHost, peerPort);
+                    }
+                });
+            }
+        }).start ();
+    }
+
+    @Override
+    protected void tearDown () throws Exception
+    {
+        this.upstreamProxy.abort ();
+    }
+
+    @Test
+    public void testReconnectResumesSession () throws Exception
+    {
+        // each request is sent over a new client connection, and so a new connection to the upstream proxy
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (webHost, DEFAULT_RESOURCE, true, false);
+
+        assertEquals ("Only the first handshake should be a full handshake", 1, serverSessionCache.getMissCount ());
+        assertTrue ("Later handshakes should resume the first session", serverSessionCache.getHitCount () >= 2);
+        assertEquals (serverSessionCache.getHitCount (), upstreamSessionCache.getHitCount ());
+    }
+}
@@ -0,0 +1,48 @@
+package org.littleshoot.proxy;
+
+import io.netty.channel.epoll.Epoll;
+import org.junit.Test;
+import org.littleshoot.proxy.impl.ChannelTransport;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests a proxy that splices CONNECT tunnels. On platforms where epoll is not available, the proxy falls back to NIO
+ * and relays tunnels through the proxy as usual.
+ */
+public class SplicedTunnelTest extends AbstractProxyTest
+{
+    @Override
+    protected void setUp ()
+    {
+        this.proxyServer = bootstrapProxy ().withPort (0).withThreadPoolConfiguration (new ThreadPoolConfiguration ().withChannelTransport (ChannelTransport.EPOLL)).withColocatedEventLoops (true).withSplicedTunnels (true).start ();
+    }
+
+    @Test
+    public void testSimpleGetRequest () throws Exception
+    {
+        compareProxiedAndUnproxiedGET (webHost, DEFAULT_RESOURCE);
+    }
+
+    @Test
+    public void testSimpleGetRequestOverHTTPS () throws Exception
+    {
+        ResponseInfo proxiedResponse = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        ResponseInfo unproxiedResponse = httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, false, false);
+        assertEquals (unproxiedResponse, proxiedResponse);
+
+        if (Epoll.isAvailable ())
+        {
+            assertEquals ("Spliced tunnel data should not pass through the proxy", 0, bytesReceivedFromServer.get ());
+        }
+    }
+
+    @Test
+    public void testSimplePostRequestOverHTTPS () throws Exception
+    {
+        ResponseInfo proxiedResponse = httpPostWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true);
+        ResponseInfo unproxiedResponse = httpPostWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, false);
+        assertEquals (unproxiedResponse, proxiedResponse);
+    }
+}
@@ -0,0 +1,42 @@
+package org.littleshoot.proxy;
+
+import org.junit.Test;
+import org.littleshoot.proxy.extras.CertificateAuthority;
+import org.littleshoot.proxy.extras.CertificateAuthorityMitmManager;
+import org.littleshoot.proxy.impl.UpstreamSslSessionCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a MITM'ing proxy resumes TLS sessions when it reconnects to the same server.
+ */
+public class UpstreamSslSessionResumptionTest extends AbstractProxyTest
+{
+    private final UpstreamSslSessionCache sessionCache = new UpstreamSslSessionCache ();
+
+    @Override
+    protected void setUp () throws Exception
+    {
+        CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+        this.proxyServer = bootstrapProxy ().withPort (0).withManInTheMiddle (new CertificateAuthorityMitmManager (certificateAuthority, true, CertificateAuthorityMitmManager.DEFAULT_MAXIMUM_CACHE_SIZE)).withUpstreamSslSessionCache (sessionCache).start ();
+    }
+
+    @Override
+    protected boolean isMITM ()
+    {
+        return true;
+    }
+
+    @Test
+    public void testReconnectResumesSession () throws Exception
+    {
+        // each request is sent over a new client connection, and so a new connection to the server
+        httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+        httpGetWithApacheClient (httpsWebHost, DEFAULT_RESOURCE, true, false);
+
+        assertEquals ("Only the first handshake should be a full handshake", 1, sessionCache.getMissCount ());
+        assertTrue ("Later handshakes should resume the first session", sessionCache.getHitCount () >= 2);
+    }
+}
@@ -0,0 +1,205 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.ssl.SslContext;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link CertificateAuthority} and {@link CertificateAuthorityMitmManager}.
+ */
+public class CertificateAuthorityMitmManagerTest
+{
+    private static CertificateAuthority certificateAuthority;
+
+    @BeforeClass
+    public static void createCertificateAuthority () throws Exception
+    {
+        certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+    }
+
+    @Test
+    public void testIssuedCertificateIsSignedByAuthority () throws Exception
+    {
+        KeyPair keyPair = new CertificateAuthorityMitmManager (certificateAuthority).generateKeyPair ();
+        X509Certificate certificate = certificateAuthority.issueCertificate ("www.example.com", Arrays.asList ("www.example.com", "192.0.2.1"), keyPair.getPublic ());
+
+        certificate.verify (certificateAuthority.getCertificate ().getPublicKey ());
+        certificate.checkValidity ();
+        assertEquals ("CN=www.example.com", certificate.getSubjectX500Principal ().getName ());
+        assertEquals (certificateAuthority.getCertificate ().getSubjectX500Principal (), certificate.getIssuerX500Principal ());
+        assertEquals (keyPair.getPublic (), certificate.getPublicKey ());
+
+        Set <String> names = new HashSet <> ();
+        Collection <List <?>> alternativeNames = certificate.getSubjectAlternativeNames ();
+        for (List <?> alternativeName : alternativeNames)
+        {
+            names.add (alternativeName.get (0) + ":" + alternativeName.get (1));
+        }
+        assertEquals (new HashSet <> (Arrays.asList ("2:www.example.com", "7:192.0.2.1")), names);
+    }
+
+    @Test
+    public void testSaveAndLoad () throws Exception
+    {
+        File keyStoreFile = File.createTempFile ("littleproxy_ca", ".p12");
+        try
+        {
+            certificateAuthority.save (keyStoreFile, "ca", "secret");
+            CertificateAuthority loaded = CertificateAuthority.load (keyStoreFile, "PKCS12", "ca", "secret");
+            assertEquals (certificateAuthority.getCertificate (), loaded.getCertificate ());
+            assertEquals (certificateAuthority.getPrivateKey (), loaded.getPrivateKey ());
+        }
+        finally
+        {
+            keyStoreFile.delete ();
+        }
+    }
+
+    @Test
+    public void testSslContextsAreCachedPerHostAndNames () throws Exception
+    {
+        CountingMitmManager mitmManager = new CountingMitmManager (null);
+
+        SslContext first = mitmManager.sslContextFor ("www.example.com", names ("www.example.com"));
+        SslContext second = mitmManager.sslContextFor ("www.example.com", names ("www.example.com"));
+        SslContext other = mitmManager.sslContextFor ("www.example.com", names ("www.example.com", "example.com"));
+
+        assertSame (first, second);
+        assertNotSame (first, other);
+        assertEquals (2, mitmManager.keyPairsGenerated.get ());
+    }
+
+    @Test
+    public void testConcurrentRequestsForSameHostIssueOneCertificate () throws Exception
+    {
+        CountingMitmManager mitmManager = new CountingMitmManager (new CountDownLatch (1));
+        ExecutorService executor = Executors.newFixedThreadPool (2);
+        try
+        {
+            Callable <SslContext> request = new Callable <SslContext> ()
+            {
+                @Override
+                public SslContext call () throws Exception
+                {
+                    return mitmManager.sslContextFor ("www.example.com", names ("www.example.com"));
+                }
+            };
+            Future <SslContext> first = executor.submit (request);
+            Future <SslContext> second = executor.submit (request);
+            mitmManager.blockKeyGeneration.countDown ();
+
+            assertSame (first.get (30, TimeUnit.SECONDS), second.get (30, TimeUnit.SECONDS));
+            assertEquals (1, mitmManager.keyPairsGenerated.get ());
+        }
+        finally
+        {
+            executor.shutdownNow ();
+        }
+    }
+
+    @Test
+    public void testStoredCertificateIsReplacedBeforeItExpires () throws Exception
+    {
+        File directory = Files.createTempDirectory ("littleproxy_certificates").toFile ();
+        CertificateStore store = new CertificateStore (directory, "secret");
+        try
+        {
+            // just long enough left for the store to load it, but only for a moment
+            long replaceAfter = System.currentTimeMillis () + 2000;
+            KeyPair keyPair = KeyAlgorithm.EC_P256.generateKeyPair ();
+            long now = System.currentTimeMillis ();
+            X509Certificate certificate = CertificateAuthority.sign (new JcaX509v3CertificateBuilder (certificateAuthority.getCertificate (), CertificateAuthority.newSerialNumber (), new Date (now - 1000), new Date (replaceAfter + CertificateStore.MINIMUM_REMAINING_VALIDITY_MILLIS), new X500Name ("CN=www.example.com"), keyPair.getPublic ()), certificateAuthority.getPrivateKey ());
+            store.saveAsync ("www.example.com [www.example.com]", keyPair.getPrivate (), certificate);
+            assertTrue (store.awaitWrites (10, TimeUnit.SECONDS));
+
+            CertificateAuthorityMitmManager mitmManager = new CertificateAuthorityMitmManager (certificateAuthority, true, 100, null, store);
+            SslContext stored = mitmManager.sslContextFor ("www.example.com", names ("www.example.com"));
+            assertSame (stored, mitmManager.sslContextFor ("www.example.com", names ("www.example.com")));
+            assertEquals (1, store.getHitCount ());
+
+            Thread.sleep (Math.max (0, replaceAfter - System.currentTimeMillis ()) + 100);
+            assertNotSame ("Expected the context to be replaced once its certificate is close to expiring", stored, mitmManager.sslContextFor ("www.example.com", names ("www.example.com")));
+            assertEquals ("Expected a new certificate to be issued", 1, store.getHitCount ());
+            assertTrue (store.awaitWrites (10, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            store.stop ();
+            File[] files = directory.listFiles ();
+            if (files != null)
+            {
+                for (File file : files)
+                {
+                    file.delete ();
+                }
+            }
+            directory.delete ();
+        }
+    }
+
+    private static SortedSet <String> names (String... names)
+    {
+        return new TreeSet <> (Arrays.asList (names));
+    }
+
+    /**
+     * Counts the key pairs it generates, optionally waiting for a latch first.
+     */
+    private static class CountingMitmManager extends CertificateAuthorityMitmManager
+    {
+        private final AtomicInteger keyPairsGenerated = new AtomicInteger (0);
+        private final CountDownLatch blockKeyGeneration;
+
+        private CountingMitmManager (CountDownLatch blockKeyGeneration)
+        {
+            super (certificateAuthority, true, 100);
+            this.blockKeyGeneration = blockKeyGeneration;
+        }
+
+        @Override
+        KeyPair generateKeyPair () throws GeneralSecurityException
+        {
+            keyPairsGenerated.incrementAndGet ();
+            if (blockKeyGeneration != null)
+            {
+                try
+                {
+                    blockKeyGeneration.await (5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread ().interrupt ();
+                }
+            }
+            return super.generateKeyPair ();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link CertificateStore}.
+ */
+public class CertificateStoreTest
+{
+    private static CertificateAuthority certificateAuthority;
+
+    private File directory;
+    private CertificateStore store;
+
+    @BeforeClass
+    public static void createCertificateAuthority () throws Exception
+    {
+        certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+    }
+
+    @Before
+    public void setUp () throws Exception
+    {
+        directory = Files.createTempDirectory ("littleproxy_certificates").toFile ();
+        store = new CertificateStore (directory, "secret");
+    }
+
+    @After
+    public void tearDown ()
+    {
+        store.stop ();
+        File[] files = directory.listFiles ();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete ();
+            }
+        }
+        directory.delete ();
+    }
+
+    @Test
+    public void testSavedCertificateIsLoaded () throws Exception
+    {
+        KeyPair keyPair = KeyAlgorithm.EC_P256.generateKeyPair ();
+        X509Certificate certificate = certificateAuthority.issueCertificate ("www.example.com", Collections.singleton ("www.example.com"), keyPair.getPublic ());
+
+        assertNull (store.load ("www.example.com [www.example.com]", certificateAuthority.getCertificate ().getPublicKey ()));
+        store.saveAsync ("www.example.com [www.example.com]", keyPair.getPrivate (), certificate);
+        assertTrue (store.awaitWrites (10, TimeUnit.SECONDS));
+
+        KeyStore.PrivateKeyEntry entry = new CertificateStore (directory, "secret").load ("www.example.com [www.example.com]", certificateAuthority.getCertificate ().getPublicKey ());
+        assertEquals (keyPair.getPrivate (), entry.getPrivateKey ());
+        assertEquals (certificate, entry.getCertificate ());
+        assertEquals (1, store.getMissCount ());
+    }
+
+    @Test
+    public void testCertificateFromOtherAuthorityIsIgnored () throws Exception
+    {
+        CertificateAuthority otherAuthority = CertificateAuthority.create ("Other CA");
+        KeyPair keyPair = KeyAlgorithm.EC_P256.generateKeyPair ();
+        X509Certificate certificate = otherAuthority.issueCertificate ("www.example.com", Collections.singleton ("www.example.com"), keyPair.getPublic ());
+
+        store.saveAsync ("www.example.com [www.example.com]", keyPair.getPrivate (), certificate);
+        assertTrue (store.awaitWrites (10, TimeUnit.SECONDS));
+
+        assertNull (store.load ("www.example.com [www.example.com]", certificateAuthority.getCertificate ().getPublicKey ()));
+        assertEquals (0, store.getHitCount ());
+        assertEquals (1, store.getMissCount ());
+    }
+
+    @Test
+    public void testMitmManagerReusesStoredCertificates () throws Exception
+    {
+        new CertificateAuthorityMitmManager (certificateAuthority, true, 100, null, store).sslContextFor ("www.example.com", new TreeSet <> (Collections.singleton ("www.example.com")));
+        assertTrue (store.awaitWrites (10, TimeUnit.SECONDS));
+
+        // a new MitmManager, as after a restart, finds the certificate on disk
+        new CertificateAuthorityMitmManager (certificateAuthority, true, 100, null, store).sslContextFor ("www.example.com", new TreeSet <> (Collections.singleton ("www.example.com")));
+        assertEquals (1, store.getHitCount ());
+        assertEquals (1, store.getMissCount ());
+    }
+}
@@ -0,0 +1,70 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link HostPatternMatcher}.
+ */
+public class HostPatternMatcherTest
+{
+    @Test
+    public void testExactHost ()
+    {
+        HostPatternMatcher matcher = new HostPatternMatcher ("www.example.com", "10.0.0.1", "[::1]");
+        assertTrue (matcher.matches ("www.example.com"));
+        assertTrue (matcher.matches ("WWW.Example.COM."));
+        assertTrue (matcher.matches ("10.0.0.1"));
+        assertTrue (matcher.matches ("::1"));
+        assertFalse (matcher.matches ("example.com"));
+        assertFalse (matcher.matches ("api.www.example.com"));
+        assertFalse (matcher.matches (null));
+    }
+
+    @Test
+    public void testSubdomainWildcard ()
+    {
+        HostPatternMatcher matcher = new HostPatternMatcher ("*.example.com");
+        assertTrue (matcher.matches ("www.example.com"));
+        assertTrue (matcher.matches ("a.b.example.com"));
+        assertFalse (matcher.matches ("example.com"));
+        assertFalse (matcher.matches ("badexample.com"));
+    }
+
+    @Test
+    public void testDomainAndSubdomains ()
+    {
+        HostPatternMatcher matcher = new HostPatternMatcher (".example.com");
+        assertTrue (matcher.matches ("example.com"));
+        assertTrue (matcher.matches ("www.example.com"));
+        assertFalse (matcher.matches ("badexample.com"));
+    }
+
+    @Test
+    public void testWildcardWithinLabel ()
+    {
+        HostPatternMatcher matcher = new HostPatternMatcher ("api-*.example.com", "cdn*.example.*");
+        assertTrue (matcher.matches ("api-eu.example.com"));
+        assertTrue (matcher.matches ("api-.example.com"));
+        assertTrue (matcher.matches ("cdn7.example.org"));
+        assertFalse (matcher.matches ("api-eu.west.example.com"));
+        assertFalse (matcher.matches ("apieu.example.com"));
+        assertFalse (matcher.matches ("cdn.example.co.uk"));
+    }
+
+    @Test
+    public void testMatchAll ()
+    {
+        HostPatternMatcher matcher = new HostPatternMatcher ("*");
+        assertTrue (matcher.matches ("anything.example"));
+        assertTrue (matcher.matches ("127.0.0.1"));
+    }
+
+    @Test
+    public void testNoPatterns ()
+    {
+        assertFalse (new HostPatternMatcher ().matches ("www.example.com"));
+    }
+}
@@ -0,0 +1,82 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link KeyPairPool}.
+ */
+public class KeyPairPoolTest
+{
+    @Test
+    public void testPoolIsFilledInBackground () throws Exception
+    {
+        KeyPairPool pool = new KeyPairPool (KeyAlgorithm.EC_P256, 4);
+        try
+        {
+            waitForAvailable (pool, 4);
+
+            KeyPair keyPair = pool.take ();
+            assertEquals ("EC", keyPair.getPublic ().getAlgorithm ());
+            assertEquals (0, pool.getMissCount ());
+        }
+        finally
+        {
+            pool.stop ();
+        }
+    }
+
+    @Test
+    public void testEmptyPoolGeneratesInlineAndCountsMiss () throws Exception
+    {
+        KeyPairPool pool = new KeyPairPool (KeyAlgorithm.EC_P256, 1);
+        waitForAvailable (pool, 1);
+        pool.stop ();
+        // the generator may have been in the middle of generating one more key pair when it was stopped
+        while (pool.getAvailable () > 0)
+        {
+            pool.take ();
+        }
+        long missesBefore = pool.getMissCount ();
+
+        KeyPair keyPair = pool.take ();
+
+        assertEquals ("EC", keyPair.getPublic ().getAlgorithm ());
+        assertEquals (missesBefore + 1, pool.getMissCount ());
+    }
+
+    @Test
+    public void testCertificateAuthorityCertifiesPooledKeys () throws Exception
+    {
+        CertificateAuthority certificateAuthority = CertificateAuthority.create ("LittleProxy Test CA");
+        KeyPairPool pool = new KeyPairPool (KeyAlgorithm.EC_P256, 1);
+        try
+        {
+            KeyPair keyPair = pool.take ();
+            X509Certificate certificate = certificateAuthority.issueCertificate ("www.example.com", Collections.singleton ("www.example.com"), keyPair.getPublic ());
+            certificate.verify (certificateAuthority.getCertificate ().getPublicKey ());
+            assertEquals (keyPair.getPublic (), certificate.getPublicKey ());
+        }
+        finally
+        {
+            pool.stop ();
+        }
+    }
+
+    private static void waitForAvailable (KeyPairPool pool, int available) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis () + TimeUnit.SECONDS.toMillis (30);
+        while (pool.getAvailable () < available && System.currentTimeMillis () < deadline)
+        {
+            Thread.sleep (10);
+        }
+        assertTrue ("Pool was not filled in time", pool.getAvailable () >= available);
+    }
+}
@@ -0,0 +1,233 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link OffHeapResponseCacheStore}.
+ */
+public class OffHeapResponseCacheStoreTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder ();
+
+    private File directory;
+    private OffHeapResponseCacheStore store;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        directory = temporaryFolder.newFolder ();
+        // room for two bodies in memory, and two segments of four bodies each on disk
+        store = new OffHeapResponseCacheStore (200, directory, 800, 400);
+    }
+
+    @After
+    public void tearDown ()
+    {
+        store.close ();
+    }
+
+    @Test
+    public void testServesBodiesFromMemory ()
+    {
+        store.put ("a", response (body ('a')));
+
+        assertEquals (body ('a'), bodyOf (store.get ("a")));
+        assertEquals (100, store.getMemorySizeInBytes ());
+        assertEquals (0, store.getDiskEntries ());
+        assertNull (store.get ("b"));
+    }
+
+    @Test
+    public void testSpillsLeastRecentlyUsedBodiesToDisk ()
+    {
+        store.put ("a", response (body ('a')));
+        store.put ("b", response (body ('b')));
+        bodyOf (store.get ("a"));
+        store.put ("c", response (body ('c')));
+
+        assertEquals (1, store.getDiskEntries ());
+        assertEquals (200, store.getMemorySizeInBytes ());
+        assertEquals (body ('a'), bodyOf (store.get ("a")));
+        assertEquals (body ('b'), bodyOf (store.get ("b")));
+        assertEquals (body ('c'), bodyOf (store.get ("c")));
+        assertEquals (1, segmentFiles ());
+    }
+
+    @Test
+    public void testDropsOldestSegmentWhenDiskIsFull ()
+    {
+        for (char c = 'a'; c <= 'l'; c++)
+        {
+            store.put (String.valueOf (c), response (body (c)));
+        }
+
+        // a to d filled the first segment, which was dropped for i and j, while k and l are still in memory
+        assertNull (store.get ("a"));
+        assertNull (store.get ("d"));
+        assertEquals (body ('e'), bodyOf (store.get ("e")));
+        assertEquals (body ('l'), bodyOf (store.get ("l")));
+        assertEquals (8, store.size ());
+        assertEquals (2, segmentFiles ());
+    }
+
+    @Test
+    public void testBodiesOutliveTheirSegment ()
+    {
+        for (char c = 'a'; c <= 'f'; c++)
+        {
+            store.put (String.valueOf (c), response (body (c)));
+        }
+        CachedResponse response = store.get ("a");
+        for (char c = 'g'; c <= 'l'; c++)
+        {
+            store.put (String.valueOf (c), response (body (c)));
+        }
+
+        assertNull (store.get ("a"));
+        assertEquals (body ('a'), bodyOf (response));
+    }
+
+    @Test
+    public void testRemove ()
+    {
+        store.put ("a", response (body ('a')));
+        store.put ("b", response (body ('b')));
+        store.put ("c", response (body ('c')));
+        store.remove ("a");
+        store.remove ("c");
+
+        assertNull (store.get ("a"));
+        assertNull (store.get ("c"));
+        assertEquals (100, store.getMemorySizeInBytes ());
+        assertEquals (0, store.getDiskEntries ());
+    }
+
+    @Test
+    public void testCloseDeletesSegments ()
+    {
+        for (char c = 'a'; c <= 'f'; c++)
+        {
+            store.put (String.valueOf (c), response (body (c)));
+        }
+        assertTrue (segmentFiles () > 0);
+
+        store.close ();
+        assertEquals (0, segmentFiles ());
+        assertEquals (0, store.size ());
+    }
+
+    @Test
+    public void testConcurrentPutsSpillToTheSameSegment () throws Exception
+    {
+        final int threads = 8;
+        final int putsPerThread = 50;
+        final int bodyLength = 16 * 1024;
+        store.close ();
+        // every body is spilled as soon as it is put, and all of them fit in the first segment
+        store = new OffHeapResponseCacheStore (1, directory, threads * putsPerThread * bodyLength, threads * putsPerThread * bodyLength);
+
+        final CountDownLatch start = new CountDownLatch (1);
+        ExecutorService executor = Executors.newFixedThreadPool (threads);
+        try
+        {
+            List <Future <Void>> puts = new ArrayList <> ();
+            for (int thread = 0; thread < threads; thread++)
+            {
+                final char c = (char) ('a' + thread);
+                puts.add (executor.submit (new Callable <Void> ()
+                {
+                    @Override
+                    public Void call () throws InterruptedException
+                    {
+                        start.await ();
+                        for (int i = 0; i < putsPerThread; i++)
+                        {
+                            store.put (c + "" + i, response (body (c, bodyLength)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown ();
+            for (Future <Void> put : puts)
+            {
+                put.get ();
+            }
+        }
+        finally
+        {
+            executor.shutdown ();
+        }
+
+        assertEquals (threads * putsPerThread, store.getDiskEntries ());
+        for (int thread = 0; thread < threads; thread++)
+        {
+            char c = (char) ('a' + thread);
+            for (int i = 0; i < putsPerThread; i++)
+            {
+                assertEquals (body (c, bodyLength), bodyOf (store.get (c + "" + i)));
+            }
+        }
+    }
+
+    private int segmentFiles ()
+    {
+        return directory.listFiles ().length;
+    }
+
+    private static CachedResponse response (String body)
+    {
+        return new CachedResponse (HttpResponseStatus.OK, new DefaultHttpHeaders (), Unpooled.copiedBuffer (body, StandardCharsets.US_ASCII), 0, 0, 0);
+    }
+
+    private static String body (char c)
+    {
+        return body (c, 100);
+    }
+
+    private static String body (char c, int length)
+    {
+        StringBuilder body = new StringBuilder ();
+        for (int i = 0; i < length; i++)
+        {
+            body.append (c);
+        }
+        return body.toString ();
+    }
+
+    private static String bodyOf (CachedResponse response)
+    {
+        ByteBuf body = response.getBody ();
+        try
+        {
+            return body.toString (StandardCharsets.US_ASCII);
+        }
+        finally
+        {
+            body.release ();
+        }
+    }
+}
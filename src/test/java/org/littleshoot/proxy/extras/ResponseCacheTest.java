@@ -0,0 +1,375 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ResponseCache}, the freshness calculations of {@link CachedResponse}, and the ranges of
+ * {@link ByteRange}.
+ */
+public class ResponseCacheTest
+{
+    private static final String URI = "http://www.example.com/index.html";
+
+    @Test
+    public void testEffectiveUri ()
+    {
+        assertEquals ("http://www.example.com/a?b", ResponseCache.effectiveUri (request ("HTTP://WWW.Example.COM:80/a?b#c"), false));
+        assertEquals ("https://www.example.com/", ResponseCache.effectiveUri (request ("https://www.example.com:443"), false));
+        assertEquals ("https://www.example.com:8443/a", ResponseCache.effectiveUri (request ("/a", "Host", "www.example.com:8443"), true));
+        assertEquals ("http://www.example.com/a", ResponseCache.effectiveUri (request ("/a", "Host", "www.example.com"), false));
+        assertNull (ResponseCache.effectiveUri (request ("/a"), false));
+        assertNull (ResponseCache.effectiveUri (request ("www.example.com:443"), false));
+    }
+
+    @Test
+    public void testFreshnessLifetime ()
+    {
+        long now = System.currentTimeMillis ();
+        assertEquals (60000, freshnessLifetime (now, "Cache-Control", "max-age=60, s-maxage=120x"));
+        assertEquals (120000, freshnessLifetime (now, "Cache-Control", "max-age=60, s-maxage=120"));
+        assertEquals (30000, freshnessLifetime (now, "Date", httpDate (now), "Expires", httpDate (now + 30000)));
+        assertEquals (0, freshnessLifetime (now, "Date", httpDate (now), "Expires", "0"));
+        assertEquals (3600000, freshnessLifetime (now, "Date", httpDate (now), "Last-Modified", httpDate (now - 36000000)));
+        assertEquals (TimeUnit.DAYS.toMillis (1), freshnessLifetime (now, "Date", httpDate (now), "Last-Modified", httpDate (now - TimeUnit.DAYS.toMillis (100))));
+        assertEquals (0, freshnessLifetime (now));
+    }
+
+    @Test
+    public void testCurrentAge ()
+    {
+        // HTTP dates have a resolution of one second
+        long now = System.currentTimeMillis () / 1000 * 1000;
+
+        // the Age header from an upstream cache, plus the time the response took to arrive
+        CachedResponse cached = new CachedResponse (HttpResponseStatus.OK, headers ("Date", httpDate (now), "Age", "10"), Unpooled.EMPTY_BUFFER, now - 2000, now, 1);
+        assertEquals (12000, cached.getCurrentAgeMillis (now));
+        assertEquals (17000, cached.getCurrentAgeMillis (now + 5000));
+
+        // a Date in the past, from a server whose clock is behind
+        cached = new CachedResponse (HttpResponseStatus.OK, headers ("Date", httpDate (now - 30000)), Unpooled.EMPTY_BUFFER, now, now, 1);
+        assertEquals (30000, cached.getCurrentAgeMillis (now));
+    }
+
+    @Test
+    public void testIsStorable ()
+    {
+        ResponseCache cache = new ResponseCache (new MemoryResponseCacheStore (), 100);
+        assertTrue (cache.isStorable (request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60")));
+        assertTrue (cache.isStorable (request (URI, "Authorization", "Basic Zm9vOmJhcg=="), response (HttpResponseStatus.OK, "Cache-Control", "public, max-age=60")));
+        assertFalse (cache.isStorable (request (URI, "Authorization", "Basic Zm9vOmJhcg=="), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60")));
+        assertFalse (cache.isStorable (request (URI), response (HttpResponseStatus.OK)));
+        assertFalse (cache.isStorable (request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60, private")));
+        assertFalse (cache.isStorable (request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Vary", "*")));
+        assertFalse (cache.isStorable (request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Content-Length", "101")));
+        assertFalse (cache.isStorable (request (URI, "Cache-Control", "no-store"), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60")));
+        assertFalse (cache.isStorable (request (URI), response (HttpResponseStatus.INTERNAL_SERVER_ERROR, "Cache-Control", "max-age=60")));
+    }
+
+    @Test
+    public void testVariants ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI, "Accept-Encoding", "gzip,  br"), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Vary", "accept-encoding"), body ("compressed"), now, now);
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Vary", "Accept-Encoding"), body ("identity"), now, now);
+
+        assertEquals ("compressed", bodyOf (cache.lookup (URI, request (URI, "Accept-Encoding", "gzip, br"))));
+        assertEquals ("identity", bodyOf (cache.lookup (URI, request (URI))));
+        assertNull (cache.lookup (URI, request (URI, "Accept-Encoding", "gzip")));
+
+        cache.invalidate (URI, response (HttpResponseStatus.NO_CONTENT));
+        assertNull (cache.lookup (URI, request (URI)));
+    }
+
+    @Test
+    public void testStaleResponses ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Date", httpDate (now - 90000)), body ("stale"), now, now);
+
+        assertNull (cache.lookup (URI, request (URI)));
+        assertNull (cache.lookup (URI, request (URI, "Cache-Control", "max-stale=10")));
+        HttpResponse response = cache.lookup (URI, request (URI, "Cache-Control", "max-stale"));
+        assertNotNull (response);
+        assertEquals ("90", response.headers ().get ("Age"));
+        assertTrue (response.headers ().get ("Warning").startsWith ("110"));
+    }
+
+    @Test
+    public void testRequestDirectives ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "Age", "20"), body ("cached"), now, now);
+
+        assertNotNull (cache.lookup (URI, request (URI)));
+        assertNull (cache.lookup (URI, request (URI, "Cache-Control", "no-cache")));
+        assertNull (cache.lookup (URI, request (URI, "Pragma", "no-cache")));
+        assertNull (cache.lookup (URI, request (URI, "Cache-Control", "max-age=10")));
+        assertNull (cache.lookup (URI, request (URI, "Cache-Control", "min-fresh=50")));
+        assertEquals (HttpResponseStatus.GATEWAY_TIMEOUT, cache.lookup ("http://www.example.com/other", request (URI, "Cache-Control", "only-if-cached")).status ());
+    }
+
+    @Test
+    public void testFreshen ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Date", httpDate (now - 90000), "X-Version", "1"), body ("stored"), now, now);
+        ResponseCache.Lookup lookup = cache.find (URI, request (URI), false);
+        assertNull (lookup.response);
+        assertNotNull (lookup.stale);
+
+        HttpRequest conditionalRequest = request (URI);
+        assertTrue (ResponseCache.addValidators (lookup.stale, conditionalRequest));
+        assertEquals ("\"v1\"", conditionalRequest.headers ().get ("If-None-Match"));
+        HttpResponse notModified = response (HttpResponseStatus.NOT_MODIFIED, "ETag", "\"v1\"", "X-Version", "2", "Content-Length", "0", "Connection", "close");
+        assertTrue (ResponseCache.isSelectedBy (lookup.stale, notModified));
+        assertFalse (ResponseCache.isSelectedBy (lookup.stale, response (HttpResponseStatus.NOT_MODIFIED, "ETag", "\"v2\"")));
+
+        CachedResponse refreshed = cache.freshen (URI, request (URI), lookup.stale, notModified, now, now);
+        assertEquals ("stored", refreshed.getBody ().toString (StandardCharsets.US_ASCII));
+        refreshed.getBody ().release ();
+        assertEquals (1, cache.getRevalidations ());
+
+        HttpResponse response = cache.lookup (URI, request (URI));
+        assertEquals ("stored", bodyOf (response));
+        assertEquals ("2", response.headers ().get ("X-Version"));
+        assertEquals ("6", response.headers ().get ("Content-Length"));
+        assertNull (response.headers ().get ("Connection"));
+        assertNull (response.headers ().get ("Warning"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60, stale-while-revalidate=60", "Date", httpDate (now - 90000)), body ("stale"), now, now);
+
+        assertNull (cache.lookup (URI, request (URI)));
+        ResponseCache.Lookup lookup = cache.find (URI, request (URI), true);
+        assertEquals ("stale", bodyOf (lookup.response));
+        assertEquals (URI, lookup.refreshKey);
+
+        // only one refresh at a time
+        lookup = cache.find (URI, request (URI), true);
+        assertNotNull (lookup.response);
+        assertNull (lookup.refreshKey);
+        cache.finishRefresh (URI);
+        assertEquals (URI, cache.find (URI, request (URI), true).refreshKey);
+
+        // too stale, or not acceptable to the request
+        assertNull (cache.lookup (URI, request (URI, "Cache-Control", "max-age=60")));
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60, stale-while-revalidate=10", "Date", httpDate (now - 90000)), body ("stale"), now, now);
+        lookup = cache.find (URI, request (URI), true);
+        assertNull (lookup.response);
+        assertNotNull (lookup.stale);
+        lookup.stale.getBody ().release ();
+    }
+
+    @Test
+    public void testStaleIfError ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        HttpRequest request = request (URI);
+        CachedResponse cached = new CachedResponse (HttpResponseStatus.OK, headers ("Cache-Control", "max-age=60, stale-if-error=60", "Date", httpDate (now - 90000)), Unpooled.EMPTY_BUFFER, now, now, 1);
+        assertTrue (cache.isServableOnError (cached, request));
+        assertTrue (cache.responseOnError (cached, request).headers ().getAll ("Warning").get (1).startsWith ("111"));
+
+        cached = new CachedResponse (HttpResponseStatus.OK, headers ("Cache-Control", "max-age=60, stale-if-error=10", "Date", httpDate (now - 90000)), Unpooled.EMPTY_BUFFER, now, now, 1);
+        assertFalse (cache.isServableOnError (cached, request));
+        assertTrue (cache.isServableOnError (cached, request (URI, "Cache-Control", "stale-if-error=60")));
+
+        cached = new CachedResponse (HttpResponseStatus.OK, headers ("Cache-Control", "max-age=60, stale-if-error=60, must-revalidate", "Date", httpDate (now - 90000)), Unpooled.EMPTY_BUFFER, now, now, 1);
+        assertFalse (cache.isServableOnError (cached, request));
+        cached = new CachedResponse (HttpResponseStatus.OK, headers ("Cache-Control", "max-age=60", "Date", httpDate (now - 90000)), Unpooled.EMPTY_BUFFER, now, now, 1);
+        assertFalse (cache.isServableOnError (cached, request));
+    }
+
+    @Test
+    public void testByteRange ()
+    {
+        assertEquals (new ByteRange (2, 5, 10), ByteRange.requested ("bytes=2-5", 10));
+        assertEquals (new ByteRange (2, 9, 10), ByteRange.requested ("bytes=2-", 10));
+        assertEquals (new ByteRange (2, 9, 10), ByteRange.requested ("bytes=2-100", 10));
+        assertEquals (new ByteRange (7, 9, 10), ByteRange.requested ("bytes=-3", 10));
+        assertEquals (new ByteRange (0, 9, 10), ByteRange.requested ("bytes=-30", 10));
+        assertFalse (ByteRange.requested ("bytes=10-", 10).isSatisfiable ());
+        assertFalse (ByteRange.requested ("bytes=-0", 10).isSatisfiable ());
+        assertEquals ("bytes */10", ByteRange.requested ("bytes=10-", 10).toContentRange ());
+        assertNull (ByteRange.requested ("bytes=5-2", 10));
+        assertNull (ByteRange.requested ("bytes=0-1,3-4", 10));
+        assertNull (ByteRange.requested ("items=0-1", 10));
+
+        assertEquals (new ByteRange (2, 5, 10), ByteRange.sent ("bytes 2-5/10"));
+        assertEquals ("bytes 2-5/10", ByteRange.sent ("bytes 2-5/10").toContentRange ());
+        assertNull (ByteRange.sent ("bytes 2-5/*"));
+        assertNull (ByteRange.sent ("bytes 2-10/10"));
+    }
+
+    @Test
+    public void testRangeOfStoredResponse ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        cache.store (URI, request (URI), response (HttpResponseStatus.OK, "Cache-Control", "max-age=60", "ETag", "\"v1\""), body ("0123456789"), now, now);
+
+        HttpResponse response = cache.lookup (URI, request (URI, "Range", "bytes=2-5"));
+        assertEquals (HttpResponseStatus.PARTIAL_CONTENT, response.status ());
+        assertEquals ("2345", bodyOf (response));
+        assertEquals ("bytes 2-5/10", response.headers ().get ("Content-Range"));
+        assertEquals ("4", response.headers ().get ("Content-Length"));
+        assertEquals ("789", bodyOf (cache.lookup (URI, request (URI, "Range", "bytes=-3"))));
+        assertEquals ("789", bodyOf (cache.lookup (URI, request (URI, "Range", "bytes=-3", "If-Range", "\"v1\""))));
+
+        response = cache.lookup (URI, request (URI, "Range", "bytes=10-"));
+        assertEquals (HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status ());
+        assertEquals ("bytes */10", response.headers ().get ("Content-Range"));
+
+        // the whole response, if the client's copy is of another representation or it asks for several ranges
+        assertEquals ("0123456789", bodyOf (cache.lookup (URI, request (URI, "Range", "bytes=2-5", "If-Range", "\"v0\""))));
+        assertEquals ("0123456789", bodyOf (cache.lookup (URI, request (URI, "Range", "bytes=0-1,3-4"))));
+    }
+
+    @Test
+    public void testStoreRange ()
+    {
+        ResponseCache cache = new ResponseCache ();
+        long now = System.currentTimeMillis ();
+        HttpResponse partialContent = response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 0-3/10", "Content-Length", "4");
+        assertTrue (cache.isStorableRange (request (URI, "Range", "bytes=0-3"), partialContent));
+        assertFalse (cache.isStorableRange (request (URI, "Range", "bytes=0-3"), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "W/\"v1\"", "Content-Range", "bytes 0-3/10")));
+        assertFalse (cache.isStorableRange (request (URI, "Range", "bytes=0-3"), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 0-3/*")));
+        assertFalse (cache.isStorableRange (request (URI, "Range", "bytes=0-3"), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "private", "ETag", "\"v1\"", "Content-Range", "bytes 0-3/10")));
+
+        cache.storeRange (URI, request (URI, "Range", "bytes=0-3"), partialContent, body ("0123"), now, now);
+        assertEquals (4, cache.getPartialSizeInBytes ());
+        HttpResponse response = cache.lookup (URI, request (URI, "Range", "bytes=1-2"));
+        assertEquals (HttpResponseStatus.PARTIAL_CONTENT, response.status ());
+        assertEquals ("12", bodyOf (response));
+        assertEquals ("bytes 1-2/10", response.headers ().get ("Content-Range"));
+        assertNull (cache.lookup (URI, request (URI)));
+
+        // only the missing bytes are requested, and the held ones sent with them
+        ResponseCache.Lookup lookup = cache.find (URI, request (URI, "Range", "bytes=2-7"), false);
+        assertNull (lookup.response);
+        assertEquals (new ByteRange (4, 7, 10), lookup.fill.missing);
+        assertEquals ("\"v1\"", lookup.fill.validator);
+        ByteBuf before = lookup.fill.takeBefore ();
+        assertEquals ("23", before.toString (StandardCharsets.US_ASCII));
+        before.release ();
+        assertNull (lookup.fill.takeAfter ());
+        assertTrue (lookup.fill.isFilledBy (response (HttpResponseStatus.PARTIAL_CONTENT, "ETag", "\"v1\"", "Content-Range", "bytes 4-7/10")));
+        assertFalse (lookup.fill.isFilledBy (response (HttpResponseStatus.PARTIAL_CONTENT, "ETag", "\"v2\"", "Content-Range", "bytes 4-7/10")));
+        assertFalse (lookup.fill.isFilledBy (response (HttpResponseStatus.OK, "ETag", "\"v1\"")));
+
+        cache.storeRange (URI, request (URI, "Range", "bytes=6-9"), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 6-9/10"), body ("6789"), now, now);
+        lookup = cache.find (URI, request (URI, "Range", "bytes=0-9"), false);
+        assertEquals (new ByteRange (4, 5, 10), lookup.fill.missing);
+        lookup.fill.release ();
+
+        // once every byte has been received, the representation is stored as a whole
+        cache.storeRange (URI, request (URI, "Range", "bytes=4-5"), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 4-5/10"), body ("45"), now, now);
+        assertEquals (0, cache.getPartialSizeInBytes ());
+        response = cache.lookup (URI, request (URI));
+        assertEquals (HttpResponseStatus.OK, response.status ());
+        assertEquals ("0123456789", bodyOf (response));
+        assertEquals ("10", response.headers ().get ("Content-Length"));
+        assertNull (response.headers ().get ("Content-Range"));
+    }
+
+    @Test
+    public void testDropsRanges ()
+    {
+        ResponseCache cache = new ResponseCache (new MemoryResponseCacheStore (), 100, 6);
+        long now = System.currentTimeMillis ();
+        cache.storeRange (URI, request (URI), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 0-3/10"), body ("0123"), now, now);
+
+        // ranges of another representation replace those held
+        cache.storeRange (URI, request (URI), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v2\"", "Content-Range", "bytes 4-6/10"), body ("abc"), now, now);
+        assertEquals (3, cache.getPartialSizeInBytes ());
+        assertNull (cache.lookup (URI, request (URI, "Range", "bytes=0-3")));
+        assertEquals ("abc", bodyOf (cache.lookup (URI, request (URI, "Range", "bytes=4-6"))));
+
+        // the least recently used ranges are dropped once too many bytes are held
+        String otherUri = "http://www.example.com/other.html";
+        cache.storeRange (otherUri, request (otherUri), response (HttpResponseStatus.PARTIAL_CONTENT, "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Content-Range", "bytes 0-3/10"), body ("0123"), now, now);
+        assertEquals (4, cache.getPartialSizeInBytes ());
+        assertNull (cache.lookup (URI, request (URI, "Range", "bytes=4-6")));
+        assertEquals ("0123", bodyOf (cache.lookup (otherUri, request (otherUri, "Range", "bytes=0-3"))));
+
+        cache.invalidate (otherUri, response (HttpResponseStatus.NO_CONTENT));
+        assertEquals (0, cache.getPartialSizeInBytes ());
+    }
+
+    private static long freshnessLifetime (long now, String... headerNamesAndValues)
+    {
+        HttpHeaders headers = headers (headerNamesAndValues);
+        return CachedResponse.freshnessLifetimeMillis (HttpResponseStatus.OK, headers, CacheControl.parse (headers), now);
+    }
+
+    private static HttpRequest request (String uri, String... headerNamesAndValues)
+    {
+        HttpRequest request = new DefaultHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers ().set (headers (headerNamesAndValues));
+        return request;
+    }
+
+    private static HttpResponse response (HttpResponseStatus status, String... headerNamesAndValues)
+    {
+        HttpResponse response = new DefaultHttpResponse (HttpVersion.HTTP_1_1, status);
+        response.headers ().set (headers (headerNamesAndValues));
+        return response;
+    }
+
+    private static HttpHeaders headers (String... namesAndValues)
+    {
+        HttpHeaders headers = new DefaultHttpHeaders ();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+        {
+            headers.add (namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+
+    private static String httpDate (long millis)
+    {
+        return DateFormatter.format (new Date (millis));
+    }
+
+    private static ByteBuf body (String body)
+    {
+        return Unpooled.copiedBuffer (body, StandardCharsets.US_ASCII);
+    }
+
+    private static String bodyOf (HttpResponse response)
+    {
+        return response == null ? null : ((FullHttpResponse) response).content ().toString (StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,118 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SelfSignedSslEngineSource}.
+ */
+public class SelfSignedSslEngineSourceTest
+{
+    private static final String ALIAS = "littleproxy";
+    private static final String PASSWORD = "Be Your Own Lantern";
+
+    private File directory;
+
+    @Before
+    public void setUp () throws Exception
+    {
+        directory = Files.createTempDirectory ("littleproxy_keystores").toFile ();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        File[] files = directory.listFiles ();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete ();
+            }
+        }
+        directory.delete ();
+    }
+
+    @Test
+    public void testGeneratesKeyStoreAndExportsCertificateNextToIt () throws Exception
+    {
+        File keyStoreFile = new File (directory, "proxy_keystore.jks");
+
+        new SelfSignedSslEngineSource (keyStoreFile.getPath ());
+
+        KeyStore keyStore = loadKeyStore (keyStoreFile);
+        assertTrue ("Expected the key to be stored under the alias " + ALIAS, keyStore.isKeyEntry (ALIAS));
+        assertEquals ("EC", keyStore.getCertificate (ALIAS).getPublicKey ().getAlgorithm ());
+
+        File certificateFile = new File (directory, "proxy_cert");
+        assertTrue ("Expected the certificate to be exported next to the key store", certificateFile.isFile ());
+        assertArrayEquals ("Expected the exported certificate to be the key store's", keyStore.getCertificate (ALIAS).getEncoded (), readCertificate (certificateFile).getEncoded ());
+    }
+
+    @Test
+    public void testGeneratesKeyOfConfiguredAlgorithm () throws Exception
+    {
+        File keyStoreFile = new File (directory, "rsa.jks");
+
+        new SelfSignedSslEngineSource (keyStoreFile.getPath (), false, true, KeyAlgorithm.RSA_2048);
+
+        assertEquals ("RSA", loadKeyStore (keyStoreFile).getCertificate (ALIAS).getPublicKey ().getAlgorithm ());
+        assertTrue ("Expected the certificate to be exported next to the key store", new File (directory, "rsa_cert").isFile ());
+    }
+
+    @Test
+    public void testExistingKeyStoreIsNotRegenerated () throws Exception
+    {
+        File keyStoreFile = new File (directory, "proxy_keystore.jks");
+        new SelfSignedSslEngineSource (keyStoreFile.getPath ());
+        Certificate certificate = loadKeyStore (keyStoreFile).getCertificate (ALIAS);
+        File certificateFile = new File (directory, "proxy_cert");
+        assertTrue (certificateFile.delete ());
+
+        SelfSignedSslEngineSource sslEngineSource = new SelfSignedSslEngineSource (keyStoreFile.getPath (), false, true, KeyAlgorithm.RSA_2048);
+
+        assertNotNull (sslEngineSource.newSslEngine ());
+        assertEquals ("Expected the existing key store to be used", certificate, loadKeyStore (keyStoreFile).getCertificate (ALIAS));
+        assertFalse ("Expected no certificate to be exported for an existing key store", certificateFile.exists ());
+    }
+
+    @Test
+    public void testCertificateFileIsNamedAfterKeyStore ()
+    {
+        assertEquals (new File (directory, "littleproxy_cert"), SelfSignedSslEngineSource.certificateFileFor (new File (directory, "littleproxy_keystore.jks")));
+        assertEquals (new File (directory, "chain_proxy_keystore_2_cert"), SelfSignedSslEngineSource.certificateFileFor (new File (directory, "chain_proxy_keystore_2.jks")));
+    }
+
+    private static KeyStore loadKeyStore (File keyStoreFile) throws Exception
+    {
+        KeyStore keyStore = KeyStore.getInstance ("JKS");
+        try (InputStream in = new FileInputStream (keyStoreFile))
+        {
+            keyStore.load (in, PASSWORD.toCharArray ());
+        }
+        return keyStore;
+    }
+
+    private static Certificate readCertificate (File certificateFile) throws Exception
+    {
+        try (InputStream in = new FileInputStream (certificateFile))
+        {
+            return CertificateFactory.getInstance ("X.509").generateCertificate (in);
+        }
+    }
+}
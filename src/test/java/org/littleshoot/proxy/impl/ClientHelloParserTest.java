@@ -0,0 +1,171 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import org.littleshoot.proxy.TlsClientHello;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClientHelloParserTest
+{
+    @Test
+    public void testParsesServerNameAndApplicationProtocols ()
+    {
+        ByteBuf buf = records (clientHello ("www.example.com", "h2", "http/1.1"), Integer.MAX_VALUE);
+        int readerIndex = buf.readerIndex ();
+
+        TlsClientHello clientHello = ClientHelloParser.parse (buf);
+
+        assertTrue (clientHello.isTls ());
+        assertEquals ("www.example.com", clientHello.getServerName ());
+        assertEquals (Arrays.asList ("h2", "http/1.1"), clientHello.getApplicationProtocols ());
+        assertEquals ("Parsing should not consume the tunnel's bytes", readerIndex, buf.readerIndex ());
+        buf.release ();
+    }
+
+    @Test
+    public void testParsesClientHelloWithoutExtensions ()
+    {
+        ByteBuf buf = records (clientHello (null), Integer.MAX_VALUE);
+
+        TlsClientHello clientHello = ClientHelloParser.parse (buf);
+
+        assertTrue (clientHello.isTls ());
+        assertNull (clientHello.getServerName ());
+        assertEquals (Collections.<String>emptyList (), clientHello.getApplicationProtocols ());
+        buf.release ();
+    }
+
+    @Test
+    public void testReassemblesClientHelloSplitAcrossRecords ()
+    {
+        ByteBuf buf = records (clientHello ("www.example.com", "h2"), 20);
+
+        TlsClientHello clientHello = ClientHelloParser.parse (buf);
+
+        assertEquals ("www.example.com", clientHello.getServerName ());
+        assertEquals (Collections.singletonList ("h2"), clientHello.getApplicationProtocols ());
+        buf.release ();
+    }
+
+    @Test
+    public void testNeedsMoreBytesForPartialClientHello ()
+    {
+        ByteBuf complete = records (clientHello ("www.example.com", "h2"), 20);
+        for (int length = 0; length < complete.readableBytes (); length++)
+        {
+            assertNull ("A ClientHello truncated to " + length + " bytes should need more bytes", ClientHelloParser.parse (complete.slice (0, length)));
+        }
+        complete.release ();
+    }
+
+    @Test
+    public void testRecognizesOtherProtocols ()
+    {
+        ByteBuf buf = Unpooled.copiedBuffer ("GET / HTTP/1.1\r\nHost: www.example.com\r\n\r\n", StandardCharsets.US_ASCII);
+
+        TlsClientHello clientHello = ClientHelloParser.parse (buf);
+
+        assertSame (TlsClientHello.NOT_TLS, clientHello);
+        assertFalse (clientHello.isTls ());
+        buf.release ();
+    }
+
+    @Test
+    public void testRecognizesMalformedClientHello ()
+    {
+        ByteBuf body = clientHello ("www.example.com");
+        // claim that the extensions are longer than the ClientHello
+        body.setShort (2 + 32 + 1 + 2 + 2 + 1 + 1, 0xffff);
+        ByteBuf buf = records (body, Integer.MAX_VALUE);
+
+        assertSame (TlsClientHello.NOT_TLS, ClientHelloParser.parse (buf));
+        buf.release ();
+    }
+
+    /**
+     * Builds a ClientHello handshake body, with the given server name and application protocols as extensions, or no
+     * extensions at all if the server name is null.
+     */
+    private static ByteBuf clientHello (String serverName, String... applicationProtocols)
+    {
+        ByteBuf body = Unpooled.buffer ();
+        body.writeShort (0x0303);
+        body.writeZero (32);
+        // session id
+        body.writeByte (0);
+        // one cipher suite
+        body.writeShort (2);
+        body.writeShort (0x1301);
+        // null compression
+        body.writeByte (1);
+        body.writeByte (0);
+        if (serverName == null)
+        {
+            return body;
+        }
+
+        ByteBuf extensions = Unpooled.buffer ();
+        byte[] name = serverName.getBytes (StandardCharsets.US_ASCII);
+        extensions.writeShort (0);
+        extensions.writeShort (2 + 1 + 2 + name.length);
+        extensions.writeShort (1 + 2 + name.length);
+        extensions.writeByte (0);
+        extensions.writeShort (name.length);
+        extensions.writeBytes (name);
+
+        ByteBuf protocols = Unpooled.buffer ();
+        for (String applicationProtocol : applicationProtocols)
+        {
+            byte[] protocol = applicationProtocol.getBytes (StandardCharsets.US_ASCII);
+            protocols.writeByte (protocol.length);
+            protocols.writeBytes (protocol);
+        }
+        if (protocols.isReadable ())
+        {
+            extensions.writeShort (16);
+            extensions.writeShort (2 + protocols.readableBytes ());
+            extensions.writeShort (protocols.readableBytes ());
+            extensions.writeBytes (protocols);
+        }
+        protocols.release ();
+
+        body.writeShort (extensions.readableBytes ());
+        body.writeBytes (extensions);
+        extensions.release ();
+        return body;
+    }
+
+    /**
+     * Wraps a ClientHello body in a handshake message, and that in TLS records of at most the given length.
+     */
+    private static ByteBuf records (ByteBuf body, int maximumRecordLength)
+    {
+        ByteBuf handshake = Unpooled.buffer ();
+        handshake.writeByte (1);
+        handshake.writeMedium (body.readableBytes ());
+        handshake.writeBytes (body);
+        body.release ();
+
+        ByteBuf records = Unpooled.buffer ();
+        while (handshake.isReadable ())
+        {
+            int length = Math.min (maximumRecordLength, handshake.readableBytes ());
+            records.writeByte (22);
+            records.writeShort (0x0301);
+            records.writeShort (length);
+            records.writeBytes (handshake, length);
+        }
+        handshake.release ();
+        return records;
+    }
+}
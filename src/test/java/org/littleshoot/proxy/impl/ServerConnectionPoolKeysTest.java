@@ -0,0 +1,77 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the keys that a {@link ServerConnectionPool} keeps track of.
+ */
+public class ServerConnectionPoolKeysTest
+{
+    @Test
+    public void testKeyIsForgottenOnceIdleConnectionsAreEvicted ()
+    {
+        ServerConnectionPool pool = new ServerConnectionPool (new ConnectionPoolConfiguration ().withIdleTimeoutSeconds (0));
+        ProxyToServerConnection first = pooledConnection ();
+        ProxyToServerConnection second = pooledConnection ();
+
+        assertTrue (pool.register ("a.example:80", first));
+        assertTrue (pool.register ("b.example:80", second));
+        assertTrue (pool.release (first));
+        assertTrue (pool.release (second));
+        assertEquals (2, pool.getKeyCount ());
+
+        pool.evictIdleConnections ();
+
+        verify (first).disconnect ();
+        verify (second).disconnect ();
+        assertEquals ("Expected the keys of the evicted connections to be forgotten", 0, pool.getKeyCount ());
+        assertEquals (0, pool.getIdleCount ("a.example:80"));
+    }
+
+    @Test
+    public void testKeyIsForgottenOnceItsLastConnectionIsRetired ()
+    {
+        ServerConnectionPool pool = new ServerConnectionPool (new ConnectionPoolConfiguration ());
+        ProxyToServerConnection connection = pooledConnection ();
+
+        assertTrue (pool.register ("a.example:80", connection));
+        pool.retire (connection);
+
+        assertEquals (0, pool.getKeyCount ());
+    }
+
+    @Test
+    public void testForgottenKeyIsManagedAgain ()
+    {
+        ServerConnectionPool pool = new ServerConnectionPool (new ConnectionPoolConfiguration ().withMaxActivePerHost (1));
+        ProxyToServerConnection first = pooledConnection ();
+        ProxyToServerConnection second = pooledConnection ();
+
+        assertTrue (pool.register ("a.example:80", first));
+        pool.retire (first);
+        assertTrue (pool.register ("a.example:80", second));
+
+        assertEquals (1, pool.getKeyCount ());
+        assertEquals (1, pool.getActiveCount ("a.example:80"));
+    }
+
+    /**
+     * @return a connection that keeps track of its pool key and is always reusable
+     */
+    private static ProxyToServerConnection pooledConnection ()
+    {
+        ProxyToServerConnection connection = mock (ProxyToServerConnection.class);
+        doCallRealMethod ().when (connection).setPoolKey (nullable (String.class));
+        doCallRealMethod ().when (connection).getPoolKey ();
+        when (connection.isReusable ()).thenReturn (true);
+        return connection;
+    }
+}